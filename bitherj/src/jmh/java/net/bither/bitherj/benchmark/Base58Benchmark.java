@@ -0,0 +1,63 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.benchmark;
+
+import net.bither.bitherj.exception.AddressFormatException;
+import net.bither.bitherj.utils.Base58;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base58Benchmark {
+    private byte[] addressBytes;
+
+    @Setup
+    public void setup() throws AddressFormatException {
+        addressBytes = Base58.decode(Fixtures.Address);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base58.encode(addressBytes);
+    }
+
+    @Benchmark
+    public byte[] decode() throws AddressFormatException {
+        return Base58.decode(Fixtures.Address);
+    }
+
+    @Benchmark
+    public byte[] decodeChecked() throws AddressFormatException {
+        return Base58.decodeChecked(Fixtures.Address);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.benchmark;
+
+import net.bither.bitherj.message.BitcoinSerializer;
+import net.bither.bitherj.message.Message;
+import net.bither.bitherj.utils.VarInt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserializing whole packets from the read buffer, for the messages a syncing peer sends most.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitcoinSerializerBenchmark {
+    // a full headers message as sent during header sync
+    private static final int HeaderCount = 2000;
+
+    private BitcoinSerializer serializer;
+    private byte[] txPacket;
+    private byte[] merkleBlockPacket;
+    private byte[] headersPacket;
+
+    @Setup
+    public void setup() throws IOException {
+        serializer = new BitcoinSerializer();
+        txPacket = packet("tx", Fixtures.Tx);
+        merkleBlockPacket = packet("merkleblock", Fixtures.GenesisMerkleBlock);
+
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        headers.write(new VarInt(HeaderCount).encode());
+        for (int i = 0; i < HeaderCount; i++) {
+            headers.write(Fixtures.GenesisHeader);
+            // tx count, always 0 in headers
+            headers.write(0);
+        }
+        headersPacket = packet("headers", headers.toByteArray());
+    }
+
+    @Benchmark
+    public Message tx() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(txPacket));
+    }
+
+    @Benchmark
+    public Message merkleBlock() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(merkleBlockPacket));
+    }
+
+    @Benchmark
+    public Message headers() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(headersPacket));
+    }
+
+    private byte[] packet(String command, byte[] payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(command, payload, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.benchmark;
+
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.message.FilteredBlockMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header checks as done for every relayed header, and the merkle checks of full and filtered
+ * blocks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockBenchmark {
+    private Block header;
+    private Block block;
+
+    @Setup
+    public void setup() {
+        header = new Block(Fixtures.GenesisHeader);
+        block = new Block(Fixtures.GenesisBlock);
+    }
+
+    @Benchmark
+    public Block parseHeader() {
+        return new Block(Fixtures.GenesisHeader);
+    }
+
+    @Benchmark
+    public Block verifyHeader() {
+        header.verifyHeader();
+        return header;
+    }
+
+    @Benchmark
+    public Block verifyTransactions() {
+        block.verifyTransactions();
+        return block;
+    }
+
+    @Benchmark
+    public List<byte[]> filteredBlockMerkle() {
+        // the matched hashes are cached per message, so every call parses a fresh one
+        return new FilteredBlockMessage(Fixtures.GenesisMerkleBlock).getTransactionHashes();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.benchmark;
+
+import net.bither.bitherj.core.BloomFilter;
+import net.bither.bitherj.utils.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BloomFilterBenchmark {
+    private static final int ElementCount = 1000;
+
+    private byte[][] elements;
+    private BloomFilter filter;
+    private int index;
+
+    @Setup
+    public void setup() {
+        elements = new byte[ElementCount][];
+        byte[] element = Fixtures.Hash;
+        for (int i = 0; i < ElementCount; i++) {
+            element = Utils.sha256hash160(element);
+            elements[i] = element;
+        }
+        filter = new BloomFilter(ElementCount, 0.0005, 0x2a2a2a2aL);
+        for (byte[] e : elements) {
+            filter.insert(e);
+        }
+    }
+
+    @Benchmark
+    public BloomFilter insert() {
+        filter.insert(next());
+        return filter;
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return filter.contains(next());
+    }
+
+    private byte[] next() {
+        index = (index + 1) % ElementCount;
+        return elements[index];
+    }
+}
@@ -0,0 +1,54 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.benchmark;
+
+import net.bither.bitherj.utils.Utils;
+
+/**
+ * Fixed mainnet data the benchmarks run on, so results are comparable between runs.
+ */
+class Fixtures {
+    // mainnet tx 584985ca8a9ed57987da36ea3d13fe05a7c498f2098ddeb6c8d0f3214067640c
+    static final byte[] Tx = Utils.hexStringToByteArray("0100000001bdc0141fe3e5c2223a6d26a95acbf791042d93f9d9b8b38f133bf7adb5c1e293010000006a47304402202214770c0f5a9261190337273219a108132a4bc987c745db8dd6daded34b0dcb0220573de1d973166024b8342d6b6fef2a864a06cceee6aee13a910e5d8df465ed2a01210382b259804ad8d88b96a23222e24dd5a130d39588e78960c9e9b48a5b49943649ffffffff02a0860100000000001976a91479a7bf0bba8359561d4dab457042d7b632d5e64188ac605b0300000000001976a914b036c529faeca8040232cc4bd5918e709e90c4ff88ac00000000");
+
+    // the input script and first output script of the tx above
+    static final byte[] InScript = Utils.hexStringToByteArray("47304402202214770c0f5a9261190337273219a108132a4bc987c745db8dd6daded34b0dcb0220573de1d973166024b8342d6b6fef2a864a06cceee6aee13a910e5d8df465ed2a01210382b259804ad8d88b96a23222e24dd5a130d39588e78960c9e9b48a5b49943649");
+    static final byte[] OutScript = Utils.hexStringToByteArray("76a91479a7bf0bba8359561d4dab457042d7b632d5e64188ac");
+
+    static final String GenesisHeaderHex = "0100000000000000000000000000000000000000000000000000000000000000000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4a29ab5f49ffff001d1dac2b7c";
+
+    static final byte[] GenesisHeader = Utils.hexStringToByteArray(GenesisHeaderHex);
+
+    // mainnet genesis block with its coinbase tx
+    static final byte[] GenesisBlock = Utils.hexStringToByteArray(GenesisHeaderHex + "01"
+            + "01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff4d04ffff001d0104455468652054696d65732030332f4a616e2f32303039204368616e63656c6c6f72206f6e206272696e6b206f66207365636f6e64206261696c6f757420666f722062616e6b73ffffffff0100f2052a01000000434104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac00000000");
+
+    // merkleblock of the genesis block matching its only tx: 1 tx, 1 hash, flags 0x01
+    static final byte[] GenesisMerkleBlock = Utils.hexStringToByteArray(GenesisHeaderHex
+            + "01000000" + "01" + "3ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4a"
+            + "01" + "01");
+
+    // extended public key (pub key + chain code) of an hd account external chain
+    static final byte[] ExtendedPubKey = Utils.hexStringToByteArray("02eb41548e5e08da531ff2e6feffeb59055231920d3a87cc49e2dffd095644d9296b3e950f9630d5cd6f671ec5e1e45486df9b1688b75650e97596a1ec181de8a8");
+
+    static final String Address = "1NQpH6Nf8QtR2HphLRcvuVqfhXBXsiWn8r";
+
+    static final byte[] Hash = Utils.doubleDigest(Tx);
+
+    private Fixtures() {
+    }
+}
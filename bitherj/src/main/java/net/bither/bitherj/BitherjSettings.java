@@ -89,6 +89,8 @@ public class BitherjSettings {
     public static final int BITCOIN_REFERENCE_BLOCK_HEIGHT = 250000;
     public static final int MaxPeerConnections = 6;
     public static final int MaxPeerBackgroundConnections = 2;
+    // merkleblocks a peer keeps requested while downloading
+    public static final int FilteredBlockWindow = 32;
 
     public static enum AppMode {
         COLD, HOT
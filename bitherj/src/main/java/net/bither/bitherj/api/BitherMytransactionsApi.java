@@ -18,13 +18,33 @@ package net.bither.bitherj.api;
 
 import net.bither.bitherj.api.http.BitherUrl;
 import net.bither.bitherj.api.http.HttpGetResponse;
+import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.utils.Base64;
+import net.bither.bitherj.utils.JsonStreamReader;
 import net.bither.bitherj.utils.Utils;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
 
 public class BitherMytransactionsApi extends HttpGetResponse<String> {
     public static final int bitherWebType = 0;
     public static final int blockChainWebType = 1;
 
+    private static final String BLOCK_COUNT = "block_count";
+    private static final String TX = "tx";
+
+    public interface TxConsumer {
+        void onTx(Tx tx) throws Exception;
+    }
+
+    private TxConsumer txConsumer;
+    private int blockCount;
+    private int txCount;
+
     public BitherMytransactionsApi(String address) {
         this(address, 1);
     }
@@ -38,6 +58,76 @@ public class BitherMytransactionsApi extends HttpGetResponse<String> {
         setUrl(url);
     }
 
+    /**
+     * The txs of the page are decoded while the response downloads and given to the consumer
+     * one by one, the result stays null.
+     */
+    public BitherMytransactionsApi(String address, int page, TxConsumer txConsumer) {
+        this(address, page);
+        this.txConsumer = txConsumer;
+    }
+
+    @Override
+    protected void handleResponse(HttpResponse httpResponse) throws Exception {
+        HttpEntity entity = httpResponse.getEntity();
+        if (txConsumer == null || entity == null || httpResponse.getStatusLine().getStatusCode()
+                != 200) {
+            super.handleResponse(httpResponse);
+            return;
+        }
+        JsonStreamReader reader = new JsonStreamReader(new BufferedReader(new
+                InputStreamReader(entity.getContent(), "utf-8"), 8192));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(BLOCK_COUNT) && !reader.isNextNull()) {
+                    blockCount = reader.nextInt();
+                } else if (name.equals(TX) && !reader.isNextNull()) {
+                    readTxs(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // each tx is [block no, base64 tx]
+    private void readTxs(JsonStreamReader reader) throws Exception {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            if (reader.hasNext()) {
+                int height = reader.nextInt();
+                if (reader.hasNext()) {
+                    Tx tx = new Tx(Base64.decode(reader.nextString(), Base64.DEFAULT));
+                    tx.setBlockNo(height);
+                    txCount++;
+                    txConsumer.onTx(tx);
+                }
+            }
+            while (reader.hasNext()) {
+                reader.skipValue();
+            }
+            reader.endArray();
+        }
+        reader.endArray();
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the txs of the page given to the consumer
+     */
+    public int getTxCount() {
+        return txCount;
+    }
+
     @Override
     public void setResult(String response) throws Exception {
         this.result = response;
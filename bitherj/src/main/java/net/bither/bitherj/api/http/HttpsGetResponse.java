@@ -1,6 +1,7 @@
 package net.bither.bitherj.api.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -11,6 +12,7 @@ public abstract class HttpsGetResponse<T> extends BaseHttpsResponse<T> {
         trustCerts();
         URL url;
         HttpsURLConnection con = null;
+        boolean completed = false;
         try {
 
             url = new URL(getUrl());
@@ -22,9 +24,14 @@ public abstract class HttpsGetResponse<T> extends BaseHttpsResponse<T> {
                     .valueOf(HttpSetting.HTTP_SO_TIMEOUT));
             StringBuffer out = new StringBuffer();
             byte[] b = new byte[4096];
-            for (int n; (n = con.getInputStream().read(b)) != -1; ) {
+            InputStream in = con.getInputStream();
+            for (int n; (n = in.read(b)) != -1; ) {
                 out.append(new String(b, 0, n));
             }
+            // a fully read and closed stream lets the jvm keep the connection alive for the
+            // next request to the host, disconnect would close it
+            in.close();
+            completed = true;
             setResult(out.toString());
         } catch (IOException e) {
             if (con.getResponseCode() != 200) {
@@ -34,7 +41,7 @@ public abstract class HttpsGetResponse<T> extends BaseHttpsResponse<T> {
                 throw e;
             }
         } finally {
-            if (con != null) {
+            if (con != null && !completed) {
                 con.disconnect();
             }
         }
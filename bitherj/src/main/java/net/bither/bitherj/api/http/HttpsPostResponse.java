@@ -16,6 +16,7 @@ public abstract class HttpsPostResponse<T> extends BaseHttpsResponse<T> {
     public void handleHttpPost() throws Exception {
         trustCerts();
         HttpsURLConnection con = null;
+        boolean completed = false;
         String responseContent = null;
         try {
             StringBuffer params = new StringBuffer();
@@ -50,7 +51,9 @@ public abstract class HttpsPostResponse<T> extends BaseHttpsResponse<T> {
             InputStream in = con.getInputStream();
             responseContent = getStringFromIn(in);
 
+            // a closed stream lets the jvm keep the connection alive, disconnect would close it
             in.close();
+            completed = true;
         } catch (IOException e) {
             e.printStackTrace();
             if (con.getResponseCode() == 400) {
@@ -69,7 +72,7 @@ public abstract class HttpsPostResponse<T> extends BaseHttpsResponse<T> {
                 throw e;
             }
         } finally {
-            if (con != null) {
+            if (con != null && !completed) {
                 con.disconnect();
             }
         }
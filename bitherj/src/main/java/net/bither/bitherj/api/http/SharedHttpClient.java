@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.api.http;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One pooled http client for all the api calls, so following calls to a host reuse the kept
+ * alive connection instead of connecting again. Responses are requested gzipped. Cookies are
+ * not kept in the client, every request passes its cookie store in its context.
+ */
+public class SharedHttpClient {
+    private static final int MAX_CONNECTIONS = 20;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+    // keep idle connections at most this long if the server does not say
+    private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    private static final AtomicLong requestCount = new AtomicLong();
+    private static PoolingClientConnectionManager connectionManager;
+    private static DefaultHttpClient httpClient;
+
+    public static synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory
+                    .createDefault());
+            connectionManager.setMaxTotal(MAX_CONNECTIONS);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, HttpSetting
+                    .HTTP_CONNECTION_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, HttpSetting.HTTP_SO_TIMEOUT);
+            httpClient = new DefaultHttpClient(connectionManager, params);
+            httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = super.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, KEEP_ALIVE_MILLIS) :
+                            KEEP_ALIVE_MILLIS;
+                }
+            });
+            httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context) throws
+                        HttpException, IOException {
+                    requestCount.incrementAndGet();
+                    if (!request.containsHeader("Accept-Encoding")) {
+                        request.addHeader("Accept-Encoding", "gzip");
+                    }
+                }
+            });
+            httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+                @Override
+                public void process(HttpResponse response, HttpContext context) throws
+                        HttpException, IOException {
+                    HttpEntity entity = response.getEntity();
+                    if (entity == null || entity.getContentEncoding() == null) {
+                        return;
+                    }
+                    for (HeaderElement element : entity.getContentEncoding().getElements()) {
+                        if (element.getName().equalsIgnoreCase("gzip")) {
+                            response.setEntity(new GzipDecompressingEntity(entity));
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        // connections the server may have closed meanwhile are not worth trying
+        connectionManager.closeExpiredConnections();
+        return httpClient;
+    }
+
+    /**
+     * @return the requests sent since the process started
+     */
+    public static long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the connections in use and kept alive, or null before the first request
+     */
+    public static synchronized PoolStats getPoolStats() {
+        return connectionManager == null ? null : connectionManager.getTotalStats();
+    }
+
+    public static synchronized void shutdown() {
+        if (httpClient != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+            httpClient = null;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package net.bither.bitherj.core;
 
 import net.bither.bitherj.crypto.EncryptedData;
 import net.bither.bitherj.crypto.KeyCrypterException;
+import net.bither.bitherj.crypto.SigningSession;
 import net.bither.bitherj.crypto.hd.DeterministicKey;
 import net.bither.bitherj.crypto.hd.HDKeyDerivation;
 import net.bither.bitherj.crypto.mnemonic.MnemonicCode;
@@ -92,8 +93,18 @@ public abstract class AbstractHD {
 
     protected DeterministicKey masterKey(CharSequence password) throws MnemonicException
             .MnemonicLengthException {
+        SigningSession session = new SigningSession(password);
+        try {
+            return masterKey(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    protected DeterministicKey masterKey(SigningSession session) throws MnemonicException
+            .MnemonicLengthException {
         long begin = System.currentTimeMillis();
-        decryptHDSeed(password);
+        decryptHDSeed(session);
         DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(hdSeed);
         wipeHDSeed();
         log.info("hdm keychain decrypt time: {}", System.currentTimeMillis() - begin);
@@ -102,14 +113,24 @@ public abstract class AbstractHD {
 
     protected void decryptHDSeed(CharSequence password) throws MnemonicException
             .MnemonicLengthException {
-        if (hdSeedId < 0 || password == null) {
+        SigningSession session = new SigningSession(password);
+        try {
+            decryptHDSeed(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    protected void decryptHDSeed(SigningSession session) throws MnemonicException
+            .MnemonicLengthException {
+        if (hdSeedId < 0 || session.getPassword() == null) {
             return;
         }
         String encryptedHDSeed = getEncryptedHDSeed();
         if (Utils.isEmpty(encryptedHDSeed)) {
-            initHDSeedFromMnemonicSeed(password);
+            initHDSeedFromMnemonicSeed(session.getPassword());
         } else {
-            hdSeed = new EncryptedData(encryptedHDSeed).decrypt(password);
+            hdSeed = new EncryptedData(encryptedHDSeed).decrypt(session);
         }
     }
 
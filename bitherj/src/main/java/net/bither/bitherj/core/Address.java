@@ -18,6 +18,7 @@ package net.bither.bitherj.core;
 
 import net.bither.bitherj.AbstractApp;
 import net.bither.bitherj.crypto.ECKey;
+import net.bither.bitherj.crypto.SigningSession;
 import net.bither.bitherj.crypto.TransactionSignature;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.exception.PasswordException;
@@ -56,6 +57,26 @@ public class Address implements Comparable<Address> {
     protected boolean syncComplete = false;
     private long mSortTime;
     private long balance = 0;
+    private final BalanceLedger balanceLedger = new BalanceLedger(new BalanceLedger.Source() {
+        @Override
+        public long getConfirmedBalance() {
+            return AbstractDb.txProvider.getConfirmedBalanceWithAddress(getAddress());
+        }
+
+        @Override
+        public List<Tx> getUnconfirmedTxs() {
+            return AbstractDb.txProvider.getUnconfirmedTxWithAddress(getAddress());
+        }
+
+        @Override
+        public Set<String> getOwnedAddresses(List<String> addresses) {
+            Set<String> owned = new HashSet<String>();
+            if (addresses.contains(getAddress())) {
+                owned.add(getAddress());
+            }
+            return owned;
+        }
+    });
     private boolean isFromXRandom;
     private boolean isTrashed = false;
     private String alias;
@@ -136,81 +157,42 @@ public class Address implements Comparable<Address> {
     }
 
     public void updateBalance() {
-        this.balance = AbstractDb.txProvider.getConfirmedBalanceWithAddress(getAddress())
-                + this.calculateUnconfirmedBalance();
+        balanceLedger.invalidate();
+        this.balance = balanceLedger.getBalance();
     }
 
-    private long calculateUnconfirmedBalance() {
-        long balance = 0;
-
-        List<Tx> txs = AbstractDb.txProvider.getUnconfirmedTxWithAddress(this.address);
-        Collections.sort(txs);
-
-        Set<byte[]> invalidTx = new HashSet<byte[]>();
-        Set<OutPoint> spentOut = new HashSet<OutPoint>();
-        Set<OutPoint> unspendOut = new HashSet<OutPoint>();
-
-        for (int i = txs.size() - 1; i >= 0; i--) {
-            Set<OutPoint> spent = new HashSet<OutPoint>();
-            Tx tx = txs.get(i);
-
-            Set<byte[]> inHashes = new HashSet<byte[]>();
-            for (In in : tx.getIns()) {
-                spent.add(new OutPoint(in.getPrevTxHash(), in.getPrevOutSn()));
-                inHashes.add(in.getPrevTxHash());
-            }
-
-            if (tx.getBlockNo() == Tx.TX_UNCONFIRMED
-                    && (Utils.isIntersects(spent, spentOut) || Utils.isIntersects(inHashes, invalidTx))) {
-                invalidTx.add(tx.getTxHash());
-                continue;
-            }
-
-            spentOut.addAll(spent);
-            for (Out out : tx.getOuts()) {
-                if (Utils.compareString(this.getAddress(), out.getOutAddress())) {
-                    unspendOut.add(new OutPoint(tx.getTxHash(), out.getOutSn()));
-                    balance += out.getOutValue();
-                }
-            }
-            spent.clear();
-            spent.addAll(unspendOut);
-            spent.retainAll(spentOut);
-            for (OutPoint o : spent) {
-                Tx tx1 = AbstractDb.txProvider.getTxDetailByTxHash(o.getTxHash());
-                unspendOut.remove(o);
-                for (Out out : tx1.getOuts()) {
-                    if (out.getOutSn() == o.getOutSn()) {
-                        balance -= out.getOutValue();
-                    }
-                }
-            }
-        }
-        return balance;
+    /**
+     * The next balance update rebuilds the balance from the db, needed after txs of this address
+     * are removed or unconfirmed.
+     */
+    public void invalidateBalance() {
+        balanceLedger.invalidate();
     }
 
-
     public long getBalance() {
         return balance;
     }
 
     private long getDeltaBalance() {
         long oldBalance = this.balance;
-        this.updateBalance();
+        this.balance = balanceLedger.getBalance();
         return this.balance - oldBalance;
     }
 
     public void notificatTx(Tx tx, Tx.TxNotificationType txNotificationType) {
+        balanceLedger.addTx(tx);
         long deltaBalance = getDeltaBalance();
         AbstractApp.notificationService.notificatTx(getAddress(), tx, txNotificationType, deltaBalance);
     }
 
     public void setBlockHeight(List<byte[]> txHashes, int height) {
+        balanceLedger.confirmTxs(txHashes);
         notificatTx(null, Tx.TxNotificationType.txDoubleSpend);
     }
 
     public boolean initTxs(List<Tx> txs) {
         AbstractDb.txProvider.addTxs(txs);
+        invalidateBalance();
         notificatTx(null, Tx.TxNotificationType.txFromApi);
         return true;
     }
@@ -329,11 +311,21 @@ public class Address implements Comparable<Address> {
 
     public List<byte[]> signHashes(List<byte[]> unsignedInHashes, CharSequence passphrase) throws
             PasswordException {
-        ECKey key = PrivateKeyUtil.getECKeyFromSingleString(this.getFullEncryptPrivKey(), passphrase);
+        SigningSession session = new SigningSession(passphrase);
+        try {
+            return signHashes(unsignedInHashes, session);
+        } finally {
+            session.close();
+        }
+    }
+
+    public List<byte[]> signHashes(List<byte[]> unsignedInHashes, SigningSession session) throws
+            PasswordException {
+        ECKey key = PrivateKeyUtil.getECKeyFromSingleString(this.getFullEncryptPrivKey(), session);
         if (key == null) {
             throw new PasswordException("do not decrypt eckey");
         }
-        KeyParameter assKey = key.getKeyCrypter().deriveKey(passphrase);
+        KeyParameter assKey = session.deriveKey(key.getKeyCrypter());
         List<byte[]> result = new ArrayList<byte[]>();
         for (byte[] unsignedInHash : unsignedInHashes) {
             TransactionSignature signature = new TransactionSignature(key.sign(unsignedInHash,
@@ -387,6 +379,7 @@ public class Address implements Comparable<Address> {
 
     public boolean removeTx(Tx tx) {
         AbstractDb.txProvider.remove(tx.getTxHash());
+        AddressManager.getInstance().invalidateBalances();
         return true;
     }
 
@@ -23,6 +23,7 @@ import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.db.imp.AbstractTxProvider;
 import net.bither.bitherj.script.Script;
 import net.bither.bitherj.utils.Sha256Hash;
+import net.bither.bitherj.utils.Threading;
 import net.bither.bitherj.utils.Utils;
 
 import org.slf4j.Logger;
@@ -35,12 +36,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         EnterpriseHDMKeychain.EnterpriseHDMKeychainAddressChangeDelegate {
 
     private static final Logger log = LoggerFactory.getLogger(AddressManager.class);
     private final byte[] lock = new byte[0];
+    // held while txs are checked for conflicts and written, and while a block confirms or rolls
+    // back txs, so neither works on the other's half done state
+    private final ReentrantLock txsLock = Threading.lock("AddressManagerTxs");
     private static AddressManager uniqueInstance = new AddressManager();
 
     protected List<Address> privKeyAddresses = new ArrayList<Address>();
@@ -52,6 +57,7 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
     protected HDAccount hdAccountHot;
     protected HDAccount hdAccountMonitored;
     protected List<DesktopHDMKeychain> desktopHDMKeychains;
+    private final HDAccountAddressIndex hdAccountAddressIndex = new HDAccountAddressIndex();
 
     private AddressManager() {
         synchronized (lock) {
@@ -59,6 +65,7 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
             initHDMKeychain();
             initEnterpriseHDMKeychain();
             initHDAccounts();
+            initHDAccountAddressIndex();
             initDesktopHDMKeychain();
             initAliasAndVanityLen();
             AbstractApp.addressIsReady = true;
@@ -148,6 +155,17 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         }
     }
 
+    private void initHDAccountAddressIndex() {
+        long begin = System.currentTimeMillis();
+        AbstractDb.hdAccountAddressProvider.loadAddressIndex(hdAccountAddressIndex);
+        log.info("load {} hd account addresses into index in {} ms", hdAccountAddressIndex.size()
+                , System.currentTimeMillis() - begin);
+    }
+
+    public HDAccountAddressIndex getHDAccountAddressIndex() {
+        return hdAccountAddressIndex;
+    }
+
     private void initDesktopHDMKeychain() {
         if (AbstractDb.desktopAddressProvider != null) {
             List<Integer> seeds = AbstractDb.desktopAddressProvider.getDesktopKeyChainSeed();
@@ -175,16 +193,28 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
     }
 
     public boolean registerTx(Tx tx, Tx.TxNotificationType txNotificationType, boolean isConfirmed) {
-        if (isConfirmed) {
-            byte[] existTx = AbstractDb.txProvider.isIdentify(tx);
-            if (existTx.length > 0) {
-                AbstractDb.txProvider.remove(existTx);
-            }
-        } else {
-            byte[] existTx = AbstractDb.txProvider.isIdentify(tx);
-            if (existTx.length > 0) {
+        txsLock.lock();
+        try {
+            return registerTxWithTxsLock(tx, txNotificationType, isConfirmed);
+        } finally {
+            txsLock.unlock();
+        }
+    }
+
+    private boolean registerTxWithTxsLock(Tx tx, Tx.TxNotificationType txNotificationType,
+                                          boolean isConfirmed) {
+        List<byte[]> prevTxHashes = new ArrayList<byte[]>();
+        for (In in : tx.getIns()) {
+            prevTxHashes.add(in.getPrevTxHash());
+        }
+        byte[] existTx = identifyTxHash(tx, AbstractDb.txProvider.getSpentByTxHashes
+                (prevTxHashes, false));
+        if (existTx.length > 0) {
+            if (!isConfirmed) {
                 return false;
             }
+            AbstractDb.txProvider.remove(existTx);
+            invalidateBalances();
         }
         if (AbstractDb.txProvider.isTxDoubleSpendWithConfirmedTx(tx)) {
             // double spend with confirmed tx
@@ -196,7 +226,7 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         // .getIns().size());
         boolean isRegister = false;
         Tx compressedTx;
-        tx = AbstractDb.hdAccountAddressProvider.updateOutHDAccountId(tx);
+        tx = hdAccountAddressIndex.updateOutHDAccountId(tx);
         if (txNotificationType != Tx.TxNotificationType.txSend) {
             compressedTx = compressTx(tx, inAddresses);
         } else {
@@ -303,7 +333,7 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
                     needNotifyDesktopHDMHS.add(address);
                 }
             }
-            needNotifyHDAccountIdHS.addAll(AbstractDb.hdAccountAddressProvider.getRelatedHDAccountIdList(inAddresses));
+            needNotifyHDAccountIdHS.addAll(hdAccountAddressIndex.getRelatedHDAccountIdList(inAddresses));
             isRegister = needNotifyAddressHashSet.size() > 0
                     || needNotifyDesktopHDMHS.size() > 0 || needNotifyHDAccountIdHS.size() > 0;
         }
@@ -316,6 +346,10 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         }
         for (Address addr : AddressManager.getInstance().getAllAddresses()) {
             if (needNotifyAddressHashSet.contains(addr.getAddress())) {
+                if (txInDb != null) {
+                    // the balance ledger only applies txs new to the db
+                    addr.invalidateBalance();
+                }
                 addr.notificatTx(tx, txNotificationType);
             }
         }
@@ -354,10 +388,59 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
             DesktopHDMKeychain desktopHDMKeychain = desktopHDMKeychains.get(0);
             desktopHDMKeychain.onNewTx(tx, needNotifityDesktopHDMAddressList, txNotificationType);
         }
+        if (txInDb != null) {
+            invalidateHDAccountBalances(needNotifyHDAccountIdHS);
+        }
         this.onNewTx(tx, needNotifyHDAccountIdHS, txNotificationType);
         return isRegister;
     }
 
+    /**
+     * @see #txsLock
+     */
+    ReentrantLock getTxsLock() {
+        return txsLock;
+    }
+
+    /**
+     * Makes every address and hd account rebuild its balance from the db on the next update,
+     * called when txs are removed from the db or unconfirmed by a block chain roll back.
+     */
+    public void invalidateBalances() {
+        for (Address address : getAllAddresses()) {
+            address.invalidateBalance();
+        }
+        if (hasHDAccountHot()) {
+            getHDAccountHot().invalidateBalance();
+        }
+        if (hasHDAccountMonitored()) {
+            getHDAccountMonitored().invalidateBalance();
+        }
+    }
+
+    /**
+     * Lets the hd accounts' balance ledgers see the txs confirmed by a block, the addresses see
+     * them through {@link Address#setBlockHeight(List, int)}.
+     */
+    public void confirmTxs(List<byte[]> txHashes) {
+        if (hasHDAccountHot()) {
+            getHDAccountHot().confirmTxs(txHashes);
+        }
+        if (hasHDAccountMonitored()) {
+            getHDAccountMonitored().confirmTxs(txHashes);
+        }
+    }
+
+    private void invalidateHDAccountBalances(Set<Integer> hdAccountIds) {
+        if (hasHDAccountHot() && hdAccountIds.contains(getHDAccountHot().getHdSeedId())) {
+            getHDAccountHot().invalidateBalance();
+        }
+        if (hasHDAccountMonitored() && hdAccountIds.contains(getHDAccountMonitored()
+                .getHdSeedId())) {
+            getHDAccountMonitored().invalidateBalance();
+        }
+    }
+
     private void onNewTx(Tx tx, HashSet<Integer> relatedHDAccountIdList, Tx.TxNotificationType txNotificationType) {
         for (Integer i : relatedHDAccountIdList) {
             if (hasHDAccountHot() && getHDAccountHot().getHdSeedId() == i) {
@@ -369,6 +452,318 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         }
     }
 
+    /**
+     * Same as {@link #registerTx(Tx, Tx.TxNotificationType, boolean)} for a batch of txs, the db
+     * state for the whole batch is read with a few set based queries and the related txs are
+     * written in one transaction. Each address or account is notified once, with the last
+     * related tx.
+     *
+     * @return the registered txs
+     */
+    public List<Tx> registerTxs(List<Tx> txs, Tx.TxNotificationType txNotificationType, boolean
+            isConfirmed) {
+        List<Tx> registeredTxs = new ArrayList<Tx>();
+        if (txs == null || txs.size() == 0) {
+            return registeredTxs;
+        }
+        List<byte[]> txHashes = new ArrayList<byte[]>();
+        List<byte[]> prevTxHashes = new ArrayList<byte[]>();
+        HashSet<Sha256Hash> prevTxHashSet = new HashSet<Sha256Hash>();
+        for (Tx tx : txs) {
+            txHashes.add(tx.getTxHash());
+            for (In in : tx.getIns()) {
+                if (prevTxHashSet.add(new Sha256Hash(in.getPrevTxHash()))) {
+                    prevTxHashes.add(in.getPrevTxHash());
+                }
+            }
+        }
+        // the outs and addresses are read before taking txsLock, confirming or rolling back txs
+        // does not change them
+        List<byte[]> outTxHashes = new ArrayList<byte[]>(prevTxHashes);
+        outTxHashes.addAll(txHashes);
+        HashMap<Sha256Hash, List<Out>> outsInDb = AbstractDb.txProvider.getOutsByTxHashes
+                (outTxHashes);
+
+        HashMap<OutPoint, String> outAddresses = new HashMap<OutPoint, String>();
+        for (List<Out> outs : outsInDb.values()) {
+            for (Out out : outs) {
+                outAddresses.put(new OutPoint(out.getTxHash(), out.getOutSn()), out.getOutAddress());
+            }
+        }
+        for (Tx tx : txs) {
+            for (Out out : tx.getOuts()) {
+                outAddresses.put(new OutPoint(tx.getTxHash(), out.getOutSn()), out.getOutAddress());
+            }
+        }
+        HashMap<Sha256Hash, List<String>> inAddressesMap = new HashMap<Sha256Hash, List<String>>();
+        HashSet<String> allAddresses = new HashSet<String>();
+        for (Tx tx : txs) {
+            List<String> inAddresses = getInAddresses(tx, outAddresses);
+            inAddressesMap.put(new Sha256Hash(tx.getTxHash()), inAddresses);
+            allAddresses.addAll(inAddresses);
+            allAddresses.addAll(tx.getOutAddressList());
+        }
+        HashMap<String, Integer> hdAccountIds = hdAccountAddressIndex.getHDAccountIds(allAddresses);
+
+        // which addresses the txs touch does not depend on the db either
+        List<Tx> compressedTxs = new ArrayList<Tx>();
+        List<List<DesktopHDMAddress>> relatedDesktopHDMAddressLists = new
+                ArrayList<List<DesktopHDMAddress>>();
+        for (Tx tx : txs) {
+            List<String> inAddresses = inAddressesMap.get(new Sha256Hash(tx.getTxHash()));
+            for (Out out : tx.getOuts()) {
+                Integer hdAccountId = hdAccountIds.get(out.getOutAddress());
+                if (hdAccountId != null) {
+                    out.setHDAccountId(hdAccountId);
+                }
+            }
+            Tx compressedTx = compressTx(tx, inAddresses, hdAccountIds, txNotificationType);
+            compressedTxs.add(compressedTx);
+            relatedDesktopHDMAddressLists.add(getRelatedDesktopHDMAddresses(compressedTx,
+                    inAddresses));
+        }
+
+        List<Tx> txsToAdd = new ArrayList<Tx>();
+        HashMap<String, Tx> notifyAddresses = new HashMap<String, Tx>();
+        HashMap<Integer, Tx> notifyHDAccountIds = new HashMap<Integer, Tx>();
+        HashMap<String, DesktopHDMAddress> notifyDesktopHDMAddresses = new HashMap<String,
+                DesktopHDMAddress>();
+        Tx lastDesktopHDMTx = null;
+        txsLock.lock();
+        try {
+            HashMap<OutPoint, HashSet<Sha256Hash>> spentBy = AbstractDb.txProvider
+                    .getSpentByTxHashes(prevTxHashes, false);
+            HashMap<OutPoint, HashSet<Sha256Hash>> confirmedSpentBy = AbstractDb.txProvider
+                    .getSpentByTxHashes(prevTxHashes, true);
+            HashSet<Sha256Hash> existTxHashes = AbstractDb.txProvider.getExistTxHashes(txHashes);
+            boolean txsRemoved = false;
+            for (int i = 0;
+                 i < txs.size();
+                 i++) {
+                Tx tx = txs.get(i);
+                Sha256Hash txHash = new Sha256Hash(tx.getTxHash());
+                byte[] existTx = identifyTxHash(tx, spentBy);
+                if (existTx.length > 0) {
+                    if (!isConfirmed) {
+                        continue;
+                    }
+                    // the txs of the batch so far go in first, so they are removed with
+                    // existTx if they spend it
+                    if (txsToAdd.size() > 0) {
+                        AbstractDb.txProvider.addTxs(txsToAdd);
+                        log.info("add {} txs into db", txsToAdd.size());
+                        txsToAdd.clear();
+                    }
+                    AbstractDb.txProvider.remove(existTx);
+                    invalidateBalances();
+                    // existTx and the txs spending it are gone, the maps are read again
+                    spentBy = AbstractDb.txProvider.getSpentByTxHashes(prevTxHashes, false);
+                    confirmedSpentBy = AbstractDb.txProvider.getSpentByTxHashes(prevTxHashes,
+                            true);
+                    existTxHashes = AbstractDb.txProvider.getExistTxHashes(txHashes);
+                    HashMap<Sha256Hash, List<Out>> outsLeft = AbstractDb.txProvider
+                            .getOutsByTxHashes(outTxHashes);
+                    for (Map.Entry<Sha256Hash, List<Out>> entry : outsInDb.entrySet()) {
+                        if (!outsLeft.containsKey(entry.getKey())) {
+                            for (Out out : entry.getValue()) {
+                                outAddresses.remove(new OutPoint(out.getTxHash(), out
+                                        .getOutSn()));
+                            }
+                        }
+                    }
+                    outsInDb = outsLeft;
+                    txsRemoved = true;
+                }
+                if (isDoubleSpend(tx, confirmedSpentBy)) {
+                    // double spend with confirmed tx
+                    continue;
+                }
+                List<String> inAddresses = inAddressesMap.get(txHash);
+                Tx compressedTx = compressedTxs.get(i);
+                List<DesktopHDMAddress> relatedDesktopHDMAddresses = relatedDesktopHDMAddressLists
+                        .get(i);
+                if (txsRemoved) {
+                    // the outs of the removed txs no longer give the ins spending them addresses
+                    inAddresses = getInAddresses(tx, outAddresses);
+                    compressedTx = compressTx(tx, inAddresses, hdAccountIds, txNotificationType);
+                    relatedDesktopHDMAddresses = getRelatedDesktopHDMAddresses(compressedTx,
+                            inAddresses);
+                }
+
+                HashSet<String> needNotifyAddressHashSet = new HashSet<String>();
+                HashSet<String> needNotifyDesktopHDMHS = new HashSet<String>();
+                HashSet<Integer> needNotifyHDAccountIdHS = new HashSet<Integer>();
+                HashSet<String> relatedDesktopHDMAddressesHS = new HashSet<String>();
+                for (DesktopHDMAddress desktopHDMAddress : relatedDesktopHDMAddresses) {
+                    relatedDesktopHDMAddressesHS.add(desktopHDMAddress.getAddress());
+                }
+                for (Out out : compressedTx.getOuts()) {
+                    String outAddress = out.getOutAddress();
+                    if (addressHashSet.contains(outAddress)) {
+                        needNotifyAddressHashSet.add(outAddress);
+                    }
+                    if (relatedDesktopHDMAddressesHS.contains(outAddress)) {
+                        needNotifyDesktopHDMHS.add(outAddress);
+                    }
+                    if (out.getHDAccountId() > 0) {
+                        needNotifyHDAccountIdHS.add(out.getHDAccountId());
+                    }
+                }
+
+                boolean isRegister;
+                if (existTxHashes.contains(txHash)) {
+                    List<Out> outs = outsInDb.get(txHash);
+                    if (outs != null) {
+                        for (Out out : outs) {
+                            needNotifyAddressHashSet.remove(out.getOutAddress());
+                            needNotifyDesktopHDMHS.remove(out.getOutAddress());
+                            if (out.getHDAccountId() > 0) {
+                                needNotifyHDAccountIdHS.remove(out.getHDAccountId());
+                            }
+                        }
+                    }
+                    isRegister = true;
+                } else {
+                    for (String address : inAddresses) {
+                        if (addressHashSet.contains(address)) {
+                            needNotifyAddressHashSet.add(address);
+                        }
+                        if (relatedDesktopHDMAddressesHS.contains(address)) {
+                            needNotifyDesktopHDMHS.add(address);
+                        }
+                        if (hdAccountIds.containsKey(address)) {
+                            needNotifyHDAccountIdHS.add(hdAccountIds.get(address));
+                        }
+                    }
+                    isRegister = needNotifyAddressHashSet.size() > 0 || needNotifyDesktopHDMHS
+                            .size() > 0 || needNotifyHDAccountIdHS.size() > 0;
+                }
+                if (isRegister) {
+                    registeredTxs.add(tx);
+                }
+                if (needNotifyAddressHashSet.size() > 0 || needNotifyHDAccountIdHS.size() > 0
+                        || needNotifyDesktopHDMHS.size() > 0) {
+                    txsToAdd.add(compressedTx);
+                    // later txs of the batch see this one as if it was already in the db
+                    existTxHashes.add(txHash);
+                    outsInDb.put(txHash, new ArrayList<Out>(compressedTx.getOuts()));
+                    for (In in : compressedTx.getIns()) {
+                        OutPoint outPoint = new OutPoint(in.getPrevTxHash(), in.getPrevOutSn());
+                        addSpentBy(spentBy, outPoint, txHash);
+                        if (isConfirmed) {
+                            addSpentBy(confirmedSpentBy, outPoint, txHash);
+                        }
+                    }
+                }
+                for (String address : needNotifyAddressHashSet) {
+                    notifyAddresses.put(address, tx);
+                }
+                for (Integer hdAccountId : needNotifyHDAccountIdHS) {
+                    notifyHDAccountIds.put(hdAccountId, tx);
+                }
+                for (DesktopHDMAddress desktopHDMAddress : relatedDesktopHDMAddresses) {
+                    if (needNotifyDesktopHDMHS.contains(desktopHDMAddress.getAddress())) {
+                        notifyDesktopHDMAddresses.put(desktopHDMAddress.getAddress(),
+                                desktopHDMAddress);
+                        lastDesktopHDMTx = tx;
+                    }
+                }
+            }
+
+            if (txsToAdd.size() > 0) {
+                AbstractDb.txProvider.addTxs(txsToAdd);
+                log.info("add {} txs into db", txsToAdd.size());
+            }
+        } finally {
+            txsLock.unlock();
+        }
+        // only the last tx of the batch is notified, so the balances are rebuilt from the db
+        for (Address addr : getAllAddresses()) {
+            if (notifyAddresses.containsKey(addr.getAddress())) {
+                addr.invalidateBalance();
+                addr.notificatTx(notifyAddresses.get(addr.getAddress()), txNotificationType);
+            }
+        }
+        if (notifyDesktopHDMAddresses.size() > 0) {
+            desktopHDMKeychains.get(0).onNewTx(lastDesktopHDMTx, new ArrayList<DesktopHDMAddress>
+                    (notifyDesktopHDMAddresses.values()), txNotificationType);
+        }
+        invalidateHDAccountBalances(notifyHDAccountIds.keySet());
+        for (Map.Entry<Integer, Tx> entry : notifyHDAccountIds.entrySet()) {
+            HashSet<Integer> hdAccountIdHS = new HashSet<Integer>();
+            hdAccountIdHS.add(entry.getKey());
+            this.onNewTx(entry.getValue(), hdAccountIdHS, txNotificationType);
+        }
+        return registeredTxs;
+    }
+
+    // like Tx.getInAddresses, with the connected outs looked up in outAddresses instead of the db
+    private List<String> getInAddresses(Tx tx, HashMap<OutPoint, String> outAddresses) {
+        List<String> fromAddresses = new ArrayList<String>();
+        boolean canParseFromScript = true;
+        for (In in : tx.getIns()) {
+            String address = outAddresses.get(new OutPoint(in.getPrevTxHash(), in.getPrevOutSn()));
+            if (address == null && in.getInSignature() != null && !in.isCoinBase()) {
+                address = new Script(in.getInSignature()).getFromAddress();
+            }
+            if (address == null) {
+                canParseFromScript = false;
+                break;
+            }
+            fromAddresses.add(address);
+        }
+        if (canParseFromScript) {
+            return fromAddresses;
+        }
+        fromAddresses.clear();
+        for (In in : tx.getIns()) {
+            String address = outAddresses.get(new OutPoint(in.getPrevTxHash(), in.getPrevOutSn()));
+            if (address != null) {
+                fromAddresses.add(address);
+            }
+        }
+        return fromAddresses;
+    }
+
+    // another tx spending all the same outs, e.g. the tx with a malleated hash
+    private byte[] identifyTxHash(Tx tx, HashMap<OutPoint, HashSet<Sha256Hash>> spentBy) {
+        HashSet<Sha256Hash> result = null;
+        for (In in : tx.getIns()) {
+            HashSet<Sha256Hash> each = spentBy.get(new OutPoint(in.getPrevTxHash(), in
+                    .getPrevOutSn()));
+            if (each == null) {
+                return new byte[0];
+            }
+            if (result == null) {
+                result = new HashSet<Sha256Hash>(each);
+                result.remove(new Sha256Hash(tx.getTxHash()));
+            } else {
+                result.retainAll(each);
+            }
+            if (result.size() == 0) {
+                return new byte[0];
+            }
+        }
+        return result == null ? new byte[0] : result.iterator().next().getBytes();
+    }
+
+    private boolean isDoubleSpend(Tx tx, HashMap<OutPoint, HashSet<Sha256Hash>> confirmedSpentBy) {
+        for (In in : tx.getIns()) {
+            if (confirmedSpentBy.containsKey(new OutPoint(in.getPrevTxHash(), in.getPrevOutSn()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addSpentBy(HashMap<OutPoint, HashSet<Sha256Hash>> spentBy, OutPoint
+            outPoint, Sha256Hash txHash) {
+        if (!spentBy.containsKey(outPoint)) {
+            spentBy.put(outPoint, new HashSet<Sha256Hash>());
+        }
+        spentBy.get(outPoint).add(txHash);
+    }
+
     public boolean isTxRelated(Tx tx, List<String> inAddresses) {
         for (Address address : this.getAllAddresses()) {
             // todo: may be do not need query in db, just ^ with in and out 's address
@@ -376,7 +771,7 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
                 return true;
             }
         }
-        tx = AbstractDb.hdAccountAddressProvider.updateOutHDAccountId(tx);
+        tx = hdAccountAddressIndex.updateOutHDAccountId(tx);
         for (Out out : tx.getOuts()) {
             if (out.getHDAccountId() > 0) {
                 return true;
@@ -384,7 +779,7 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         }
         List<String> addressList = tx.getOutAddressList();
         addressList.addAll(inAddresses);
-        if (AbstractDb.hdAccountAddressProvider.getRelatedAddressCnt(addressList) > 0){
+        if (hdAccountAddressIndex.containsAny(addressList)) {
             return true;
         }
 //        if (hasHDAccountHot()) {
@@ -785,14 +1180,14 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         Map<Sha256Hash, Tx> txHashList = new HashMap<Sha256Hash, Tx>();
         for (Tx tx : txList) {
             txHashList.put(new Sha256Hash(tx.getTxHash()), tx);
-            AbstractDb.hdAccountAddressProvider.updateOutHDAccountId(tx);
+            hdAccountAddressIndex.updateOutHDAccountId(tx);
         }
         for (Tx tx : txList) {
             if (!isSendFromHDAccount(tx, txHashList) && tx.getOuts().size() > BitherjSettings
                     .COMPRESS_OUT_NUM) {
                 List<Out> outList = new ArrayList<Out>();
-                HashSet<String> addressHashSet = AbstractDb.hdAccountAddressProvider.
-                        getBelongAccountAddresses(tx.getOutAddressList());
+                HashSet<String> addressHashSet = hdAccountAddressIndex.getBelongAccountAddresses(tx
+                        .getOutAddressList());
                 for (Out out : tx.getOuts()) {
                     if (addressHashSet.contains(out.getOutAddress())) {
                         outList.add(out);
@@ -909,7 +1304,7 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
                 }
             }
         }
-        return AbstractDb.hdAccountAddressProvider.getRelatedAddressCnt(inAddressList) > 0;
+        return hdAccountAddressIndex.containsAny(inAddressList);
     }
 
 //    private boolean isSendFromHDAccountMonitored(Tx tx, Map<Sha256Hash, Tx> txHashList) {
@@ -945,8 +1340,37 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         return tx;
     }
 
+    private Tx compressTx(Tx tx, List<String> inAddresses, HashMap<String, Integer>
+            hdAccountIds, Tx.TxNotificationType txNotificationType) {
+        if (txNotificationType == Tx.TxNotificationType.txSend) {
+            return tx;
+        }
+        boolean isSendFromMe = this.addressHashSet.containsAll(inAddresses);
+        for (String address : inAddresses) {
+            isSendFromMe = isSendFromMe || hdAccountIds.containsKey(address);
+        }
+        if (tx.getOuts().size() > BitherjSettings.COMPRESS_OUT_NUM && !isSendFromMe) {
+            List<Out> outList = new ArrayList<Out>();
+            for (Out out : tx.getOuts()) {
+                if (addressHashSet.contains(out.getOutAddress()) || out.getHDAccountId() > 0) {
+                    outList.add(out);
+                }
+            }
+            tx.setOuts(outList);
+        }
+        return tx;
+    }
+
+    private List<DesktopHDMAddress> getRelatedDesktopHDMAddresses(Tx tx, List<String>
+            inAddresses) {
+        if (!hasDesktopHDMKeychain()) {
+            return new ArrayList<DesktopHDMAddress>();
+        }
+        return desktopHDMKeychains.get(0).getRelatedAddressesForTx(tx, inAddresses);
+    }
+
     private boolean isSendFromMe(Tx tx, List<String> addresses) {
-        return this.addressHashSet.containsAll(addresses) || AbstractDb.hdAccountAddressProvider.getRelatedAddressCnt(addresses) > 0;
+        return this.addressHashSet.containsAll(addresses) || hdAccountAddressIndex.containsAny(addresses);
     }
 
 
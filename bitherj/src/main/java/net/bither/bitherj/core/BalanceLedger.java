@@ -0,0 +1,179 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.db.AbstractDb;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the balance of an address or an hd account up to date from the txs it is told about,
+ * so a new tx or a confirmed block only costs work proportional to its own ins and outs.
+ * <p/>
+ * The ledger is rebuilt from the db (confirmed balance plus the unconfirmed txs, with the same
+ * double spend rules as before) on first use and after {@link #invalidate()}, which has to be
+ * called whenever txs are removed from the db or unconfirmed by a reorg, or when a tx already in
+ * the db is notified again.
+ */
+public class BalanceLedger {
+
+    public interface Source {
+        long getConfirmedBalance();
+
+        List<Tx> getUnconfirmedTxs();
+
+        Set<String> getOwnedAddresses(List<String> addresses);
+    }
+
+    private final Source source;
+
+    private boolean dirty = true;
+    private long balance;
+    // every tx applied since the last rebuild, a tx is never applied twice
+    private final HashSet<Sha256Hash> appliedTxs = new HashSet<Sha256Hash>();
+    // unconfirmed txs double spending an earlier tx, or spending the outs of such a tx
+    private final HashSet<Sha256Hash> invalidTxs = new HashSet<Sha256Hash>();
+    // owned outs of the applied txs, and the confirmed owned outs they spent
+    private final HashMap<OutPoint, Long> outValues = new HashMap<OutPoint, Long>();
+    // spending tx of every in of the applied txs
+    private final HashMap<OutPoint, Sha256Hash> spentBy = new HashMap<OutPoint, Sha256Hash>();
+
+    public BalanceLedger(Source source) {
+        this.source = source;
+    }
+
+    public synchronized long getBalance() {
+        if (dirty) {
+            rebuild();
+        }
+        return balance;
+    }
+
+    public synchronized void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * Applies a tx that was just added to the db for the first time.
+     */
+    public synchronized void addTx(Tx tx) {
+        if (dirty || tx == null || appliedTxs.contains(new Sha256Hash(tx.getTxHash()))) {
+            return;
+        }
+        if (!apply(tx, true) && tx.getBlockNo() != Tx.TX_UNCONFIRMED) {
+            // the db drops the unconfirmed txs a confirmed tx double spends
+            dirty = true;
+        }
+    }
+
+    /**
+     * Confirming txs does not change the balance, unless one of them was an invalid double
+     * spend, then the db removes the tx it conflicted with.
+     */
+    public synchronized void confirmTxs(List<byte[]> txHashes) {
+        if (dirty || txHashes == null) {
+            return;
+        }
+        for (byte[] txHash : txHashes) {
+            if (invalidTxs.contains(new Sha256Hash(txHash))) {
+                dirty = true;
+                return;
+            }
+        }
+    }
+
+    private void rebuild() {
+        appliedTxs.clear();
+        invalidTxs.clear();
+        outValues.clear();
+        spentBy.clear();
+        // the confirmed outs spent by unconfirmed txs are already excluded from this
+        balance = source.getConfirmedBalance();
+        List<Tx> txs = source.getUnconfirmedTxs();
+        Collections.sort(txs);
+        for (int i = txs.size() - 1;
+             i >= 0;
+             i--) {
+            apply(txs.get(i), false);
+        }
+        dirty = false;
+    }
+
+    private boolean apply(Tx tx, boolean lookupConfirmedOuts) {
+        Sha256Hash txHash = new Sha256Hash(tx.getTxHash());
+        appliedTxs.add(txHash);
+        List<OutPoint> spent = new ArrayList<OutPoint>();
+        for (In in : tx.getIns()) {
+            OutPoint outPoint = new OutPoint(in.getPrevTxHash(), in.getPrevOutSn());
+            if (spentBy.containsKey(outPoint)
+                    || invalidTxs.contains(new Sha256Hash(in.getPrevTxHash()))) {
+                invalidTxs.add(txHash);
+                return false;
+            }
+            spent.add(outPoint);
+        }
+        for (OutPoint outPoint : spent) {
+            spentBy.put(outPoint, txHash);
+            Long value = outValues.get(outPoint);
+            if (value == null && lookupConfirmedOuts) {
+                value = getConfirmedOwnedOutValue(outPoint);
+                if (value != null) {
+                    outValues.put(outPoint, value);
+                }
+            }
+            if (value != null) {
+                balance -= value;
+            }
+        }
+        Set<String> ownedAddresses = source.getOwnedAddresses(tx.getOutAddressList());
+        for (Out out : tx.getOuts()) {
+            if (ownedAddresses.contains(out.getOutAddress())) {
+                OutPoint outPoint = new OutPoint(tx.getTxHash(), out.getOutSn());
+                outValues.put(outPoint, out.getOutValue());
+                // a child seen before its parent already spent this out
+                if (!spentBy.containsKey(outPoint)) {
+                    balance += out.getOutValue();
+                }
+            }
+        }
+        return true;
+    }
+
+    private Long getConfirmedOwnedOutValue(OutPoint outPoint) {
+        Tx prevTx = AbstractDb.txProvider.getTxDetailByTxHash(outPoint.getTxHash());
+        if (prevTx == null || prevTx.getBlockNo() == Tx.TX_UNCONFIRMED) {
+            // unconfirmed owned outs are all in the ledger already
+            return null;
+        }
+        for (Out out : prevTx.getOuts()) {
+            if (out.getOutSn() == outPoint.getOutSn()) {
+                if (source.getOwnedAddresses(Collections.singletonList(out.getOutAddress()))
+                        .contains(out.getOutAddress())) {
+                    return out.getOutValue();
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+}
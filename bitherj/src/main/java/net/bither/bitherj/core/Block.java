@@ -116,6 +116,14 @@ public class Block extends Message {
         super(payloadBytes, 0, length);
     }
 
+    /**
+     * Constructs a block object from the Bitcoin wire format that starts at offset of payloadBytes,
+     * so a block or header inside a larger message is parsed without copying it out first.
+     */
+    public Block(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
     public Block(long version, String prevBlock, String merkleRoot, int timestamp
             , long target, long nonce, int height) {
         this.blockVer = version;
@@ -614,7 +622,7 @@ public class Block extends Message {
         blockBits = readUint32();
         blockNonce = readUint32();
 
-        blockHash = Utils.doubleDigest(bytes, offset, cursor);
+        blockHash = Utils.doubleDigest(bytes, offset, cursor - offset);
 
         headerParsed = true;
         headerBytesValid = false;
@@ -626,7 +634,8 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (bytes.length == cursor) {
+        int end = length == UNKNOWN_LENGTH ? bytes.length : offset + length;
+        if (end == cursor) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -36,6 +36,7 @@ public class BlockChain {
     protected HashMap<byte[], Block> singleBlocks;
     protected Block lastBlock;
     protected Block lastOrphanBlock;
+    private final BlockHeaderIndex mainChain;
 
     BlockChain() {
         AbstractDb.blockProvider.cleanOldBlock();
@@ -43,6 +44,8 @@ public class BlockChain {
         this.singleBlocks = new HashMap<byte[], Block>();
         this.lastBlock = AbstractDb.blockProvider.getLastBlock();
         this.lastOrphanBlock = AbstractDb.blockProvider.getLastOrphanBlock();
+        this.mainChain = new BlockHeaderIndex();
+        this.mainChain.load(AbstractDb.blockProvider.getAllBlocks(), this.lastBlock);
     }
 
     public static BlockChain getInstance() {
@@ -62,6 +65,11 @@ public class BlockChain {
 
     public void addBlocks(List<Block> blocks) {
         AbstractDb.blockProvider.addBlocks(blocks);
+        for (Block block : blocks) {
+            if (block.isMain()) {
+                mainChain.add(block);
+            }
+        }
     }
 
     public Block getLastBlock() {
@@ -69,27 +77,57 @@ public class BlockChain {
     }
 
     public Block getBlock(byte[] blockHash) {
+        Block block = mainChain.getBlock(blockHash);
+        if (block != null) {
+            return block;
+        }
         return AbstractDb.blockProvider.getBlock(blockHash);
     }
 
+    private Block getMainChainBlock(byte[] blockHash) {
+        Block block = mainChain.getBlock(blockHash);
+        if (block != null) {
+            return block;
+        }
+        return AbstractDb.blockProvider.getMainChainBlock(blockHash);
+    }
+
     public int getBlockCount() {
         return AbstractDb.blockProvider.getBlockCount();
     }
 
+    /**
+     * The time of a tx from the apis, without going to the db. Blocks older than the ones kept
+     * give the time of the oldest kept block.
+     *
+     * @return the time of the main chain block, -1 if it is not kept
+     */
+    public int getBlockTime(int blockNo) {
+        return mainChain.getBlockTimeOrFirst(blockNo);
+    }
+
     public List<byte[]> getBlockLocatorArray() {
         // append 10 most recent block hashes, descending, then continue appending, doubling the step back each time,
         // finishing with the genesis block (top, -1, -2, -3, -4, -5, -6, -7, -8, -9, -11, -15, -23, -39, -71, -135, ..., 0)
         ArrayList<byte[]> locators = new ArrayList<byte[]>();
         int step = 1, start = 0;
-        Block b = this.lastBlock;
+        if (this.lastBlock == null) {
+            locators.add(BitherjSettings.GENESIS_BLOCK_HASH);
+            return locators;
+        }
+        int blockNo = this.lastBlock.getBlockNo();
+        if (!Arrays.equals(mainChain.getHash(blockNo), this.lastBlock.getBlockHash())) {
+            // out of step with the db, e.g. after a rollback to a block we never indexed
+            mainChain.load(AbstractDb.blockProvider.getAllBlocks(), this.lastBlock);
+        }
+        byte[] hash = mainChain.getHash(blockNo);
 
-        while (b != null && b.getBlockNo() > 0) {
-            locators.add(b.getBlockHash());
+        while (hash != null && blockNo > 0) {
+            locators.add(hash);
             if (++start >= 10) step *= 2;
 
-            for (int i = 0; b != null && i < step; i++) {
-                b = AbstractDb.blockProvider.getMainChainBlock(b.getBlockPrev());
-            }
+            blockNo -= step;
+            hash = mainChain.getHash(blockNo);
         }
         locators.add(BitherjSettings.GENESIS_BLOCK_HASH);
 
@@ -106,6 +144,7 @@ public class BlockChain {
 
         List<Block> blocks = AbstractDb.blockProvider.getBlocksFrom(blockNo);
         // DDLogWarn(@"roll back block from %d to %d", self.lastBlock.height, blockNo);
+        mainChain.removeFrom(blockNo + 1);
 
         for (Block block : blocks) {
             AbstractDb.blockProvider.removeBlock(block.getBlockHash());
@@ -114,6 +153,7 @@ public class BlockChain {
                 AbstractDb.txProvider.unConfirmTxByBlockNo(block.getBlockNo());
             }
         }
+        AddressManager.getInstance().invalidateBalances();
         this.lastBlock = AbstractDb.blockProvider.getLastBlock();
         return true;
     }
@@ -164,7 +204,7 @@ public class BlockChain {
      * or orphan.
      * */
     public boolean relayedBlock(Block block) throws VerificationException {
-        Block prev = AbstractDb.blockProvider.getBlock(block.getBlockPrev());
+        Block prev = getBlock(block.getBlockPrev());
 
         if (prev == null) {
 
@@ -241,7 +281,7 @@ public class BlockChain {
         int rollbackBlockNo = 0;
         if (Arrays.equals(first.getBlockPrev(), this.getLastBlock().getBlockHash())) {
             prev = this.getLastBlock();
-        } else if (AbstractDb.blockProvider.getMainChainBlock(first.getBlockPrev()) != null) {
+        } else if (getMainChainBlock(first.getBlockPrev()) != null) {
             prev = this.getSameParent(first, this.getLastBlock());
             rollbackBlockNo = prev.getBlockNo();
         }
@@ -256,23 +296,35 @@ public class BlockChain {
             try {
                 int transitionTime = 0;
                 if (block.getBlockNo() % BitherjSettings.BLOCK_DIFFICULTY_INTERVAL == 0) {
-                    // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-                    // two weeks after the initial block chain download.
-                    long now = System.currentTimeMillis();
-                    Block cursor = first;
-                    for (int i = 0; i < BitherjSettings.BLOCK_DIFFICULTY_INTERVAL - block.getBlockNo() + first.getBlockNo(); i++) {
-                        if (cursor == null) {
-                            // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                            throw new VerificationException(
-                                    "Difficulty transition point but we did not find a way back to the genesis block.");
-                        }
-                        cursor = getBlock(cursor.getBlockPrev());
+                    int transitionBlockNo = block.getBlockNo() - BitherjSettings
+                            .BLOCK_DIFFICULTY_INTERVAL;
+                    if (transitionBlockNo >= first.getBlockNo()) {
+                        transitionTime = blocks.get(transitionBlockNo - first.getBlockNo())
+                                .getBlockTime();
+                    } else {
+                        // the blocks before first are all in the main chain, even when the
+                        // relayed ones replace its tip
+                        transitionTime = mainChain.getBlockTime(transitionBlockNo);
                     }
-                    long elapsed = System.currentTimeMillis() - now;
-                    if (elapsed > 50)
-                        log.info("Difficulty transition traversal took {}msec", elapsed);
+                    if (transitionTime < 0) {
+                        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
+                        // two weeks after the initial block chain download.
+                        long now = System.currentTimeMillis();
+                        Block cursor = first;
+                        for (int i = 0; i < BitherjSettings.BLOCK_DIFFICULTY_INTERVAL - block.getBlockNo() + first.getBlockNo(); i++) {
+                            if (cursor == null) {
+                                // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                                throw new VerificationException(
+                                        "Difficulty transition point but we did not find a way back to the genesis block.");
+                            }
+                            cursor = getBlock(cursor.getBlockPrev());
+                        }
+                        long elapsed = System.currentTimeMillis() - now;
+                        if (elapsed > 50)
+                            log.info("Difficulty transition traversal took {}msec", elapsed);
 
-                    transitionTime = cursor.getBlockTime();
+                        transitionTime = cursor.getBlockTime();
+                    }
                 }
                 block.verifyDifficultyFromPreviousBlock(prev, transitionTime);
             } catch (Exception e) {
@@ -287,8 +339,17 @@ public class BlockChain {
             this.rollbackBlock(rollbackBlockNo);
         }
         this.addBlocks(blocks);
+        boolean txsConfirmed = false;
         for (Block block : blocks) {
-            AbstractDb.txProvider.confirmTx(block.getBlockNo(), block.getTxHashes());
+            if (block.getTxHashes() != null && block.getTxHashes().size() > 0) {
+                AbstractDb.txProvider.confirmTx(block.getBlockNo(), block.getTxHashes());
+                txsConfirmed = true;
+            }
+        }
+        if (txsConfirmed) {
+            // the db drops the unconfirmed txs double spending the confirmed ones, the balance
+            // ledgers did not see which
+            AddressManager.getInstance().invalidateBalances();
         }
         this.lastBlock = blocks.get(blocks.size() - 1);
         return blocks.size();
@@ -305,13 +366,16 @@ public class BlockChain {
     private boolean inMainChain(Block block) {
         Block b = this.lastBlock;
         while (b != null && b.getBlockNo() > block.getBlockNo()) {
-            b = AbstractDb.blockProvider.getBlock(b.getBlockPrev());
+            b = getBlock(b.getBlockPrev());
         }
         return b != null && Arrays.equals(b.getBlockHash(), block.getBlockHash());
     }
 
     private void addBlock(Block block) {
         AbstractDb.blockProvider.addBlock(block);
+        if (block.isMain()) {
+            mainChain.add(block);
+        }
     }
 
     private void addOrphan(Block block) {
@@ -326,10 +390,10 @@ public class BlockChain {
 
         while (b1 != null && b2 != null && !Arrays.equals(b1.getBlockHash(), b2.getBlockHash())) {
             if (b1.getBlockNo() == 0 || b1.getBlockNo() >= b2.getBlockNo()) {
-                b1 = AbstractDb.blockProvider.getBlock(b1.getBlockPrev());
+                b1 = getBlock(b1.getBlockPrev());
             }
             if (b1.getBlockNo() < b2.getBlockNo()) {
-                b2 = AbstractDb.blockProvider.getBlock(b2.getBlockPrev());
+                b2 = getBlock(b2.getBlockPrev());
             }
         }
         return b1;
@@ -341,14 +405,19 @@ public class BlockChain {
         while (!Arrays.equals(b.getBlockHash(), forkStartBlock.getBlockHash())) {
             next = AbstractDb.blockProvider.getOrphanBlockByPrevHash(b.getBlockPrev());
             AbstractDb.blockProvider.updateBlock(b.getBlockHash(), false);
-            b = AbstractDb.blockProvider.getMainChainBlock(b.getBlockPrev());
+            mainChain.removeFrom(b.getBlockNo());
+            b = getMainChainBlock(b.getBlockPrev());
             this.lastBlock = b;
         }
         b = next;
         AbstractDb.blockProvider.updateBlock(next.getBlockHash(), true);
+        next.setMain(true);
+        mainChain.add(next);
         this.lastBlock = next;
         while (!Arrays.equals(b.getBlockHash(), lastBlock.getBlockPrev())) {
             AbstractDb.blockProvider.updateBlock(b.getBlockHash(), true);
+            b.setMain(true);
+            mainChain.add(b);
             this.lastBlock = b;
             b = AbstractDb.blockProvider.getOrphanBlockByPrevHash(b.getBlockHash());
         }
@@ -0,0 +1,216 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.utils.Sha256Hash;
+import net.bither.bitherj.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>The main chain kept in memory as packed 80 byte headers, indexed by height and by hash, so
+ * locators, reorgs and difficulty transitions don't go to the db block by block.</p>
+ * <p/>
+ * <p>Only holds a contiguous run of main chain blocks ending at the last block. Orphans stay in
+ * the db only. It is changed by {@link BlockChain} only, but the api sync threads read block
+ * times from it, so every method holds the lock of the index.</p>
+ */
+class BlockHeaderIndex {
+    private static final int HashSize = 32;
+    private static final int InitCapacity = 1024;
+
+    private byte[] headers;
+    private byte[] hashes;
+    private final HashMap<Sha256Hash, Integer> heights;
+    private int firstBlockNo;
+    private int count;
+
+    BlockHeaderIndex() {
+        headers = new byte[InitCapacity * Block.HEADER_SIZE];
+        hashes = new byte[InitCapacity * HashSize];
+        heights = new HashMap<Sha256Hash, Integer>();
+    }
+
+    /**
+     * Loads the main chain blocks that end at lastBlock, anything before a gap is left out.
+     */
+    synchronized void load(List<Block> blocks, Block lastBlock) {
+        clear();
+        if (lastBlock == null) {
+            return;
+        }
+        List<Block> mainBlocks = new ArrayList<Block>();
+        for (Block block : blocks) {
+            if (block.isMain() && block.getBlockNo() <= lastBlock.getBlockNo()) {
+                mainBlocks.add(block);
+            }
+        }
+        Collections.sort(mainBlocks, new Comparator<Block>() {
+            @Override
+            public int compare(Block lhs, Block rhs) {
+                return rhs.getBlockNo() - lhs.getBlockNo();
+            }
+        });
+        // walk back from the last block by prev hash so the run is really connected
+        List<Block> chain = new ArrayList<Block>();
+        byte[] expectedHash = lastBlock.getBlockHash();
+        for (Block block : mainBlocks) {
+            if (!Arrays.equals(block.getBlockHash(), expectedHash)) {
+                continue;
+            }
+            chain.add(block);
+            expectedHash = block.getBlockPrev();
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            add(chain.get(i));
+        }
+    }
+
+    synchronized void clear() {
+        heights.clear();
+        firstBlockNo = 0;
+        count = 0;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+
+    /**
+     * Appends a main chain block, any block at or above its height is dropped first. A block
+     * that doesn't connect to the tip starts the index over from it.
+     */
+    synchronized void add(Block block) {
+        int blockNo = block.getBlockNo();
+        if (count > 0 && blockNo > firstBlockNo && blockNo <= firstBlockNo + count) {
+            removeFrom(blockNo);
+        }
+        if (count > 0 && (blockNo != firstBlockNo + count || !Arrays.equals(block
+                .getBlockPrev(), getHash(blockNo - 1)))) {
+            clear();
+        }
+        if (count == 0) {
+            firstBlockNo = blockNo;
+        }
+        ensureCapacity(count + 1);
+        putHeader(block, count * Block.HEADER_SIZE);
+        System.arraycopy(block.getBlockHash(), 0, hashes, count * HashSize, HashSize);
+        heights.put(new Sha256Hash(block.getBlockHash()), blockNo);
+        count++;
+    }
+
+    /**
+     * Drops the blocks with block no not less than blockNo.
+     */
+    synchronized void removeFrom(int blockNo) {
+        int keep = Math.max(0, Math.min(count, blockNo - firstBlockNo));
+        for (int i = keep; i < count; i++) {
+            heights.remove(new Sha256Hash(hashAt(i)));
+        }
+        count = keep;
+    }
+
+    synchronized boolean contains(byte[] blockHash) {
+        return blockHash != null && heights.containsKey(new Sha256Hash(blockHash));
+    }
+
+    /**
+     * Returns -1 if the block is not in the main chain index.
+     */
+    synchronized int getBlockNo(byte[] blockHash) {
+        if (blockHash == null) {
+            return -1;
+        }
+        Integer blockNo = heights.get(new Sha256Hash(blockHash));
+        return blockNo == null ? -1 : blockNo;
+    }
+
+    synchronized byte[] getHash(int blockNo) {
+        if (blockNo < firstBlockNo || blockNo >= firstBlockNo + count) {
+            return null;
+        }
+        return hashAt(blockNo - firstBlockNo);
+    }
+
+    synchronized int getBlockTime(int blockNo) {
+        if (blockNo < firstBlockNo || blockNo >= firstBlockNo + count) {
+            return -1;
+        }
+        return (int) Utils.readUint32(headers, (blockNo - firstBlockNo) * Block.HEADER_SIZE + 68);
+    }
+
+    /**
+     * Like {@link #getBlockTime(int)}, but blocks older than the first one give its time.
+     */
+    synchronized int getBlockTimeOrFirst(int blockNo) {
+        return getBlockTime(Math.max(blockNo, firstBlockNo));
+    }
+
+    synchronized Block getBlock(int blockNo) {
+        if (blockNo < firstBlockNo || blockNo >= firstBlockNo + count) {
+            return null;
+        }
+        int i = blockNo - firstBlockNo;
+        int offset = i * Block.HEADER_SIZE;
+        byte[] prev = new byte[HashSize];
+        byte[] root = new byte[HashSize];
+        System.arraycopy(headers, offset + 4, prev, 0, HashSize);
+        System.arraycopy(headers, offset + 36, root, 0, HashSize);
+        return new Block(hashAt(i), Utils.readUint32(headers, offset), prev, root, (int) Utils
+                .readUint32(headers, offset + 68), Utils.readUint32(headers, offset + 72), Utils
+                .readUint32(headers, offset + 76), blockNo, true);
+    }
+
+    synchronized Block getBlock(byte[] blockHash) {
+        int blockNo = getBlockNo(blockHash);
+        return blockNo < 0 ? null : getBlock(blockNo);
+    }
+
+    private byte[] hashAt(int i) {
+        byte[] hash = new byte[HashSize];
+        System.arraycopy(hashes, i * HashSize, hash, 0, HashSize);
+        return hash;
+    }
+
+    private void putHeader(Block block, int offset) {
+        Utils.uint32ToByteArrayLE(block.getBlockVer(), headers, offset);
+        System.arraycopy(block.getBlockPrev(), 0, headers, offset + 4, HashSize);
+        System.arraycopy(block.getBlockRoot(), 0, headers, offset + 36, HashSize);
+        Utils.uint32ToByteArrayLE(block.getBlockTime(), headers, offset + 68);
+        Utils.uint32ToByteArrayLE(block.getBlockBits(), headers, offset + 72);
+        Utils.uint32ToByteArrayLE(block.getBlockNonce(), headers, offset + 76);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity * Block.HEADER_SIZE <= headers.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, headers.length / Block.HEADER_SIZE * 2);
+        byte[] newHeaders = new byte[newCapacity * Block.HEADER_SIZE];
+        System.arraycopy(headers, 0, newHeaders, 0, count * Block.HEADER_SIZE);
+        headers = newHeaders;
+        byte[] newHashes = new byte[newCapacity * HashSize];
+        System.arraycopy(hashes, 0, newHashes, 0, count * HashSize);
+        hashes = newHashes;
+    }
+}
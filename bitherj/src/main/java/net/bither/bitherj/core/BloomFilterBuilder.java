@@ -0,0 +1,120 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+/**
+ * <p>Keeps the elements of the wallet bloom filter in memory, so new addresses and outpoints are
+ * inserted into the current filter instead of reloading the whole wallet from the db.</p>
+ * <p/>
+ * <p>The filter is sized with some spare capacity and only rebuilt from the in-memory elements
+ * when the element count outgrows that capacity or the false positive rate moves by more than a
+ * quarter, a closer rate is not worth sending the whole filter to the peers again.</p>
+ */
+public class BloomFilterBuilder {
+    private static final double CapacityGrowthRate = 1.5;
+    private static final int MinSpareCapacity = 100;
+    private static final double FpRateTolerance = 0.25;
+
+    private final long tweak;
+    private final BloomFilter.BloomUpdate updateFlag;
+    private final HashSet<ByteBuffer> elements;
+
+    private BloomFilter filter;
+    private int capacity;
+    private double fpRate;
+    private boolean loaded;
+
+    public BloomFilterBuilder(long tweak, double fpRate, BloomFilter.BloomUpdate updateFlag) {
+        this.tweak = tweak;
+        this.fpRate = fpRate;
+        this.updateFlag = updateFlag;
+        this.elements = new HashSet<ByteBuffer>();
+    }
+
+    /**
+     * Inserts the element, returns false if it is already known.
+     */
+    public synchronized boolean insert(byte[] element) {
+        if (element == null || !elements.add(ByteBuffer.wrap(element))) {
+            return false;
+        }
+        if (filter != null) {
+            if (elements.size() > capacity) {
+                filter = null;
+            } else {
+                filter.insert(element);
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(byte[] element) {
+        return element != null && elements.contains(ByteBuffer.wrap(element));
+    }
+
+    /**
+     * The filter containing all inserted elements. The same instance is returned and updated in
+     * place until it has to be resized.
+     */
+    public synchronized BloomFilter getFilter() {
+        if (filter == null) {
+            capacity = Math.max((int) (elements.size() * CapacityGrowthRate), elements.size() +
+                    MinSpareCapacity);
+            BloomFilter f = new BloomFilter(capacity, fpRate, tweak, updateFlag);
+            for (ByteBuffer element : elements) {
+                f.insert(element.array());
+            }
+            filter = f;
+        }
+        return filter;
+    }
+
+    public synchronized void setFalsePositiveRate(double fpRate) {
+        if (Math.abs(this.fpRate - fpRate) > this.fpRate * FpRateTolerance) {
+            this.fpRate = fpRate;
+            filter = null;
+        }
+    }
+
+    public synchronized int getElementCount() {
+        return elements.size();
+    }
+
+    /**
+     * Whether all wallet elements have been loaded, after that only new elements need inserting.
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void setLoaded() {
+        loaded = true;
+    }
+
+    /**
+     * Drops all elements so the next load reads the whole wallet again.
+     */
+    public synchronized void reset() {
+        elements.clear();
+        filter = null;
+        capacity = 0;
+        loaded = false;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+/**
+ * Selects unspent outs for an amount over the arrays of {@link UnspentOutputs}. A branch and
+ * bound search looks for outs adding up to the amount without change first, otherwise the outs
+ * are spent in the order {@link TxBuilderDefault} always used: highest coin depth, then highest
+ * value, then tx hash and out sn.
+ */
+class CoinSelector {
+    // like bitcoin core, the branch and bound search gives up after this many steps
+    private static final int MAX_TRIES = 100000;
+
+    private final UnspentOutputs outputs;
+    private final long[] values;
+    private final long[] coinDepths;
+    private final int[] byPriority;
+    private final int[] byValue;
+    // sum of the values of byValue[i] and after
+    private final long[] remainingValues;
+
+    CoinSelector(UnspentOutputs outputs, int lastBlockNo) {
+        this.outputs = outputs;
+        this.values = outputs.values();
+        int size = outputs.size();
+        coinDepths = new long[size];
+        byPriority = new int[size];
+        byValue = new int[size];
+        for (int i = 0;
+             i < size;
+             i++) {
+            coinDepths[i] = (long) lastBlockNo * values[i] - (long) outputs.getBlockNo(i) *
+                    values[i] + values[i];
+            byPriority[i] = i;
+            byValue[i] = i;
+        }
+        int[] buffer = new int[size];
+        sort(byPriority, buffer, 0, size, true);
+        sort(byValue, buffer, 0, size, false);
+        remainingValues = new long[size + 1];
+        for (int i = size - 1;
+             i >= 0;
+             i--) {
+            remainingValues[i] = remainingValues[i + 1] + values[byValue[i]];
+        }
+    }
+
+    /**
+     * @param tolerance how much more than the amount the outs found by the search may add up to
+     * @return the indexes of the selected outs, they add up to less than the amount if the outs
+     * are not enough
+     */
+    int[] select(long amount, long tolerance) {
+        int[] selected = branchAndBound(amount, tolerance);
+        if (selected != null) {
+            return selected;
+        }
+        int count = 0;
+        long sum = 0;
+        while (count < byPriority.length && sum < amount) {
+            sum += values[byPriority[count]];
+            count++;
+        }
+        selected = new int[count];
+        System.arraycopy(byPriority, 0, selected, 0, count);
+        return selected;
+    }
+
+    private int[] branchAndBound(long amount, long tolerance) {
+        int size = byValue.length;
+        // positions in byValue of the outs in the current branch
+        int[] branch = new int[size];
+        int branchSize = 0;
+        long branchValue = 0;
+        int position = 0;
+        int[] best = null;
+        long bestValue = Long.MAX_VALUE;
+        for (int tries = 0;
+             tries < MAX_TRIES;
+             tries++) {
+            boolean backtrack;
+            if (branchValue > amount + tolerance || branchValue + remainingValues[position] <
+                    amount) {
+                backtrack = true;
+            } else if (branchValue >= amount) {
+                if (branchValue < bestValue) {
+                    bestValue = branchValue;
+                    best = new int[branchSize];
+                    for (int i = 0;
+                         i < branchSize;
+                         i++) {
+                        best[i] = byValue[branch[i]];
+                    }
+                }
+                if (branchValue == amount) {
+                    break;
+                }
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+            if (backtrack) {
+                if (branchSize == 0) {
+                    break;
+                }
+                // leave out the last out of the branch, and the outs of the same value after it
+                // which would only give the same sums again
+                branchSize--;
+                int last = branch[branchSize];
+                branchValue -= values[byValue[last]];
+                position = last + 1;
+                while (position < size && values[byValue[position]] == values[byValue[last]]) {
+                    position++;
+                }
+            } else {
+                branch[branchSize] = position;
+                branchSize++;
+                branchValue += values[byValue[position]];
+                position++;
+            }
+        }
+        return best;
+    }
+
+    private void sort(int[] indexes, int[] buffer, int from, int to, boolean byPriority) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(indexes, buffer, from, middle, byPriority);
+        sort(indexes, buffer, middle, to, byPriority);
+        int left = from;
+        int right = middle;
+        for (int i = from;
+             i < to;
+             i++) {
+            if (right >= to || (left < middle && compare(indexes[left], indexes[right],
+                    byPriority) <= 0)) {
+                buffer[i] = indexes[left++];
+            } else {
+                buffer[i] = indexes[right++];
+            }
+        }
+        System.arraycopy(buffer, from, indexes, from, to - from);
+    }
+
+    private int compare(int index1, int index2, boolean byPriority) {
+        if (byPriority && coinDepths[index1] != coinDepths[index2]) {
+            return coinDepths[index1] > coinDepths[index2] ? -1 : 1;
+        }
+        if (values[index1] != values[index2]) {
+            return values[index1] > values[index2] ? -1 : 1;
+        }
+        byte[] hash1 = outputs.getTxHash(index1);
+        byte[] hash2 = outputs.getTxHash(index2);
+        for (int i = 0;
+             i < hash1.length && i < hash2.length;
+             i++) {
+            if (hash1[i] != hash2[i]) {
+                return (hash1[i] & 0xFF) < (hash2[i] & 0xFF) ? -1 : 1;
+            }
+        }
+        if (hash1.length != hash2.length) {
+            return hash1.length < hash2.length ? -1 : 1;
+        }
+        return outputs.getOutSn(index1) - outputs.getOutSn(index2);
+    }
+}
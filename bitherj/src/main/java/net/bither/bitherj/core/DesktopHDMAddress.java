@@ -18,6 +18,7 @@
 
 package net.bither.bitherj.core;
 
+import net.bither.bitherj.crypto.SigningSession;
 import net.bither.bitherj.crypto.TransactionSignature;
 import net.bither.bitherj.crypto.hd.DeterministicKey;
 import net.bither.bitherj.db.AbstractDb;
@@ -89,6 +90,12 @@ public class DesktopHDMAddress extends Address {
         throw new RuntimeException("hdm address can't sign transactions all by self");
     }
 
+    @Override
+    public List<byte[]> signHashes(List<byte[]> unsignedInHashes, SigningSession session) throws
+            PasswordException {
+        throw new RuntimeException("hdm address can't sign transactions all by self");
+    }
+
     public void signTx(Tx tx, CharSequence passphrase, HDMFetchOtherSignatureDelegate delegate) {
         tx.signWithSignatures(this.signWithOther(tx.getUnsignedInHashesForHDM(getPubKey()),
                 passphrase, tx, delegate));
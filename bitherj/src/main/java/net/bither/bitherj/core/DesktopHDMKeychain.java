@@ -23,12 +23,15 @@ import net.bither.bitherj.AbstractApp;
 import net.bither.bitherj.api.CreateHDMAddressApi;
 import net.bither.bitherj.crypto.ECKey;
 import net.bither.bitherj.crypto.EncryptedData;
+import net.bither.bitherj.crypto.KeyCrypterException;
+import net.bither.bitherj.crypto.SigningSession;
 import net.bither.bitherj.crypto.TransactionSignature;
 import net.bither.bitherj.crypto.hd.DeterministicKey;
 import net.bither.bitherj.crypto.hd.HDKeyDerivation;
 import net.bither.bitherj.crypto.mnemonic.MnemonicCode;
 import net.bither.bitherj.crypto.mnemonic.MnemonicException;
 import net.bither.bitherj.db.AbstractDb;
+import net.bither.bitherj.exception.PasswordException;
 import net.bither.bitherj.exception.TxBuilderException;
 import net.bither.bitherj.qrcode.QRCodeUtil;
 import net.bither.bitherj.script.ScriptBuilder;
@@ -197,117 +200,55 @@ public class DesktopHDMKeychain extends AbstractHD {
     }
 
     private void addDesktopAddress(PathType pathType, int count) {
+        List<byte[]> rootPubs;
         if (pathType == PathType.EXTERNAL_ROOT_PATH) {
-            List<DesktopHDMAddress> desktopHDMAddresses = new ArrayList<DesktopHDMAddress>();
-            List<byte[]> externalPubs = AbstractDb.desktopAddressProvider.getExternalPubs();
-            DeterministicKey externalKey1 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                    (externalPubs.get(0));
-            DeterministicKey externalKey2 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                    (externalPubs.get(1));
-            DeterministicKey externalKey3 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                    (externalPubs.get(2));
-            for (int i = 0;
-                 i < count;
-                 i++) {
-                byte[] subExternalPub1 = externalKey1.deriveSoftened(i).getPubKey();
-                byte[] subExternalPub2 = externalKey2.deriveSoftened(i).getPubKey();
-                byte[] subExternalPub3 = externalKey3.deriveSoftened(i).getPubKey();
-                HDMAddress.Pubs pubs = new HDMAddress.Pubs();
-                pubs.hot = subExternalPub1;
-                pubs.cold = subExternalPub2;
-                pubs.remote = subExternalPub3;
-                pubs.index = i;
-                DesktopHDMAddress desktopHDMAddress = new DesktopHDMAddress(pubs, pathType, DesktopHDMKeychain.this, false);
-                desktopHDMAddresses.add(desktopHDMAddress);
-
-            }
-            AbstractDb.desktopTxProvider.addAddress(desktopHDMAddresses);
+            rootPubs = AbstractDb.desktopAddressProvider.getExternalPubs();
         } else {
-            List<DesktopHDMAddress> desktopHDMAddresses = new ArrayList<DesktopHDMAddress>();
-            List<byte[]> internalPubs = AbstractDb.desktopAddressProvider.getInternalPubs();
-            DeterministicKey internalKey1 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                    (internalPubs.get(0));
-            DeterministicKey internalKey2 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                    (internalPubs.get(1));
-            DeterministicKey internalKey3 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                    (internalPubs.get(2));
-            for (int i = 0;
-                 i < count;
-                 i++) {
-                byte[] subInternalPub1 = internalKey1.deriveSoftened(i).getPubKey();
-                byte[] subInternalPub2 = internalKey2.deriveSoftened(i).getPubKey();
-                byte[] subInternalPub3 = internalKey3.deriveSoftened(i).getPubKey();
-                HDMAddress.Pubs pubs = new HDMAddress.Pubs();
-                pubs.hot = subInternalPub1;
-                pubs.cold = subInternalPub2;
-                pubs.remote = subInternalPub3;
-                pubs.index = i;
-                DesktopHDMAddress desktopHDMAddress = new DesktopHDMAddress(pubs, pathType, DesktopHDMKeychain.this, false);
-                desktopHDMAddresses.add(desktopHDMAddress);
-
-            }
-            AbstractDb.desktopTxProvider.addAddress(desktopHDMAddresses);
+            rootPubs = AbstractDb.desktopAddressProvider.getInternalPubs();
         }
-
-
+        AbstractDb.desktopTxProvider.addAddress(deriveAddresses(rootPubs, pathType, 0, count,
+                false));
     }
 
     private void supplyNewInternalKey(int count, boolean isSyncedComplete) {
-        List<DesktopHDMAddress> desktopHDMAddresses = new ArrayList<DesktopHDMAddress>();
         List<byte[]> internalPubs = AbstractDb.desktopAddressProvider.getInternalPubs();
-        DeterministicKey internalKey1 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                (internalPubs.get(0));
-        DeterministicKey internalKey2 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                (internalPubs.get(1));
-        DeterministicKey internalKey3 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                (internalPubs.get(2));
         int firstIndex = allGeneratedInternalAddressCount();
-        for (int i = firstIndex;
-             i < count + firstIndex;
-             i++) {
-            byte[] subInternalPub1 = internalKey1.deriveSoftened(i).getPubKey();
-            byte[] subInternalPub2 = internalKey2.deriveSoftened(i).getPubKey();
-            byte[] subInternalPub3 = internalKey3.deriveSoftened(i).getPubKey();
-            HDMAddress.Pubs pubs = new HDMAddress.Pubs();
-            pubs.hot = subInternalPub1;
-            pubs.cold = subInternalPub2;
-            pubs.remote = subInternalPub3;
-            pubs.index = i;
-            DesktopHDMAddress desktopHDMAddress = new DesktopHDMAddress(pubs, PathType.INTERNAL_ROOT_PATH, DesktopHDMKeychain.this, isSyncedComplete);
-            desktopHDMAddresses.add(desktopHDMAddress);
-
-        }
+        List<DesktopHDMAddress> desktopHDMAddresses = deriveAddresses(internalPubs, PathType
+                .INTERNAL_ROOT_PATH, firstIndex, count, isSyncedComplete);
         AbstractDb.desktopTxProvider.addAddress(desktopHDMAddresses);
 
     }
 
     private void supplyNewExternalKey(int count, boolean isSyncedComplete) {
         List<byte[]> externalPubs = AbstractDb.desktopAddressProvider.getExternalPubs();
-        DeterministicKey externalKey1 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                (externalPubs.get(0));
-        DeterministicKey externalKey2 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                (externalPubs.get(1));
-        DeterministicKey externalKey3 = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
-                (externalPubs.get(2));
-        List<DesktopHDMAddress> desktopHDMAddresses = new ArrayList<DesktopHDMAddress>();
         int firstIndex = allGeneratedExternalAddressCount();
-        for (int i = firstIndex;
-             i < count + firstIndex;
+        List<DesktopHDMAddress> desktopHDMAddresses = deriveAddresses(externalPubs, PathType
+                .EXTERNAL_ROOT_PATH, firstIndex, count, isSyncedComplete);
+        AbstractDb.desktopTxProvider.addAddress(desktopHDMAddresses);
+        log.info("HD supplied {} internal addresses", desktopHDMAddresses.size());
+    }
+
+    private List<DesktopHDMAddress> deriveAddresses(List<byte[]> rootPubs, PathType pathType, int
+            firstIndex, int count, boolean isSyncedComplete) {
+        List<byte[]> hotPubs = HDKeyDerivation.derivePubKeys(HDKeyDerivation
+                .createMasterPubKeyFromExtendedBytes(rootPubs.get(0)), firstIndex, count);
+        List<byte[]> coldPubs = HDKeyDerivation.derivePubKeys(HDKeyDerivation
+                .createMasterPubKeyFromExtendedBytes(rootPubs.get(1)), firstIndex, count);
+        List<byte[]> remotePubs = HDKeyDerivation.derivePubKeys(HDKeyDerivation
+                .createMasterPubKeyFromExtendedBytes(rootPubs.get(2)), firstIndex, count);
+        List<DesktopHDMAddress> desktopHDMAddresses = new ArrayList<DesktopHDMAddress>();
+        for (int i = 0;
+             i < count;
              i++) {
-            byte[] subExternalPub1 = externalKey1.deriveSoftened(i).getPubKey();
-            byte[] subExternalPub2 = externalKey2.deriveSoftened(i).getPubKey();
-            byte[] subExternalPub3 = externalKey3.deriveSoftened(i).getPubKey();
             HDMAddress.Pubs pubs = new HDMAddress.Pubs();
-            pubs.hot = subExternalPub1;
-            pubs.cold = subExternalPub2;
-            pubs.remote = subExternalPub3;
-            pubs.index = i;
-            DesktopHDMAddress desktopHDMAddress = new DesktopHDMAddress(pubs, PathType.EXTERNAL_ROOT_PATH, DesktopHDMKeychain.this, isSyncedComplete);
-            desktopHDMAddresses.add(desktopHDMAddress);
-
+            pubs.hot = hotPubs.get(i);
+            pubs.cold = coldPubs.get(i);
+            pubs.remote = remotePubs.get(i);
+            pubs.index = firstIndex + i;
+            desktopHDMAddresses.add(new DesktopHDMAddress(pubs, pathType, DesktopHDMKeychain
+                    .this, isSyncedComplete));
         }
-        AbstractDb.desktopTxProvider.addAddress(desktopHDMAddresses);
-        log.info("HD supplied {} internal addresses", desktopHDMAddresses.size());
+        return desktopHDMAddresses;
     }
 
 
@@ -477,7 +418,34 @@ public class DesktopHDMKeychain extends AbstractHD {
     public ArrayList<TransactionSignature> signMyPart(List<byte[]> unsignedHashes,
                                                       CharSequence password,
                                                       List<PathTypeIndex> pathTypeIndexList) {
+        SigningSession session = new SigningSession(password);
+        try {
+            return signMyPart(unsignedHashes, session, pathTypeIndexList);
+        } finally {
+            session.close();
+        }
+    }
 
+    /**
+     * Decrypts the hd seed once for all the hashes instead of once per input.
+     */
+    public ArrayList<TransactionSignature> signMyPart(List<byte[]> unsignedHashes,
+                                                      SigningSession session,
+                                                      List<PathTypeIndex> pathTypeIndexList) {
+        DeterministicKey external;
+        DeterministicKey internal;
+        try {
+            DeterministicKey master = masterKey(session);
+            DeterministicKey accountKey = getAccount(master);
+            external = getChainRootKey(accountKey, PathType.EXTERNAL_ROOT_PATH);
+            internal = getChainRootKey(accountKey, PathType.INTERNAL_ROOT_PATH);
+            master.wipe();
+            accountKey.wipe();
+        } catch (KeyCrypterException e) {
+            throw new PasswordException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
 
         ArrayList<TransactionSignature> sigs = new ArrayList<TransactionSignature>();
         for (int i = 0;
@@ -486,15 +454,17 @@ public class DesktopHDMKeychain extends AbstractHD {
             PathTypeIndex pathTypeIndex = pathTypeIndexList.get(i);
             DeterministicKey key;
             if (pathTypeIndex.pathType == PathType.EXTERNAL_ROOT_PATH) {
-                key = getExternalKey(pathTypeIndex.index, password);
+                key = external.deriveSoftened(pathTypeIndex.index);
             } else {
-                key = getInternalKey(pathTypeIndex.index, password);
+                key = internal.deriveSoftened(pathTypeIndex.index);
             }
             TransactionSignature transactionSignature = new TransactionSignature(key.sign
                     (unsignedHashes.get(i)), TransactionSignature.SigHash.ALL, false);
             sigs.add(transactionSignature);
             key.wipe();
         }
+        external.wipe();
+        internal.wipe();
 
         return sigs;
     }
@@ -721,18 +691,50 @@ public class DesktopHDMKeychain extends AbstractHD {
                         .INTERNAL_ROOT_PATH);
     }
 
-    public void addElementsForBloomFilter(BloomFilter filter) {
+    /**
+     * @return the external address count added, to pass to
+     * {@link #addExternalPubsForBloomFilter(BloomFilterBuilder, int)}.
+     */
+    public int addElementsForBloomFilter(BloomFilterBuilder filter) {
+        int externalIndex = addExternalPubsForBloomFilter(filter, 0);
+        List<Out> outs = AbstractDb.desktopTxProvider.getUnspendOutByHDAccountWithPath
+                (getHdSeedId(), AbstractHD.PathType.INTERNAL_ROOT_PATH);
+        for (Out out : outs) {
+            filter.insert(out.getOutpointData());
+        }
+        return externalIndex;
+    }
+
+    /**
+     * Only reads the pubs when addresses were generated since fromIndex.
+     */
+    public int addExternalPubsForBloomFilter(BloomFilterBuilder filter, int fromIndex) {
+        if (allGeneratedExternalAddressCount() <= fromIndex) {
+            return fromIndex;
+        }
+        int externalIndex = fromIndex;
         List<HDMAddress.Pubs> pubses = AbstractDb.desktopTxProvider.getPubs(AbstractHD.PathType.EXTERNAL_ROOT_PATH);
         for (HDMAddress.Pubs pub : pubses) {
+            if (pub.index < fromIndex) {
+                continue;
+            }
             byte[] pubByte = pub.getMultiSigScript().getProgram();
             filter.insert(pubByte);
             filter.insert(Utils.sha256hash160(pubByte));
-            // System.out.println("address:" + Utils.toP2SHAddress(Utils.sha256hash160(pubByte)));
+            externalIndex = Math.max(externalIndex, pub.index + 1);
         }
-        List<Out> outs = AbstractDb.desktopTxProvider.getUnspendOutByHDAccountWithPath
-                (getHdSeedId(), AbstractHD.PathType.INTERNAL_ROOT_PATH);
-        for (Out out : outs) {
-            filter.insert(out.getOutpointData());
+        return externalIndex;
+    }
+
+    public void addTxOutsForBloomFilter(BloomFilterBuilder filter, Tx tx) {
+        HashSet<String> addressSet = getBelongAccountAddresses(tx.getOutAddressList());
+        if (addressSet.size() == 0) {
+            return;
+        }
+        for (Out out : tx.getOuts()) {
+            if (addressSet.contains(out.getOutAddress())) {
+                filter.insert(out.getOutpointData());
+            }
         }
     }
 
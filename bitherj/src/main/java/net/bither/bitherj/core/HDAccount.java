@@ -20,6 +20,7 @@ import net.bither.bitherj.AbstractApp;
 import net.bither.bitherj.crypto.ECKey;
 import net.bither.bitherj.crypto.EncryptedData;
 import net.bither.bitherj.crypto.KeyCrypterException;
+import net.bither.bitherj.crypto.SigningSession;
 import net.bither.bitherj.crypto.TransactionSignature;
 import net.bither.bitherj.crypto.hd.DeterministicKey;
 import net.bither.bitherj.crypto.hd.HDKeyDerivation;
@@ -39,7 +40,6 @@ import org.slf4j.LoggerFactory;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -59,6 +59,22 @@ public class HDAccount extends Address {
     private static final int LOOK_AHEAD_SIZE = 100;
 
     private long balance = 0;
+    private final BalanceLedger balanceLedger = new BalanceLedger(new BalanceLedger.Source() {
+        @Override
+        public long getConfirmedBalance() {
+            return AbstractDb.hdAccountAddressProvider.getHDAccountConfirmedBalance(hdSeedId);
+        }
+
+        @Override
+        public List<Tx> getUnconfirmedTxs() {
+            return AbstractDb.hdAccountAddressProvider.getHDAccountUnconfirmedTx(hdSeedId);
+        }
+
+        @Override
+        public Set<String> getOwnedAddresses(List<String> addresses) {
+            return getBelongAccountAddresses(addresses);
+        }
+    });
 
     protected transient byte[] mnemonicSeed;
     protected transient byte[] hdSeed;
@@ -172,34 +188,20 @@ public class HDAccount extends Address {
             generationDelegate.onHDAccountGenerationProgress(progress);
         }
 
-        double itemProgress = (1.0 - GenerationPreStartProgress) / (LOOK_AHEAD_SIZE * 2);
+        double chainProgress = (1.0 - GenerationPreStartProgress) / 2;
 
-        List<HDAccount.HDAccountAddress> externalAddresses = new ArrayList<HDAccount
-                .HDAccountAddress>();
-        List<HDAccount.HDAccountAddress> internalAddresses = new ArrayList<HDAccount
-                .HDAccountAddress>();
-        for (int i = 0;
-             i < LOOK_AHEAD_SIZE;
-             i++) {
-            byte[] subExternalPub = externalKey.deriveSoftened(i).getPubKey();
-            HDAccount.HDAccountAddress externalAddress = new HDAccount.HDAccountAddress
-                    (subExternalPub, AbstractHD.PathType.EXTERNAL_ROOT_PATH, i, isSyncedComplete,
-                            hdSeedId);
-            externalAddresses.add(externalAddress);
-            progress += itemProgress;
-            if (generationDelegate != null) {
-                generationDelegate.onHDAccountGenerationProgress(progress);
-            }
+        List<HDAccount.HDAccountAddress> externalAddresses = deriveAddresses(externalKey,
+                AbstractHD.PathType.EXTERNAL_ROOT_PATH, 0, LOOK_AHEAD_SIZE, isSyncedComplete);
+        progress += chainProgress;
+        if (generationDelegate != null) {
+            generationDelegate.onHDAccountGenerationProgress(progress);
+        }
 
-            byte[] subInternalPub = internalKey.deriveSoftened(i).getPubKey();
-            HDAccount.HDAccountAddress internalAddress = new HDAccount.HDAccountAddress
-                    (subInternalPub, AbstractHD.PathType.INTERNAL_ROOT_PATH, i, isSyncedComplete,
-                            hdSeedId);
-            internalAddresses.add(internalAddress);
-            progress += itemProgress;
-            if (generationDelegate != null) {
-                generationDelegate.onHDAccountGenerationProgress(progress);
-            }
+        List<HDAccount.HDAccountAddress> internalAddresses = deriveAddresses(internalKey,
+                AbstractHD.PathType.INTERNAL_ROOT_PATH, 0, LOOK_AHEAD_SIZE, isSyncedComplete);
+        progress += chainProgress;
+        if (generationDelegate != null) {
+            generationDelegate.onHDAccountGenerationProgress(progress);
         }
         if (encryptedMnemonicSeed == null) {
             hdSeedId = AbstractDb.hdAccountProvider.addMonitoredHDAccount(firstAddress,
@@ -219,8 +221,8 @@ public class HDAccount extends Address {
         for (HDAccount.HDAccountAddress addr : internalAddresses) {
             addr.setHdAccountId(hdSeedId);
         }
-        AbstractDb.hdAccountAddressProvider.addAddress(externalAddresses);
-        AbstractDb.hdAccountAddressProvider.addAddress(internalAddresses);
+        addAddresses(externalAddresses);
+        addAddresses(internalAddresses);
         internalKey.wipe();
         externalKey.wipe();
     }
@@ -277,14 +279,9 @@ public class HDAccount extends Address {
         DeterministicKey root = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
                 (getInternalPub());
         int firstIndex = allGeneratedInternalAddressCount();
-        ArrayList<HDAccountAddress> as = new ArrayList<HDAccountAddress>();
-        for (int i = firstIndex;
-             i < firstIndex + count;
-             i++) {
-            as.add(new HDAccountAddress(root.deriveSoftened(i).getPubKey(), AbstractHD.PathType
-                    .INTERNAL_ROOT_PATH, i, isSyncedComplete, hdSeedId));
-        }
-        AbstractDb.hdAccountAddressProvider.addAddress(as);
+        List<HDAccountAddress> as = deriveAddresses(root, AbstractHD.PathType.INTERNAL_ROOT_PATH,
+                firstIndex, count, isSyncedComplete);
+        addAddresses(as);
         log.info("HD supplied {} internal addresses", as.size());
     }
 
@@ -292,15 +289,31 @@ public class HDAccount extends Address {
         DeterministicKey root = HDKeyDerivation.createMasterPubKeyFromExtendedBytes
                 (getExternalPub());
         int firstIndex = allGeneratedExternalAddressCount();
-        ArrayList<HDAccountAddress> as = new ArrayList<HDAccountAddress>();
-        for (int i = firstIndex;
-             i < firstIndex + count;
+        List<HDAccountAddress> as = deriveAddresses(root, AbstractHD.PathType.EXTERNAL_ROOT_PATH,
+                firstIndex, count, isSyncedComplete);
+        addAddresses(as);
+        log.info("HD supplied {} external addresses", as.size());
+    }
+
+    private List<HDAccountAddress> deriveAddresses(DeterministicKey root, AbstractHD.PathType
+            pathType, int firstIndex, int count, boolean isSyncedComplete) {
+        List<byte[]> pubs = HDKeyDerivation.derivePubKeys(root, firstIndex, count);
+        List<HDAccountAddress> as = new ArrayList<HDAccountAddress>(count);
+        for (int i = 0;
+             i < pubs.size();
              i++) {
-            as.add(new HDAccountAddress(root.deriveSoftened(i).getPubKey(), AbstractHD.PathType
-                    .EXTERNAL_ROOT_PATH, i, isSyncedComplete, hdSeedId));
+            as.add(new HDAccountAddress(pubs.get(i), pathType, firstIndex + i, isSyncedComplete,
+                    hdSeedId));
+        }
+        return as;
+    }
+
+    private void addAddresses(List<HDAccountAddress> addresses) {
+        AbstractDb.hdAccountAddressProvider.addAddress(addresses);
+        // null while the address manager itself is loading, it loads the index from db after
+        if (AddressManager.getInstance() != null) {
+            AddressManager.getInstance().getHDAccountAddressIndex().add(addresses);
         }
-        AbstractDb.hdAccountAddressProvider.addAddress(as);
-        log.info("HD supplied {} external addresses", as.size());
     }
 
     protected String getEncryptedMnemonicSeed() {
@@ -362,6 +375,7 @@ public class HDAccount extends Address {
 
     public void onNewTx(Tx tx, Tx.TxNotificationType txNotificationType) {
         supplyEnoughKeys(true);
+        balanceLedger.addTx(tx);
         long deltaBalance = getDeltaBalance();
         AbstractApp.notificationService.notificatTx(hasPrivKey() ? HDAccountPlaceHolder :
                         HDAccountMonitoredPlaceHolder, tx, txNotificationType,
@@ -374,11 +388,13 @@ public class HDAccount extends Address {
 
     public boolean initTxs(List<Tx> txs) {
         AbstractDb.txProvider.addTxs(txs);
+        invalidateBalance();
         notificatTx(null, Tx.TxNotificationType.txFromApi);
         return true;
     }
 
     public void notificatTx(Tx tx, Tx.TxNotificationType txNotificationType) {
+        balanceLedger.addTx(tx);
         long deltaBalance = getDeltaBalance();
         AbstractApp.notificationService.notificatTx(hasPrivKey() ? HDAccountPlaceHolder :
                 HDAccountMonitoredPlaceHolder, tx, txNotificationType, deltaBalance);
@@ -386,7 +402,7 @@ public class HDAccount extends Address {
 
     private long getDeltaBalance() {
         long oldBalance = this.balance;
-        this.updateBalance();
+        this.balance = balanceLedger.getBalance();
         return this.balance - oldBalance;
     }
 
@@ -404,61 +420,17 @@ public class HDAccount extends Address {
     }
 
     public void updateBalance() {
-        this.balance = AbstractDb.hdAccountAddressProvider.getHDAccountConfirmedBalance(hdSeedId)
-                + calculateUnconfirmedBalance();
+        balanceLedger.invalidate();
+        this.balance = balanceLedger.getBalance();
     }
 
-    private long calculateUnconfirmedBalance() {
-        long balance = 0;
-
-        List<Tx> txs = AbstractDb.hdAccountAddressProvider.getHDAccountUnconfirmedTx(this.hdSeedId);
-        Collections.sort(txs);
-
-        Set<byte[]> invalidTx = new HashSet<byte[]>();
-        Set<OutPoint> spentOut = new HashSet<OutPoint>();
-        Set<OutPoint> unspendOut = new HashSet<OutPoint>();
-
-        for (int i = txs.size() - 1;
-             i >= 0;
-             i--) {
-            Set<OutPoint> spent = new HashSet<OutPoint>();
-            Tx tx = txs.get(i);
-
-            Set<byte[]> inHashes = new HashSet<byte[]>();
-            for (In in : tx.getIns()) {
-                spent.add(new OutPoint(in.getPrevTxHash(), in.getPrevOutSn()));
-                inHashes.add(in.getPrevTxHash());
-            }
-
-            if (tx.getBlockNo() == Tx.TX_UNCONFIRMED
-                    && (Utils.isIntersects(spent, spentOut) || Utils.isIntersects(inHashes,
-                    invalidTx))) {
-                invalidTx.add(tx.getTxHash());
-                continue;
-            }
+    @Override
+    public void invalidateBalance() {
+        balanceLedger.invalidate();
+    }
 
-            spentOut.addAll(spent);
-            HashSet<String> addressSet = getBelongAccountAddresses(tx.getOutAddressList());
-            for (Out out : tx.getOuts()) {
-                if (addressSet.contains(out.getOutAddress())) {
-                    unspendOut.add(new OutPoint(tx.getTxHash(), out.getOutSn()));
-                    balance += out.getOutValue();
-                }
-            }
-            spent.clear();
-            spent.addAll(unspendOut);
-            spent.retainAll(spentOut);
-            for (OutPoint o : spent) {
-                Tx tx1 = AbstractDb.txProvider.getTxDetailByTxHash(o.getTxHash());
-                unspendOut.remove(o);
-                for (Out out : tx1.getOuts()) {
-                    if (out.getOutSn() == o.getOutSn()) {
-                        balance -= out.getOutValue();
-                    }
-                }
-            }
-        }
-        return balance;
+    public void confirmTxs(List<byte[]> txHashes) {
+        balanceLedger.confirmTxs(txHashes);
     }
 
     public List<HDAccountAddress> getRelatedAddressesForTx(Tx tx, List<String> inAddresses) {
@@ -484,7 +456,8 @@ public class HDAccount extends Address {
     }
 
     public HashSet<String> getBelongAccountAddresses(List<String> addressList) {
-        return AbstractDb.hdAccountAddressProvider.getBelongAccountAddresses(this.hdSeedId, addressList);
+        return AddressManager.getInstance().getHDAccountAddressIndex().getBelongAccountAddresses
+                (this.hdSeedId, addressList);
     }
 
     public Tx newTx(String toAddress, Long amount, CharSequence password) throws
@@ -494,14 +467,24 @@ public class HDAccount extends Address {
 
     public Tx newTx(String[] toAddresses, Long[] amounts, CharSequence password) throws
             TxBuilderException, MnemonicException.MnemonicLengthException {
-        if (password != null && !hasPrivKey()) {
+        SigningSession session = new SigningSession(password);
+        try {
+            return newTx(toAddresses, amounts, session);
+        } finally {
+            session.close();
+        }
+    }
+
+    public Tx newTx(String[] toAddresses, Long[] amounts, SigningSession session) throws
+            TxBuilderException, MnemonicException.MnemonicLengthException {
+        if (session.getPassword() != null && !hasPrivKey()) {
             throw new RuntimeException("Can not sign without private key");
         }
         Tx tx = newTx(toAddresses, amounts);
         List<HDAccountAddress> signingAddresses = getSigningAddressesForInputs(tx.getIns());
         assert signingAddresses.size() == tx.getIns().size();
 
-        DeterministicKey master = masterKey(password);
+        DeterministicKey master = masterKey(session);
         if (master == null) {
             return null;
         }
@@ -609,13 +592,12 @@ public class HDAccount extends Address {
                         .PathType.INTERNAL_ROOT_PATH);
     }
 
-    public void addElementsForBloomFilter(BloomFilter filter) {
-        List<byte[]> pubs = AbstractDb.hdAccountAddressProvider.getPubs(this.hdSeedId, AbstractHD
-                .PathType.EXTERNAL_ROOT_PATH);
-        for (byte[] pub : pubs) {
-            filter.insert(pub);
-            filter.insert(Utils.sha256hash160(pub));
-        }
+    /**
+     * Returns the external address index to continue from with
+     * {@link #addExternalPubsForBloomFilter(BloomFilterBuilder, int)}.
+     */
+    public int addElementsForBloomFilter(BloomFilterBuilder filter) {
+        int externalIndex = addExternalPubsForBloomFilter(filter, 0);
         List<Out> outs = AbstractDb.hdAccountAddressProvider.getUnspendOutByHDAccountWithPath
                 (getHdSeedId(), AbstractHD.PathType.INTERNAL_ROOT_PATH);
         for (Out out : outs) {
@@ -626,6 +608,17 @@ public class HDAccount extends Address {
         for (Out out : outs) {
             filter.insert(out.getOutpointData());
         }
+        return externalIndex;
+    }
+
+    public int addExternalPubsForBloomFilter(BloomFilterBuilder filter, int fromIndex) {
+        List<byte[]> pubs = AbstractDb.hdAccountAddressProvider.getPubs(this.hdSeedId, AbstractHD
+                .PathType.EXTERNAL_ROOT_PATH, fromIndex);
+        for (byte[] pub : pubs) {
+            filter.insert(pub);
+            filter.insert(Utils.sha256hash160(pub));
+        }
+        return fromIndex + pubs.size();
     }
 
     public long getBalance() {
@@ -682,8 +675,18 @@ public class HDAccount extends Address {
 
     protected DeterministicKey masterKey(CharSequence password) throws MnemonicException
             .MnemonicLengthException {
+        SigningSession session = new SigningSession(password);
+        try {
+            return masterKey(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    protected DeterministicKey masterKey(SigningSession session) throws MnemonicException
+            .MnemonicLengthException {
         long begin = System.currentTimeMillis();
-        decryptHDSeed(password);
+        decryptHDSeed(session);
         DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(hdSeed);
         wipeHDSeed();
         log.info("hdm keychain decrypt time: {}", System.currentTimeMillis() - begin);
@@ -692,12 +695,22 @@ public class HDAccount extends Address {
 
     protected void decryptHDSeed(CharSequence password) throws MnemonicException
             .MnemonicLengthException {
-        if (hdSeedId < 0 || password == null) {
+        SigningSession session = new SigningSession(password);
+        try {
+            decryptHDSeed(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    protected void decryptHDSeed(SigningSession session) throws MnemonicException
+            .MnemonicLengthException {
+        if (hdSeedId < 0 || session.getPassword() == null) {
             return;
         }
         String encryptedHDSeed = getEncryptedHDSeed();
         if (!Utils.isEmpty(encryptedHDSeed)) {
-            hdSeed = new EncryptedData(encryptedHDSeed).decrypt(password);
+            hdSeed = new EncryptedData(encryptedHDSeed).decrypt(session);
         }
     }
 
@@ -0,0 +1,272 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * <p>All generated hd account addresses kept in memory, so the owner of an address (hd account
+ * id, path type and index) is known without querying hd_account_addresses for every tx.</p>
+ * <p/>
+ * <p>Addresses are kept as their ascii chars in an open addressing table of primitive arrays,
+ * around 45 bytes per address at 100k+ addresses. A lookup only hashes and compares the chars
+ * of the address string, it does not base58 decode it.</p>
+ */
+public class HDAccountAddressIndex {
+    // base58 p2pkh and p2sh addresses are at most 35 chars, shorter ones are padded with 0
+    private static final int KeySize = 35;
+    private static final int InitCapacity = 1024;
+    private static final double MaxLoadFactor = 0.75;
+
+    public static final int NotFound = -1;
+
+    private byte[] keys;
+    private int[] hashes;
+    // 0 marks an empty slot, hd account ids start from 1
+    private int[] hdAccountIds;
+    private int[] indexes;
+    private byte[] pathTypes;
+    private int size;
+
+    public HDAccountAddressIndex() {
+        init(InitCapacity);
+    }
+
+    public synchronized void add(String address, int hdAccountId, AbstractHD.PathType pathType,
+                                 int index) {
+        if (!isKey(address) || hdAccountId <= 0) {
+            return;
+        }
+        if (size + 1 > hdAccountIds.length * MaxLoadFactor) {
+            resize(hdAccountIds.length * 2);
+        }
+        int hash = hash(address);
+        int slot = findSlot(address, hash);
+        if (hdAccountIds[slot] == 0) {
+            int offset = slot * KeySize;
+            for (int i = 0; i < address.length(); i++) {
+                keys[offset + i] = (byte) address.charAt(i);
+            }
+            hashes[slot] = hash;
+            size++;
+        }
+        hdAccountIds[slot] = hdAccountId;
+        indexes[slot] = index;
+        pathTypes[slot] = (byte) pathType.getValue();
+    }
+
+    public void add(List<HDAccount.HDAccountAddress> addresses) {
+        for (HDAccount.HDAccountAddress address : addresses) {
+            add(address.getAddress(), address.getHdAccountId(), address.getPathType(), address
+                    .getIndex());
+        }
+    }
+
+    /**
+     * Returns {@link #NotFound} if the address is not an hd account address.
+     */
+    public synchronized int getHDAccountId(String address) {
+        int slot = getSlot(address);
+        return slot < 0 ? NotFound : hdAccountIds[slot];
+    }
+
+    public synchronized AbstractHD.PathType getPathType(String address) {
+        int slot = getSlot(address);
+        return slot < 0 ? null : AbstractHD.getTernalRootType(pathTypes[slot]);
+    }
+
+    /**
+     * Returns {@link #NotFound} if the address is not an hd account address.
+     */
+    public synchronized int getIndex(String address) {
+        int slot = getSlot(address);
+        return slot < 0 ? NotFound : indexes[slot];
+    }
+
+    public boolean contains(String address) {
+        return getHDAccountId(address) != NotFound;
+    }
+
+    public synchronized HashMap<String, Integer> getHDAccountIds(Collection<String> addresses) {
+        HashMap<String, Integer> result = new HashMap<String, Integer>();
+        for (String address : addresses) {
+            int slot = getSlot(address);
+            if (slot >= 0) {
+                result.put(address, hdAccountIds[slot]);
+            }
+        }
+        return result;
+    }
+
+    public synchronized List<Integer> getRelatedHDAccountIdList(Collection<String> addresses) {
+        HashSet<Integer> result = new HashSet<Integer>();
+        for (String address : addresses) {
+            int slot = getSlot(address);
+            if (slot >= 0) {
+                result.add(hdAccountIds[slot]);
+            }
+        }
+        return new ArrayList<Integer>(result);
+    }
+
+    /**
+     * The addresses of the hd account among the given ones.
+     */
+    public synchronized HashSet<String> getBelongAccountAddresses(int hdAccountId,
+                                                                  Collection<String> addresses) {
+        HashSet<String> result = new HashSet<String>();
+        for (String address : addresses) {
+            int slot = getSlot(address);
+            if (slot >= 0 && hdAccountIds[slot] == hdAccountId) {
+                result.add(address);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The hd account addresses among the given ones, of any account.
+     */
+    public synchronized HashSet<String> getBelongAccountAddresses(Collection<String> addresses) {
+        HashSet<String> result = new HashSet<String>();
+        for (String address : addresses) {
+            if (getSlot(address) >= 0) {
+                result.add(address);
+            }
+        }
+        return result;
+    }
+
+    public synchronized boolean containsAny(Collection<String> addresses) {
+        for (String address : addresses) {
+            if (getSlot(address) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the hd account id of the outs that pay to hd account addresses.
+     */
+    public synchronized Tx updateOutHDAccountId(Tx tx) {
+        for (Out out : tx.getOuts()) {
+            int slot = getSlot(out.getOutAddress());
+            if (slot >= 0) {
+                out.setHDAccountId(hdAccountIds[slot]);
+            }
+        }
+        return tx;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        init(InitCapacity);
+    }
+
+    private int getSlot(String address) {
+        if (!isKey(address)) {
+            return -1;
+        }
+        int slot = findSlot(address, hash(address));
+        return hdAccountIds[slot] == 0 ? -1 : slot;
+    }
+
+    /**
+     * Linear probing from the hash, returns the slot holding the address or the empty slot it
+     * would go in.
+     */
+    private int findSlot(String address, int hash) {
+        int mask = hdAccountIds.length - 1;
+        int slot = hash & mask;
+        while (hdAccountIds[slot] != 0 && (hashes[slot] != hash || !keyEquals(slot, address))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean keyEquals(int slot, String address) {
+        int offset = slot * KeySize;
+        int length = address.length();
+        for (int i = 0; i < length; i++) {
+            if (keys[offset + i] != (byte) address.charAt(i)) {
+                return false;
+            }
+        }
+        return length == KeySize || keys[offset + length] == 0;
+    }
+
+    private void resize(int capacity) {
+        byte[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldHDAccountIds = hdAccountIds;
+        int[] oldIndexes = indexes;
+        byte[] oldPathTypes = pathTypes;
+        init(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldHDAccountIds.length; i++) {
+            if (oldHDAccountIds[i] == 0) {
+                continue;
+            }
+            // the keys are unique, so the first empty slot from the hash is the one
+            int slot = oldHashes[i] & mask;
+            while (hdAccountIds[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(oldKeys, i * KeySize, keys, slot * KeySize, KeySize);
+            hashes[slot] = oldHashes[i];
+            hdAccountIds[slot] = oldHDAccountIds[i];
+            indexes[slot] = oldIndexes[i];
+            pathTypes[slot] = oldPathTypes[i];
+            size++;
+        }
+    }
+
+    private void init(int capacity) {
+        keys = new byte[capacity * KeySize];
+        hashes = new int[capacity];
+        hdAccountIds = new int[capacity];
+        indexes = new int[capacity];
+        pathTypes = new byte[capacity];
+        size = 0;
+    }
+
+    // String caches its hash code, the spread keeps the high bits in the masked slot
+    private static int hash(String address) {
+        int hash = address.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isKey(String address) {
+        if (address == null || address.length() == 0 || address.length() > KeySize) {
+            return false;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            if (address.charAt(i) > 0x7F || address.charAt(i) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.utils.Sha256Hash;
+
+import java.util.Arrays;
+
+/**
+ * A bounded set of recently seen inventory hashes, the oldest hash is evicted when the set is
+ * full. Hashes are keyed by their last 8 bytes (like {@link Sha256Hash#hashCode()}), which are
+ * random enough for de-duplicating inv messages.
+ * <p/>
+ * The keys are kept in a ring of primitive longs in the order they were added, and looked up in
+ * an open addressing table with linear probing, so the tracker allocates nothing after it is
+ * created and needs less than 50 bytes per hash.
+ */
+public class InventoryTracker {
+    private static final int Empty = -1;
+
+    // keys in the order they were added, ringHead is the next one to write and the oldest
+    // when the ring is full
+    private final long[] ring;
+    private int ringHead;
+    private int ringCount;
+
+    private final long[] keys;
+    // the ring position of the key in each slot, or Empty
+    private final int[] positions;
+    private final int mask;
+    private int size;
+
+    public InventoryTracker(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        ring = new long[capacity];
+        // at most half full, probes stay short
+        int tableSize = 2;
+        while (tableSize < capacity * 2) {
+            tableSize <<= 1;
+        }
+        keys = new long[tableSize];
+        positions = new int[tableSize];
+        mask = tableSize - 1;
+        clear();
+    }
+
+    /**
+     * @return true if the hash was not seen recently
+     */
+    public synchronized boolean add(Sha256Hash hash) {
+        long key = key(hash);
+        int slot = findSlot(key);
+        if (positions[slot] != Empty) {
+            return false;
+        }
+        if (ringCount == ring.length) {
+            // a removed hash may have been added again since, then its slot has a newer position
+            int oldestSlot = findSlot(ring[ringHead]);
+            if (positions[oldestSlot] == ringHead) {
+                removeSlot(oldestSlot);
+                slot = findSlot(key);
+            }
+            ringCount--;
+        }
+        ring[ringHead] = key;
+        keys[slot] = key;
+        positions[slot] = ringHead;
+        size++;
+        ringHead = (ringHead + 1) % ring.length;
+        ringCount++;
+        return true;
+    }
+
+    public synchronized boolean contains(Sha256Hash hash) {
+        return positions[findSlot(key(hash))] != Empty;
+    }
+
+    /**
+     * The hash stays in the ring until it is the oldest, it just does not evict anything then.
+     */
+    public synchronized void remove(Sha256Hash hash) {
+        int slot = findSlot(key(hash));
+        if (positions[slot] != Empty) {
+            removeSlot(slot);
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(positions, Empty);
+        ringHead = 0;
+        ringCount = 0;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // the slot of the key, or the empty slot it would go in
+    private int findSlot(long key) {
+        int slot = hash(key) & mask;
+        while (positions[slot] != Empty && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // shifts the following keys of the probe run back, so no lookup stops at the emptied slot
+    private void removeSlot(int slot) {
+        positions[slot] = Empty;
+        size--;
+        int next = (slot + 1) & mask;
+        while (positions[next] != Empty) {
+            int home = hash(keys[next]) & mask;
+            // the key can move back if the emptied slot is between its home slot and it
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                positions[slot] = positions[next];
+                positions[next] = Empty;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private static int hash(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private static long key(Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long key = 0;
+        for (int i = bytes.length - 8;
+             i < bytes.length;
+             i++) {
+            key = (key << 8) | (bytes[i] & 0xFF);
+        }
+        return key;
+    }
+}
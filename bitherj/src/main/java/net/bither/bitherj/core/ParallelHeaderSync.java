@@ -0,0 +1,208 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.BitherjSettings;
+import net.bither.bitherj.api.BlockChainDownloadSpvApi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Headers first sync over several peers. The heights between our last block and a checkpoint
+ * near the downloading peer's best height are cut into ranges at checkpoints, every connected
+ * peer downloads one range at a time, and the ranges are handed to the block chain in order as
+ * soon as all the ranges before them are complete. Headers are only checked to link up here, the
+ * block chain verifies them as usual.
+ */
+class ParallelHeaderSync {
+    private static final Logger log = LoggerFactory.getLogger(ParallelHeaderSync.class);
+
+    static final int RANGE_SIZE = 2 * BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
+    private static final int MAX_RANGES = 32;
+    // for all the checkpoint fetches together, the sync timeout would drop the downloading peer
+    // waiting for them longer
+    static final long DOWNLOAD_TIMEOUT = BitherjSettings.PROTOCOL_TIMEOUT / 3;
+
+    static class Range {
+        private final byte[] startHash;
+        private final int startHeight;
+        private final Block end;
+        private final List<Block> headers = new ArrayList<Block>();
+        private Peer peer;
+        private byte[] lastHash;
+        private boolean done;
+
+        private Range(byte[] startHash, int startHeight, Block end) {
+            this.startHash = startHash;
+            this.startHeight = startHeight;
+            this.end = end;
+            this.lastHash = startHash;
+        }
+
+        Peer getPeer() {
+            return peer;
+        }
+
+        byte[] getLastHash() {
+            return lastHash;
+        }
+
+        byte[] getEndHash() {
+            return end.getBlockHash();
+        }
+
+        List<Block> getHeaders() {
+            return headers;
+        }
+    }
+
+    private final List<Range> ranges = new ArrayList<Range>();
+    private int relayedCount;
+
+    /**
+     * @param from        our last block
+     * @param checkpoints blocks above from, in height order
+     */
+    ParallelHeaderSync(Block from, List<Block> checkpoints) {
+        byte[] startHash = from.getBlockHash();
+        int startHeight = from.getBlockNo();
+        for (Block checkpoint : checkpoints) {
+            ranges.add(new Range(startHash, startHeight, checkpoint));
+            startHash = checkpoint.getBlockHash();
+            startHeight = checkpoint.getBlockNo();
+        }
+    }
+
+    /**
+     * Downloads the headers at every {@link #RANGE_SIZE} heights above fromHeight and at least a
+     * difficulty interval below toHeight, so the end of the chain is left to the downloading
+     * peer. Returns an empty list if any of them can not be downloaded or is not a valid header.
+     * No more are requested once the deadline has passed, the ones already downloaded are
+     * returned and the rest of the chain is left to the downloading peer as well.
+     *
+     * @param deadline in System.currentTimeMillis() time
+     */
+    static List<Block> downloadCheckpoints(int fromHeight, long toHeight, long deadline) {
+        List<Block> checkpoints = new ArrayList<Block>();
+        int height = fromHeight - fromHeight % RANGE_SIZE + RANGE_SIZE;
+        while (height <= toHeight - BitherjSettings.BLOCK_DIFFICULTY_INTERVAL
+                && checkpoints.size() < MAX_RANGES) {
+            if (System.currentTimeMillis() >= deadline) {
+                log.info("header checkpoints timed out at {}", height);
+                break;
+            }
+            try {
+                BlockChainDownloadSpvApi api = new BlockChainDownloadSpvApi(height);
+                api.handleHttpGet();
+                Block checkpoint = api.getResult();
+                if (checkpoint == null || checkpoint.getBlockNo() != height) {
+                    return new ArrayList<Block>();
+                }
+                checkpoint.verifyHeader();
+                checkpoints.add(checkpoint);
+            } catch (Exception e) {
+                log.warn("can not get header checkpoint at {}", height, e);
+                return new ArrayList<Block>();
+            }
+            height += RANGE_SIZE;
+        }
+        return checkpoints;
+    }
+
+    synchronized boolean isDownloading(Peer peer) {
+        return getRange(peer) != null;
+    }
+
+    /**
+     * @return the range the peer is downloading, or null
+     */
+    synchronized Range getRange(Peer peer) {
+        for (Range range : ranges) {
+            if (range.peer == peer && !range.done) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives the next range nobody is downloading to the peer.
+     *
+     * @return the range, or null if all ranges are taken
+     */
+    synchronized Range assign(Peer peer) {
+        for (Range range : ranges) {
+            if (range.peer == null) {
+                range.peer = peer;
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds headers the peer sent for its range.
+     *
+     * @return false if they do not link up with the range, or run past its checkpoint
+     */
+    synchronized boolean received(Peer peer, List<Block> headers) {
+        Range range = getRange(peer);
+        if (range == null) {
+            return true;
+        }
+        for (Block header : headers) {
+            if (!Arrays.equals(header.getBlockPrev(), range.lastHash)) {
+                return false;
+            }
+            range.headers.add(header);
+            range.lastHash = header.getBlockHash();
+            if (Arrays.equals(range.lastHash, range.getEndHash())) {
+                range.done = true;
+                return true;
+            }
+            if (range.headers.size() >= range.end.getBlockNo() - range.startHeight) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the completed ranges whose previous ranges were all returned before, in order
+     */
+    synchronized List<Range> takeRelayable() {
+        List<Range> relayable = new ArrayList<Range>();
+        while (relayedCount < ranges.size() && ranges.get(relayedCount).done) {
+            relayable.add(ranges.get(relayedCount));
+            relayedCount++;
+        }
+        return relayable;
+    }
+
+    synchronized boolean isFinished() {
+        return relayedCount == ranges.size();
+    }
+
+    byte[] getLastCheckpointHash() {
+        return ranges.get(ranges.size() - 1).getEndHash();
+    }
+}
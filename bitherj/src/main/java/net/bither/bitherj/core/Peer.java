@@ -19,6 +19,7 @@ package net.bither.bitherj.core;
 import com.google.common.util.concurrent.Service;
 
 import net.bither.bitherj.BitherjSettings;
+import net.bither.bitherj.crypto.SignatureVerifier;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.exception.ProtocolException;
 import net.bither.bitherj.exception.ScriptException;
@@ -45,12 +46,14 @@ import net.bither.bitherj.net.PeerSocketHandler;
 import net.bither.bitherj.script.Script;
 import net.bither.bitherj.utils.InventoryItem;
 import net.bither.bitherj.utils.Sha256Hash;
+import net.bither.bitherj.utils.Threading;
 import net.bither.bitherj.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -61,22 +64,20 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Peer extends PeerSocketHandler {
     private static final int MAX_GETDATA_HASHES = 50000;
 
     private static final int MAX_UNRELATED_TX_RELAY_COUNT = 1000;
 
-    private static final int BLOOMFILTER_UPDATE_BLOCK_INTERVAL = 100;
-
-    private static final int GET_BLOCK_DATA_PIECE_SIZE = 1;
+    private static final int MAX_KNOWN_TX_HASHES = 20000;
 
-    private static final int MAX_PEER_MANAGER_WAITING_TASK_COUNT = 1;
+    private static final int BLOOMFILTER_UPDATE_BLOCK_INTERVAL = 100;
 
     private static final int RELAY_BLOCK_COUNT_WHEN_SYNC = 1;
 
-    private static final int PEER_MANAGER_MAX_TASK_CHECKING_INTERVAL = 100;
-
     private static final Logger log = LoggerFactory.getLogger(Peer.class);
     private static final int TimeOutDelay = 7000;
 
@@ -106,14 +107,27 @@ public class Peer extends PeerSocketHandler {
     private long pingStartTime;
     private int timestamp;
     private int filterBlockCount;
+    private final PeerScore peerScore = new PeerScore();
 
     private boolean sentVerAck, gotVerAck;
-
-    private final HashSet<Sha256Hash> currentTxHashes, knownTxHashes, requestedBlockHashes;
+    // the pong answering the ping after mempool tells the mempool txs were all announced, the
+    // ping has a nonce of its own so a keepalive or block pong is not taken for it
+    private boolean memPoolPingSent;
+    private long memPoolPingNonce;
+
+    private final HashSet<Sha256Hash> requestedBlockHashes;
+    private final InventoryTracker knownTxHashes;
+    // the txs this peer sent us, knownTxHashes also holds the ones only announced
+    private final InventoryTracker receivedTxHashes;
     private final LinkedHashSet<Sha256Hash> currentBlockHashes;
     private final HashMap<Sha256Hash, HashSet<Tx>> needToRequestDependencyDict;
-    private final ArrayList<Sha256Hash> invBlockHashes;
-    private Block currentFilteredBlock;
+    private final LinkedHashSet<Sha256Hash> invBlockHashes;
+    // merkleblocks waiting for their matched txs, in the order they arrived
+    private final ArrayList<FilteredBlockTxs> pendingFilteredBlocks;
+    private final ArrayList<Tx> currentFilteredBlockTxs;
+    private Block blockWaitingForPipeline;
+    // room signals from the PeerManager stages not handled yet
+    private final AtomicInteger pipelineRoomSignals = new AtomicInteger();
     private VersionMessage versionMessage;
     private boolean bloomFilterSent;
 
@@ -133,12 +147,14 @@ public class Peer extends PeerSocketHandler {
         peerPort = BitherjSettings.port;
         state = State.Disconnected;
         peerServices = 1;
-        currentTxHashes = new HashSet<Sha256Hash>();
+        pendingFilteredBlocks = new ArrayList<FilteredBlockTxs>();
+        currentFilteredBlockTxs = new ArrayList<Tx>();
         currentBlockHashes = new LinkedHashSet<Sha256Hash>();
-        knownTxHashes = new HashSet<Sha256Hash>();
+        knownTxHashes = new InventoryTracker(MAX_KNOWN_TX_HASHES);
+        receivedTxHashes = new InventoryTracker(MAX_KNOWN_TX_HASHES);
         requestedBlockHashes = new HashSet<Sha256Hash>();
         needToRequestDependencyDict = new HashMap<Sha256Hash, HashSet<Tx>>();
-        invBlockHashes = new ArrayList<Sha256Hash>();
+        invBlockHashes = new LinkedHashSet<Sha256Hash>();
         incrementalBlockHeight = 0;
         unrelatedTxRelayCount = 0;
         nonce = new Random().nextLong();
@@ -186,17 +202,11 @@ public class Peer extends PeerSocketHandler {
     }
 
     @Override
-    protected void processMessage(Message m) throws Exception {
+    protected synchronized void processMessage(Message m) throws Exception {
         if (m == null) {
             return;
         }
 
-        if (currentFilteredBlock != null && !(m instanceof Tx)) {
-            currentFilteredBlock = null;
-            currentTxHashes.clear();
-            exceptionCaught(new ProtocolException("Expect more tx for current filtering block, but got a " + m.getClass().getSimpleName() + " message"));
-        }
-
         if (m instanceof NotFoundMessage) {
             // This is sent to us when we did a getdata on some transactions that aren't in the
             // peers memory pool.
@@ -289,6 +299,17 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private static Callable<Boolean> spendCheck(final SigHashCache sigHashes, final int index,
+                                                final Script scriptSig, final Script scriptPubKey) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                scriptSig.correctlySpends(sigHashes, index, scriptPubKey, true);
+                return true;
+            }
+        };
+    }
+
     private void checkDependencyWith(Tx tx) {
         HashSet<Tx> needCheckDependencyTxs = needToRequestDependencyDict.get(new Sha256Hash(tx
                 .getTxHash()));
@@ -301,31 +322,29 @@ public class Peer extends PeerSocketHandler {
         HashSet<Tx> checkedTxs = new HashSet<Tx>();
         for (Tx eachTx : needCheckDependencyTxs) {
             boolean valid = true;
+            SigHashCache sigHashes = new SigHashCache(eachTx);
+            List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>();
             for (int i = 0;
                  i < eachTx.getIns().size();
                  i++) {
-                if (Arrays.equals(eachTx.getIns().get(i).getTxHash(), tx.getTxHash())) {
-                    valid = false;
-                    for (Out out : tx.getOuts()) {
-                        if (out.getOutSn() == eachTx.getIns().get(i).getInSn()) {
-                            byte[] outScript = out
-                                    .getOutScript();
-                            Script pubKeyScript = new Script(outScript);
-                            Script script = new Script(eachTx.getIns().get(i).getInSignature());
-                            try {
-                                script.correctlySpends(eachTx, i, pubKeyScript, true);
-                                valid &= true;
-                            } catch (ScriptException e) {
-                                valid &= false;
-                            }
-                        }
+                In in = eachTx.getIns().get(i);
+                if (Arrays.equals(in.getPrevTxHash(), tx.getTxHash())) {
+                    Out out = in.getPrevOutSn() < tx.getOuts().size() ? tx.getOuts().get(in
+                            .getPrevOutSn()) : null;
+                    if (out == null) {
+                        valid = false;
+                        break;
                     }
-
-                    if (!valid) {
+                    try {
+                        checks.add(spendCheck(sigHashes, i, new Script(in.getInSignature()),
+                                new Script(out.getOutScript())));
+                    } catch (ScriptException e) {
+                        valid = false;
                         break;
                     }
                 }
             }
+            valid = valid && SignatureVerifier.verifyAll(checks);
             if (valid) {
                 boolean stillNeedDependency = false;
                 for (HashSet<Tx> set : needToRequestDependencyDict.values()) {
@@ -381,8 +400,8 @@ public class Peer extends PeerSocketHandler {
             log.info("Peer {} received inv. But we didn't send bloomfilter. Ignore");
             return;
         }
-        ArrayList<Sha256Hash> txHashSha256Hashs = new ArrayList<Sha256Hash>();
-        ArrayList<Sha256Hash> blockHashSha256Hashs = new ArrayList<Sha256Hash>();
+        LinkedHashSet<Sha256Hash> txHashSha256Hashs = new LinkedHashSet<Sha256Hash>();
+        LinkedHashSet<Sha256Hash> blockHashSha256Hashs = new LinkedHashSet<Sha256Hash>();
         for (InventoryItem item : items) {
             InventoryItem.Type type = item.type;
             byte[] hash = item.hash;
@@ -391,18 +410,12 @@ public class Peer extends PeerSocketHandler {
             }
             switch (type) {
                 case Transaction:
-                    Sha256Hash big = new Sha256Hash(hash);
-                    if (!txHashSha256Hashs.contains(big)) {
-                        txHashSha256Hashs.add(big);
-                    }
+                    txHashSha256Hashs.add(new Sha256Hash(hash));
                     break;
                 case Block:
                 case FilteredBlock:
 //                    if(PeerManager.instance().getDownloadingPeer() == null || getDownloadData()) {
-                    Sha256Hash bigBlock = new Sha256Hash(hash);
-                    if (!blockHashSha256Hashs.contains(bigBlock)) {
-                        blockHashSha256Hashs.add(bigBlock);
-                    }
+                    blockHashSha256Hashs.add(new Sha256Hash(hash));
 //                    }
                     break;
             }
@@ -419,10 +432,15 @@ public class Peer extends PeerSocketHandler {
 
         invBlockHashes.addAll(blockHashSha256Hashs);
 
-        txHashSha256Hashs.removeAll(knownTxHashes);
-        knownTxHashes.addAll(txHashSha256Hashs);
+        ArrayList<Sha256Hash> newTxHashes = new ArrayList<Sha256Hash>();
+        for (Sha256Hash txHash : txHashSha256Hashs) {
+            // skip the txs another peer already relayed to us and did not match our wallet
+            if (!PeerManager.instance().isRecentUnrelatedTx(txHash) && knownTxHashes.add(txHash)) {
+                newTxHashes.add(txHash);
+            }
+        }
 
-        sendGetBlocksDataNextPiece(txHashSha256Hashs);
+        sendGetBlocksDataNextPiece(newTxHashes);
 
         if ((PeerManager.instance().getDownloadingPeer() == null || getDownloadData()) &&
                 blockHashSha256Hashs.size() == 1) {
@@ -439,9 +457,15 @@ public class Peer extends PeerSocketHandler {
     }
 
     private void sendGetBlocksDataNextPiece(List<Sha256Hash> withTxHashes) {
-        List<Sha256Hash> blockHashesPiece = new ArrayList<Sha256Hash>(invBlockHashes.subList(0,
-                Math.min(invBlockHashes.size(), GET_BLOCK_DATA_PIECE_SIZE)));
-        invBlockHashes.removeAll(blockHashesPiece);
+        List<Sha256Hash> blockHashesPiece = new ArrayList<Sha256Hash>();
+        Iterator<Sha256Hash> invIterator = invBlockHashes.iterator();
+        // keep up to a window of blocks in flight, instead of asking for more once all arrived
+        int pieceSize = Math.max(1, BitherjSettings.FilteredBlockWindow - currentBlockHashes
+                .size());
+        while (invIterator.hasNext() && blockHashesPiece.size() < pieceSize) {
+            blockHashesPiece.add(invIterator.next());
+            invIterator.remove();
+        }
 
         if (PeerManager.instance().getDownloadingPeer() == null || getDownloadData()) {
             sendGetDataMessageWithTxHashesAndBlockHashes(withTxHashes, blockHashesPiece);
@@ -473,6 +497,48 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Called on the PeerManager stage threads, which must not wait for this peer while it
+     * processes a message, so the waiting block request is resumed on another thread.
+     */
+    void pipelineHasRoom() {
+        if (pipelineRoomSignals.getAndIncrement() == 0) {
+            Threading.THREAD_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resumeAfterPipeline();
+                }
+            });
+        }
+    }
+
+    private synchronized void resumeAfterPipeline() {
+        // signals from here on schedule another resume
+        pipelineRoomSignals.set(0);
+        Block block = blockWaitingForPipeline;
+        blockWaitingForPipeline = null;
+        if (block != null && state == State.Connected) {
+            requestBlocksAfter(block);
+        }
+    }
+
+    private void requestBlocksAfter(Block block) {
+        if (invBlockHashes.size() > 0) {
+            sendGetBlocksDataNextPiece();
+        } else if (currentBlockHashes.size() == 0) {
+            sendGetBlocksMessage(Arrays.asList(new byte[][]{block.getBlockHash(), BlockChain
+                    .getInstance().getBlockLocatorArray().get(0)}), null);
+        }
+    }
+
+    private void relayFilteredBlockTxs() {
+        if (currentFilteredBlockTxs.size() > 0) {
+            PeerManager.instance().relayedTransactions(this, new ArrayList<Tx>
+                    (currentFilteredBlockTxs), true);
+            currentFilteredBlockTxs.clear();
+        }
+    }
+
     private void processBlock(BlockMessage m) {
         // we don't need to process block message after we send our awesome bloom filters.
         log.info("peer[{}:{}] receive block {}", this.peerAddress.getHostAddress(),
@@ -482,6 +548,7 @@ public class Peer extends PeerSocketHandler {
     private void startFilteredBlock(FilteredBlockMessage m) {
         Block block = m.getBlock();
         block.verifyHeader();
+        peerScore.delivered(1);
 
         log.info("peer[{}:{}] receive filtered block {} with {} tx",
                 this.peerAddress.getHostAddress(), this.peerPort,
@@ -499,94 +566,129 @@ public class Peer extends PeerSocketHandler {
                     this.peerAddress.getHostAddress(), this.peerPort,
                     Utils.hashToString(m.getBlock().getBlockHash()), Utils.hashToString(txHash));
         }
-//        txHashes.removeAll(knownTxHashes);
 
-        // wait util we get all the tx messages before processing the block
-        if (txHashes.size() > 0) {
-            currentFilteredBlock = block;
-            currentTxHashes.clear();
-            currentTxHashes.addAll(txHashes);
-        } else {
-            if (this.synchronising && this.syncBlockHashes.contains(new Sha256Hash(block.getBlockHash()))) {
-                this.syncBlockHashes.remove(new Sha256Hash(block.getBlockHash()));
-                this.syncBlocks.add(block);
-
-                if (this.syncBlockHashes.size() == 0 && this.syncBlocks.size() > 0) {
-                    PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                    this.syncBlocks.clear();
-                } else if (this.syncBlocks.size() >= RELAY_BLOCK_COUNT_WHEN_SYNC) {
-                    PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                    this.syncBlocks.clear();
+        // wait util we get all the tx messages before processing the block, the peer leaves out
+        // the ones it already sent us
+        FilteredBlockTxs pending = new FilteredBlockTxs(block, txHashes);
+        Iterator<Sha256Hash> iterator = pending.missingTxHashes.iterator();
+        while (iterator.hasNext()) {
+            if (receivedTxHashes.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+        pendingFilteredBlocks.add(pending);
+        relayCompletedFilteredBlocks();
+        if (currentBlockHashes.size() <= BitherjSettings.FilteredBlockWindow / 2) {
+            if (PeerManager.instance().isPipelineBusy()) {
+                // don't block the network thread, PeerManager calls pipelineHasRoom() when it
+                // catches up
+                if (blockWaitingForPipeline == null) {
+                    if (BitherjSettings.LOG_DEBUG) {
+                        log.info("Peer {} waiting for PeerManager task count {}", peerAddress
+                                .getHostAddress(), PeerManager.instance().waitingTaskCount());
+                    }
+                    blockWaitingForPipeline = block;
+                    PeerManager.instance().waitForPipeline(this);
+                } else {
+                    blockWaitingForPipeline = block;
                 }
             } else {
-                PeerManager.instance().relayedBlock(this, block);
+                requestBlocksAfter(block);
             }
         }
-        if (currentBlockHashes.size() == 0) {
-            boolean waitingLoged = false;
-            while (PeerManager.instance().waitingTaskCount() >
-                    MAX_PEER_MANAGER_WAITING_TASK_COUNT) {
-                try {
-                    if (!waitingLoged) {
-                        if (BitherjSettings.LOG_DEBUG) {
-                            log.info("Peer {} waiting for PeerManager task count {}", peerAddress
-                                    .getHostAddress(), PeerManager.instance().waitingTaskCount());
-                        }
-                        waitingLoged = true;
-                    }
-                    Thread.sleep(PEER_MANAGER_MAX_TASK_CHECKING_INTERVAL);
-                } catch (InterruptedException e) {
+    }
+
+    /**
+     * Relays the blocks at the head of the window which got all their txs, so blocks are relayed
+     * in the order they were requested.
+     */
+    private void relayCompletedFilteredBlocks() {
+        boolean txsRelayed = false;
+        while (pendingFilteredBlocks.size() > 0 && pendingFilteredBlocks.get(0).isComplete()) {
+            if (!txsRelayed) {
+                relayFilteredBlockTxs();
+                txsRelayed = true;
+            }
+            relayFilteredBlock(pendingFilteredBlocks.remove(0).block);
+        }
+    }
+
+    /**
+     * Called once the peer answered the getdata of all the pending blocks, they won't get any
+     * more txs. The txs we already have are not sent again, so the blocks are complete if their
+     * missing txs were received or stored before.
+     *
+     * @return false if a block misses a tx we never got, that block and the ones after it are
+     * dropped
+     */
+    private boolean completeFilteredBlocks() {
+        for (FilteredBlockTxs pending : pendingFilteredBlocks) {
+            Iterator<Sha256Hash> iterator = pending.missingTxHashes.iterator();
+            while (iterator.hasNext()) {
+                Sha256Hash txHash = iterator.next();
+                if (receivedTxHashes.contains(txHash) || AbstractDb.txProvider.isExist(txHash
+                        .getBytes())) {
+                    iterator.remove();
                 }
             }
+        }
+        relayCompletedFilteredBlocks();
+        boolean complete = pendingFilteredBlocks.size() == 0;
+        relayFilteredBlockTxs();
+        pendingFilteredBlocks.clear();
+        return complete;
+    }
 
-            if (invBlockHashes.size() > 0) {
-                sendGetBlocksDataNextPiece();
-            } else {
-                sendGetBlocksMessage(Arrays.asList(new byte[][]{block.getBlockHash(), BlockChain
-                        .getInstance().getBlockLocatorArray().get(0)}), null);
+    private void relayFilteredBlock(Block block) {
+        if (this.synchronising && this.syncBlockHashes.contains(new Sha256Hash(block.getBlockHash()))) {
+            this.syncBlockHashes.remove(new Sha256Hash(block.getBlockHash()));
+            this.syncBlocks.add(block);
+
+            if (this.syncBlockHashes.size() == 0 && this.syncBlocks.size() > 0) {
+                PeerManager.instance().relayedBlocks(this, this.syncBlocks);
+                this.syncBlocks.clear();
+            } else if (this.syncBlocks.size() >= RELAY_BLOCK_COUNT_WHEN_SYNC) {
+                PeerManager.instance().relayedBlocks(this, this.syncBlocks);
+                this.syncBlocks.clear();
+            }
+        } else {
+            PeerManager.instance().relayedBlock(this, block);
+        }
+    }
+
+    private FilteredBlockTxs pendingFilteredBlockOf(Sha256Hash txHash) {
+        for (FilteredBlockTxs pending : pendingFilteredBlocks) {
+            if (pending.missingTxHashes.contains(txHash)) {
+                return pending;
             }
         }
+        return null;
     }
 
     private void processTransaction(Tx tx) throws VerificationException {
-        if (currentFilteredBlock != null) { // we're collecting tx messages for a merkleblock
-            PeerManager.instance().relayedTransaction(this, tx, true);
-            // we can't we byte array hash or BigInteger as the key.
-            // byte array can't be compared
-            // BigInteger can't be cast back to byte array
-            // so we use Sha256Hash class here as key
-            boolean removed = currentTxHashes.remove(new Sha256Hash(tx.getTxHash()));
-            log.info("peer[{}:{}] receive tx {} filtering block: {}, remaining tx {}, remove {}",
+        // we can't we byte array hash or BigInteger as the key.
+        // byte array can't be compared
+        // BigInteger can't be cast back to byte array
+        // so we use Sha256Hash class here as key
+        Sha256Hash txHash = new Sha256Hash(tx.getTxHash());
+        receivedTxHashes.add(txHash);
+        FilteredBlockTxs pending = pendingFilteredBlockOf(txHash);
+        if (pending != null) { // the tx belongs to a merkleblock in the window
+            // registered together when the block is complete
+            currentFilteredBlockTxs.add(tx);
+            pending.missingTxHashes.remove(txHash);
+            log.info("peer[{}:{}] receive tx {} filtering block: {}, remaining tx {}",
                     this.peerAddress.getHostAddress(), this.peerPort,
-                    Utils.hashToString(tx.getTxHash()), Utils.hashToString(currentFilteredBlock
-                            .getBlockHash()), currentTxHashes.size(),
-                    removed ? "success" : "failed");
-            if (currentTxHashes.size() == 0) { // we received the entire block including all
-                // matched tx
-                Block block = currentFilteredBlock;
-                currentFilteredBlock = null;
-                currentTxHashes.clear();
-                if (this.synchronising && this.syncBlockHashes.contains(new Sha256Hash(block.getBlockHash()))) {
-                    this.syncBlockHashes.remove(new Sha256Hash(block.getBlockHash()));
-                    this.syncBlocks.add(block);
-
-                    if (this.syncBlockHashes.size() == 0 && this.syncBlocks.size() > 0) {
-                        PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                        this.syncBlocks.clear();
-                    } else if (this.syncBlocks.size() >= RELAY_BLOCK_COUNT_WHEN_SYNC) {
-                        PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                        this.syncBlocks.clear();
-                    }
-                } else {
-                    PeerManager.instance().relayedBlock(this, block);
-                }
-            }
+                    Utils.hashToString(tx.getTxHash()), Utils.hashToString(pending.block
+                            .getBlockHash()), pending.missingTxHashes.size());
+            relayCompletedFilteredBlocks();
         } else {
             log.info("peer[{}:{}] receive tx {}", this.peerAddress.getHostAddress(),
                     this.peerPort, Utils.hashToString(tx.getTxHash()));
             if (AddressManager.getInstance().isTxRelated(tx, tx.getInAddresses())) {
                 unrelatedTxRelayCount = 0;
             } else {
+                PeerManager.instance().addRecentUnrelatedTx(new Sha256Hash(tx.getTxHash()));
                 unrelatedTxRelayCount++;
                 if (unrelatedTxRelayCount > MAX_UNRELATED_TX_RELAY_COUNT) {
                     exceptionCaught(new Exception("Peer " + getPeerAddress().getHostAddress() + " is junking us. Drop it."));
@@ -723,6 +825,7 @@ public class Peer extends PeerSocketHandler {
         if (m.getBlockHeaders() == null || m.getBlockHeaders().size() == 0) {
             return;
         }
+        peerScore.delivered(m.getBlockHeaders().size());
 
         try {
             int lastBlockTime = 0;
@@ -757,6 +860,10 @@ public class Peer extends PeerSocketHandler {
 //                    }
 //                }
 //            }
+            if (PeerManager.instance().relayedHeaderRange(this, m.getBlockHeaders())) {
+                // part of a parallel header sync, the next range request is sent from there
+                return;
+            }
             PeerManager.instance().relayedBlockHeadersForMainChain(this, m.getBlockHeaders());
 //            if (lastBlockTime + 7 * 24 * 60 * 60 >= PeerManager.instance().earliestKeyTime - 2 *
 //                    60 * 60) {
@@ -800,8 +907,20 @@ public class Peer extends PeerSocketHandler {
     }
 
     private void processPong(PongMessage m) {
+        if (m.getNonce() == nonce && pendingFilteredBlocks.size() > 0) {
+            // the peer answers in order, the merkleblocks and txs it sent before the pong are all
+            // we get for the pending blocks
+            if (!completeFilteredBlocks()) {
+                exceptionCaught(new ProtocolException("Expect more tx for filtering blocks, but " +
+                        "got a pong"));
+                return;
+            }
+        }
         // Iterates over a snapshot of the list, so we can run unlocked here.
-        if (m.getNonce() == nonce) {
+        if (memPoolPingSent && m.getNonce() == memPoolPingNonce) {
+            memPoolPingSent = false;
+            PeerManager.instance().memPoolLoaded(this);
+        } else if (m.getNonce() == nonce) {
             if (pingStartTime > 0) {
                 if (pingTime > 0) {
                     pingTime = (long) (pingTime * 0.5f + (new Date().getTime() - pingStartTime) * 0.5f);
@@ -809,6 +928,7 @@ public class Peer extends PeerSocketHandler {
                     pingTime = new Date().getTime() - pingStartTime;
                 }
                 pingStartTime = 0;
+                peerScore.setRtt(pingTime);
             }
             log.info("Peer " + getPeerAddress().getHostAddress() + " receive pong, ping time: " + pingTime);
         }
@@ -866,6 +986,9 @@ public class Peer extends PeerSocketHandler {
             return;
         }
         sendMessage(new MemoryPoolMessage());
+        memPoolPingNonce = new Random().nextLong();
+        memPoolPingSent = true;
+        sendMessage(new PingMessage(memPoolPingNonce));
     }
 
     public void sendGetAddrMessage() {
@@ -979,11 +1102,20 @@ public class Peer extends PeerSocketHandler {
                 getPeerAddress().getHostAddress(), txHashes == null ? 0 : txHashes.size(),
                 blochHashCount);
         sendMessage(m);
+        if (blochHashCount > 0) {
+            // the pong tells when the merkleblocks and their txs were all sent, see processPong
+            sendMessage(new PingMessage(nonce));
+        }
     }
 
 
     public void connectFail() {
-        AbstractDb.peerProvider.removePeer(getPeerAddress());
+        if (peerScore.hasServed()) {
+            // keep the score of a peer that served us, the best peers are tried first next time
+            AbstractDb.peerProvider.updatePeerScore(this);
+        } else {
+            AbstractDb.peerProvider.removePeer(getPeerAddress());
+        }
     }
 
     public void connectError() {
@@ -998,6 +1130,16 @@ public class Peer extends PeerSocketHandler {
         sendFilterLoadMessage(PeerManager.instance().bloomFilterForPeer(this));
     }
 
+    @Override
+    public int receiveBytes(ByteBuffer buff) {
+        int consumed = super.receiveBytes(buff);
+        if (consumed > 0) {
+            peerScore.received(consumed);
+            PeerManager.instance().getSyncMetrics().bytesReceived(consumed);
+        }
+        return consumed;
+    }
+
     @Override
     public void connectionClosed() {
         state = State.Disconnected;
@@ -1006,6 +1148,7 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     protected void timeoutOccurred() {
+        peerScore.timedOut();
         PeerManager.instance().peerDisconnected(this, DisconnectReason.Timeout);
         super.timeoutOccurred();
     }
@@ -1013,6 +1156,7 @@ public class Peer extends PeerSocketHandler {
     @Override
     protected void exceptionCaught(Exception e) {
         super.exceptionCaught(e);
+        peerScore.rejected();
         if (e instanceof ProtocolException) {
             PeerManager.instance().peerDisconnected(this, DisconnectReason.NoneProtocol);
         } else {
@@ -1076,6 +1220,10 @@ public class Peer extends PeerSocketHandler {
         this.peerServices = peerServices;
     }
 
+    public PeerScore getPeerScore() {
+        return peerScore;
+    }
+
     public int getPeerConnectedCnt() {
         return peerConnectedCnt;
     }
@@ -1121,4 +1269,18 @@ public class Peer extends PeerSocketHandler {
             this.synchronising = synchronising;
         }
     }
+
+    private static class FilteredBlockTxs {
+        private final Block block;
+        private final HashSet<Sha256Hash> missingTxHashes;
+
+        private FilteredBlockTxs(Block block, List<Sha256Hash> txHashes) {
+            this.block = block;
+            this.missingTxHashes = new HashSet<Sha256Hash>(txHashes);
+        }
+
+        private boolean isComplete() {
+            return missingTxHashes.size() == 0;
+        }
+    }
 }
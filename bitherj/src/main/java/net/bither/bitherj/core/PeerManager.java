@@ -20,15 +20,18 @@ import net.bither.bitherj.AbstractApp;
 import net.bither.bitherj.BitherjSettings;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.exception.ProtocolException;
+import net.bither.bitherj.exception.VerificationException;
 import net.bither.bitherj.net.NioClientManager;
 import net.bither.bitherj.utils.DnsDiscovery;
 import net.bither.bitherj.utils.Sha256Hash;
+import net.bither.bitherj.utils.Threading;
 import net.bither.bitherj.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -37,14 +40,17 @@ import java.util.List;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PeerManager {
@@ -56,22 +62,43 @@ public class PeerManager {
 
     private static final int MaxPeerCount = 100;
     private static final int MaxConnectFailure = 20;
+    private static final int MAX_RECENT_UNRELATED_TXS = 50000;
+    private static final int MIN_PARALLEL_HEADER_COUNT = 2 * ParallelHeaderSync.RANGE_SIZE;
 
     private static Object newInstanceLock = new Object();
 
     private static PeerManager instance;
 
+    private static final int PipelineBusyTaskCount = 1;
+    private static final int TxPipelineBusyTaskCount = 100;
+
+    // peer state and block chain, in order
     private PeerManagerExecutorService executor;
+    // tx relevance and tx persistence, in order
+    private PeerManagerExecutorService txExecutor;
+    // Block tasks pass the tx stage first, so the txs relayed before a block are registered
+    // before it confirms them. The stages run at the same time otherwise, only the tx writes of
+    // registering txs and the confirms and roll backs of the chain stage take turns, see
+    // AddressManager.getTxsLock().
+    // block header hashing and proof of work, in parallel
+    private PeerManagerExecutorService headerExecutor;
+    private final ConcurrentLinkedQueue<Peer> peersWaitingForPipeline;
 
     private AtomicBoolean running;
     private AtomicBoolean connected;
 
     private long tweak, syncStartHeight, filterUpdateHeight;
     private long lastRelayTime;
+    private volatile ParallelHeaderSync headerSync;
+    // downloads the checkpoints for headerSync off the chain thread
+    private final ExecutorService checkpointExecutor = Threading.newDaemonThreadPool(1,
+            "PeerManager checkpoints");
 //    public long earliestKeyTime;
 
-    private BloomFilter bloomFilter;
-    private int bloomFilterElementCount;
+    private final BloomFilterBuilder bloomFilterBuilder;
+    // the next external indexes to add to the filter, guarded by bloomFilterBuilder
+    private final HashMap<Integer, Integer> bloomFilterHDExternalIndex;
+    private int bloomFilterDesktopHDMExternalIndex;
     private double filterFpRate;
 
     private int connectFailure;
@@ -79,6 +106,8 @@ public class PeerManager {
     private final HashSet<Peer> abandonPeers;
     private final HashMap<Sha256Hash, HashSet<Peer>> txRelays;
     private final HashMap<Sha256Hash, Tx> publishedTx;
+    // txs relayed by any peer that did not match the wallet, not requested again from other peers
+    private final InventoryTracker recentUnrelatedTxs;
 
     private boolean synchronizing;
     private Peer downloadingPeer;
@@ -88,6 +117,8 @@ public class PeerManager {
 
     private boolean onlyBroadcasting = false;
 
+    private final SyncMetrics syncMetrics = new SyncMetrics();
+
     public static final PeerManager instance() {
         if (instance == null) {
             synchronized (newInstanceLock) {
@@ -106,9 +137,25 @@ public class PeerManager {
         abandonPeers = new HashSet<Peer>();
         txRelays = new HashMap<Sha256Hash, HashSet<Peer>>();
         publishedTx = new HashMap<Sha256Hash, Tx>();
+        recentUnrelatedTxs = new InventoryTracker(MAX_RECENT_UNRELATED_TXS);
         tweak = new Random().nextLong();
+        bloomFilterBuilder = new BloomFilterBuilder(tweak, BloomFilter
+                .DEFAULT_BLOOM_FILTER_FP_RATE, BloomFilter.BloomUpdate.UPDATE_ALL);
+        bloomFilterHDExternalIndex = new HashMap<Integer, Integer>();
 //        earliestKeyTime = new Date().getTime() / 1000;//TODO how to set this field
-        executor = new PeerManagerExecutorService();
+        Runnable pipelineHasRoom = new Runnable() {
+            @Override
+            public void run() {
+                notifyPipelineHasRoom();
+            }
+        };
+        peersWaitingForPipeline = new ConcurrentLinkedQueue<Peer>();
+        executor = new PeerManagerExecutorService("chain", 1, PipelineBusyTaskCount,
+                pipelineHasRoom);
+        txExecutor = new PeerManagerExecutorService("tx", 1, TxPipelineBusyTaskCount,
+                pipelineHasRoom);
+        headerExecutor = new PeerManagerExecutorService("header", Runtime.getRuntime()
+                .availableProcessors(), Integer.MAX_VALUE, null);
         initPublishedTx();
     }
 
@@ -132,7 +179,8 @@ public class PeerManager {
     public void start() {
         if (!running.getAndSet(true)) {
             log.info("peer manager start");
-            bloomFilter = null;
+            syncMetrics.enter(SyncMetrics.Phase.Connecting);
+            bloomFilterBuilder.reset();
             if (this.connectFailure >= MAX_CONNECT_FAILURE_COUNT) {
                 this.connectFailure = 0;
             }
@@ -153,11 +201,14 @@ public class PeerManager {
     public void stop() {
         if (running.getAndSet(false)) {
             log.info("peer manager stop");
+            syncMetrics.enter(SyncMetrics.Phase.Idle);
             if (connected.getAndSet(false)) {
                 AbstractApp.notificationService.removeBroadcastPeerState();
-                bloomFilter = null;
+                bloomFilterBuilder.reset();
                 sendConnectedChangeBroadcast();
                 executor.getQueue().clear();
+                txExecutor.getQueue().clear();
+                headerExecutor.getQueue().clear();
                 executor.submit(new Runnable() {
                     @Override
                     public void run() {
@@ -255,6 +306,8 @@ public class PeerManager {
     @Override
     protected void finalize() throws Throwable {
         executor.shutdownNow();
+        txExecutor.shutdownNow();
+        headerExecutor.shutdownNow();
         super.finalize();
     }
 
@@ -294,6 +347,7 @@ public class PeerManager {
             for (Address address : AddressManager.getInstance().getAllAddresses()) {
                 address.setBlockHeight(txHashes, height);
             }
+            AddressManager.getInstance().confirmTxs(txHashes);
 
             // remove confirmed tx from publish list and relay counts
             for (byte[] hash : txHashes) {
@@ -320,12 +374,13 @@ public class PeerManager {
             }
             log.info("Peer {} connected", peer.getPeerAddress().getHostAddress());
             connectFailure = 0;
-            bloomFilter = null;
+            requestBloomFilterRecalculate();
             executor.submit(new Runnable() {
                 @Override
                 public void run() {
                     peer.connectSucceed();
                     if (isOnlyBroadcasting()) {
+                        syncMetrics.enter(SyncMetrics.Phase.Idle);
                         for (Tx tx : publishedTx.values()) {
                             if (tx.getSource() > 0 && tx.getSource() <= MaxPeerCount) {
                                 peer.sendInvMessageWithTxHash(new Sha256Hash(tx.getTxHash()));
@@ -354,52 +409,16 @@ public class PeerManager {
                     }
                     Peer dp = peer;
                     for (Peer p : connectedPeers) {
-                        if ((p.pingTime < dp.pingTime && p.getVersionLastBlockHeight() >= dp
-                                .getVersionLastBlockHeight()) || p.getVersionLastBlockHeight() >
-                                dp.getVersionLastBlockHeight()) {
+                        if ((p.getPeerScore().getValue() > dp.getPeerScore().getValue() && p
+                                .getVersionLastBlockHeight() >= dp.getVersionLastBlockHeight())
+                                || p.getVersionLastBlockHeight() > dp.getVersionLastBlockHeight()) {
                             dp = p;
                         }
                     }
                     if (downloadingPeer != null) {
                         downloadingPeer.disconnect();
                     }
-                    downloadingPeer = dp;
-                    connected.set(true);
-
-                    // every time a new wallet address is added, the bloom filter has to be
-                    // rebuilt, and each address is only used for
-                    // one transaction, so here we generate some spare addresses to avoid
-                    // rebuilding the filter each time a wallet
-                    // transaction is encountered during the blockchain download (generates twice
-                    // the external gap limit for both
-                    // address chains)
-
-                    bloomFilter = null; // make sure the bloom filter is updated with any newly
-                    // generated addresses
-                    dp.sendFilterLoadMessage(bloomFilterForPeer(dp));
-
-                    if (getLastBlockHeight() < dp.getVersionLastBlockHeight()) {
-
-                        lastRelayTime = System.currentTimeMillis();
-                        synchronizing = true;
-
-                        scheduleTimeoutTimer(BitherjSettings.PROTOCOL_TIMEOUT);
-                        if (doneSyncFromSPV()) {
-                            dp.sendGetBlocksMessage(BlockChain.getInstance().getBlockLocatorArray
-                                    (), null);
-                        } else {
-                            dp.sendGetHeadersMessage(BlockChain.getInstance()
-                                    .getBlockLocatorArray(), null);
-                        }
-                        downloadingPeer.setSynchronising(true);
-                        syncStartHeight = getLastBlockHeight();
-                        sendSyncProgress();
-                    } else { // we're already synced
-                        downloadingPeer.setSynchronising(false);
-                        syncStopped();
-                        dp.sendGetAddrMessage();
-                        AbstractApp.notificationService.sendBroadcastSyncSPVFinished(true);
-                    }
+                    startSync(dp);
                 }
             });
         } else {
@@ -412,9 +431,163 @@ public class PeerManager {
         }
     }
 
+    // makes dp the downloading peer and starts the chain sync with it if it is ahead of us
+    private void startSync(Peer dp) {
+        downloadingPeer = dp;
+        connected.set(true);
+
+        // every time a new wallet address is added, the bloom filter has to be rebuilt, and each
+        // address is only used for one transaction, so here we generate some spare addresses to
+        // avoid rebuilding the filter each time a wallet transaction is encountered during the
+        // blockchain download (generates twice the external gap limit for both address chains)
+
+        requestBloomFilterRecalculate(); // make sure the bloom filter is updated
+        // with any newly generated addresses
+        dp.sendFilterLoadMessage(bloomFilterForPeer(dp));
+
+        if (getLastBlockHeight() < dp.getVersionLastBlockHeight()) {
+
+            lastRelayTime = System.currentTimeMillis();
+            synchronizing = true;
+
+            scheduleTimeoutTimer(BitherjSettings.PROTOCOL_TIMEOUT);
+            headerSync = null;
+            if (doneSyncFromSPV()) {
+                syncMetrics.enter(SyncMetrics.Phase.FilteredBlocks);
+                dp.sendGetBlocksMessage(BlockChain.getInstance().getBlockLocatorArray(), null);
+            } else {
+                syncMetrics.enter(SyncMetrics.Phase.Headers);
+                startHeaderSync(dp);
+            }
+            downloadingPeer.setSynchronising(true);
+            syncStartHeight = getLastBlockHeight();
+            sendSyncProgress();
+        } else { // we're already synced
+            downloadingPeer.setSynchronising(false);
+            syncStopped();
+            dp.sendGetAddrMessage();
+            AbstractApp.notificationService.sendBroadcastSyncSPVFinished(true);
+        }
+    }
+
+    // with other peers to help and a long way to go, the headers are downloaded in ranges from
+    // all of them, see ParallelHeaderSync
+    private void startHeaderSync(final Peer dp) {
+        final Block lastBlock = BlockChain.getInstance().getLastBlock();
+        if (connectedPeers.size() < 2 || dp.getVersionLastBlockHeight() - lastBlock.getBlockNo()
+                < MIN_PARALLEL_HEADER_COUNT) {
+            dp.sendGetHeadersMessage(BlockChain.getInstance().getBlockLocatorArray(), null);
+            return;
+        }
+        final long deadline = System.currentTimeMillis() + ParallelHeaderSync.DOWNLOAD_TIMEOUT;
+        final Future<List<Block>> download = checkpointExecutor.submit(new Callable<List<Block>>
+                () {
+            @Override
+            public List<Block> call() {
+                return ParallelHeaderSync.downloadCheckpoints(lastBlock.getBlockNo(), dp
+                        .getVersionLastBlockHeight(), deadline);
+            }
+        });
+        // the download is waited for at most DOWNLOAD_TIMEOUT, well within the sync timeout, a
+        // fetch stuck in the http call or queued behind one falls back to the downloading peer
+        Threading.THREAD_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Block> downloaded;
+                try {
+                    downloaded = download.get(ParallelHeaderSync.DOWNLOAD_TIMEOUT, TimeUnit
+                            .MILLISECONDS);
+                } catch (TimeoutException e) {
+                    log.info("header checkpoints timed out");
+                    download.cancel(true);
+                    downloaded = new ArrayList<Block>();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    downloaded = new ArrayList<Block>();
+                } catch (ExecutionException e) {
+                    log.warn("can not get header checkpoints", e);
+                    downloaded = new ArrayList<Block>();
+                }
+                final List<Block> checkpoints = downloaded;
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (downloadingPeer != dp || !isRunning()) {
+                            return;
+                        }
+                        lastRelayTime = System.currentTimeMillis();
+                        if (checkpoints.size() < 2 || !Arrays.equals(lastBlock.getBlockHash(),
+                                BlockChain.getInstance().getLastBlock().getBlockHash())) {
+                            dp.sendGetHeadersMessage(BlockChain.getInstance()
+                                    .getBlockLocatorArray(), null);
+                            return;
+                        }
+                        log.info("parallel header sync of {} ranges to block No.{}",
+                                checkpoints.size(), checkpoints.get(checkpoints.size() - 1)
+                                        .getBlockNo());
+                        headerSync = new ParallelHeaderSync(lastBlock, checkpoints);
+                        requestHeaderRange(dp);
+                        int lastCheckpointNo = checkpoints.get(checkpoints.size() - 1)
+                                .getBlockNo();
+                        for (Peer p : connectedPeers) {
+                            if (p != dp && p.state == Peer.State.Connected && p
+                                    .getVersionLastBlockHeight() >= lastCheckpointNo) {
+                                requestHeaderRange(p);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void requestHeaderRange(Peer peer) {
+        ParallelHeaderSync sync = headerSync;
+        if (sync == null) {
+            return;
+        }
+        ParallelHeaderSync.Range range = sync.getRange(peer);
+        if (range == null) {
+            range = sync.assign(peer);
+        }
+        if (range != null) {
+            peer.sendGetHeadersMessage(Arrays.asList(new byte[][]{range.getLastHash()}), range
+                    .getEndHash());
+        }
+    }
+
+    // falls back to downloading the remaining headers from the downloading peer only
+    private void stopHeaderSync() {
+        if (headerSync == null) {
+            return;
+        }
+        headerSync = null;
+        if (downloadingPeer != null) {
+            downloadingPeer.sendGetHeadersMessage(BlockChain.getInstance().getBlockLocatorArray
+                    (), null);
+        }
+    }
+
+    // the best scoring connected peer ahead of us, other than the given peer
+    private Peer bestDownloadPeer(Peer exclude) {
+        Peer best = null;
+        for (Peer p : connectedPeers) {
+            if (p == exclude || p.state != Peer.State.Connected || p.getVersionLastBlockHeight()
+                    <= getLastBlockHeight()) {
+                continue;
+            }
+            if (best == null || p.getPeerScore().getValue() > best.getPeerScore().getValue()) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
     private void syncStopped() {
         synchronizing = false;
         syncStartHeight = 0;
+        syncMetrics.enter(connectedPeers.size() > 0 ? SyncMetrics.Phase.Mempool : SyncMetrics
+                .Phase.Connecting);
 
         for (Peer p : connectedPeers) { // after syncing, load filters and get mempools from the
             // other peers
@@ -436,6 +609,7 @@ public class PeerManager {
         executor.submit(new Runnable() {
             @Override
             public void run() {
+                peer.getPeerScore().disconnected(reason);
                 if (reason == null || reason == Peer.DisconnectReason.Normal) {
                     peer.connectFail();
                 } else if (reason == Peer.DisconnectReason.Timeout) {
@@ -449,11 +623,16 @@ public class PeerManager {
                     peer.connectError();
                     connectFailure++;
                 }
+                if (headerSync != null && headerSync.isDownloading(peer)) {
+                    stopHeaderSync();
+                }
                 int previousConnectedCount = connectedPeers.size();
                 connectedPeers.remove(peer);
                 log.info("Peer disconnected {} , remaining {} peers , reason: " + reason, peer
                         .getPeerAddress().getHostAddress(), connectedPeers.size());
                 if (previousConnectedCount > 0 && connectedPeers.size() == 0) {
+                    syncMetrics.enter(isRunning() ? SyncMetrics.Phase.Connecting : SyncMetrics
+                            .Phase.Idle);
                     connected.set(false);
                     sendConnectedChangeBroadcast();
                 }
@@ -505,14 +684,62 @@ public class PeerManager {
         if (fromPeer == downloadingPeer) {
             lastRelayTime = System.currentTimeMillis();
         }
-        executor.submit(new Runnable() {
+        syncMetrics.txsRelayed(1);
+        txExecutor.submit(new Runnable() {
             @Override
             public void run() {
                 boolean isRel = AddressManager.getInstance().registerTx(tx, Tx.TxNotificationType
                         .txReceive, isConfirmed);
                 if (isRel) {
-                    boolean isAlreadyInDb = AbstractDb.txProvider.isExist(tx.getTxHash());
+                    HashSet<Sha256Hash> alreadyInDb = new HashSet<Sha256Hash>();
+                    if (AbstractDb.txProvider.isExist(tx.getTxHash())) {
+                        alreadyInDb.add(new Sha256Hash(tx.getTxHash()));
+                    }
+                    relatedTransactions(fromPeer, Collections.singletonList(tx), alreadyInDb);
+                }
+            }
+        });
+    }
 
+    /**
+     * Registers the txs of a filtered block as one batch.
+     */
+    public void relayedTransactions(final Peer fromPeer, final List<Tx> txs, final boolean
+            isConfirmed) {
+        if (!isRunning()) {
+            return;
+        }
+        if (txs == null || txs.size() == 0) {
+            return;
+        }
+        if (fromPeer == downloadingPeer) {
+            lastRelayTime = System.currentTimeMillis();
+        }
+        syncMetrics.txsRelayed(txs.size());
+        txExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                List<Tx> relatedTxs = AddressManager.getInstance().registerTxs(txs, Tx
+                        .TxNotificationType.txReceive, isConfirmed);
+                if (relatedTxs.size() > 0) {
+                    List<byte[]> txHashes = new ArrayList<byte[]>();
+                    for (Tx tx : relatedTxs) {
+                        txHashes.add(tx.getTxHash());
+                    }
+                    relatedTransactions(fromPeer, relatedTxs, AbstractDb.txProvider
+                            .getExistTxHashes(txHashes));
+                }
+            }
+        });
+    }
+
+    private void relatedTransactions(final Peer fromPeer, final List<Tx> txs,
+                                     final HashSet<Sha256Hash> alreadyInDb) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean isFilterChanged = false;
+                for (Tx tx : txs) {
                     if (publishedTx.get(new Sha256Hash(tx.getTxHash())) == null) {
                         publishedTx.put(new Sha256Hash(tx.getTxHash()), tx);
                     }
@@ -530,28 +757,36 @@ public class PeerManager {
                         tx.sawByPeer();
                     }
 
-                    if (!isAlreadyInDb) {
-                        bloomFilter = null; // reset the filter so a new one will be created with
-                        // the new
-                        // wallet addresses
-
-                        for (Peer p : connectedPeers) {
-                            p.sendFilterLoadMessage(bloomFilterForPeer(p));
-                        }
+                    if (!alreadyInDb.contains(new Sha256Hash(tx.getTxHash()))) {
+                        addTxToBloomFilter(tx); // add the new outpoints and wallet addresses to
+                        // the filter
+                        isFilterChanged = true;
                     }
+                }
 
-                    // after adding addresses to the filter, re-request upcoming blocks that were
-                    // requested using the old one
-                    if (downloadingPeer != null && BlockChain.getInstance().lastBlock != null) {
-                        downloadingPeer.refetchBlocksFrom(new Sha256Hash(BlockChain.getInstance()
-                                .lastBlock.getBlockHash()));
+                if (isFilterChanged) {
+                    for (Peer p : connectedPeers) {
+                        p.sendFilterLoadMessage(bloomFilterForPeer(p));
                     }
                 }
+
+                // after adding addresses to the filter, re-request upcoming blocks that were
+                // requested using the old one
+                if (downloadingPeer != null && BlockChain.getInstance().lastBlock != null) {
+                    downloadingPeer.refetchBlocksFrom(new Sha256Hash(BlockChain.getInstance()
+                            .lastBlock.getBlockHash()));
+                }
             }
         });
     }
 
     public void relayedBlockHeadersForMainChain(final Peer fromPeer, final List<Block> blocks) {
+        relayedBlockHeadersForMainChain(fromPeer, blocks, null);
+    }
+
+    // sync is the parallel header sync the blocks are a range of, or null
+    private void relayedBlockHeadersForMainChain(final Peer fromPeer, final List<Block> blocks,
+                                                 final ParallelHeaderSync sync) {
         if (!isRunning()) {
             return;
         }
@@ -561,9 +796,21 @@ public class PeerManager {
         if (fromPeer == downloadingPeer) {
             lastRelayTime = System.currentTimeMillis();
         }
+        final List<Future<Boolean>> headersVerified = verifyHeaders(blocks);
         executor.submit(new Runnable() {
             @Override
             public void run() {
+                if (sync != null && headerSync != sync) {
+                    // an earlier range failed, the downloading peer fetches these again
+                    return;
+                }
+                if (!isHeadersVerified(headersVerified)) {
+                    abandonPeer(fromPeer);
+                    stopHeaderSync();
+                    log.warn("Peer {} relay invalid block headers. Drop it",
+                            fromPeer.getPeerAddress().getHostAddress());
+                    return;
+                }
                 Block oldLastBlock = BlockChain.getInstance().getLastBlock();
                 // do not need earliest time
 //                ArrayList<Block> blocksToRelay = new ArrayList<Block>();
@@ -578,9 +825,13 @@ public class PeerManager {
 //                        }
 //                    }
 //                }
+                // a fork rolls back the txs of the blocks it replaces
+                ReentrantLock txsLock = AddressManager.getInstance().getTxsLock();
+                txsLock.lock();
                 try {
                     int relayedCount = BlockChain.getInstance().relayedBlockHeadersForMainChain
                             (blocks);
+                    syncMetrics.headersRelayed(relayedCount);
                     if (relayedCount == blocks.size()) {
                         log.info("Peer {} relay {} block headers OK, last block No.{}, " +
                                 "" + "total block: {}", fromPeer.getPeerAddress().getHostAddress
@@ -588,14 +839,18 @@ public class PeerManager {
                                 .getBlockNo(), BlockChain.getInstance().getBlockCount());
                     } else {
                         abandonPeer(fromPeer);
+                        stopHeaderSync();
                         log.info("Peer {} relay {}/{} block headers. drop this peer",
                                 fromPeer.getPeerAddress().getHostAddress(), relayedCount,
                                 blocks.size());
                     }
                 } catch (Exception e) {
                     abandonPeer(fromPeer);
+                    stopHeaderSync();
                     log.warn("Peer {} relay block Error. Drop it",
                             fromPeer.getPeerAddress().getHostAddress());
+                } finally {
+                    txsLock.unlock();
                 }
                 sendSyncProgress();
                 if (getLastBlockHeight() == fromPeer.getVersionLastBlockHeight()) {
@@ -616,6 +871,103 @@ public class PeerManager {
         });
     }
 
+    /**
+     * Takes the headers sent by a peer downloading a range of the parallel header sync.
+     *
+     * @return false if the peer is not downloading a range, then the headers go the usual way
+     */
+    public boolean relayedHeaderRange(final Peer fromPeer, final List<Block> headers) {
+        final ParallelHeaderSync sync = headerSync;
+        if (sync == null || !sync.isDownloading(fromPeer)) {
+            return false;
+        }
+        lastRelayTime = System.currentTimeMillis();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (headerSync != sync) {
+                    return;
+                }
+                if (!sync.received(fromPeer, headers)) {
+                    log.warn("Peer {} relay headers not in its range",
+                            fromPeer.getPeerAddress().getHostAddress());
+                    fromPeer.getPeerScore().rejected();
+                    stopHeaderSync();
+                    return;
+                }
+                for (ParallelHeaderSync.Range range : sync.takeRelayable()) {
+                    List<Block> blocks = new ArrayList<Block>(range.getHeaders());
+                    range.getHeaders().clear();
+                    relayedBlockHeadersForMainChain(range.getPeer(), blocks, sync);
+                }
+                if (sync.isFinished()) {
+                    headerSync = null;
+                    if (downloadingPeer != null) {
+                        downloadingPeer.sendGetHeadersMessage(Arrays.asList(new
+                                byte[][]{sync.getLastCheckpointHash()}), null);
+                    }
+                } else {
+                    requestHeaderRange(fromPeer);
+                }
+            }
+        });
+        return true;
+    }
+
+    // txs relayed before this task are registered first, so a block task can confirm them
+    private void submitAfterRelayedTxs(final Runnable task) {
+        txExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run();
+                    }
+                });
+            }
+        });
+    }
+
+    private List<Future<Boolean>> verifyHeaders(List<Block> blocks) {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        int pieceSize = blocks.size() / headerExecutor.getCorePoolSize() + 1;
+        for (int i = 0; i < blocks.size(); i += pieceSize) {
+            final List<Block> piece = blocks.subList(i, Math.min(blocks.size(), i + pieceSize));
+            results.add(headerExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        for (Block block : piece) {
+                            block.verifyHeader();
+                        }
+                        return true;
+                    } catch (VerificationException e) {
+                        log.warn(e.getMessage());
+                        return false;
+                    }
+                }
+            }));
+        }
+        return results;
+    }
+
+    private boolean isHeadersVerified(List<Future<Boolean>> headersVerified) {
+        try {
+            for (Future<Boolean> verified : headersVerified) {
+                if (!verified.get()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
     public void relayedBlock(final Peer fromPeer, final Block block) {
         if (!isRunning()) {
             return;
@@ -645,12 +997,15 @@ public class PeerManager {
             // todo: do not check bloom filter now. may be it's useful
         }
 
-        executor.submit(new Runnable() {
+        submitAfterRelayedTxs(new Runnable() {
             @Override
             public void run() {
                 Block oldLastBlock = BlockChain.getInstance().lastBlock;
+                ReentrantLock txsLock = AddressManager.getInstance().getTxsLock();
+                txsLock.lock();
                 try {
                     if (BlockChain.getInstance().relayedBlock(block)) {
+                        syncMetrics.blocksRelayed(1);
                         if (block.getTxHashes() != null) {
                             setBlockHeightForTxs(block.getBlockNo(), block.getTxHashes());
                         }
@@ -665,6 +1020,8 @@ public class PeerManager {
                     log.warn("Peer {} relay block {} error, drop this peer",
                             fromPeer.getPeerAddress().getHostAddress(),
                             Utils.hashToString(block.getBlockHash()));
+                } finally {
+                    txsLock.unlock();
                 }
                 sendSyncProgress();
                 if (block.getBlockNo() == fromPeer.getVersionLastBlockHeight() && block
@@ -713,7 +1070,7 @@ public class PeerManager {
         } else {
             return;
         }
-        executor.submit(new Runnable() {
+        submitAfterRelayedTxs(new Runnable() {
             @Override
             public void run() {
                 // todo:
@@ -721,7 +1078,15 @@ public class PeerManager {
                 // smooth out variance
 
                 try {
-                    int relayedCnt = BlockChain.getInstance().relayedBlocks(blockList);
+                    int relayedCnt;
+                    ReentrantLock txsLock = AddressManager.getInstance().getTxsLock();
+                    txsLock.lock();
+                    try {
+                        relayedCnt = BlockChain.getInstance().relayedBlocks(blockList);
+                    } finally {
+                        txsLock.unlock();
+                    }
+                    syncMetrics.blocksRelayed(relayedCnt);
                     if (relayedCnt > 0) {
                         log.info("Peer {} relay {} block OK, last block No.{}, total block: {}",
                                 fromPeer.getPeerAddress().getHostAddress(), relayedCnt,
@@ -773,10 +1138,10 @@ public class PeerManager {
         }
         final Tx tx = publishedTx.get(new Sha256Hash(txHash));
         if (tx != null) {
-            bloomFilter = null;
             executor.submit(new Runnable() {
                 @Override
                 public void run() {
+                    addTxToBloomFilter(tx);
                     if (txRelays.get(new Sha256Hash(txHash)) == null) {
                         txRelays.put(new Sha256Hash(txHash), new HashSet<Peer>());
                     }
@@ -796,7 +1161,7 @@ public class PeerManager {
             return null;
         }
         BloomFilter filter = getBloomFilter();
-        filterFpRate = filter.getFalsePositiveRate(bloomFilterElementCount);
+        filterFpRate = filter.getFalsePositiveRate(bloomFilterBuilder.getElementCount());
         filterUpdateHeight = getLastBlockHeight();
         return filter;
     }
@@ -832,88 +1197,132 @@ public class PeerManager {
         });
     }
 
+    public boolean isRecentUnrelatedTx(Sha256Hash txHash) {
+        return recentUnrelatedTxs.contains(txHash);
+    }
+
+    public void addRecentUnrelatedTx(Sha256Hash txHash) {
+        recentUnrelatedTxs.add(txHash);
+    }
+
     public void requestBloomFilterRecalculate() {
-        bloomFilter = null;
+        bloomFilterBuilder.setFalsePositiveRate(calculateFilterFpRate());
+        if (bloomFilterBuilder.isLoaded()) {
+            addNewAddressesToBloomFilter();
+        }
     }
 
-    private BloomFilter getBloomFilter() {
-        if (bloomFilter == null) {
-
-            filterUpdateHeight = getLastBlockHeight();
-            filterFpRate = BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE;
-
-            if (downloadingPeer != null && filterUpdateHeight + 500 < downloadingPeer.getVersionLastBlockHeight()) {
-                filterFpRate = BloomFilter.BLOOM_REDUCED_FALSEPOSITIVE_RATE; // lower false
-                // positive rate during chain sync
-            } else if (downloadingPeer != null && filterUpdateHeight < downloadingPeer
-                    .getVersionLastBlockHeight()) { // partially
-                // lower fp rate if we're nearly synced
-                filterFpRate -= (BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE - BloomFilter
-                        .BLOOM_REDUCED_FALSEPOSITIVE_RATE) * (downloadingPeer
-                        .getVersionLastBlockHeight() - filterUpdateHeight) / BitherjSettings
-                        .BLOCK_DIFFICULTY_INTERVAL;
-            }
+    private double calculateFilterFpRate() {
+        long lastBlockHeight = getLastBlockHeight();
+        double fpRate = BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE;
+
+        if (downloadingPeer != null && lastBlockHeight + 500 < downloadingPeer.getVersionLastBlockHeight()) {
+            fpRate = BloomFilter.BLOOM_REDUCED_FALSEPOSITIVE_RATE; // lower false
+            // positive rate during chain sync
+        } else if (downloadingPeer != null && lastBlockHeight < downloadingPeer
+                .getVersionLastBlockHeight()) { // partially
+            // lower fp rate if we're nearly synced
+            fpRate -= (BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE - BloomFilter
+                    .BLOOM_REDUCED_FALSEPOSITIVE_RATE) * (downloadingPeer
+                    .getVersionLastBlockHeight() - lastBlockHeight) / BitherjSettings
+                    .BLOCK_DIFFICULTY_INTERVAL;
+        }
+        return fpRate;
+    }
 
-            List<Out> outs = new ArrayList<Out>();
-            for (Out out : AbstractDb.txProvider.getOuts()) {
-                if (AddressManager.getInstance().getAddressHashSet().contains(out.getOutAddress()
-                )) {
-                    outs.add(out);
+    private BloomFilter getBloomFilter() {
+        synchronized (bloomFilterBuilder) {
+            if (!bloomFilterBuilder.isLoaded()) {
+                filterUpdateHeight = getLastBlockHeight();
+                bloomFilterBuilder.setFalsePositiveRate(calculateFilterFpRate());
+
+                // add addresses to watch for any tx receiveing money to the wallet
+                addNewAddressesToBloomFilter();
+
+                for (Out out : AbstractDb.txProvider.getOuts()) {
+                    if (AddressManager.getInstance().getAddressHashSet().contains(out.getOutAddress()
+                    )) {
+                        bloomFilterBuilder.insert(out.getOutpointData());
+                    }
                 }
-            }
-            List<Address> addresses = AddressManager.getInstance().getAllAddresses();
-            int desktopHDMElementCount = 0;
-            if (AddressManager.getInstance().hasDesktopHDMKeychain()) {
-                DesktopHDMKeychain desktopHDMKeychain =
-                        AddressManager.getInstance().getDesktopHDMKeychains().get(0);
-                desktopHDMElementCount = desktopHDMKeychain.elementCountForBloomFilter();
-
-            }
-            bloomFilterElementCount = addresses.size() * 2 + outs.size() + (AddressManager
-                    .getInstance().hasHDAccountHot() ? AddressManager.getInstance().getHDAccountHot()
-                    .elementCountForBloomFilter() : 0) + (AddressManager.getInstance()
-                    .hasHDAccountMonitored() ? AddressManager.getInstance().getHDAccountMonitored
-                    ().elementCountForBloomFilter() : 0) + desktopHDMElementCount + 100;
 
-            BloomFilter filter = new BloomFilter(bloomFilterElementCount, filterFpRate, tweak,
-                    BloomFilter.BloomUpdate.UPDATE_ALL);
+                bloomFilterHDExternalIndex.clear();
+                bloomFilterDesktopHDMExternalIndex = 0;
+                if (AddressManager.getInstance().hasHDAccountHot()) {
+                    HDAccount account = AddressManager.getInstance().getHDAccountHot();
+                    bloomFilterHDExternalIndex.put(account.getHdSeedId(), account
+                            .addElementsForBloomFilter(bloomFilterBuilder));
+                }
 
-            for (Address address : addresses) { // add addresses to watch for any tx receiveing
-                // money to the wallet
-                byte[] pub = address.getPubKey();
-                if (pub != null && !filter.contains(pub)) {
-                    filter.insert(pub);
+                if (AddressManager.getInstance().hasHDAccountMonitored()) {
+                    HDAccount account = AddressManager.getInstance().getHDAccountMonitored();
+                    bloomFilterHDExternalIndex.put(account.getHdSeedId(), account
+                            .addElementsForBloomFilter(bloomFilterBuilder));
                 }
-                if (pub != null) {
-                    byte[] hash = Utils.sha256hash160(pub);
-                    if (hash != null && !filter.contains(hash)) {
-                        filter.insert(hash);
-                    }
+
+                if (AddressManager.getInstance().hasDesktopHDMKeychain()) {
+                    DesktopHDMKeychain desktopHDMKeychain = AddressManager.getInstance().getDesktopHDMKeychains().get(0);
+                    bloomFilterDesktopHDMExternalIndex = desktopHDMKeychain.addElementsForBloomFilter
+                            (bloomFilterBuilder);
                 }
+                bloomFilterBuilder.setLoaded();
             }
+            return bloomFilterBuilder.getFilter();
+        }
+    }
 
-            for (Out out : outs) {
-                byte[] outpoint = out.getOutpointData();
-                if (!filter.contains(outpoint)) {
-                    filter.insert(outpoint);
+    private void addNewAddressesToBloomFilter() {
+        synchronized (bloomFilterBuilder) {
+            // txs that did not match before may match the new addresses
+            recentUnrelatedTxs.clear();
+            for (Address address : AddressManager.getInstance().getAllAddresses()) {
+                byte[] pub = address.getPubKey();
+                if (pub != null && bloomFilterBuilder.insert(pub)) {
+                    bloomFilterBuilder.insert(Utils.sha256hash160(pub));
                 }
             }
-
-            if (AddressManager.getInstance().hasHDAccountHot()) {
-                AddressManager.getInstance().getHDAccountHot().addElementsForBloomFilter(filter);
+            if (!bloomFilterBuilder.isLoaded()) {
+                return;
             }
-
-            if (AddressManager.getInstance().hasHDAccountMonitored()) {
-                AddressManager.getInstance().getHDAccountMonitored().addElementsForBloomFilter(filter);
+            // hd accounts only need the external addresses issued since the last load
+            for (HDAccount account : new HDAccount[]{AddressManager.getInstance().getHDAccountHot(),
+                    AddressManager.getInstance().getHDAccountMonitored()}) {
+                if (account == null) {
+                    continue;
+                }
+                Integer fromIndex = bloomFilterHDExternalIndex.get(account.getHdSeedId());
+                if (fromIndex == null) {
+                    bloomFilterHDExternalIndex.put(account.getHdSeedId(), account
+                            .addElementsForBloomFilter(bloomFilterBuilder));
+                } else {
+                    bloomFilterHDExternalIndex.put(account.getHdSeedId(), account
+                            .addExternalPubsForBloomFilter(bloomFilterBuilder, fromIndex));
+                }
             }
-
             if (AddressManager.getInstance().hasDesktopHDMKeychain()) {
-                DesktopHDMKeychain desktopHDMKeychain = AddressManager.getInstance().getDesktopHDMKeychains().get(0);
-                desktopHDMKeychain.addElementsForBloomFilter(filter);
+                bloomFilterDesktopHDMExternalIndex = AddressManager.getInstance()
+                        .getDesktopHDMKeychains().get(0).addExternalPubsForBloomFilter
+                                (bloomFilterBuilder, bloomFilterDesktopHDMExternalIndex);
+            }
+        }
+    }
+
+    private void addTxToBloomFilter(Tx tx) {
+        if (!bloomFilterBuilder.isLoaded()) {
+            return;
+        }
+        for (Out out : tx.getOuts()) {
+            if (out.getHDAccountId() > 0 || AddressManager.getInstance().getAddressHashSet()
+                    .contains(out.getOutAddress())) {
+                bloomFilterBuilder.insert(out.getOutpointData());
             }
-            bloomFilter = filter;
         }
-        return bloomFilter;
+        if (AddressManager.getInstance().hasDesktopHDMKeychain()) {
+            // desktop hdm outs are not marked on the tx
+            AddressManager.getInstance().getDesktopHDMKeychains().get(0)
+                    .addTxOutsForBloomFilter(bloomFilterBuilder, tx);
+        }
+        addNewAddressesToBloomFilter();
     }
 
     public boolean doneSyncFromSPV() {
@@ -938,46 +1347,65 @@ public class PeerManager {
         if (executor == null || executor.getQueue() == null) {
             return 0;
         }
-        return executor.getQueue().size();
+        return executor.getQueue().size() + txExecutor.getQueue().size();
+    }
+
+    public boolean isPipelineBusy() {
+        return executor.isBusy() || txExecutor.isBusy();
+    }
+
+    /**
+     * The peer is told by {@link Peer#pipelineHasRoom()} once the chain and tx stages catch up,
+     * instead of blocking its network thread.
+     */
+    public void waitForPipeline(Peer peer) {
+        peersWaitingForPipeline.add(peer);
+        // the stages may have drained before the peer was queued
+        if (!isPipelineBusy() && peersWaitingForPipeline.remove(peer)) {
+            peer.pipelineHasRoom();
+        }
+    }
+
+    private void notifyPipelineHasRoom() {
+        if (isPipelineBusy()) {
+            return;
+        }
+        Peer peer;
+        while ((peer = peersWaitingForPipeline.poll()) != null) {
+            peer.pipelineHasRoom();
+        }
     }
 
     static class PeerManagerExecutorService extends ThreadPoolExecutor {
-        private static final int TaskCapacity = 5000;
-        private static final int TaskCapacityWaitForRoom = 2000;
-        private ReentrantLock executeLock = new ReentrantLock();
-        private Condition fullCondition = executeLock.newCondition();
-        private boolean isWaiting = false;
+        private static final int TaskCapacityWarning = 5000;
+        private final String name;
+        private final int busyTaskCount;
+        private final Runnable onRoom;
+
+        public PeerManagerExecutorService(String name, int threadCount, int busyTaskCount,
+                                          Runnable onRoom) {
+            super(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new
+                    LinkedBlockingQueue<Runnable>());
+            this.name = name;
+            this.busyTaskCount = busyTaskCount;
+            this.onRoom = onRoom;
+        }
 
-        public PeerManagerExecutorService() {
-            super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        public boolean isBusy() {
+            return getQueue().size() > busyTaskCount;
         }
 
         @Override
         public void execute(Runnable command) {
-            int waiting = getQueue().size();
-            if (getQueue().size() >= TaskCapacity) {
-                isWaiting = true;
-                try {
-                    log.info("PeerManagerExecutor full capacity with " + waiting + " waiting");
-                    executeLock.lockInterruptibly();
-                    fullCondition.await();
-                    log.info("PeerManagerExecutor execute again with " + getQueue().size() + " " +
-                            "waiting");
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } finally {
-                    executeLock.unlock();
-                }
+            // never block the caller, peers back off by themselves while the stage is busy
+            if (getQueue().size() == TaskCapacityWarning) {
+                log.warn("PeerManagerExecutor {} has {} tasks waiting", name, TaskCapacityWarning);
             }
             super.execute(command);
         }
 
         protected void afterExecute(Runnable r, Throwable t) {
             super.afterExecute(r, t);
-            long completed = getCompletedTaskCount();
-            int waiting = getQueue().size();
-//            log.info("PeerManagerExecutor finished " + completed + " " +
-//                    "tasks, " + waiting + " tasks remaining");
             if (t == null && r instanceof Future<?>) {
                 try {
                     Future<?> future = (Future<?>) r;
@@ -993,16 +1421,10 @@ public class PeerManager {
                 }
             }
             if (t != null && t.getMessage() != null && t.getMessage().length() > 0) {
-                log.error("exception in PeerManager: " + t.getMessage());
+                log.error("exception in PeerManager " + name + ": " + t.getMessage());
             }
-            if (isWaiting && waiting < TaskCapacity - TaskCapacityWaitForRoom) {
-                try {
-                    executeLock.lock();
-                    fullCondition.signal();
-                } finally {
-                    executeLock.unlock();
-                }
-                isWaiting = false;
+            if (onRoom != null && !isBusy()) {
+                onRoom.run();
             }
         }
 
@@ -1022,10 +1444,28 @@ public class PeerManager {
             // relayed something in time, so restart timer
             scheduleTimeoutTimer(BitherjSettings.PROTOCOL_TIMEOUT - (now - lastRelayTime));
         } else {
-            if (downloadingPeer != null) {
-                log.warn("{} chain sync time out", downloadingPeer.getPeerAddress()
-                        .getHostAddress());
-                downloadingPeer.disconnect();
+            final Peer stalledPeer = downloadingPeer;
+            if (stalledPeer != null) {
+                log.warn("{} chain sync time out", stalledPeer.getPeerAddress().getHostAddress());
+                stalledPeer.getPeerScore().timedOut();
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // hand the sync over to the best other peer instead of waiting for a
+                        // reconnect
+                        headerSync = null;
+                        Peer dp = downloadingPeer == stalledPeer ? bestDownloadPeer(stalledPeer)
+                                : null;
+                        if (dp != null) {
+                            log.info("switch downloading peer from {} to {}", stalledPeer
+                                    .getPeerAddress().getHostAddress(), dp.getPeerAddress()
+                                    .getHostAddress());
+                            stalledPeer.setSynchronising(false);
+                            startSync(dp);
+                        }
+                        stalledPeer.disconnect();
+                    }
+                });
             }
         }
         sendSyncProgress();
@@ -1112,6 +1552,29 @@ public class PeerManager {
         return synchronizing;
     }
 
+    /**
+     * @return the sync phase with its timing and rates, per peer throughput is in the {@link
+     * PeerScore} of {@link #getConnectedPeers()}
+     */
+    public SyncMetrics getSyncMetrics() {
+        return syncMetrics;
+    }
+
+    /**
+     * Called by a peer once it announced all the txs in its mempool.
+     */
+    public void memPoolLoaded(final Peer peer) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!synchronizing && syncMetrics.getPhase() == SyncMetrics.Phase.Mempool) {
+                    log.info("Peer {} mempool loaded", peer.getPeerAddress().getHostAddress());
+                    syncMetrics.enter(SyncMetrics.Phase.Idle);
+                }
+            }
+        });
+    }
+
     public boolean isOnlyBroadcasting() {
         return this.onlyBroadcasting;
     }
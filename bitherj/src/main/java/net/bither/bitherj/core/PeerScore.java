@@ -0,0 +1,134 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+/**
+ * What we know about the quality of a peer: ping round trip, how fast it delivers headers and
+ * blocks, and how often it timed out or sent us something we rejected. It is persisted with the
+ * peer, so the best peers are tried first and chosen as the downloading peer.
+ */
+public class PeerScore {
+    // assumed until a ping round trip is measured
+    private static final long DEFAULT_RTT = 1000;
+    // longer gaps between deliveries are idle time, not a slow peer
+    private static final long MAX_DELIVERY_GAP = 10000;
+
+    private long rtt;
+    private double itemsPerSecond;
+    private int timeouts;
+    private int rejects;
+    private int lastDisconnectReason;
+    private long lastDeliveryTime;
+    private long receivedBytes;
+    private long firstReceiveTime;
+
+    /**
+     * Higher is better. Delivery rate counts for the most, a peer that times out or gets rejected
+     * falls behind quickly.
+     */
+    public synchronized double getValue() {
+        long rtt = this.rtt > 0 ? this.rtt : DEFAULT_RTT;
+        return (1 + itemsPerSecond) * 1000 / (100 + rtt) / (1 + timeouts + 2 * rejects);
+    }
+
+    public synchronized void delivered(int itemCount) {
+        long now = System.currentTimeMillis();
+        if (lastDeliveryTime > 0 && now - lastDeliveryTime < MAX_DELIVERY_GAP) {
+            double rate = itemCount * 1000.0 / Math.max(now - lastDeliveryTime, 1);
+            itemsPerSecond = itemsPerSecond > 0 ? itemsPerSecond * 0.7 + rate * 0.3 : rate;
+        }
+        lastDeliveryTime = now;
+    }
+
+    public synchronized void received(int byteCount) {
+        if (firstReceiveTime == 0) {
+            firstReceiveTime = System.currentTimeMillis();
+        }
+        receivedBytes += byteCount;
+    }
+
+    /**
+     * @return the bytes received per second in this session, not persisted
+     */
+    public synchronized double getBytesPerSecond() {
+        if (firstReceiveTime == 0) {
+            return 0;
+        }
+        return receivedBytes * 1000.0 / Math.max(System.currentTimeMillis() - firstReceiveTime,
+                1);
+    }
+
+    public synchronized void timedOut() {
+        timeouts++;
+    }
+
+    public synchronized void rejected() {
+        rejects++;
+    }
+
+    public synchronized void disconnected(Peer.DisconnectReason reason) {
+        lastDisconnectReason = reason == null ? Peer.DisconnectReason.Normal.ordinal() : reason
+                .ordinal();
+    }
+
+    /**
+     * @return true if the peer answered a ping or delivered headers or blocks in this session
+     */
+    public synchronized boolean hasServed() {
+        return lastDeliveryTime > 0 || rtt > 0;
+    }
+
+    public synchronized long getRtt() {
+        return rtt;
+    }
+
+    public synchronized void setRtt(long rtt) {
+        this.rtt = rtt;
+    }
+
+    public synchronized double getItemsPerSecond() {
+        return itemsPerSecond;
+    }
+
+    public synchronized void setItemsPerSecond(double itemsPerSecond) {
+        this.itemsPerSecond = itemsPerSecond;
+    }
+
+    public synchronized int getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized void setTimeouts(int timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    public synchronized int getRejects() {
+        return rejects;
+    }
+
+    public synchronized void setRejects(int rejects) {
+        this.rejects = rejects;
+    }
+
+    public synchronized int getLastDisconnectReason() {
+        return lastDisconnectReason;
+    }
+
+    public synchronized void setLastDisconnectReason(int lastDisconnectReason) {
+        this.lastDisconnectReason = lastDisconnectReason;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.crypto.TransactionSignature;
+import net.bither.bitherj.script.Script;
+import net.bither.bitherj.script.ScriptOpCodes;
+import net.bither.bitherj.utils.Utils;
+import net.bither.bitherj.utils.VarInt;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The serialized pieces of a tx that every legacy signature hash is made of, so the hash of
+ * each input is digested from them instead of cloning and serializing the whole tx again.</p>
+ * <p/>
+ * <p>Only the version, outpoints, sequences, outs and lock time are cached, the cache stays valid
+ * while the input scripts change but must be rebuilt after anything else in the tx changes.</p>
+ */
+public class SigHashCache {
+    // outpoint, an empty script and the sequence
+    private static final int EmptyInSize = 32 + 4 + 1 + 4;
+    private static final byte[] NullOut = Utils.hexStringToByteArray("ffffffffffffffff00");
+    private static final byte[] SingleBugHash = Utils.hexStringToByteArray
+            ("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final byte[] version;
+    private final byte[] inCount;
+    // every in with an empty script, EmptyInSize bytes each
+    private final byte[] emptyIns;
+    private final byte[] outs;
+    private final int[] outOffsets;
+    private final byte[] lockTime;
+
+    public SigHashCache(Tx tx) {
+        List<In> ins = tx.getIns();
+        version = new byte[4];
+        Utils.uint32ToByteArrayLE(tx.getTxVer(), version, 0);
+        inCount = new VarInt(ins.size()).encode();
+        emptyIns = new byte[ins.size() * EmptyInSize];
+        for (int i = 0; i < ins.size(); i++) {
+            In in = ins.get(i);
+            int offset = i * EmptyInSize;
+            System.arraycopy(in.getPrevTxHash(), 0, emptyIns, offset, 32);
+            Utils.uint32ToByteArrayLE(in.getPrevOutSn(), emptyIns, offset + 32);
+            emptyIns[offset + 36] = 0;
+            Utils.uint32ToByteArrayLE(in.getInSequence(), emptyIns, offset + 37);
+        }
+        try {
+            List<Out> txOuts = tx.getOuts();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(new VarInt(txOuts.size()).encode());
+            outOffsets = new int[txOuts.size() + 1];
+            for (int i = 0; i < txOuts.size(); i++) {
+                outOffsets[i] = bos.size();
+                bos.write(txOuts.get(i).bitcoinSerialize());
+            }
+            outOffsets[txOuts.size()] = bos.size();
+            outs = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        lockTime = new byte[4];
+        Utils.uint32ToByteArrayLE(tx.getTxLockTime(), lockTime, 0);
+    }
+
+    public int getInCount() {
+        return emptyIns.length / EmptyInSize;
+    }
+
+    /**
+     * Same result as {@link Tx#hashForSignature(int, byte[], byte)}.
+     */
+    public byte[] hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (inputIndex < 0 || inputIndex >= getInCount()) {
+            throw new IndexOutOfBoundsException("input " + inputIndex + " of " + getInCount());
+        }
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & TransactionSignature.SIGHASH_ANYONECANPAY_VALUE)
+                == TransactionSignature.SIGHASH_ANYONECANPAY_VALUE;
+        boolean none = mode == TransactionSignature.SigHash.NONE.ordinal() + 1;
+        boolean single = mode == TransactionSignature.SigHash.SINGLE.ordinal() + 1;
+        if (single && inputIndex >= outOffsets.length - 1) {
+            // the reference client bug of signing "1" when there is no matching out
+            return SingleBugHash.clone();
+        }
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes
+                .OP_CODESEPARATOR);
+
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(version, 0, version.length);
+        if (anyoneCanPay) {
+            digest.update((byte) 1);
+            updateIn(digest, inputIndex, connectedScript);
+        } else {
+            digest.update(inCount, 0, inCount.length);
+            if (none || single) {
+                // other parties may update their ins, so their sequences are not signed
+                byte[] in = new byte[EmptyInSize];
+                for (int i = 0; i < getInCount(); i++) {
+                    if (i == inputIndex) {
+                        updateIn(digest, i, connectedScript);
+                    } else {
+                        System.arraycopy(emptyIns, i * EmptyInSize, in, 0, EmptyInSize - 4);
+                        digest.update(in, 0, EmptyInSize);
+                    }
+                }
+            } else {
+                digest.update(emptyIns, 0, inputIndex * EmptyInSize);
+                updateIn(digest, inputIndex, connectedScript);
+                int rest = (inputIndex + 1) * EmptyInSize;
+                digest.update(emptyIns, rest, emptyIns.length - rest);
+            }
+        }
+        updateOuts(digest, inputIndex, none, single);
+        return finish(digest, sigHashType);
+    }
+
+    /**
+     * SIGHASH_ALL hashes of all the ins in order. The ins before each one are digested only
+     * once, every hash starts from a copy of that running midstate.
+     */
+    public List<byte[]> hashesForSignature(List<byte[]> connectedScripts) {
+        if (connectedScripts.size() > getInCount()) {
+            throw new IllegalArgumentException(connectedScripts.size() + " scripts for " +
+                    getInCount() + " inputs");
+        }
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(TransactionSignature
+                .SigHash.ALL, false);
+        List<byte[]> result = new ArrayList<byte[]>(connectedScripts.size());
+        SHA256Digest prefix = new SHA256Digest();
+        prefix.update(version, 0, version.length);
+        prefix.update(inCount, 0, inCount.length);
+        for (int i = 0; i < connectedScripts.size(); i++) {
+            byte[] connectedScript = Script.removeAllInstancesOfOp(connectedScripts.get(i),
+                    ScriptOpCodes.OP_CODESEPARATOR);
+            SHA256Digest digest = new SHA256Digest(prefix);
+            updateIn(digest, i, connectedScript);
+            int rest = (i + 1) * EmptyInSize;
+            digest.update(emptyIns, rest, emptyIns.length - rest);
+            updateOuts(digest, i, false, false);
+            result.add(finish(digest, sigHashType));
+            prefix.update(emptyIns, i * EmptyInSize, EmptyInSize);
+        }
+        return result;
+    }
+
+    private void updateIn(SHA256Digest digest, int index, byte[] script) {
+        int offset = index * EmptyInSize;
+        digest.update(emptyIns, offset, 36);
+        byte[] scriptLength = new VarInt(script.length).encode();
+        digest.update(scriptLength, 0, scriptLength.length);
+        digest.update(script, 0, script.length);
+        digest.update(emptyIns, offset + 37, 4);
+    }
+
+    private void updateOuts(SHA256Digest digest, int inputIndex, boolean none, boolean single) {
+        if (none) {
+            digest.update((byte) 0);
+        } else if (single) {
+            byte[] outCount = new VarInt(inputIndex + 1).encode();
+            digest.update(outCount, 0, outCount.length);
+            for (int i = 0; i < inputIndex; i++) {
+                digest.update(NullOut, 0, NullOut.length);
+            }
+            digest.update(outs, outOffsets[inputIndex], outOffsets[inputIndex + 1] -
+                    outOffsets[inputIndex]);
+        } else {
+            digest.update(outs, 0, outs.length);
+        }
+        digest.update(lockTime, 0, lockTime.length);
+    }
+
+    private static byte[] finish(SHA256Digest digest, byte sigHashType) {
+        byte[] type = new byte[4];
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type, 0, type.length);
+        byte[] first = new byte[32];
+        digest.doFinal(first, 0);
+        digest.update(first, 0, first.length);
+        byte[] hash = new byte[32];
+        digest.doFinal(hash, 0);
+        return hash;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The phase the sync of {@link PeerManager} is in, how long each phase took and how fast
+ * headers, blocks, txs and bytes come in during the current phase. Per peer throughput is in the
+ * {@link PeerScore} of the connected peers.
+ */
+public class SyncMetrics {
+    private static final Logger log = LoggerFactory.getLogger(SyncMetrics.class);
+
+    public enum Phase {
+        Connecting, Headers, FilteredBlocks, Mempool, Idle
+    }
+
+    private Phase phase = Phase.Idle;
+    private long phaseStartTime = System.currentTimeMillis();
+    private final long[] phaseMillis = new long[Phase.values().length];
+
+    // counted since the current phase started
+    private long headerCount;
+    private long blockCount;
+    private long txCount;
+    private long byteCount;
+
+    synchronized void enter(Phase phase) {
+        if (this.phase == phase) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long millis = now - phaseStartTime;
+        phaseMillis[this.phase.ordinal()] += millis;
+        log.info("sync phase {} took {} ms: {} headers, {} blocks, {} txs, {} bytes, " +
+                "next phase {}", this.phase, millis, headerCount, blockCount, txCount,
+                byteCount, phase);
+        this.phase = phase;
+        phaseStartTime = now;
+        headerCount = 0;
+        blockCount = 0;
+        txCount = 0;
+        byteCount = 0;
+    }
+
+    synchronized void headersRelayed(int count) {
+        headerCount += count;
+    }
+
+    synchronized void blocksRelayed(int count) {
+        blockCount += count;
+    }
+
+    synchronized void txsRelayed(int count) {
+        txCount += count;
+    }
+
+    synchronized void bytesReceived(int count) {
+        byteCount += count;
+    }
+
+    public synchronized Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the time spent in the phase since the peer manager was created, including the
+     * current phase if it is this one
+     */
+    public synchronized long getPhaseMillis(Phase phase) {
+        long millis = phaseMillis[phase.ordinal()];
+        if (phase == this.phase) {
+            millis += getCurrentPhaseMillis();
+        }
+        return millis;
+    }
+
+    public synchronized long getCurrentPhaseMillis() {
+        return System.currentTimeMillis() - phaseStartTime;
+    }
+
+    public synchronized double getHeadersPerSecond() {
+        return perSecond(headerCount);
+    }
+
+    public synchronized double getBlocksPerSecond() {
+        return perSecond(blockCount);
+    }
+
+    public synchronized double getTxsPerSecond() {
+        return perSecond(txCount);
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return perSecond(byteCount);
+    }
+
+    /**
+     * @return the tasks waiting in the chain and tx stages of the peer manager
+     */
+    public int getQueueDepth() {
+        return PeerManager.instance().waitingTaskCount();
+    }
+
+    private double perSecond(long count) {
+        return count * 1000.0 / Math.max(getCurrentPhaseMillis(), 1);
+    }
+}
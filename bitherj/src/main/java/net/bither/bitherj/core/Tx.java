@@ -18,6 +18,8 @@ package net.bither.bitherj.core;
 
 import net.bither.bitherj.BitherjSettings;
 import net.bither.bitherj.crypto.ECKey;
+import net.bither.bitherj.crypto.SignatureVerifier;
+import net.bither.bitherj.crypto.SigningSession;
 import net.bither.bitherj.crypto.TransactionSignature;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.exception.ProtocolException;
@@ -48,6 +50,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -156,6 +159,8 @@ public class Tx extends Message implements Comparable<Tx> {
     private int sawByPeerCnt;
     private List<In> ins;
     private List<Out> outs;
+    // only set while signing all the ins of this tx, see signInputs
+    private transient SigHashCache sigHashCache;
 
 //    public int length;
 
@@ -475,9 +480,7 @@ public class Tx extends Message implements Comparable<Tx> {
             length = calcLength(bytes, offset);
             cursor = offset + length;
         }
-        byte[] b = new byte[length];
-        System.arraycopy(bytes, cursor, b, 0, length);
-        txHash = doubleDigest(b);
+        txHash = doubleDigest(bytes, offset, length);
 
         cursor = offset;
 
@@ -700,12 +703,36 @@ public class Tx extends Message implements Comparable<Tx> {
      */
     public synchronized void signInputs(TransactionSignature.SigHash hashType,
                                         Address address) throws ScriptException {
-        signInputs(hashType, address, null);
+        signInputs(hashType, address, (CharSequence) null);
     }
 
 
     public synchronized void signInputs(TransactionSignature.SigHash hashType, Address address,
                                         CharSequence password) throws ScriptException {
+        SigningSession session = new SigningSession(password);
+        try {
+            signInputs(hashType, address, session);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Signs with the aes keys of the session, so scrypt runs once however many inputs there are.
+     */
+    public synchronized void signInputs(TransactionSignature.SigHash hashType, Address address,
+                                        SigningSession session) throws ScriptException {
+        // every input hashes the same serialized tx
+        sigHashCache = new SigHashCache(this);
+        try {
+            signInputsWithSigHashCache(hashType, address, session);
+        } finally {
+            sigHashCache = null;
+        }
+    }
+
+    private void signInputsWithSigHashCache(TransactionSignature.SigHash hashType, Address
+            address, SigningSession session) throws ScriptException {
         checkState(ins.size() > 0);
         checkState(outs.size() > 0);
 
@@ -759,13 +786,13 @@ public class Tx extends Message implements Comparable<Tx> {
             }
             // Find the signing key we'll need to use.
             ECKey key = PrivateKeyUtil.getECKeyFromSingleString(address.getFullEncryptPrivKey(),
-                    password);//input.getOutpoint().getConnectedKey(address);
+                    session);//input.getOutpoint().getConnectedKey(address);
             // This assert should never fire. If it does, it means the wallet is inconsistent.
             checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s",
                     input.getPrevTxHash());
             // Keep the key around for the script creation step below.
             signingKeys[i] = key;
-            KeyParameter assKey = key.getKeyCrypter().deriveKey(password);
+            KeyParameter assKey = session.deriveKey(key.getKeyCrypter());
             // The anyoneCanPay feature isn't used at the moment.
             boolean anyoneCanPay = false;
             byte[] connectedPubKeyScript = input.getPrevOutScript();//input.getOutpoint()
@@ -827,6 +854,32 @@ public class Tx extends Message implements Comparable<Tx> {
 
     public synchronized void signInputs(TransactionSignature.SigHash hashType, HashMap<String, Address> addressMap,
                                         CharSequence password) throws ScriptException {
+        SigningSession session = new SigningSession(password);
+        try {
+            signInputs(hashType, addressMap, session);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Signs with the aes keys of the session, addresses encrypted with the same salt share one
+     * scrypt run.
+     */
+    public synchronized void signInputs(TransactionSignature.SigHash hashType, HashMap<String, Address> addressMap,
+                                        SigningSession session) throws ScriptException {
+        // every input hashes the same serialized tx
+        sigHashCache = new SigHashCache(this);
+        try {
+            signInputsWithSigHashCache(hashType, addressMap, session);
+        } finally {
+            sigHashCache = null;
+        }
+    }
+
+    private void signInputsWithSigHashCache(TransactionSignature.SigHash hashType,
+                                            HashMap<String, Address> addressMap,
+                                            SigningSession session) throws ScriptException {
         checkState(ins.size() > 0);
         checkState(outs.size() > 0);
 
@@ -878,14 +931,14 @@ public class Tx extends Message implements Comparable<Tx> {
             }
             // Find the signing key we'll need to use.
             Script pubKeyScript = new Script(input.getPrevOutScript());
-            ECKey key = PrivateKeyUtil.getECKeyFromSingleString(addressMap.get(pubKeyScript.getToAddress()).getFullEncryptPrivKey(), password);
+            ECKey key = PrivateKeyUtil.getECKeyFromSingleString(addressMap.get(pubKeyScript.getToAddress()).getFullEncryptPrivKey(), session);
             //input.getOutpoint().getConnectedKey(address);
             // This assert should never fire. If it does, it means the wallet is inconsistent.
             checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s",
                     input.getPrevTxHash());
             // Keep the key around for the script creation step below.
             signingKeys[i] = key;
-            KeyParameter assKey = key.getKeyCrypter().deriveKey(password);
+            KeyParameter assKey = session.deriveKey(key.getKeyCrypter());
             // The anyoneCanPay feature isn't used at the moment.
             boolean anyoneCanPay = false;
             byte[] connectedPubKeyScript = input.getPrevOutScript();//input.getOutpoint()
@@ -1052,149 +1105,11 @@ public class Tx extends Message implements Comparable<Tx> {
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
-
-        try {
-            // Store all the input scripts and clear them in preparation for signing. If we're
-            // signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to
-            // the actual
-            // EC math so we'll do it anyway.
-            //
-            // Also store the input sequence numbers in case we are clearing them with SigHash
-            // .NONE/SINGLE
-            byte[][] inputScripts = new byte[this.getIns().size()][];
-            long[] inputSequenceNumbers = new long[this.getIns().size()];
-            for (int i = 0;
-                 i < this.getIns().size();
-                 i++) {
-                inputScripts[i] = this.getIns().get(i).getInSignature();
-                inputSequenceNumbers[i] = this.getIns().get(i).getInSequence();
-                this.getIns().get(i).setInSignature(new byte[0]);
-            }
-
-            // This step has no purpose beyond being synchronized with the reference clients bugs
-            // . OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that
-            // shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later
-            // versions switched to
-            // the design we use today where scripts are executed independently but share a stack
-            // . This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used
-            // internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be
-            // required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript,
-                    ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Satoshi does this but the step has no
-            // obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes
-            // the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how
-            // the code was written.
-            In input = this.getIns().get(inputIndex);
-            input.setInSignature(connectedScript);
-
-            List<Out> outputs = this.getOuts();
-            if ((sigHashType & 0x1f) == (TransactionSignature.SigHash.NONE.ordinal() + 1)) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively
-                // for a "blank cheque".
-                this.outs = new ArrayList<Out>(0);
-                // The signature isn't broken by new versions of the transaction issued by other
-                // parties.
-                for (int i = 0;
-                     i < this.getIns().size();
-                     i++)
-                    if (i != inputIndex) {
-                        this.getIns().get(i).setInSequence(0);
-                    }
-            } else if ((sigHashType & 0x1f) == (TransactionSignature.SigHash.SINGLE.ordinal() +
-                    1)) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie,
-                // my output).
-                if (inputIndex >= this.getOuts().size()) {
-                    // The input index is beyond the number of outputs,
-                    // it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in
-                    // handling this case:
-                    // any transaction output that is signed in this case will result in both the
-                    // signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the
-                    // signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature,
-                    // not signing a transactions
-                    for (int i = 0;
-                         i < this.getIns().size();
-                         i++) {
-                        this.getIns().get(i).setInSignature(inputScripts[i]);
-                        this.getIns().get(i).setInSequence(inputSequenceNumbers[i]);
-                    }
-                    this.outs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on
-                    // this codepath it
-                    // actually returns the constant "1" to indicate an error,
-                    // which is never checked for. Oops.
-                    return Utils.hexStringToByteArray
-                            ("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted,
-                // and the outputs before
-                // that position are "nulled out". Unintuitively,
-                // the value in a "null" transaction is set to -1.
-                this.outs = new ArrayList<Out>(this.getOuts().subList(0, inputIndex + 1));
-                for (int i = 0;
-                     i < inputIndex;
-                     i++)
-                    this.getOuts().set(i, new Out(this, -1, new byte[]{}));
-                // The signature isn't broken by new versions of the transaction issued by other
-                // parties.
-                for (int i = 0;
-                     i < this.getIns().size();
-                     i++)
-                    if (i != inputIndex) {
-                        this.getIns().get(i).setInSequence(0);
-                    }
-            }
-
-            List<In> inputs = this.getIns();
-            if ((sigHashType & TransactionSignature.SIGHASH_ANYONECANPAY_VALUE) ==
-                    TransactionSignature.SIGHASH_ANYONECANPAY_VALUE) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by
-                // changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.ins = new ArrayList<In>();
-                this.getIns().add(input);
-            }
-
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH
-                    ? 256 : length + 4);
-            bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were
-            // to be printed out
-            // however then we would expect that it is IS reversed.
-            byte[] hash = doubleDigest(bos.toByteArray());
-            bos.close();
-
-            // Put the transaction back to how we found it.
-            this.ins = inputs;
-            for (int i = 0;
-                 i < inputs.size();
-                 i++) {
-                inputs.get(i).setInSignature(inputScripts[i]);
-                inputs.get(i).setInSequence(inputSequenceNumbers[i]);
-            }
-            this.outs = outputs;
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+        SigHashCache cache = sigHashCache;
+        if (cache == null) {
+            cache = new SigHashCache(this);
         }
+        return cache.hashForSignature(inputIndex, connectedScript, sigHashType);
     }
 
     @Override
@@ -1435,21 +1350,36 @@ public class Tx extends Message implements Comparable<Tx> {
     }
 
     public List<byte[]> getUnsignedInHashes() {
-        List<byte[]> result = new ArrayList<byte[]>();
+        List<byte[]> connectedScripts = new ArrayList<byte[]>();
         for (In in : this.getIns()) {
-            byte sigHashType = (byte) TransactionSignature.calcSigHashValue(TransactionSignature
-                    .SigHash.ALL, false);
-            result.add(this.hashForSignature(in.getInSn(), in.getPrevOutScript(), sigHashType));
+            connectedScripts.add(in.getPrevOutScript());
         }
-        return result;
+        return getUnsignedInHashes(connectedScripts);
     }
 
     public List<byte[]> getUnsignedInHashesForHDM(byte[] pubs) {
-        List<byte[]> result = new ArrayList<byte[]>();
+        List<byte[]> connectedScripts = new ArrayList<byte[]>();
         for (In in : this.getIns()) {
-            byte sigHashType = (byte) TransactionSignature.calcSigHashValue(TransactionSignature
-                    .SigHash.ALL, false);
-            result.add(this.hashForSignature(in.getInSn(), pubs, sigHashType));
+            connectedScripts.add(pubs);
+        }
+        return getUnsignedInHashes(connectedScripts);
+    }
+
+    private synchronized List<byte[]> getUnsignedInHashes(List<byte[]> connectedScripts) {
+        SigHashCache cache = new SigHashCache(this);
+        boolean inOrder = true;
+        for (int i = 0; i < this.getIns().size(); i++) {
+            inOrder &= this.getIns().get(i).getInSn() == i;
+        }
+        if (inOrder) {
+            return cache.hashesForSignature(connectedScripts);
+        }
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(TransactionSignature
+                .SigHash.ALL, false);
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (int i = 0; i < this.getIns().size(); i++) {
+            result.add(cache.hashForSignature(this.getIns().get(i).getInSn(), connectedScripts
+                    .get(i), sigHashType));
         }
         return result;
     }
@@ -1555,31 +1485,41 @@ public class Tx extends Message implements Comparable<Tx> {
     }
 
 
+    /**
+     * Checks the script of every in against its prev out script, the ins are checked in
+     * parallel by {@link SignatureVerifier}.
+     */
     public boolean verifySignatures() {
-        if (this.isSigned()) {
-            try {
-                for (In in : this.getIns()) {
-                    Script scriptSig = new Script(in.getInSignature());
-                    byte[] pubkey;
-                    if (in.getPrevOutScript() == null || in.getPrevOutScript().length == 0) {
-                        return false;
-                    }
-                    System.out.println("in:" + in.getFromAddress() + "," + in.getInSn());
-                    scriptSig.correctlySpends(this, in.getInSn(), new Script(in.getPrevOutScript
-                            ()), true);
-
+        if (!this.isSigned()) {
+            return false;
+        }
+        List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>();
+        synchronized (this) {
+            final SigHashCache sigHashes = new SigHashCache(this);
+            for (In in : this.getIns()) {
+                if (in.getPrevOutScript() == null || in.getPrevOutScript().length == 0) {
+                    return false;
                 }
-            } catch (ScriptException ex) {
-                ex.printStackTrace();
-                return false;
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                return false;
+                final Script scriptSig;
+                final Script scriptPubKey;
+                try {
+                    scriptSig = new Script(in.getInSignature());
+                    scriptPubKey = new Script(in.getPrevOutScript());
+                } catch (ScriptException ex) {
+                    ex.printStackTrace();
+                    return false;
+                }
+                final int inSn = in.getInSn();
+                checks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        scriptSig.correctlySpends(sigHashes, inSn, scriptPubKey, true);
+                        return true;
+                    }
+                });
             }
-            return true;
-        } else {
-            return false;
         }
+        return SignatureVerifier.verifyAll(checks);
     }
 
     public boolean hasDustOut() {
@@ -23,10 +23,7 @@ import net.bither.bitherj.script.Script;
 import net.bither.bitherj.script.ScriptBuilder;
 import net.bither.bitherj.utils.Utils;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class TxBuilder {
@@ -106,20 +103,14 @@ public class TxBuilder {
         for (long amount : amounts) {
             value += amount;
         }
-        List<Tx> unspendTxs = AbstractDb.txProvider.getUnspendTxWithAddress(address.getAddress());
-        List<Out> unspendOuts = getUnspendOuts(unspendTxs);
-        List<Out> canSpendOuts = getCanSpendOuts(unspendTxs);
-        List<Out> canNotSpendOuts = getCanNotSpendOuts(unspendTxs);
-        if (value > getAmount(unspendOuts)) {
-            throw new TxBuilderException.TxBuilderNotEnoughMoneyException(value - TxBuilder.getAmount(unspendOuts));
-        } else if (value > getAmount(canSpendOuts)) {
-            throw new TxBuilderException.TxBuilderWaitConfirmException(TxBuilder.getAmount(canNotSpendOuts));
-        } else if (value == TxBuilder.getAmount(unspendOuts) && TxBuilder.getAmount(canNotSpendOuts) != 0) {
-            // there is some unconfirm tx, it will not empty wallet
-            throw new TxBuilderException.TxBuilderWaitConfirmException(TxBuilder.getAmount(canNotSpendOuts));
+        UnspentOutputs unspentOutputs = AbstractDb.txProvider.getUnspentOutputs(address
+                .getAddress());
+        long unspendAmount = unspentOutputs.getAmount();
+        if (value > unspendAmount) {
+            throw new TxBuilderException.TxBuilderNotEnoughMoneyException(value - unspendAmount);
         }
 
-        Tx emptyWalletTx = emptyWallet.buildTx(address, changeAddress, unspendTxs, prepareTx(amounts, addresses));
+        Tx emptyWalletTx = emptyWallet.buildTx(address, changeAddress, unspentOutputs, prepareTx(amounts, addresses));
         if (emptyWalletTx != null && TxBuilder.estimationTxSize(emptyWalletTx.getIns().size(), scriptPubKey, emptyWalletTx.getOuts(), address.isCompressed()) <= BitherjSettings.MAX_TX_SIZE) {
             return emptyWalletTx;
         } else if (emptyWalletTx != null) {
@@ -135,7 +126,7 @@ public class TxBuilder {
         boolean mayMaxTxSize = false;
         List<Tx> txs = new ArrayList<Tx>();
         for (TxBuilderProtocol builder : this.txBuilders) {
-            Tx tx = builder.buildTx(address, changeAddress, unspendTxs, prepareTx(amounts, addresses));
+            Tx tx = builder.buildTx(address, changeAddress, unspentOutputs, prepareTx(amounts, addresses));
             if (tx != null && TxBuilder.estimationTxSize(tx.getIns().size(), scriptPubKey, tx.getOuts(), address.isCompressed()) <= BitherjSettings.MAX_TX_SIZE) {
                 txs.add(tx);
             } else if (tx != null) {
@@ -197,49 +188,30 @@ public class TxBuilder {
 
     static long getCoinDepth(List<Out> outs) {
         long coinDepth = 0;
+        int lastBlockNo = BlockChain.getInstance().lastBlock.getBlockNo();
         for (Out out : outs) {
-            coinDepth += BlockChain.getInstance().lastBlock.getBlockNo() * out.getOutValue() - out.getCoinDepth() + out.getOutValue();
+            coinDepth += lastBlockNo * out.getOutValue() - out.getCoinDepth() + out.getOutValue();
         }
         return coinDepth;
     }
 
-    static List<Out> getUnspendOuts(List<Tx> txs) {
-        List<Out> result = new ArrayList<Out>();
-        for (Tx tx : txs) {
-            result.add(tx.getOuts().get(0));
-        }
-        return result;
-    }
-
-    static List<Out> getCanSpendOuts(List<Tx> txs) {
+    static List<Out> getUnspendOuts(UnspentOutputs unspentOutputs) {
         List<Out> result = new ArrayList<Out>();
-        for (Tx tx : txs) {
-//            if (tx.getBlockNo() != Tx.TX_UNCONFIRMED || tx.getSource() == Tx.SourceType.self.getValue()) {
-                result.add(tx.getOuts().get(0));
-//            }
+        for (int i = 0; i < unspentOutputs.size(); i++) {
+            result.add(unspentOutputs.getOut(i));
         }
         return result;
     }
-
-    static List<Out> getCanNotSpendOuts(List<Tx> txs) {
-        List<Out> result = new ArrayList<Out>();
-//        for (Tx tx : txs) {
-//            if (tx.getBlockNo() == Tx.TX_UNCONFIRMED && tx.getSource() == Tx.SourceType.network.getValue()) {
-//                result.add(tx.getOuts().get(0));
-//            }
-//        }
-        return result;
-    }
 }
 
 interface TxBuilderProtocol {
-    public Tx buildTx(Address address, String changeAddress, List<Tx> unspendTxs, Tx tx);
+    public Tx buildTx(Address address, String changeAddress, UnspentOutputs unspentOutputs, Tx tx);
 
     public Tx buildTx(String changeAddress, List<Out> unspendOuts, Tx tx);
 }
 
 class TxBuilderEmptyWallet implements TxBuilderProtocol {
-    public Tx buildTx(Address address, String changeAddress, List<Tx> unspendTxs, Tx tx) {
+    public Tx buildTx(Address address, String changeAddress, UnspentOutputs unspentOutputs, Tx tx) {
         Script scriptPubKey = null;
         if (address.isHDM()) {
             scriptPubKey = new Script(address.getPubKey());
@@ -247,18 +219,16 @@ class TxBuilderEmptyWallet implements TxBuilderProtocol {
             scriptPubKey = ScriptBuilder.createOutputScript(address.address);
         }
 
-        List<Out> outs = TxBuilder.getCanSpendOuts(unspendTxs);
-        List<Out> unspendOuts = TxBuilder.getUnspendOuts(unspendTxs);
-
         long value = 0;
         for (Out out : tx.getOuts()) {
             value += out.getOutValue();
         }
         boolean needMinFee = TxBuilder.needMinFee(tx.getOuts());
 
-        if (value != TxBuilder.getAmount(unspendOuts) || value != TxBuilder.getAmount(outs)) {
+        if (value != unspentOutputs.getAmount()) {
             return null;
         }
+        List<Out> outs = TxBuilder.getUnspendOuts(unspentOutputs);
 
         long fees = 0;
         if (needMinFee) {
@@ -342,7 +312,7 @@ class TxBuilderEmptyWallet implements TxBuilderProtocol {
 }
 
 class TxBuilderDefault implements TxBuilderProtocol {
-    public Tx buildTx(Address address, String changeAddress, List<Tx> unspendTxs, Tx tx) {
+    public Tx buildTx(Address address, String changeAddress, UnspentOutputs unspentOutputs, Tx tx) {
         boolean isCompressed = address.isCompressed();
         Script scriptPubKey = null;
         if (address.isHDM()) {
@@ -351,36 +321,8 @@ class TxBuilderDefault implements TxBuilderProtocol {
             scriptPubKey = ScriptBuilder.createOutputScript(address.address);
         }
 
-        List<Out> outs = TxBuilder.getUnspendOuts(unspendTxs);
-
-        Collections.sort(outs, new Comparator<Out>() {
-            public int compare(Out out1, Out out2) {
-                int depth1 = 0;
-                int depth2 = 0;
-                long coinDepth1 = BlockChain.getInstance().lastBlock.getBlockNo() * out1.getOutValue() - out1.getCoinDepth() + out1.getOutValue();
-                long coinDepth2 = BlockChain.getInstance().lastBlock.getBlockNo() * out2.getOutValue() - out2.getCoinDepth() + out2.getOutValue();
-                if (coinDepth1 != coinDepth2) {
-                    if (coinDepth2 > coinDepth1)
-                        return 1;
-                    else
-                        return -1;
-                } else if (out1.getOutValue() != out2.getOutValue()) {
-                    if (out2.getOutValue() > out1.getOutValue())
-                        return 1;
-                    else
-                        return -1;
-                } else {
-                    BigInteger hash1 = new BigInteger(1, out1.getTxHash());
-                    BigInteger hash2 = new BigInteger(1, out2.getTxHash());
-                    int result = hash1.compareTo(hash2);
-                    if (result != 0) {
-                        return result;
-                    } else {
-                        return out1.getOutSn() - out2.getOutSn();
-                    }
-                }
-            }
-        });
+        CoinSelector selector = new CoinSelector(unspentOutputs, BlockChain.getInstance()
+                .lastBlock.getBlockNo());
 
         long additionalValueForNextCategory = 0;
         List<Out> selection3 = null;
@@ -417,7 +359,7 @@ class TxBuilderDefault implements TxBuilderProtocol {
 
             long additionalValueSelected = additionalValueForNextCategory;
 
-            List<Out> selectedOuts = this.selectOuts(outs, valueNeeded);
+            List<Out> selectedOuts = this.selectOuts(unspentOutputs, selector, valueNeeded);
 
             if (TxBuilder.getAmount(selectedOuts) < valueNeeded)
                 break;
@@ -770,6 +712,16 @@ class TxBuilderDefault implements TxBuilderProtocol {
         return tx;
     }
 
+    // outs adding up to the amount without change, or enough outs in the usual order
+    private List<Out> selectOuts(UnspentOutputs unspentOutputs, CoinSelector selector, long
+            amount) {
+        List<Out> result = new ArrayList<Out>();
+        for (int index : selector.select(amount, Tx.MIN_NONDUST_OUTPUT)) {
+            result.add(unspentOutputs.getOut(index));
+        }
+        return result;
+    }
+
     private List<Out> selectOuts(List<Out> outs, long amount) {
         List<Out> result = new ArrayList<Out>();
         long sum = 0;
@@ -0,0 +1,129 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.core;
+
+/**
+ * The unspent outs of an address in parallel arrays, so coin selection can run over thousands
+ * of them without creating a {@link Tx} or {@link Out} for each. Only the selected outs are
+ * turned into {@link Out}s with {@link #getOut(int)}. It is not changed once the tx provider
+ * returned it.
+ */
+public class UnspentOutputs {
+    private final String address;
+    private int size;
+    private byte[][] txHashes;
+    private int[] outSns;
+    private long[] values;
+    // 0 if unconfirmed
+    private int[] blockNos;
+    private byte[][] outScripts;
+
+    public UnspentOutputs(String address) {
+        this.address = address;
+        txHashes = new byte[16][];
+        outSns = new int[16];
+        values = new long[16];
+        blockNos = new int[16];
+        outScripts = new byte[16][];
+    }
+
+    public void add(byte[] txHash, int outSn, long value, int blockNo, byte[] outScript) {
+        if (size == values.length) {
+            int capacity = size * 2;
+            byte[][] newTxHashes = new byte[capacity][];
+            System.arraycopy(txHashes, 0, newTxHashes, 0, size);
+            txHashes = newTxHashes;
+            int[] newOutSns = new int[capacity];
+            System.arraycopy(outSns, 0, newOutSns, 0, size);
+            outSns = newOutSns;
+            long[] newValues = new long[capacity];
+            System.arraycopy(values, 0, newValues, 0, size);
+            values = newValues;
+            int[] newBlockNos = new int[capacity];
+            System.arraycopy(blockNos, 0, newBlockNos, 0, size);
+            blockNos = newBlockNos;
+            byte[][] newOutScripts = new byte[capacity][];
+            System.arraycopy(outScripts, 0, newOutScripts, 0, size);
+            outScripts = newOutScripts;
+        }
+        txHashes[size] = txHash;
+        outSns[size] = outSn;
+        values[size] = value;
+        blockNos[size] = blockNo;
+        outScripts[size] = outScript;
+        size++;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] getTxHash(int index) {
+        return txHashes[index];
+    }
+
+    public int getOutSn(int index) {
+        return outSns[index];
+    }
+
+    public long getValue(int index) {
+        return values[index];
+    }
+
+    public int getBlockNo(int index) {
+        return blockNos[index];
+    }
+
+    public long getAmount() {
+        long amount = 0;
+        for (int i = 0;
+             i < size;
+             i++) {
+            amount += values[i];
+        }
+        return amount;
+    }
+
+    /**
+     * @return a new {@link Out} for the unspent out, with the coin depth the tx provider would
+     * give it
+     */
+    public Out getOut(int index) {
+        Out out = new Out();
+        out.setTxHash(txHashes[index]);
+        out.setOutSn(outSns[index]);
+        out.setOutValue(values[index]);
+        out.setOutScript(outScripts[index]);
+        out.setOutAddress(address);
+        out.setOutStatus(Out.OutStatus.unspent);
+        out.setCoinDepth((long) blockNos[index] * values[index]);
+        return out;
+    }
+
+    /**
+     * @return a copy of the values, the tx provider shares this instance between callers
+     */
+    long[] values() {
+        long[] copy = new long[size];
+        System.arraycopy(values, 0, copy, 0, size);
+        return copy;
+    }
+}
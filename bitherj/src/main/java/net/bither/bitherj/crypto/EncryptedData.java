@@ -52,6 +52,11 @@ public class EncryptedData {
         return crypter.decrypt(new EncryptedPrivateKey(initialisationVector, encryptedData), crypter.deriveKey(password));
     }
 
+    public byte[] decrypt(SigningSession session) {
+        KeyCrypterScrypt crypter = new KeyCrypterScrypt(saltForQRCode.getSalt());
+        return crypter.decrypt(new EncryptedPrivateKey(initialisationVector, encryptedData), session.deriveKey(crypter));
+    }
+
     public String toEncryptedString() {
         return Utils.bytesToHexString(encryptedData).toUpperCase()
                 + QRCodeUtil.QR_CODE_SPLIT + Utils.bytesToHexString(initialisationVector).toUpperCase()
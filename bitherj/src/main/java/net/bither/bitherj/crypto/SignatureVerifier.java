@@ -0,0 +1,95 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.crypto;
+
+import net.bither.bitherj.utils.Threading;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent signature checks, such as the script checks of the ins of a tx, on a pool of
+ * one worker per core. Every check costs at least one EC signature verification.
+ */
+public final class SignatureVerifier {
+    private static final Logger log = LoggerFactory.getLogger(SignatureVerifier.class);
+
+    private static final int VERIFY_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService VERIFY_EXECUTOR = Threading.newDaemonThreadPool
+            (VERIFY_THREAD_COUNT, "SignatureVerifier worker");
+
+    private SignatureVerifier() {
+    }
+
+    /**
+     * True if every check returns true. Returns false as soon as one check returns false or
+     * throws, and the checks not started yet are cancelled.
+     */
+    public static boolean verifyAll(List<? extends Callable<Boolean>> checks) {
+        if (checks.size() < 2 || VERIFY_THREAD_COUNT < 2) {
+            for (Callable<Boolean> check : checks) {
+                if (!verify(check)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>
+                (VERIFY_EXECUTOR);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(checks.size());
+        for (Callable<Boolean> check : checks) {
+            futures.add(completionService.submit(check));
+        }
+        try {
+            for (int i = 0; i < checks.size(); i++) {
+                if (!completionService.take().get()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            log.warn("signature check failed: {}", e.getCause().toString());
+            return false;
+        } finally {
+            for (Future<Boolean> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static boolean verify(Callable<Boolean> check) {
+        try {
+            return check.call();
+        } catch (Exception e) {
+            log.warn("signature check failed: {}", e.toString());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.bither.bitherj.crypto;
+
+import net.bither.bitherj.utils.Utils;
+
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.HashMap;
+
+/**
+ * <p>The aes keys derived from one password while signing, so a tx with many inputs runs scrypt
+ * once per salt instead of once or twice per input.</p>
+ * <p/>
+ * <p>Always {@link #close()} the session when signing is done, it wipes the derived keys.</p>
+ */
+public class SigningSession {
+    private final CharSequence password;
+    private final HashMap<String, KeyParameter> derivedKeys = new HashMap<String, KeyParameter>();
+    private boolean closed;
+
+    public SigningSession(CharSequence password) {
+        this.password = password;
+    }
+
+    public CharSequence getPassword() {
+        return password;
+    }
+
+    public synchronized KeyParameter deriveKey(KeyCrypter crypter) throws KeyCrypterException {
+        if (closed) {
+            throw new IllegalStateException("signing session is closed");
+        }
+        if (!(crypter instanceof KeyCrypterScrypt)) {
+            return crypter.deriveKey(password);
+        }
+        String salt = Utils.bytesToHexString(((KeyCrypterScrypt) crypter).getSalt());
+        KeyParameter key = derivedKeys.get(salt);
+        if (key == null) {
+            key = crypter.deriveKey(password);
+            derivedKeys.put(salt, key);
+        }
+        return key;
+    }
+
+    public synchronized void close() {
+        for (KeyParameter key : derivedKeys.values()) {
+            Utils.wipeBytes(key.getKey());
+        }
+        derivedKeys.clear();
+        closed = true;
+    }
+}
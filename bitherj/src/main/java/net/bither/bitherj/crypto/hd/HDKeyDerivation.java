@@ -19,6 +19,7 @@ package net.bither.bitherj.crypto.hd;
 import com.google.common.collect.ImmutableList;
 
 import net.bither.bitherj.crypto.ECKey;
+import net.bither.bitherj.utils.Threading;
 import net.bither.bitherj.utils.Utils;
 
 import org.spongycastle.crypto.macs.HMac;
@@ -27,7 +28,13 @@ import org.spongycastle.math.ec.ECPoint;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -49,6 +56,16 @@ public final class HDKeyDerivation {
 
     public static final HMac MASTER_HMAC_SHA512 = HDUtils.createHmacSha512Digest("Bitcoin seed".getBytes());
 
+    /**
+     * Ranges smaller than this are derived on the calling thread, it is not worth the hand off.
+     */
+    private static final int MIN_PARALLEL_DERIVE_COUNT = 16;
+
+    private static final int DERIVE_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService DERIVE_EXECUTOR = Threading.newDaemonThreadPool
+            (DERIVE_THREAD_COUNT, "HDKeyDerivation worker");
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -225,6 +242,63 @@ public final class HDKeyDerivation {
         return new RawKeyBytes(Ki.getEncoded(true), chainCode);
     }
 
+    /**
+     * Derives the compressed public keys of the non hardened children firstIndex to
+     * firstIndex + count - 1 of parent, the same as <code>parent.deriveSoftened(i).getPubKey()</code>
+     * for each of them. The range is split across a pool of one worker per core, as every child
+     * costs a full EC point multiplication.
+     *
+     * @throws HDDerivationException if any of the children is an invalid key.
+     */
+    public static List<byte[]> derivePubKeys(final DeterministicKey parent, int firstIndex, int count)
+            throws HDDerivationException {
+        if (count < MIN_PARALLEL_DERIVE_COUNT || DERIVE_THREAD_COUNT < 2) {
+            return derivePubKeysInRange(parent, firstIndex, count);
+        }
+        int chunkCount = Math.min(DERIVE_THREAD_COUNT, (count + MIN_PARALLEL_DERIVE_COUNT - 1) /
+                MIN_PARALLEL_DERIVE_COUNT);
+        int chunkSize = (count + chunkCount - 1) / chunkCount;
+        List<Future<List<byte[]>>> futures = new ArrayList<Future<List<byte[]>>>();
+        for (int start = 0; start < count; start += chunkSize) {
+            final int chunkFirstIndex = firstIndex + start;
+            final int chunkLength = Math.min(chunkSize, count - start);
+            futures.add(DERIVE_EXECUTOR.submit(new Callable<List<byte[]>>() {
+                @Override
+                public List<byte[]> call() throws Exception {
+                    return derivePubKeysInRange(parent, chunkFirstIndex, chunkLength);
+                }
+            }));
+        }
+        List<byte[]> pubs = new ArrayList<byte[]>(count);
+        try {
+            for (Future<List<byte[]>> future : futures) {
+                pubs.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<List<byte[]>> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new HDDerivationException("Interrupted while deriving child keys.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new HDDerivationException(e.getCause().getMessage());
+        }
+        return pubs;
+    }
+
+    private static List<byte[]> derivePubKeysInRange(DeterministicKey parent, int firstIndex, int
+            count) {
+        List<byte[]> pubs = new ArrayList<byte[]>(count);
+        for (int i = firstIndex; i < firstIndex + count; i++) {
+            pubs.add(deriveChildKeyBytesFromPublic(parent, new ChildNumber(i, false),
+                    PublicDeriveMode.NORMAL).keyBytes);
+        }
+        return pubs;
+    }
+
     private static void assertNonZero(BigInteger integer, String errorMessage) {
         if (integer.equals(BigInteger.ZERO))
             throw new HDDerivationException(errorMessage);
@@ -16,16 +16,29 @@
 
 package net.bither.bitherj.db;
 
+import net.bither.bitherj.db.imp.base.IDb;
+import net.bither.bitherj.db.imp.base.IProvider;
+import net.bither.bitherj.utils.UpgradeHashColumnUtil;
+
+import java.util.HashSet;
+import java.util.Set;
+
 public abstract class AbstractDb {
     public static final String CREATE_PEER_SQL = "create table if not exists peers " +
             "(peer_address integer primary key" +
             ", peer_port integer not null" +
             ", peer_services integer not null" +
             ", peer_timestamp integer not null" +
-            ", peer_connected_cnt integer not null);";
+            ", peer_connected_cnt integer not null" +
+            ", peer_rtt integer not null default 0" +
+            ", peer_rate real not null default 0" +
+            ", peer_timeouts integer not null default 0" +
+            ", peer_rejects integer not null default 0" +
+            ", peer_disconnect_reason integer not null default 0" +
+            ", peer_score real not null default 0);";
 
     public static final String CREATE_OUTS_SQL = "create table if not exists outs " +
-            "(tx_hash text not null" +
+            "(tx_hash blob not null" +
             ", out_sn integer not null" +
             ", out_script text not null" +
             ", out_value integer not null" +
@@ -35,19 +48,19 @@ public abstract class AbstractDb {
             ", primary key (tx_hash, out_sn));";
 
     public static final String CREATE_INS_SQL = "create table if not exists ins " +
-            "(tx_hash text not null" +
+            "(tx_hash blob not null" +
             ", in_sn integer not null" +
-            ", prev_tx_hash text" +
+            ", prev_tx_hash blob" +
             ", prev_out_sn integer" +
             ", in_signature text" +
             ", in_sequence integer" +
             ", primary key (tx_hash, in_sn));";
     public static final String CREATE_ADDRESSTXS_SQL = "create table if not exists addresses_txs " +
             "(address text not null" +
-            ", tx_hash text not null" +
+            ", tx_hash blob not null" +
             ", primary key (address, tx_hash));";
     public static final String CREATE_TXS_SQL = "create table if not exists txs " +
-            "(tx_hash text primary key" +
+            "(tx_hash blob primary key" +
             ", tx_ver integer" +
             ", tx_locktime integer" +
             ", tx_time integer" +
@@ -55,13 +68,13 @@ public abstract class AbstractDb {
             ", source integer);";
     public static final String CREATE_BLOCKS_SQL = "create table if not exists blocks " +
             "(block_no integer not null" +
-            ", block_hash text not null primary key" +
-            ", block_root text not null" +
+            ", block_hash blob not null primary key" +
+            ", block_root blob not null" +
             ", block_ver integer not null" +
             ", block_bits integer not null" +
             ", block_nonce integer not null" +
             ", block_time integer not null" +
-            ", block_prev text" +
+            ", block_prev blob" +
             ", is_main integer not null);";
 
     public static final String CREATE_PASSWORD_SEED_SQL = "create table if not exists " +
@@ -152,6 +165,11 @@ public abstract class AbstractDb {
     public static final String ADD_HD_ACCOUNT_ID_FOR_OUTS = "alter table outs add column " +
             "hd_account_id integer;";
 
+    //hash columns of txs, ins, outs, addresses_txs and blocks are stored as 32 byte blob since
+    //this schema version, older base58 text tables are converted by UpgradeHashColumnUtil
+    public static final int HASH_BLOB_SCHEMA_VERSION = 2;
+    public static final String QUERY_TABLE_SQL = "select sql from sqlite_master where type='table' and name=?";
+
     //enterprise hdm
     public static final String CREATE_ENTERPRISE_HD_ACCOUNT = "create table if not exists " +
             "enterprise_hd_account " +
@@ -203,6 +221,22 @@ public abstract class AbstractDb {
         enterpriseHDMProvider = initEnterpriseHDMProvider();
         desktopAddressProvider = initEnDesktopAddressProvider();
         desktopTxProvider = initDesktopTxProvider();
+        upgradeHashColumns();
+    }
+
+    // dbs created before HASH_BLOB_SCHEMA_VERSION keep base58 text hashes until converted here,
+    // the desktop txs may be in a db of their own
+    private void upgradeHashColumns() {
+        Set<IDb> upgradedDbs = new HashSet<IDb>();
+        for (Object provider : new Object[]{txProvider, blockProvider, hdAccountAddressProvider,
+                desktopTxProvider}) {
+            if (provider instanceof IProvider) {
+                IDb db = ((IProvider) provider).getWriteDb();
+                if (db != null && upgradedDbs.add(db)) {
+                    UpgradeHashColumnUtil.upgrade(db);
+                }
+            }
+        }
     }
 
     public abstract IBlockProvider initBlockProvider();
@@ -304,6 +338,12 @@ public abstract class AbstractDb {
         public static final String PEER_SERVICES = "peer_services";
         public static final String PEER_TIMESTAMP = "peer_timestamp";
         public static final String PEER_CONNECTED_CNT = "peer_connected_cnt";
+        public static final String PEER_RTT = "peer_rtt";
+        public static final String PEER_RATE = "peer_rate";
+        public static final String PEER_TIMEOUTS = "peer_timeouts";
+        public static final String PEER_REJECTS = "peer_rejects";
+        public static final String PEER_DISCONNECT_REASON = "peer_disconnect_reason";
+        public static final String PEER_SCORE = "peer_score";
     }
 
     public interface PasswordSeedColumns {
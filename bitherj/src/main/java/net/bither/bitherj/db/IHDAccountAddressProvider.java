@@ -19,10 +19,13 @@ package net.bither.bitherj.db;
 
 import net.bither.bitherj.core.AbstractHD;
 import net.bither.bitherj.core.HDAccount;
+import net.bither.bitherj.core.HDAccountAddressIndex;
 import net.bither.bitherj.core.In;
 import net.bither.bitherj.core.Out;
 import net.bither.bitherj.core.Tx;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -45,12 +48,17 @@ public interface IHDAccountAddressProvider {
     Tx updateOutHDAccountId(Tx tx);
     int getRelatedAddressCnt(List<String> addresses);
     List<Integer> getRelatedHDAccountIdList(List<String> addresses);
+    HashMap<String, Integer> getHDAccountIdByAddresses(Collection<String> addresses);
+
+    void loadAddressIndex(HDAccountAddressIndex index);
 
 
     HDAccount.HDAccountAddress addressForPath(int hdAccountId, AbstractHD.PathType type, int index);
 
     List<byte[]> getPubs(int hdAccountId, AbstractHD.PathType pathType);
 
+    List<byte[]> getPubs(int hdAccountId, AbstractHD.PathType pathType, int fromIndex);
+
     List<HDAccount.HDAccountAddress> belongAccount(int hdAccountId, List<String> addresses);
 
     void updateSyncdComplete(int hdAccountId, HDAccount.HDAccountAddress address);
@@ -32,6 +32,8 @@ public interface IPeerProvider {
 
     void connectSucceed(InetAddress address);
 
+    void updatePeerScore(Peer peer);
+
     List<Peer> getPeersWithLimit(int limit);
 
     void cleanPeers();
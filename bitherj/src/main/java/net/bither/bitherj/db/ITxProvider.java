@@ -18,10 +18,13 @@ package net.bither.bitherj.db;
 
 import net.bither.bitherj.core.In;
 import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.OutPoint;
 import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.core.UnspentOutputs;
 import net.bither.bitherj.utils.Sha256Hash;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public interface ITxProvider {
@@ -37,6 +40,13 @@ public interface ITxProvider {
 
     boolean isExist(byte[] txHash);
 
+    HashSet<Sha256Hash> getExistTxHashes(List<byte[]> txHashes);
+
+    HashMap<Sha256Hash, List<Out>> getOutsByTxHashes(List<byte[]> txHashes);
+
+    // the txs spending each out of prevTxHashes
+    HashMap<OutPoint, HashSet<Sha256Hash>> getSpentByTxHashes(List<byte[]> prevTxHashes, boolean onlyConfirmed);
+
     void add(Tx txItem);
 
     void addTxs(List<Tx> txItems);
@@ -57,6 +67,9 @@ public interface ITxProvider {
 
     List<Tx> getUnspendTxWithAddress(String address);
 
+    // the unspent outs of the address for building txs, cached until the txs change
+    UnspentOutputs getUnspentOutputs(String address);
+
 //    List<Out> getUnspendOutWithAddress(String address);
 
     // for calculate balance
@@ -24,8 +24,6 @@ import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.db.IBlockProvider;
 import net.bither.bitherj.db.imp.base.ICursor;
 import net.bither.bitherj.db.imp.base.IDb;
-import net.bither.bitherj.exception.AddressFormatException;
-import net.bither.bitherj.utils.Base58;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -128,7 +126,7 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
     public Block getBlock(byte[] blockHash) {
         final Block[] item = {null};
         String sql = "select * from blocks where block_hash=?";
-        this.execQueryOneRecord(sql, new String[]{Base58.encode(blockHash)}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(sql, new Object[]{blockHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -142,7 +140,7 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
     public Block getOrphanBlockByPrevHash(byte[] prevHash) {
         final Block[] item = {null};
         String sql = "select * from blocks where block_prev=? and is_main=0";
-        this.execQueryOneRecord(sql, new String[]{Base58.encode(prevHash)}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(sql, new Object[]{prevHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -156,7 +154,7 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
     public Block getMainChainBlock(byte[] blockHash) {
         final Block[] item = {null};
         String sql = "select * from blocks where block_hash=? and is_main=1";
-        this.execQueryOneRecord(sql, new String[]{Base58.encode(blockHash)}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(sql, new Object[]{blockHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -192,15 +190,15 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
         writeDb.beginTransaction();
         String sql = "insert into blocks(block_no,block_hash,block_root,block_ver,block_bits,block_nonce,block_time,block_prev,is_main) values(?,?,?,?,?,?,?,?,?)";
         for (Block item : addBlockList) {
-            this.execUpdate(writeDb, sql, new String[] {
+            this.execUpdate(writeDb, sql, new Object[] {
                     Integer.toString(item.getBlockNo())
-                    , Base58.encode(item.getBlockHash())
-                    , Base58.encode(item.getBlockRoot())
+                    , item.getBlockHash()
+                    , item.getBlockRoot()
                     , Long.toString(item.getBlockVer())
                     , Long.toString(item.getBlockBits())
                     , Long.toString(item.getBlockNonce())
                     , Long.toString(item.getBlockTime())
-                    , Base58.encode(item.getBlockPrev())
+                    , item.getBlockPrev()
                     , item.isMain() ? "1" : "0"
             });
         }
@@ -211,15 +209,15 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
         boolean blockExists = blockExists(item.getBlockHash());
         if (!blockExists) {
             String sql = "insert into blocks(block_no,block_hash,block_root,block_ver,block_bits,block_nonce,block_time,block_prev,is_main) values(?,?,?,?,?,?,?,?,?)";
-            this.execUpdate(sql, new String[] {
+            this.execUpdate(sql, new Object[] {
                     Integer.toString(item.getBlockNo())
-                    , Base58.encode(item.getBlockHash())
-                    , Base58.encode(item.getBlockRoot())
+                    , item.getBlockHash()
+                    , item.getBlockRoot()
                     , Long.toString(item.getBlockVer())
                     , Long.toString(item.getBlockBits())
                     , Long.toString(item.getBlockNonce())
                     , Long.toString(item.getBlockTime())
-                    , Base58.encode(item.getBlockPrev())
+                    , item.getBlockPrev()
                     , item.isMain() ? "1" : "0"
             });
         }
@@ -229,7 +227,7 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
         String sql = "select count(0) cnt from blocks where block_hash=?";
         final int[] cnt = {0};
 
-        this.execQueryOneRecord(sql, new String[]{Base58.encode(blockHash)}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(sql, new Object[]{blockHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -242,12 +240,12 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
 
     public void updateBlock(byte[] blockHash, boolean isMain) {
         String sql = "update blocks set is_main=? where block_hash=?";
-        this.execUpdate(sql, new String[] {isMain ? "1" : "0", Base58.encode(blockHash)});
+        this.execUpdate(sql, new Object[] {isMain ? "1" : "0", blockHash});
     }
 
     public void removeBlock(byte[] blockHash) {
         String sql = "delete from blocks where block_hash=?";
-        this.execUpdate(sql, new String[]{Base58.encode(blockHash)});
+        this.execUpdate(sql, new Object[]{blockHash});
     }
 
     public void cleanOldBlock() {
@@ -295,11 +293,7 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
         }
         idColumn = c.getColumnIndex(AbstractDb.BlocksColumns.BLOCK_HASH);
         if (idColumn != -1) {
-            try {
-                blockHash = Base58.decode(c.getString(idColumn));
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-            }
+            blockHash = c.getBlob(idColumn);
         }
         idColumn = c.getColumnIndex(AbstractDb.BlocksColumns.BLOCK_NO);
         if (idColumn != -1) {
@@ -311,19 +305,11 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
         }
         idColumn = c.getColumnIndex(AbstractDb.BlocksColumns.BLOCK_PREV);
         if (idColumn != -1) {
-            try {
-                prevBlock = Base58.decode(c.getString(idColumn));
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-            }
+            prevBlock = c.getBlob(idColumn);
         }
         idColumn = c.getColumnIndex(AbstractDb.BlocksColumns.BLOCK_ROOT);
         if (idColumn != -1) {
-            try {
-                merkleRoot = Base58.decode(c.getString(idColumn));
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-            }
+            merkleRoot = c.getBlob(idColumn);
         }
         idColumn = c.getColumnIndex(AbstractDb.BlocksColumns.BLOCK_TIME);
         if (idColumn != -1) {
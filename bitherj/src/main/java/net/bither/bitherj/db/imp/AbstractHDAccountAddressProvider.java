@@ -21,6 +21,7 @@ import com.google.common.base.Function;
 import net.bither.bitherj.BitherjSettings;
 import net.bither.bitherj.core.AbstractHD;
 import net.bither.bitherj.core.HDAccount;
+import net.bither.bitherj.core.HDAccountAddressIndex;
 import net.bither.bitherj.core.In;
 import net.bither.bitherj.core.Out;
 import net.bither.bitherj.core.OutPoint;
@@ -35,6 +36,7 @@ import net.bither.bitherj.utils.Sha256Hash;
 import net.bither.bitherj.utils.Utils;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -255,6 +257,44 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
         return hdAccountIdList;
     }
 
+    @Override
+    public HashMap<String, Integer> getHDAccountIdByAddresses(Collection<String> addresses) {
+        final HashMap<String, Integer> hdAccountIds = new HashMap<String, Integer>();
+        if (addresses != null && addresses.size() > 0) {
+            HashSet<String> set = new HashSet<String>();
+            set.addAll(addresses);
+            StringBuilder strBuilder = new StringBuilder();
+            for (String str : set) {
+                strBuilder.append("'").append(str).append("',");
+            }
+            String sql = Utils.format("select address,hd_account_id from hd_account_addresses where address in (%s) "
+                    , strBuilder.substring(0, strBuilder.length() - 1));
+            this.execQueryLoop(sql, null, new Function<ICursor, Void>() {
+                @Nullable
+                @Override
+                public Void apply(@Nullable ICursor c) {
+                    hdAccountIds.put(c.getString(0), c.getInt(1));
+                    return null;
+                }
+            });
+        }
+        return hdAccountIds;
+    }
+
+    @Override
+    public void loadAddressIndex(final HDAccountAddressIndex index) {
+        String sql = "select address,hd_account_id,path_type,address_index from hd_account_addresses";
+        this.execQueryLoop(sql, null, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                index.add(c.getString(0), c.getInt(1), AbstractHD.getTernalRootType(c.getInt(2))
+                        , c.getInt(3));
+                return null;
+            }
+        });
+    }
+
     @Override
     public List<byte[]> getPubs(int hdAccountId, AbstractHD.PathType pathType) {
         String sql = "select pub from hd_account_addresses where path_type=? and hd_account_id=?";
@@ -277,6 +317,29 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
         return adressPubList;
     }
 
+    @Override
+    public List<byte[]> getPubs(int hdAccountId, AbstractHD.PathType pathType, int fromIndex) {
+        String sql = "select pub from hd_account_addresses where path_type=? and hd_account_id=? and address_index>=?";
+        final List<byte[]> adressPubList = new ArrayList<byte[]>();
+        this.execQueryLoop(sql, new String[]{Integer.toString(pathType.getValue()), Integer.toString(hdAccountId)
+                , Integer.toString(fromIndex)}, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                int idColumn = c.getColumnIndex(AbstractDb.HDAccountAddressesColumns.PUB);
+                if (idColumn != -1) {
+                    try {
+                        adressPubList.add(Base58.decode(c.getString(idColumn)));
+                    } catch (AddressFormatException e) {
+                        e.printStackTrace();
+                    }
+                }
+                return null;
+            }
+        });
+        return adressPubList;
+    }
+
     public List<HDAccount.HDAccountAddress> getAllHDAddress(int hdAccountId) {
         final List<HDAccount.HDAccountAddress> adressPubList = new ArrayList<HDAccount
                 .HDAccountAddress>();
@@ -452,7 +515,7 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
                     " where a.address=b.out_address" +
                     " and b.tx_hash=? and b.out_sn=? and a.hd_account_id=?";
             OutPoint outPoint = in.getOutpoint();
-            this.execQueryOneRecord(sql, new String[]{Base58.encode(in.getPrevTxHash()), Integer.toString
+            this.execQueryOneRecord(sql, new Object[]{in.getPrevTxHash(), Integer.toString
                     (outPoint.getOutSn()), Integer.toString(hdAccountId)}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
@@ -532,11 +595,11 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
     }
 
     public void addInsAndOuts(IDb db, final Tx txItem) {
-        String txHashStr = Base58.encode(txItem.getTxHash());
+        byte[] txHash = txItem.getTxHash();
         txItem.setOuts(new ArrayList<Out>());
         txItem.setIns(new ArrayList<In>());
         String sql = "select * from ins where tx_hash=? order by in_sn";
-        this.execQueryLoop(db, sql, new String[]{txHashStr}, new Function<ICursor, Void>() {
+        this.execQueryLoop(db, sql, new Object[]{txHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -548,7 +611,7 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
         });
 
         sql = "select * from outs where tx_hash=? order by out_sn";
-        this.execQueryLoop(db, sql, new String[]{txHashStr}, new Function<ICursor, Void>() {
+        this.execQueryLoop(db, sql, new Object[]{txHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -566,7 +629,7 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
                 " i.tx_hash=? and o.tx_hash=i.prev_tx_hash and i.prev_out_sn=o.out_sn and o" +
                 ".hd_account_id=?";
         final long[] sum = {0};
-        this.execQueryOneRecord(sql, new String[]{Base58.encode(txHash), Integer.toString(hdAccountId)}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(sql, new Object[]{txHash, Integer.toString(hdAccountId)}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -599,7 +662,7 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
                 txItem.setOuts(new ArrayList<Out>());
                 txItemList.add(txItem);
                 txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
-                txsStrBuilder.append("'").append(Base58.encode(txItem.getTxHash())).append("'")
+                txsStrBuilder.append("X'").append(Utils.bytesToHexString(txItem.getTxHash())).append("'")
                         .append(",");
                 return null;
             }
@@ -662,7 +725,7 @@ public abstract class AbstractHDAccountAddressProvider extends AbstractProvider
                 txItem.setOuts(new ArrayList<Out>());
                 txItemList.add(txItem);
                 txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
-                txsStrBuilder.append("'").append(Base58.encode(txItem.getTxHash())).append("'")
+                txsStrBuilder.append("X'").append(Utils.bytesToHexString(txItem.getTxHash())).append("'")
                         .append(",");
                 return null;
             }
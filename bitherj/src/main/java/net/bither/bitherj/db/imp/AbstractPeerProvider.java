@@ -19,6 +19,7 @@ package net.bither.bitherj.db.imp;
 import com.google.common.base.Function;
 
 import net.bither.bitherj.core.Peer;
+import net.bither.bitherj.core.PeerScore;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.db.IPeerProvider;
 import net.bither.bitherj.db.imp.base.ICursor;
@@ -35,7 +36,10 @@ import javax.annotation.Nullable;
 
 public abstract class AbstractPeerProvider extends AbstractProvider implements IPeerProvider {
 
+    private volatile boolean peerScoreColumnsChecked = false;
+
     public List<Peer> getAllPeers() {
+        ensurePeerScoreColumns();
         final List<Peer> peers = new ArrayList<Peer>();
         String sql = "select * from peers";
         this.execQueryLoop(sql, null, new Function<ICursor, Void>() {
@@ -66,6 +70,7 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
 
     @Override
     public void addPeers(List<Peer> items) {
+        ensurePeerScoreColumns();
         List<Peer> addItems = new ArrayList<Peer>();
         List<Peer> allItems = getAllPeers();
         for (Peer peerItem : items) {
@@ -74,7 +79,7 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
             }
         }
         if (addItems.size() > 0) {
-            String sql = "insert into peers(peer_address,peer_port,peer_services,peer_timestamp,peer_connected_cnt) values(?,?,?,?,?)";
+            String sql = "insert into peers(peer_address,peer_port,peer_services,peer_timestamp,peer_connected_cnt,peer_score) values(?,?,?,?,?,?)";
             IDb writeDb = this.getWriteDb();
             writeDb.beginTransaction();
             for (Peer item : addItems) {
@@ -83,7 +88,8 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
                         , Integer.toString(item.getPeerPort())
                         , Long.toString(item.getPeerServices())
                         , Integer.toString(item.getPeerTimestamp())
-                        , Integer.toString(item.getPeerConnectedCnt())});
+                        , Integer.toString(item.getPeerConnectedCnt())
+                        , Double.toString(item.getPeerScore().getValue())});
             }
             writeDb.endTransaction();
         }
@@ -125,8 +131,24 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
         this.execUpdate(sql, new String[] {"1", Long.toString(new Date().getTime()), Long.toString(addressLong)});
     }
 
+    @Override
+    public void updatePeerScore(Peer peer) {
+        ensurePeerScoreColumns();
+        PeerScore score = peer.getPeerScore();
+        String sql = "update peers set peer_rtt=?,peer_rate=?,peer_timeouts=?,peer_rejects=?" +
+                ",peer_disconnect_reason=?,peer_score=? where peer_address=?";
+        this.execUpdate(sql, new String[]{Long.toString(score.getRtt())
+                , Double.toString(score.getItemsPerSecond())
+                , Integer.toString(score.getTimeouts())
+                , Integer.toString(score.getRejects())
+                , Integer.toString(score.getLastDisconnectReason())
+                , Double.toString(score.getValue())
+                , Long.toString(Utils.parseLongFromAddress(peer.getPeerAddress()))});
+    }
+
     public List<Peer> getPeersWithLimit(int limit) {
-        String sql = "select * from peers order by peer_address limit ?";
+        ensurePeerScoreColumns();
+        String sql = "select * from peers order by peer_score desc, peer_address limit ?";
         final List<Peer> peerItemList = new ArrayList<Peer>();
         this.execQueryLoop(sql, new String[]{Integer.toString(limit)}, new Function<ICursor, Void>() {
             @Nullable
@@ -224,6 +246,27 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
         if (idColumn != -1) {
             peerItem.setPeerTimestamp(c.getInt(idColumn));
         }
+        PeerScore score = peerItem.getPeerScore();
+        idColumn = c.getColumnIndex(AbstractDb.PeersColumns.PEER_RTT);
+        if (idColumn != -1) {
+            score.setRtt(c.getLong(idColumn));
+        }
+        idColumn = c.getColumnIndex(AbstractDb.PeersColumns.PEER_RATE);
+        if (idColumn != -1) {
+            score.setItemsPerSecond(c.getDouble(idColumn));
+        }
+        idColumn = c.getColumnIndex(AbstractDb.PeersColumns.PEER_TIMEOUTS);
+        if (idColumn != -1) {
+            score.setTimeouts(c.getInt(idColumn));
+        }
+        idColumn = c.getColumnIndex(AbstractDb.PeersColumns.PEER_REJECTS);
+        if (idColumn != -1) {
+            score.setRejects(c.getInt(idColumn));
+        }
+        idColumn = c.getColumnIndex(AbstractDb.PeersColumns.PEER_DISCONNECT_REASON);
+        if (idColumn != -1) {
+            score.setLastDisconnectReason(c.getInt(idColumn));
+        }
         return peerItem;
     }
 
@@ -233,5 +276,27 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
         this.execUpdate(writeDb, "drop table peers", null);
         this.execUpdate(writeDb, AbstractDb.CREATE_PEER_SQL, null);
         writeDb.endTransaction();
+        peerScoreColumnsChecked = true;
+    }
+
+    // peers is only a cache of known peers, a table from before the score columns is recreated
+    private void ensurePeerScoreColumns() {
+        if (peerScoreColumnsChecked) {
+            return;
+        }
+        final String[] createSql = {null};
+        this.execQueryOneRecord(AbstractDb.QUERY_TABLE_SQL, new String[]{AbstractDb.Tables.PEERS}
+                , new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                createSql[0] = c.getString(0);
+                return null;
+            }
+        });
+        if (createSql[0] != null && !createSql[0].contains(AbstractDb.PeersColumns.PEER_SCORE)) {
+            recreate();
+        }
+        peerScoreColumnsChecked = true;
     }
 }
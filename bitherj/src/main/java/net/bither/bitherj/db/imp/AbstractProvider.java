@@ -18,6 +18,7 @@ package net.bither.bitherj.db.imp;
 
 import com.google.common.base.Function;
 
+import net.bither.bitherj.db.imp.base.BlobParams;
 import net.bither.bitherj.db.imp.base.ICursor;
 import net.bither.bitherj.db.imp.base.IDb;
 import net.bither.bitherj.db.imp.base.IProvider;
@@ -52,4 +53,34 @@ public abstract class AbstractProvider implements IProvider {
     public void execQueryLoop(IDb db, String sql, String[] params, Function<ICursor, Void> func) {
         db.execQueryLoop(sql, params, func);
     }
+
+    @Override
+    public void execUpdate(String sql, Object[] params) {
+        BlobParams.execUpdate(this.getWriteDb(), sql, params);
+    }
+
+    @Override
+    public void execQueryOneRecord(String sql, Object[] params, Function<ICursor, Void> func) {
+        BlobParams.execQueryOneRecord(this.getReadDb(), sql, params, func);
+    }
+
+    @Override
+    public void execQueryLoop(String sql, Object[] params, Function<ICursor, Void> func) {
+        BlobParams.execQueryLoop(this.getReadDb(), sql, params, func);
+    }
+
+    @Override
+    public void execUpdate(IDb db, String sql, Object[] params) {
+        BlobParams.execUpdate(db, sql, params);
+    }
+
+    @Override
+    public void execQueryOneRecord(IDb db, String sql, Object[] params, Function<ICursor, Void> func) {
+        BlobParams.execQueryOneRecord(db, sql, params, func);
+    }
+
+    @Override
+    public void execQueryLoop(IDb db, String sql, Object[] params, Function<ICursor, Void> func) {
+        BlobParams.execQueryLoop(db, sql, params, func);
+    }
 }
@@ -21,7 +21,9 @@ import com.google.common.base.Function;
 import net.bither.bitherj.BitherjSettings;
 import net.bither.bitherj.core.In;
 import net.bither.bitherj.core.Out;
+import net.bither.bitherj.core.OutPoint;
 import net.bither.bitherj.core.Tx;
+import net.bither.bitherj.core.UnspentOutputs;
 import net.bither.bitherj.db.AbstractDb;
 import net.bither.bitherj.db.ITxProvider;
 import net.bither.bitherj.db.imp.base.ICursor;
@@ -39,6 +41,10 @@ import java.util.List;
 import javax.annotation.Nullable;
 
 public abstract class AbstractTxProvider extends AbstractProvider implements ITxProvider {
+    // the unspent outs by address, dropped whenever txs are added, confirmed or removed
+    private final HashMap<String, UnspentOutputs> unspentOutputsCache = new HashMap<String,
+            UnspentOutputs>();
+    private long unspentOutputsVersion;
 
     @Override
     public List<Tx> getTxAndDetailByAddress(String address) {
@@ -121,7 +127,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 txItem.setOuts(new ArrayList<Out>());
                 txItemList.add(txItem);
                 txDict.put(new Sha256Hash(txItem.getTxHash()), txItem);
-                txsStrBuilder.append("'").append(Base58.encode(txItem.getTxHash())).append("'").append(",");
+                txsStrBuilder.append("X'").append(Utils.bytesToHexString(txItem.getTxHash())).append("'").append(",");
                 return null;
             }
         });
@@ -209,10 +215,9 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
     public Tx getTxDetailByTxHash(byte[] txHash) {
         final Tx[] txItem = {null};
         final boolean[] txExists = {false};
-        String txHashStr = Base58.encode(txHash);
         String sql = "select * from txs where tx_hash=?";
         IDb db = this.getReadDb();
-        this.execQueryOneRecord(db, sql, new String[]{txHashStr}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(db, sql, new Object[]{txHash}, new Function<ICursor, Void>() {
             @Nullable
 
             @Override
@@ -233,7 +238,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         String sql = "select  sum(o.out_value) out_value from ins i,outs o where" +
                 " i.tx_hash=? and o.tx_hash=i.prev_tx_hash and i.prev_out_sn=o.out_sn and o.out_address=?";
         final long[] sum = {0};
-        this.execQueryOneRecord(sql, new String[]{Base58.encode(txHash), address}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(sql, new Object[]{txHash, address}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -251,7 +256,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
     public boolean isExist(byte[] txHash) {
         final boolean[] result = {false};
         String sql = "select count(0) from txs where tx_hash=?";
-        this.execQueryOneRecord(sql, new String[]{Base58.encode(txHash)}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(sql, new Object[]{txHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -262,11 +267,90 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         return result[0];
     }
 
+    public HashSet<Sha256Hash> getExistTxHashes(List<byte[]> txHashes) {
+        final HashSet<Sha256Hash> result = new HashSet<Sha256Hash>();
+        if (txHashes == null || txHashes.size() == 0) {
+            return result;
+        }
+        String sql = Utils.format("select tx_hash from txs where tx_hash in (%s)", hashInSql(txHashes));
+        this.execQueryLoop(sql, null, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                result.add(new Sha256Hash(c.getBlob(0)));
+                return null;
+            }
+        });
+        return result;
+    }
+
+    public HashMap<Sha256Hash, List<Out>> getOutsByTxHashes(List<byte[]> txHashes) {
+        final HashMap<Sha256Hash, List<Out>> result = new HashMap<Sha256Hash, List<Out>>();
+        if (txHashes == null || txHashes.size() == 0) {
+            return result;
+        }
+        String sql = Utils.format("select * from outs where tx_hash in (%s) order by tx_hash,out_sn"
+                , hashInSql(txHashes));
+        this.execQueryLoop(sql, null, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                Out out = applyCursorOut(c);
+                Sha256Hash txHash = new Sha256Hash(out.getTxHash());
+                if (!result.containsKey(txHash)) {
+                    result.put(txHash, new ArrayList<Out>());
+                }
+                result.get(txHash).add(out);
+                return null;
+            }
+        });
+        return result;
+    }
+
+    public HashMap<OutPoint, HashSet<Sha256Hash>> getSpentByTxHashes(List<byte[]> prevTxHashes
+            , boolean onlyConfirmed) {
+        final HashMap<OutPoint, HashSet<Sha256Hash>> result = new HashMap<OutPoint, HashSet<Sha256Hash>>();
+        if (prevTxHashes == null || prevTxHashes.size() == 0) {
+            return result;
+        }
+        String sql;
+        if (onlyConfirmed) {
+            sql = Utils.format("select a.tx_hash,a.prev_tx_hash,a.prev_out_sn from ins a, txs b" +
+                    " where a.tx_hash=b.tx_hash and b.block_no is not null and a.prev_tx_hash in (%s)"
+                    , hashInSql(prevTxHashes));
+        } else {
+            sql = Utils.format("select tx_hash,prev_tx_hash,prev_out_sn from ins where prev_tx_hash in (%s)"
+                    , hashInSql(prevTxHashes));
+        }
+        this.execQueryLoop(sql, null, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                OutPoint outPoint = new OutPoint(c.getBlob(1), c.getInt(2));
+                if (!result.containsKey(outPoint)) {
+                    result.put(outPoint, new HashSet<Sha256Hash>());
+                }
+                result.get(outPoint).add(new Sha256Hash(c.getBlob(0)));
+                return null;
+            }
+        });
+        return result;
+    }
+
+    private static String hashInSql(List<byte[]> hashes) {
+        StringBuilder strBuilder = new StringBuilder();
+        for (byte[] hash : hashes) {
+            strBuilder.append("X'").append(Utils.bytesToHexString(hash)).append("',");
+        }
+        return strBuilder.substring(0, strBuilder.length() - 1);
+    }
+
     public void add(Tx txItem) {
         IDb db = this.getWriteDb();
         db.beginTransaction();
         addTxToDb(db, txItem);
         db.endTransaction();
+        unspentOutputsChanged();
     }
 
     public void addTxs(List<Tx> txItems) {
@@ -277,6 +361,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 addTxToDb(db, txItem);
             }
             db.endTransaction();
+            unspentOutputsChanged();
         }
     }
 
@@ -293,31 +378,31 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         }
         String sql = "insert or ignore into addresses_txs(address, tx_hash) values(?,?)";
         for (AddressTx addressTx : addressesTxsRels) {
-            this.execUpdate(db, sql, new String[]{addressTx.getAddress(), addressTx.getTxHash()});
+            this.execUpdate(db, sql, new Object[]{addressTx.getAddress(), addressTx.getTxHash()});
         }
     }
 
     public void remove(byte[] txHash) {
-        String txHashStr = Base58.encode(txHash);
-        List<String> txHashes = new ArrayList<String>();
-        List<String> needRemoveTxHashes = new ArrayList<String>();
-        txHashes.add(txHashStr);
+        List<byte[]> txHashes = new ArrayList<byte[]>();
+        List<byte[]> needRemoveTxHashes = new ArrayList<byte[]>();
+        txHashes.add(txHash);
         while (txHashes.size() > 0) {
-            String thisHash = txHashes.get(0);
+            byte[] thisHash = txHashes.get(0);
             txHashes.remove(0);
             needRemoveTxHashes.add(thisHash);
-            List<String> temp = getRelayTx(thisHash);
+            List<byte[]> temp = getRelayTx(thisHash);
             txHashes.addAll(temp);
         }
         IDb db = this.getWriteDb();
         db.beginTransaction();
-        for (String str : needRemoveTxHashes) {
-            removeSingleTx(db, str);
+        for (byte[] each : needRemoveTxHashes) {
+            removeSingleTx(db, each);
         }
         db.endTransaction();
+        unspentOutputsChanged();
     }
 
-    private void removeSingleTx(IDb db, String tx) {
+    private void removeSingleTx(IDb db, byte[] tx) {
         String deleteTx = "delete from txs where tx_hash=?";
         String deleteIn = "delete from ins where tx_hash=?";
         String deleteOut = "delete from outs where tx_hash=?";
@@ -326,15 +411,15 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         String existOtherIn = "select count(0) cnt from ins where prev_tx_hash=? and prev_out_sn=?";
         String updatePrevOut = "update outs set out_status=? where tx_hash=? and out_sn=?";
         final List<Object[]> needUpdateOuts = new ArrayList<Object[]>();
-        this.execQueryLoop(db, inSql, new String[]{tx}, new Function<ICursor, Void>() {
+        this.execQueryLoop(db, inSql, new Object[]{tx}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
                 int idColumn = c.getColumnIndex(AbstractDb.InsColumns.PREV_TX_HASH);
-                String prevTxHash = null;
+                byte[] prevTxHash = null;
                 int prevOutSn = 0;
                 if (idColumn != -1) {
-                    prevTxHash = c.getString(idColumn);
+                    prevTxHash = c.getBlob(idColumn);
                 }
                 idColumn = c.getColumnIndex(AbstractDb.InsColumns.PREV_OUT_SN);
                 if (idColumn != -1) {
@@ -344,13 +429,13 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 return null;
             }
         });
-        this.execUpdate(db, deleteAddressesTx, new String[] {tx});
-        this.execUpdate(db, deleteOut, new String[] {tx});
-        this.execUpdate(db, deleteIn, new String[] {tx});
-        this.execUpdate(db, deleteTx, new String[] {tx});
+        this.execUpdate(db, deleteAddressesTx, new Object[] {tx});
+        this.execUpdate(db, deleteOut, new Object[] {tx});
+        this.execUpdate(db, deleteIn, new Object[] {tx});
+        this.execUpdate(db, deleteTx, new Object[] {tx});
         for (Object[] array : needUpdateOuts) {
             final boolean[] isExist = {false};
-            this.execQueryLoop(db, existOtherIn, new String[]{array[0].toString(), array[1].toString()}, new Function<ICursor, Void>() {
+            this.execQueryLoop(db, existOtherIn, new Object[]{array[0], array[1].toString()}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
@@ -361,19 +446,19 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 }
             });
             if (isExist[0]) {
-                this.execUpdate(db, updatePrevOut, new String[] {"0", array[0].toString(), array[1].toString()});
+                this.execUpdate(db, updatePrevOut, new Object[] {"0", array[0], array[1].toString()});
             }
         }
     }
 
-    private List<String> getRelayTx(String txHash) {
-        final List<String> relayTxHashes = new ArrayList<String>();
+    private List<byte[]> getRelayTx(byte[] txHash) {
+        final List<byte[]> relayTxHashes = new ArrayList<byte[]>();
         String relayTxSql = "select distinct tx_hash from ins where prev_tx_hash=?";
-        this.execQueryLoop(relayTxSql, new String[]{txHash}, new Function<ICursor, Void>() {
+        this.execQueryLoop(relayTxSql, new Object[]{txHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
-                relayTxHashes.add(c.getString(0));
+                relayTxHashes.add(c.getBlob(0));
                 return null;
             }
         });
@@ -387,7 +472,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         IDb db = this.getReadDb();
         for (In inItem : txItem.getIns()) {
             final boolean[] isDoubleSpent = {false};
-            this.execQueryOneRecord(db, sql, new String[]{Base58.encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())}, new Function<ICursor, Void>() {
+            this.execQueryOneRecord(db, sql, new Object[]{inItem.getPrevTxHash(), Integer.toString(inItem.getPrevOutSn())}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
@@ -401,7 +486,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         }
         sql = "select count(0) from addresses_txs where tx_hash=? and address=?";
         final boolean[] isRecordInRel = {false};
-        this.execQueryOneRecord(db, sql, new String[]{Base58.encode(txItem.getTxHash()), address}
+        this.execQueryOneRecord(db, sql, new Object[]{txItem.getTxHash(), address}
                 , new Function<ICursor, Void>() {
             @Nullable
             @Override
@@ -416,7 +501,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         sql = "select count(0) from outs where tx_hash=? and out_sn=? and out_address=?";
         for (In inItem : txItem.getIns()) {
             final int[] cnt = {0};
-            this.execQueryOneRecord(db, sql, new String[]{Base58.encode(inItem.getPrevTxHash())
+            this.execQueryOneRecord(db, sql, new Object[]{inItem.getPrevTxHash()
                     , Integer.toString(inItem.getPrevOutSn()), address}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
@@ -438,7 +523,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         IDb db = this.getReadDb();
         for (In inItem : tx.getIns()) {
             final int[] cnt = {0};
-            this.execQueryOneRecord(db, sql, new String[]{Base58.encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())}, new Function<ICursor, Void>() {
+            this.execQueryOneRecord(db, sql, new Object[]{inItem.getPrevTxHash(), Integer.toString(inItem.getPrevOutSn())}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
@@ -458,7 +543,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         String sql = "select out_address from outs where tx_hash=? and out_sn=?";
         IDb db = this.getReadDb();
         for (In inItem : tx.getIns()) {
-            this.execQueryOneRecord(db, sql, new String[]{Base58.encode(inItem.getPrevTxHash())
+            this.execQueryOneRecord(db, sql, new Object[]{inItem.getPrevTxHash()
                     , Integer.toString(inItem.getPrevOutSn())}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
@@ -487,7 +572,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         db.beginTransaction();
         for (byte[] txHash : txHashes) {
             final int[] cnt = {0};
-            this.execQueryOneRecord(db, existSql, new String[]{Integer.toString(blockNo), Base58.encode(txHash)}, new Function<ICursor, Void>() {
+            this.execQueryOneRecord(db, existSql, new Object[]{Integer.toString(blockNo), txHash}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
@@ -498,28 +583,28 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
             if (cnt[0] > 0) {
                 continue;
             }
-            this.execUpdate(db, updateBlockNoSql, new String[] {Integer.toString(blockNo), Base58.encode(txHash)});
-            final List<String> txHashes1 = new ArrayList<String>();
-            this.execQueryLoop(db, doubleSpendSql, new String[]{Base58.encode(txHash)}, new Function<ICursor, Void>() {
+            this.execUpdate(db, updateBlockNoSql, new Object[] {Integer.toString(blockNo), txHash});
+            final List<byte[]> txHashes1 = new ArrayList<byte[]>();
+            this.execQueryLoop(db, doubleSpendSql, new Object[]{txHash}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
                     int idColumn = c.getColumnIndex("tx_hash");
                     if (idColumn != -1) {
-                        txHashes1.add(c.getString(idColumn));
+                        txHashes1.add(c.getBlob(idColumn));
                     }
                     return null;
                 }
             });
-            List<String> needRemoveTxHashes = new ArrayList<String>();
+            List<byte[]> needRemoveTxHashes = new ArrayList<byte[]>();
             while (txHashes1.size() > 0) {
-                String thisHash = txHashes1.get(0);
+                byte[] thisHash = txHashes1.get(0);
                 txHashes1.remove(0);
                 needRemoveTxHashes.add(thisHash);
-                List<String> temp = getRelayTx(thisHash);
+                List<byte[]> temp = getRelayTx(thisHash);
                 txHashes1.addAll(temp);
             }
-            for (String each : needRemoveTxHashes) {
+            for (byte[] each : needRemoveTxHashes) {
                 removeSingleTx(db, each);
             }
         }
@@ -540,11 +625,52 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                     , Integer.toString(blockNo), Integer.toString(blockTime[0])});
         }
         db.endTransaction();
+        unspentOutputsChanged();
     }
 
     public void unConfirmTxByBlockNo(int blockNo) {
         String sql = "update txs set block_no=null where block_no>=?";
         this.execUpdate(sql, new String[] {Integer.toString(blockNo)});
+        unspentOutputsChanged();
+    }
+
+    public UnspentOutputs getUnspentOutputs(String address) {
+        long version;
+        synchronized (unspentOutputsCache) {
+            UnspentOutputs unspentOutputs = unspentOutputsCache.get(address);
+            if (unspentOutputs != null) {
+                return unspentOutputs;
+            }
+            version = unspentOutputsVersion;
+        }
+        String sql = "select a.tx_hash,a.out_sn,a.out_value,a.out_script,ifnull(b.block_no,0) " +
+                "block_no from outs a,txs b where a.tx_hash=b.tx_hash and a.out_address=? and " +
+                "a.out_status=?";
+        final UnspentOutputs unspentOutputs = new UnspentOutputs(address);
+        this.execQueryLoop(sql, new String[]{address, Integer.toString(Out.OutStatus.unspent
+                .getValue())}, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                unspentOutputs.add(c.getBlob(0), c.getInt(1), c.getLong(2), c.getInt(4), c
+                        .getBlob(3));
+                return null;
+            }
+        });
+        synchronized (unspentOutputsCache) {
+            // txs changed while we were reading, the outs may already be stale
+            if (version == unspentOutputsVersion) {
+                unspentOutputsCache.put(address, unspentOutputs);
+            }
+        }
+        return unspentOutputs;
+    }
+
+    private void unspentOutputsChanged() {
+        synchronized (unspentOutputsCache) {
+            unspentOutputsVersion++;
+            unspentOutputsCache.clear();
+        }
     }
 
     @Override
@@ -705,7 +831,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
 
     public void txSentBySelfHasSaw(byte[] txHash) {
         String sql = "update txs set source=source+1 where tx_hash=? and source>=1";
-        this.execUpdate(sql, new String[]{Base58.encode(txHash)});
+        this.execUpdate(sql, new Object[]{txHash});
     }
 
     public List<Out> getOuts() {
@@ -804,6 +930,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         this.execUpdate(db, AbstractDb.CREATE_ADDRESSTXS_SQL, null);
         this.execUpdate(db, AbstractDb.CREATE_PEER_SQL, null);
         db.endTransaction();
+        unspentOutputsChanged();
     }
 
     public void completeInSignature(List<In> ins) {
@@ -811,8 +938,8 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         db.beginTransaction();
         String sql = "update ins set in_signature=? where tx_hash=? and in_sn=? and ifnull(in_signature,'')=''";
         for (In in : ins) {
-            this.execUpdate(db, sql, new String[]{Base58.encode(in.getInSignature())
-                    , Base58.encode(in.getTxHash()), Integer.toString(in.getInSn())});
+            this.execUpdate(db, sql, new Object[]{Base58.encode(in.getInSignature())
+                    , in.getTxHash(), Integer.toString(in.getInSn())});
         }
         db.endTransaction();
     }
@@ -852,11 +979,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         }
         idColumn = c.getColumnIndex(AbstractDb.TxsColumns.TX_HASH);
         if (idColumn != -1) {
-            try {
-                txItem.setTxHash(Base58.decode(c.getString(idColumn)));
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-            }
+            txItem.setTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(AbstractDb.TxsColumns.SOURCE);
         if (idColumn != -1) {
@@ -888,11 +1011,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         In inItem = new In();
         int idColumn = c.getColumnIndex(AbstractDb.InsColumns.TX_HASH);
         if (idColumn != -1) {
-            try {
-                inItem.setTxHash(Base58.decode(c.getString(idColumn)));
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-            }
+            inItem.setTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(AbstractDb.InsColumns.IN_SN);
         if (idColumn != -1) {
@@ -900,11 +1019,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         }
         idColumn = c.getColumnIndex(AbstractDb.InsColumns.PREV_TX_HASH);
         if (idColumn != -1) {
-            try {
-                inItem.setPrevTxHash(Base58.decode(c.getString(idColumn)));
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-            }
+            inItem.setPrevTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(AbstractDb.InsColumns.PREV_OUT_SN);
         if (idColumn != -1) {
@@ -932,11 +1047,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         Out outItem = new Out();
         int idColumn = c.getColumnIndex(AbstractDb.OutsColumns.TX_HASH);
         if (idColumn != -1) {
-            try {
-                outItem.setTxHash(Base58.decode(c.getString(idColumn)));
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-            }
+            outItem.setTxHash(c.getBlob(idColumn));
         }
         idColumn = c.getColumnIndex(AbstractDb.OutsColumns.OUT_SN);
         if (idColumn != -1) {
@@ -970,11 +1081,11 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
     }
 
     public void addInsAndOuts(IDb db, final Tx txItem) {
-        String txHashStr = Base58.encode(txItem.getTxHash());
+        byte[] txHash = txItem.getTxHash();
         txItem.setOuts(new ArrayList<Out>());
         txItem.setIns(new ArrayList<In>());
         String sql = "select * from ins where tx_hash=? order by in_sn";
-        this.execQueryLoop(db, sql, new String[]{txHashStr}, new Function<ICursor, Void>() {
+        this.execQueryLoop(db, sql, new Object[]{txHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -986,7 +1097,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         });
 
         sql = "select * from outs where tx_hash=? order by out_sn";
-        this.execQueryLoop(db, sql, new String[]{txHashStr}, new Function<ICursor, Void>() {
+        this.execQueryLoop(db, sql, new Object[]{txHash}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -1001,7 +1112,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
     public void insertTx(IDb db, Tx txItem) {
         final int[] cnt = {0};
         String existSql = "select count(0) cnt from txs where tx_hash=?";
-        this.execQueryOneRecord(db, existSql, new String[]{Base58.encode(txItem.getTxHash())}, new Function<ICursor, Void>() {
+        this.execQueryOneRecord(db, existSql, new Object[]{txItem.getTxHash()}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
@@ -1019,6 +1130,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
 
     }
 
+    // tx_hash and prev_tx_hash must be bound as byte[] so they are stored as blob
     protected abstract void insertTxToDb(IDb db, Tx tx);
 
 
@@ -1029,7 +1141,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         String updateOutStatusSql = "update outs set out_status=? where tx_hash=? and out_sn=?";
         for (In inItem : txItem.getIns()) {
             final int[] cnt = {0};
-            this.execQueryOneRecord(db, existSql, new String[]{Base58.encode(inItem.getTxHash())
+            this.execQueryOneRecord(db, existSql, new Object[]{inItem.getTxHash()
                         , Integer.toString(inItem.getInSn())}
                     , new Function<ICursor, Void>() {
                 @Nullable
@@ -1046,7 +1158,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 this.insertInToDb(db, inItem);
             }
 
-            this.execQueryLoop(db, outAddressSql, new String[]{Base58.encode(inItem.getPrevTxHash())
+            this.execQueryLoop(db, outAddressSql, new Object[]{inItem.getPrevTxHash()
                         , Integer.toString(inItem.getPrevOutSn())}
                     , new Function<ICursor, Void>() {
                 @Nullable
@@ -1054,15 +1166,13 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 public Void apply(@Nullable ICursor c) {
                     int idColumn = c.getColumnIndex("out_address");
                     if (idColumn != -1) {
-                        addressTxes.add(new AddressTx(c.getString(idColumn), Base58.encode(txItem
-                                .getTxHash())));
+                        addressTxes.add(new AddressTx(c.getString(idColumn), txItem.getTxHash()));
                     }
                     return null;
                 }
             });
 
-            this.execUpdate(db, updateOutStatusSql, new String[]{Integer.toString(Out.OutStatus.spent.getValue()), Base58
-                    .encode(inItem.getPrevTxHash()), Integer.toString(inItem.getPrevOutSn())});
+            this.execUpdate(db, updateOutStatusSql, new Object[]{Integer.toString(Out.OutStatus.spent.getValue()), inItem.getPrevTxHash(), Integer.toString(inItem.getPrevOutSn())});
         }
         return addressTxes;
     }
@@ -1079,7 +1189,7 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         final List<AddressTx> addressTxes = new ArrayList<AddressTx>();
         for (final Out outItem : txItem.getOuts()) {
             final int[] cnt = {0};
-            this.execQueryOneRecord(db, existSql, new String[]{Base58.encode(outItem.getTxHash()), Integer
+            this.execQueryOneRecord(db, existSql, new Object[]{outItem.getTxHash(), Integer
                     .toString(outItem.getOutSn())}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
@@ -1095,8 +1205,8 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 this.insertOutToDb(db, outItem);
             } else {
                 if (outItem.getHDAccountId() > -1) {
-                    this.execUpdate(db, updateHDAccountIdSql, new String[]{
-                            Integer.toString(outItem.getHDAccountId()), Base58.encode(txItem.getTxHash())
+                    this.execUpdate(db, updateHDAccountIdSql, new Object[]{
+                            Integer.toString(outItem.getHDAccountId()), txItem.getTxHash()
                             , Integer.toString(outItem.getOutSn())});
                 }
             }
@@ -1122,61 +1232,60 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                 }
             }
             if (!Utils.isEmpty(outItem.getOutAddress())) {
-                addressTxes.add(new AddressTx(outItem.getOutAddress(), Base58.encode(txItem
-                        .getTxHash())));
+                addressTxes.add(new AddressTx(outItem.getOutAddress(), txItem.getTxHash()));
             }
             final boolean[] isSpentByExistTx = {false};
-            this.execQueryOneRecord(db, queryPrevTxHashSql, new String[]{Base58.encode(txItem.getTxHash())
+            this.execQueryOneRecord(db, queryPrevTxHashSql, new Object[]{txItem.getTxHash()
                     , Integer.toString(outItem.getOutSn())}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
                     int idColumn = c.getColumnIndex("tx_hash");
                     if (idColumn != -1) {
-                        addressTxes.add(new AddressTx(outItem.getOutAddress(), c.getString(idColumn)));
+                        addressTxes.add(new AddressTx(outItem.getOutAddress(), c.getBlob(idColumn)));
                     }
                     isSpentByExistTx[0] = true;
                     return null;
                 }
             });
             if (isSpentByExistTx[0]) {
-                this.execUpdate(db, updateOutStatusSql, new String[]{Integer.toString(Out.OutStatus.spent.getValue())
-                        , Base58.encode(txItem.getTxHash()), Integer.toString(outItem.getOutSn())});
+                this.execUpdate(db, updateOutStatusSql, new Object[]{Integer.toString(Out.OutStatus.spent.getValue())
+                        , txItem.getTxHash(), Integer.toString(outItem.getOutSn())});
             }
         }
         return addressTxes;
     }
 
+    // another tx spending all the same outs, the same rule as AddressManager uses for a batch
     public byte[] isIdentify(Tx tx) {
-        HashSet<String> result = new HashSet<String>();
+        HashSet<Sha256Hash> result = null;
 
         for (In in : tx.getIns()) {
             String queryPrevTxHashSql = "select tx_hash from ins where prev_tx_hash=? and prev_out_sn=?";
-            final HashSet<String> each = new HashSet<String>();
-            this.execQueryOneRecord(this.getReadDb(), queryPrevTxHashSql, new String[]{Base58.encode(in.getPrevTxHash())
+            final HashSet<Sha256Hash> each = new HashSet<Sha256Hash>();
+            this.execQueryLoop(this.getReadDb(), queryPrevTxHashSql, new Object[]{in.getPrevTxHash()
                     , Integer.toString(in.getPrevOutSn())}, new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
-                    each.add(c.getString(0));
+                    each.add(new Sha256Hash(c.getBlob(0)));
                     return null;
                 }
             });
-            each.remove(Base58.encode(tx.getTxHash()));
-            result.retainAll(each);
+            each.remove(new Sha256Hash(tx.getTxHash()));
+            if (result == null) {
+                result = each;
+            } else {
+                result.retainAll(each);
+            }
             if (result.size() == 0) {
                 break;
             }
         }
-        if (result.size() == 0) {
+        if (result == null || result.size() == 0) {
             return new byte[0];
         } else {
-            try {
-                return Base58.decode((String) result.toArray()[0]);
-            } catch (AddressFormatException e) {
-                e.printStackTrace();
-                return new byte[0];
-            }
+            return result.iterator().next().getBytes();
         }
     }
 
@@ -1184,18 +1293,18 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
 
     public static class AddressTx {
         private String address;
-        private String txHash;
+        private byte[] txHash;
 
-        public AddressTx(String address, String txHash) {
+        public AddressTx(String address, byte[] txHash) {
             this.address = address;
             this.txHash = txHash;
         }
 
-        public String getTxHash() {
+        public byte[] getTxHash() {
             return txHash;
         }
 
-        public void setTxHash(String txHash) {
+        public void setTxHash(byte[] txHash) {
             this.txHash = txHash;
         }
 
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.db.imp;
+
+import net.bither.bitherj.BitherjSettings;
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.db.IBlockProvider;
+import net.bither.bitherj.utils.Sha256Hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the blocks in a memory mapped file instead of the blocks table, for desktop and server
+ * deployments which sync many headers. Every block is a fixed size record appended to the file:
+ * the 80 bytes header, the block hash, the height, a checksum and a flags byte. The flags are not
+ * covered by the checksum so switching a block between the main chain and a fork, or removing it,
+ * is a single byte write in place. On open the records are read up to the first one with a bad
+ * checksum, so a record torn by a crash is cut off with everything after it.
+ * <p/>
+ * A mapped file can not be deleted or renamed on windows while it is mapped, and a mapping is
+ * only released by gc, so the file is never replaced. Compaction writes the kept records to a
+ * side file first and then copies them over the start of the mapped file.
+ */
+public class MappedBlockProvider implements IBlockProvider {
+    private static final Logger log = LoggerFactory.getLogger(MappedBlockProvider.class);
+
+    private static final int HEADER_SIZE = 80;
+    private static final int HASH_OFFSET = HEADER_SIZE;
+    private static final int BLOCK_NO_OFFSET = HASH_OFFSET + 32;
+    private static final int CHECKSUM_OFFSET = BLOCK_NO_OFFSET + 4;
+    private static final int FLAGS_OFFSET = CHECKSUM_OFFSET + 8;
+    private static final int RECORD_SIZE = 128;
+
+    private static final byte FLAG_MAIN = 1;
+    private static final byte FLAG_REMOVED = 2;
+
+    private static final int GROW_RECORDS = 16 * 1024;
+    private static final int CLEAN_BLOCK_COUNT = 5000;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int recordCount;
+    private int removedCount;
+
+    private final HashMap<Sha256Hash, Integer> indexByHash = new HashMap<Sha256Hash, Integer>();
+    private final HashMap<Integer, Integer> mainIndexByBlockNo = new HashMap<Integer, Integer>();
+    private final HashSet<Integer> orphanIndexes = new HashSet<Integer>();
+    private int lastMainBlockNo = -1;
+
+    public MappedBlockProvider(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    public synchronized List<Block> getAllBlocks() {
+        return getBlocks(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public synchronized List<Block> getBlocksFrom(int blockNo) {
+        return getBlocks(blockNo, Integer.MAX_VALUE);
+    }
+
+    public synchronized List<Block> getLimitBlocks(int limit) {
+        return getBlocks(Integer.MIN_VALUE, limit);
+    }
+
+    public synchronized int getBlockCount() {
+        return indexByHash.size();
+    }
+
+    public synchronized Block getLastBlock() {
+        Integer index = mainIndexByBlockNo.get(lastMainBlockNo);
+        return index == null ? null : readBlock(index);
+    }
+
+    public synchronized Block getLastOrphanBlock() {
+        Block last = null;
+        for (int index : orphanIndexes) {
+            if (last == null || blockNo(index) > last.getBlockNo()) {
+                last = readBlock(index);
+            }
+        }
+        return last;
+    }
+
+    public synchronized Block getBlock(byte[] blockHash) {
+        Integer index = indexByHash.get(new Sha256Hash(blockHash));
+        return index == null ? null : readBlock(index);
+    }
+
+    public synchronized Block getOrphanBlockByPrevHash(byte[] prevHash) {
+        for (int index : orphanIndexes) {
+            Block block = readBlock(index);
+            if (new Sha256Hash(prevHash).equals(new Sha256Hash(block.getBlockPrev()))) {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    public synchronized Block getMainChainBlock(byte[] blockHash) {
+        Integer index = indexByHash.get(new Sha256Hash(blockHash));
+        return index == null || !isMain(index) ? null : readBlock(index);
+    }
+
+    /**
+     * @return the main chain block at the height, or null
+     */
+    public synchronized Block getMainChainBlock(int blockNo) {
+        Integer index = mainIndexByBlockNo.get(blockNo);
+        return index == null ? null : readBlock(index);
+    }
+
+    public synchronized void addBlocks(List<Block> blockItemList) {
+        for (Block item : blockItemList) {
+            append(item);
+        }
+        buffer.force();
+    }
+
+    public synchronized void addBlock(Block item) {
+        append(item);
+        buffer.force();
+    }
+
+    public synchronized void updateBlock(byte[] blockHash, boolean isMain) {
+        Integer index = indexByHash.get(new Sha256Hash(blockHash));
+        if (index == null || isMain(index) == isMain) {
+            return;
+        }
+        buffer.put(index * RECORD_SIZE + FLAGS_OFFSET, isMain ? FLAG_MAIN : 0);
+        buffer.force();
+        if (isMain) {
+            orphanIndexes.remove(index);
+            indexMain(index);
+        } else {
+            unindexMain(index);
+            orphanIndexes.add(index);
+        }
+    }
+
+    public synchronized void removeBlock(byte[] blockHash) {
+        Integer index = indexByHash.remove(new Sha256Hash(blockHash));
+        if (index == null) {
+            return;
+        }
+        if (isMain(index)) {
+            unindexMain(index);
+        } else {
+            orphanIndexes.remove(index);
+        }
+        buffer.put(index * RECORD_SIZE + FLAGS_OFFSET, FLAG_REMOVED);
+        buffer.force();
+        removedCount++;
+    }
+
+    /**
+     * Like the blocks table, only keeps the blocks from the difficulty interval before the last
+     * one. The kept records replace the records at the start of the file, the file does not
+     * shrink.
+     */
+    public synchronized void cleanOldBlock() {
+        if (indexByHash.size() <= CLEAN_BLOCK_COUNT && removedCount <= CLEAN_BLOCK_COUNT) {
+            return;
+        }
+        int afterBlockNo = Integer.MIN_VALUE;
+        if (indexByHash.size() > CLEAN_BLOCK_COUNT) {
+            afterBlockNo = (lastMainBlockNo - BitherjSettings.BLOCK_DIFFICULTY_INTERVAL) -
+                    lastMainBlockNo % BitherjSettings.BLOCK_DIFFICULTY_INTERVAL - 1;
+        }
+        try {
+            compact(afterBlockNo);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        buffer.force();
+        randomAccessFile.close();
+    }
+
+    private List<Block> getBlocks(int fromBlockNo, int limit) {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int index : indexByHash.values()) {
+            if (blockNo(index) > fromBlockNo) {
+                indexes.add(index);
+            }
+        }
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int lhsBlockNo = blockNo(lhs);
+                int rhsBlockNo = blockNo(rhs);
+                return lhsBlockNo > rhsBlockNo ? -1 : (lhsBlockNo == rhsBlockNo ? 0 : 1);
+            }
+        });
+        List<Block> blocks = new ArrayList<Block>();
+        for (int index : indexes) {
+            if (blocks.size() >= limit) {
+                break;
+            }
+            blocks.add(readBlock(index));
+        }
+        return blocks;
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        capacity = (int) (randomAccessFile.length() / RECORD_SIZE);
+        map(Math.max(capacity, GROW_RECORDS));
+        File compactingTmp = compactingTmpFile();
+        if (compactingTmp.exists() && !compactingTmp.delete()) {
+            throw new IOException("can not delete " + compactingTmp);
+        }
+        File compacting = compactingFile();
+        if (compacting.exists()) {
+            // a compaction that was not copied over completely before a crash
+            log.warn("block file {} finishes an interrupted compaction", file.getName());
+            replaceRecords(readRecords(compacting), capacity);
+            if (!compacting.delete()) {
+                throw new IOException("can not delete " + compacting);
+            }
+        }
+        indexRecords();
+    }
+
+    private void indexRecords() {
+        recordCount = 0;
+        removedCount = 0;
+        indexByHash.clear();
+        mainIndexByBlockNo.clear();
+        orphanIndexes.clear();
+        lastMainBlockNo = -1;
+        while (recordCount < capacity && checksum(recordCount) == buffer.getLong(recordCount *
+                RECORD_SIZE + CHECKSUM_OFFSET)) {
+            index(recordCount);
+            recordCount++;
+        }
+        if (recordCount < capacity) {
+            // cut off what a crash left after the last complete record
+            byte[] empty = new byte[RECORD_SIZE];
+            for (int i = recordCount;
+                 i < capacity;
+                 i++) {
+                buffer.position(i * RECORD_SIZE);
+                buffer.put(empty);
+            }
+            buffer.force();
+        }
+        log.info("block file {} has {} blocks in {} records", file.getName(), indexByHash
+                .size(), recordCount);
+    }
+
+    private void map(int records) throws IOException {
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)
+                records * RECORD_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        capacity = records;
+    }
+
+    private void append(Block block) {
+        if (indexByHash.containsKey(new Sha256Hash(block.getBlockHash()))) {
+            return;
+        }
+        if (recordCount == capacity) {
+            try {
+                buffer.force();
+                map(capacity + GROW_RECORDS);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        writeRecord(buffer, recordCount, block);
+        index(recordCount);
+        recordCount++;
+    }
+
+    private static void writeRecord(ByteBuffer buffer, int index, Block block) {
+        int offset = index * RECORD_SIZE;
+        buffer.position(offset);
+        buffer.putInt((int) block.getBlockVer());
+        buffer.put(block.getBlockPrev());
+        buffer.put(block.getBlockRoot());
+        buffer.putInt(block.getBlockTime());
+        buffer.putInt((int) block.getBlockBits());
+        buffer.putInt((int) block.getBlockNonce());
+        buffer.put(block.getBlockHash());
+        buffer.putInt(block.getBlockNo());
+        buffer.put(offset + FLAGS_OFFSET, block.isMain() ? FLAG_MAIN : 0);
+        buffer.putLong(offset + CHECKSUM_OFFSET, checksum(buffer, index));
+    }
+
+    private void compact(int afterBlockNo) throws IOException {
+        List<Block> blocks = getBlocks(afterBlockNo, Integer.MAX_VALUE);
+        ByteBuffer records = ByteBuffer.allocate(blocks.size() * RECORD_SIZE);
+        records.order(ByteOrder.LITTLE_ENDIAN);
+        // oldest first, as they were appended
+        for (int i = 0;
+             i < blocks.size();
+             i++) {
+            writeRecord(records, i, blocks.get(blocks.size() - 1 - i));
+        }
+        // the side file is complete once renamed, so a crash while copying it over the mapped
+        // file is finished on the next open
+        File compactingTmp = compactingTmpFile();
+        FileOutputStream out = new FileOutputStream(compactingTmp);
+        try {
+            out.write(records.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        File compacting = compactingFile();
+        if (!compactingTmp.renameTo(compacting)) {
+            throw new IOException("can not rename " + compactingTmp + " to " + compacting);
+        }
+        replaceRecords(records.array(), recordCount);
+        if (!compacting.delete()) {
+            log.warn("can not delete {}", compacting);
+        }
+        indexRecords();
+    }
+
+    private static byte[] readRecords(File compacting) throws IOException {
+        byte[] records = new byte[(int) compacting.length()];
+        FileInputStream in = new FileInputStream(compacting);
+        try {
+            int read = 0;
+            while (read < records.length) {
+                int count = in.read(records, read, records.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /**
+     * Writes the records over the start of the mapped file and clears the ones after them up to
+     * oldRecordCount.
+     */
+    private void replaceRecords(byte[] records, int oldRecordCount) throws IOException {
+        int count = records.length / RECORD_SIZE;
+        if (count > capacity) {
+            map(count + GROW_RECORDS);
+        }
+        buffer.position(0);
+        buffer.put(records, 0, count * RECORD_SIZE);
+        byte[] empty = new byte[RECORD_SIZE];
+        for (int i = count;
+             i < Math.min(oldRecordCount, capacity);
+             i++) {
+            buffer.position(i * RECORD_SIZE);
+            buffer.put(empty);
+        }
+        buffer.force();
+    }
+
+    private File compactingFile() {
+        return new File(file.getPath() + ".compacting");
+    }
+
+    private File compactingTmpFile() {
+        return new File(file.getPath() + ".compacting.tmp");
+    }
+
+    private void index(int index) {
+        byte flags = buffer.get(index * RECORD_SIZE + FLAGS_OFFSET);
+        if ((flags & FLAG_REMOVED) != 0) {
+            removedCount++;
+            return;
+        }
+        indexByHash.put(new Sha256Hash(hash(index)), index);
+        if ((flags & FLAG_MAIN) != 0) {
+            indexMain(index);
+        } else {
+            orphanIndexes.add(index);
+        }
+    }
+
+    private void indexMain(int index) {
+        int blockNo = blockNo(index);
+        mainIndexByBlockNo.put(blockNo, index);
+        if (blockNo > lastMainBlockNo) {
+            lastMainBlockNo = blockNo;
+        }
+    }
+
+    private void unindexMain(int index) {
+        int blockNo = blockNo(index);
+        Integer mainIndex = mainIndexByBlockNo.get(blockNo);
+        if (mainIndex != null && mainIndex == index) {
+            mainIndexByBlockNo.remove(blockNo);
+        }
+        while (lastMainBlockNo >= 0 && !mainIndexByBlockNo.containsKey(lastMainBlockNo)) {
+            lastMainBlockNo = mainIndexByBlockNo.isEmpty() ? -1 : lastMainBlockNo - 1;
+        }
+    }
+
+    private boolean isMain(int index) {
+        return (buffer.get(index * RECORD_SIZE + FLAGS_OFFSET) & FLAG_MAIN) != 0;
+    }
+
+    private int blockNo(int index) {
+        return buffer.getInt(index * RECORD_SIZE + BLOCK_NO_OFFSET);
+    }
+
+    private byte[] hash(int index) {
+        byte[] hash = new byte[32];
+        buffer.position(index * RECORD_SIZE + HASH_OFFSET);
+        buffer.get(hash);
+        return hash;
+    }
+
+    private Block readBlock(int index) {
+        int offset = index * RECORD_SIZE;
+        byte[] prev = new byte[32];
+        byte[] root = new byte[32];
+        byte[] hash = new byte[32];
+        buffer.position(offset);
+        long version = buffer.getInt() & 0xFFFFFFFFL;
+        buffer.get(prev);
+        buffer.get(root);
+        int time = buffer.getInt();
+        long bits = buffer.getInt() & 0xFFFFFFFFL;
+        long nonce = buffer.getInt() & 0xFFFFFFFFL;
+        buffer.get(hash);
+        int blockNo = buffer.getInt();
+        return new Block(hash, version, prev, root, time, bits, nonce, blockNo, isMain(index));
+    }
+
+    private long checksum(int index) {
+        return checksum(buffer, index);
+    }
+
+    // covers the header, hash and height, but not the flags which are rewritten in place
+    private static long checksum(ByteBuffer buffer, int index) {
+        byte[] bytes = new byte[CHECKSUM_OFFSET];
+        buffer.position(index * RECORD_SIZE);
+        buffer.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        // an all zero record must not pass, it is the unused space at the end of the file
+        return crc.getValue() | (1L << 32);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.db.imp.base;
+
+import com.google.common.base.Function;
+
+import net.bither.bitherj.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs sql with byte[] params on any {@link IDb}. An {@link IBlobDb} binds them itself, a db
+ * that only binds strings, like android's rawQuery, gets them in the sql as hex blob literals.
+ */
+public class BlobParams {
+    public static void execUpdate(IDb db, String sql, Object[] params) {
+        if (db instanceof IBlobDb) {
+            ((IBlobDb) db).execUpdate(sql, params);
+            return;
+        }
+        List<String> textParams = new ArrayList<String>();
+        db.execUpdate(inlineBlobs(sql, params, textParams), toArray(params, textParams));
+    }
+
+    public static void execQueryOneRecord(IDb db, String sql, Object[] params,
+                                          Function<ICursor, Void> func) {
+        if (db instanceof IBlobDb) {
+            ((IBlobDb) db).execQueryOneRecord(sql, params, func);
+            return;
+        }
+        List<String> textParams = new ArrayList<String>();
+        db.execQueryOneRecord(inlineBlobs(sql, params, textParams), toArray(params,
+                textParams), func);
+    }
+
+    public static void execQueryLoop(IDb db, String sql, Object[] params, Function<ICursor,
+            Void> func) {
+        if (db instanceof IBlobDb) {
+            ((IBlobDb) db).execQueryLoop(sql, params, func);
+            return;
+        }
+        List<String> textParams = new ArrayList<String>();
+        db.execQueryLoop(inlineBlobs(sql, params, textParams), toArray(params, textParams),
+                func);
+    }
+
+    /**
+     * Replaces the placeholders of byte[] params with x'..' literals, only hex digits go into
+     * the sql. The other params are added to textParams in order.
+     */
+    static String inlineBlobs(String sql, Object[] params, List<String> textParams) {
+        if (params == null) {
+            return sql;
+        }
+        StringBuilder result = new StringBuilder(sql.length());
+        boolean quoted = false;
+        int paramIndex = 0;
+        for (int i = 0;
+             i < sql.length();
+             i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            if (c != '?' || quoted) {
+                result.append(c);
+                continue;
+            }
+            if (paramIndex >= params.length) {
+                throw new IllegalArgumentException("more placeholders than params in " + sql);
+            }
+            Object param = params[paramIndex++];
+            if (param instanceof byte[]) {
+                result.append("x'").append(Utils.bytesToHexString((byte[]) param)).append('\'');
+            } else {
+                result.append('?');
+                textParams.add(param == null ? null : param.toString());
+            }
+        }
+        if (paramIndex != params.length) {
+            throw new IllegalArgumentException("more params than placeholders in " + sql);
+        }
+        return result.toString();
+    }
+
+    // null stays null, like a String[] call without params
+    private static String[] toArray(Object[] params, List<String> textParams) {
+        if (params == null) {
+            return null;
+        }
+        return textParams.toArray(new String[textParams.size()]);
+    }
+}
@@ -13,7 +13,6 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package net.bither.bitherj.db.imp.base;
 
 import com.google.common.base.Function;
@@ -29,4 +28,13 @@ public interface IProvider {
     void execUpdate(IDb db, String sql, String[] params);
     void execQueryOneRecord(IDb db, String sql, String[] params, Function<ICursor, Void> func);
     void execQueryLoop(IDb db, String sql, String[] params, Function<ICursor, Void> func);
+
+    // byte[] params are bound as blob (hash columns), everything else as text, see BlobParams
+    void execUpdate(String sql, Object[] params);
+    void execQueryOneRecord(String sql, Object[] params, Function<ICursor, Void> func);
+    void execQueryLoop(String sql, Object[] params, Function<ICursor, Void> func);
+
+    void execUpdate(IDb db, String sql, Object[] params);
+    void execQueryOneRecord(IDb db, String sql, Object[] params, Function<ICursor, Void> func);
+    void execQueryLoop(IDb db, String sql, Object[] params, Function<ICursor, Void> func);
 }
@@ -31,6 +31,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -157,14 +158,29 @@ public class BitcoinSerializer {
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      * {@link BitcoinSerializer#deserializeHeader}.
+     * <p/>
+     * If the buffer is backed by an array the payload is checksummed and parsed in place, the
+     * resulting message never keeps a reference to that array so the buffer can be reused.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        byte[] payloadBytes;
+        int payloadOffset;
+        if (in.hasArray()) {
+            if (in.remaining() < header.size) {
+                throw new BufferUnderflowException();
+            }
+            payloadBytes = in.array();
+            payloadOffset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            payloadOffset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        hash = doubleDigest(payloadBytes, payloadOffset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -174,38 +190,59 @@ public class BitcoinSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    Utils.bytesToHexString(payloadBytes));
+                    Utils.bytesToHexString(Arrays.copyOfRange(payloadBytes, payloadOffset,
+                            payloadOffset + header.size)));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, payloadBytes, payloadOffset, header.size, hash,
+                    header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString
+                    (Arrays.copyOfRange(payloadBytes, payloadOffset, payloadOffset + header.size))
+                    + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    private Message makeMessage(String command, byte[] bytes, int offset, int length, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
+        // The frequent messages parse straight from the payload slice, the others get a copy of it.
+        Message message;
+        if (command.equals("inv")) {
+            message = new InventoryMessage(bytes, offset, length);
+        } else if (command.equals("merkleblock")) {
+            message = new FilteredBlockMessage(bytes, offset, length);
+        } else if (command.equals("tx")) {
+            Tx tx = new Tx(bytes, offset, length);
+            if (hash != null)
+                tx.setTxHash(hash);
+            message = tx;
+        } else if (command.equals("headers")) {
+            return new HeadersMessage(bytes, offset, length);
+        } else {
+            byte[] payloadBytes = bytes;
+            if (offset != 0 || length != bytes.length) {
+                payloadBytes = Arrays.copyOfRange(bytes, offset, offset + length);
+            }
+            return makeMessage(command, length, payloadBytes, checksum);
+        }
+        if (checksum != null)
+            message.setChecksum(checksum);
+        return message;
+    }
+
+    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] checksum) throws ProtocolException {
         Message message;
         if (command.equals("version")) {
             return new VersionMessage(payloadBytes);
-        } else if (command.equals("inv")) {
-            message = new InventoryMessage(payloadBytes, length);
         } else if (command.equals("block")) {
             message = new BlockMessage(payloadBytes, length);
-        } else if (command.equals("merkleblock")) {
-            message = new FilteredBlockMessage(payloadBytes);
         } else if (command.equals("getdata")) {
             message = new GetDataMessage(payloadBytes, length);
         } else if (command.equals("getblocks")) {
             message = new GetBlocksMessage(payloadBytes);
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(payloadBytes);
-        } else if (command.equals("tx")) {
-            Tx tx = new Tx(payloadBytes, 0, length);
-            if (hash != null)
-                tx.setTxHash(hash);
-            message = tx;
         } else if (command.equals("addr")) {
             message = new AddressMessage(payloadBytes, length);
         } else if (command.equals("ping")) {
@@ -214,8 +251,6 @@ public class BitcoinSerializer {
             message = new PongMessage(payloadBytes);
         } else if (command.equals("verack")) {
             return new VersionAck(payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(payloadBytes);
         } else if (command.equals("alert")) {
             return new AlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
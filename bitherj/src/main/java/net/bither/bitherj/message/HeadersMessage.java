@@ -46,6 +46,10 @@ public class HeadersMessage extends Message {
         super(payload, 0);
     }
 
+    public HeadersMessage(byte[] payload, int offset, int length) throws ProtocolException {
+        super(payload, offset, length);
+    }
+
     public HeadersMessage(Block... headers) throws ProtocolException {
         super();
         blockHeaders = Arrays.asList(headers);
@@ -65,30 +69,29 @@ public class HeadersMessage extends Message {
 
     @Override
     protected void parse() throws ProtocolException {
-        if (length == UNKNOWN_LENGTH) {
-            int saveCursor = cursor;
-            long numHeaders = readVarInt();
-            cursor = saveCursor;
-
-            // Each header has 80 bytes and one more byte for transactions number which is 00.
-            length = 81 * (int) numHeaders;
-        }
-
+        int end = length == UNKNOWN_LENGTH ? bytes.length : offset + length;
         long numHeaders = readVarInt();
         if (numHeaders > MAX_HEADERS)
             throw new ProtocolException("Too many headers: got " + numHeaders + " which is larger than " +
                     MAX_HEADERS);
+        // Each header has 80 bytes and one more byte for transactions number which is 00.
+        if (cursor + 81 * numHeaders > end)
+            throw new ProtocolException("Headers message claims " + numHeaders + " headers, more" +
+                    " than its " + (end - offset) + " bytes hold");
+        length = cursor - offset + 81 * (int) numHeaders;
 
-        blockHeaders = new ArrayList<Block>();
+        blockHeaders = new ArrayList<Block>((int) numHeaders);
 
         for (int i = 0; i < numHeaders; ++i) {
-            // Read 80 bytes of the header and one more byte for the transaction list, which is always a 00 because the
-            // transaction list is empty.
-            byte[] blockHeader = readBytes(81);
-            if (blockHeader[80] != 0)
+            // 80 bytes of the header and one more byte for the transaction list, which is always a 00 because the
+            // transaction list is empty. The header is parsed in place instead of being copied out first.
+            if (cursor + 81 > end)
+                throw new ProtocolException("Ran off the end of the headers");
+            if (bytes[cursor + 80] != 0)
                 throw new ProtocolException("Block header does not end with a null byte");
-            Block newBlockHeader = new Block(blockHeader, 81);
+            Block newBlockHeader = new Block(bytes, cursor, 81);
             blockHeaders.add(newBlockHeader);
+            cursor += 81;
         }
 
         if (log.isDebugEnabled()) {
@@ -52,6 +52,10 @@ public class InventoryMessage extends ListMessage {
         super(msg, length);
     }
 
+    public InventoryMessage(byte[] msg, int offset, int length) throws ProtocolException {
+        super(msg, offset, length);
+    }
+
     public InventoryMessage() {
         super();
     }
@@ -49,6 +49,10 @@ public abstract class ListMessage extends Message {
         super(msg, 0, length);
     }
 
+    public ListMessage(byte[] msg, int offset, int length) throws ProtocolException {
+        super(msg, offset, length);
+    }
+
 
     public ListMessage() {
         super();
@@ -74,6 +78,7 @@ public abstract class ListMessage extends Message {
 
     @Override
     public void parse() throws ProtocolException {
+        int end = length == UNKNOWN_LENGTH ? bytes.length : offset + length;
         arrayLen = readVarInt();
         if (arrayLen > MAX_INVENTORY_ITEMS)
             throw new ProtocolException("Too many items in INV message: " + arrayLen);
@@ -82,7 +87,7 @@ public abstract class ListMessage extends Message {
         // An inv is vector<CInv> where CInv is int+hash. The int is either 1 or 2 for tx or block.
         items = new ArrayList<InventoryItem>((int) arrayLen);
         for (int i = 0; i < arrayLen; i++) {
-            if (cursor + InventoryItem.MESSAGE_LENGTH > bytes.length) {
+            if (cursor + InventoryItem.MESSAGE_LENGTH > end) {
                 throw new ProtocolException("Ran off the end of the INV");
             }
             int typeCode = (int) readUint32();
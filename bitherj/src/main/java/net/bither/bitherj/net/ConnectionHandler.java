@@ -85,7 +85,8 @@ class ConnectionHandler implements MessageWriteTarget {
             return;
         }
         this.parser = parser;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(),
+        // a heap buffer so messages can be parsed straight from its backing array
+        readBuff = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(),
                 BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
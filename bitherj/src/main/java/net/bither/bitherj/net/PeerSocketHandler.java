@@ -63,8 +63,11 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small
     // transactions), but for
     // messages which are larger than the read buffer, we have to keep a temporary buffer with
-    // its bytes.
+    // its bytes. The buffer is kept for the next large message unless it is bigger than
+    // MAX_RETAINED_READ_BUFFER_SIZE, messages never hold on to the array they are parsed from.
+    private static final int MAX_RETAINED_READ_BUFFER_SIZE = 2 * 1024 * 1024;
     private byte[] largeReadBuffer;
+    private int largeReadBufferLength;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
@@ -145,20 +148,28 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                  i++) {
                 // If we are in the middle of reading a message, try to fill that one first,
                 // before we expect another
-                if (largeReadBuffer != null) {
+                if (header != null) {
                     // This can only happen in the first iteration
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
                     int bytesToGet = Math.min(buff.remaining(),
-                            largeReadBuffer.length - largeReadBufferPos);
+                            largeReadBufferLength - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == largeReadBufferLength) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                        BitcoinSerializer.BitcoinPacketHeader largeHeader = header;
                         header = null;
+                        if (largeReadBuffer.length > MAX_RETAINED_READ_BUFFER_SIZE) {
+                            byte[] payload = largeReadBuffer;
+                            largeReadBuffer = null;
+                            processMessage(serializer.deserializePayload(largeHeader, ByteBuffer
+                                    .wrap(payload, 0, largeReadBufferLength)));
+                        } else {
+                            processMessage(serializer.deserializePayload(largeHeader, ByteBuffer
+                                    .wrap(largeReadBuffer, 0, largeReadBufferLength)));
+                        }
                     } else // ...or just returning if we don't have enough bytes yet
                     {
                         return buff.position();
@@ -181,7 +192,10 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             // Initialize the largeReadBuffer with the next message's size and
                             // fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            if (largeReadBuffer == null || largeReadBuffer.length < header.size) {
+                                largeReadBuffer = new byte[header.size];
+                            }
+                            largeReadBufferLength = header.size;
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
@@ -19,10 +19,10 @@ package net.bither.bitherj.script;
 
 import com.google.common.collect.Lists;
 
+import net.bither.bitherj.core.SigHashCache;
 import net.bither.bitherj.core.Tx;
 import net.bither.bitherj.crypto.ECKey;
 import net.bither.bitherj.crypto.TransactionSignature;
-import net.bither.bitherj.exception.ProtocolException;
 import net.bither.bitherj.exception.ScriptException;
 import net.bither.bitherj.utils.UnsafeByteArrayOutputStream;
 import net.bither.bitherj.utils.Utils;
@@ -780,7 +780,7 @@ public class Script {
         return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
 
-    private static void executeScript(Tx txContainingThis, long index,
+    private static void executeScript(SigHashCache sigHashes, long index,
                                       Script script, LinkedList<byte[]> stack) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
@@ -1255,11 +1255,11 @@ public class Script {
                         break;
                     case OP_CHECKSIG:
                     case OP_CHECKSIGVERIFY:
-                        executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode);
+                        executeCheckSig(sigHashes, (int) index, script, stack, lastCodeSepLocation, opcode);
                         break;
                     case OP_CHECKMULTISIG:
                     case OP_CHECKMULTISIGVERIFY:
-                        opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode);
+                        opCount = executeMultiSig(sigHashes, (int) index, script, stack, opCount, lastCodeSepLocation, opcode);
                         break;
                     case OP_NOP1:
                     case OP_NOP2:
@@ -1286,7 +1286,7 @@ public class Script {
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Tx txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(SigHashCache sigHashes, int index, Script script, LinkedList<byte[]> stack,
                                         int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
@@ -1308,7 +1308,7 @@ public class Script {
         boolean sigValid = false;
         try {
             TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigBytes, false);
-            byte[] hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            byte[] hash = sigHashes.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
             sigValid = ECKey.verify(hash, sig, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1323,7 +1323,7 @@ public class Script {
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Tx txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(SigHashCache sigHashes, int index, Script script, LinkedList<byte[]> stack,
                                        int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
@@ -1374,7 +1374,7 @@ public class Script {
             // more expensive than hashing, its not a big deal.
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
-                byte[] hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+                byte[] hash = sigHashes.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
                 if (ECKey.verify(hash, sig, pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
@@ -1411,23 +1411,26 @@ public class Script {
      */
     public void correctlySpends(Tx txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = new Tx(txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
+        // Signature hashes are made from a snapshot of the tx, the tx itself is never edited.
+        correctlySpends(new SigHashCache(txContainingThis), scriptSigIndex, scriptPubKey, enforceP2SH);
+    }
+
+    /**
+     * Same as {@link #correctlySpends(Tx, long, Script, boolean)} with the signature hashes of a
+     * tx, so the ins of one tx can share them and be checked on different threads.
+     */
+    public void correctlySpends(SigHashCache sigHashes, long scriptSigIndex, Script scriptPubKey,
+                                boolean enforceP2SH) throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
 
         LinkedList<byte[]> stack = new LinkedList<byte[]>();
         LinkedList<byte[]> p2shStack = null;
 
-        executeScript(txContainingThis, scriptSigIndex, this, stack);
+        executeScript(sigHashes, scriptSigIndex, this, stack);
         if (enforceP2SH)
             p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
+        executeScript(sigHashes, scriptSigIndex, scriptPubKey, stack);
 
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
@@ -1456,7 +1459,7 @@ public class Script {
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
 
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+            executeScript(sigHashes, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
 
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.utils;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads json values one at a time from a stream, so a large api response can be handled while
+ * it is still downloading instead of being read into a string and a {@link org.json.JSONObject}
+ * first. It does not check the json is well formed beyond what it needs to read the values, a
+ * comma between values is optional.
+ */
+public class JsonStreamReader {
+    private static final int NONE = -2;
+
+    private final Reader reader;
+    private int pushedBack = NONE;
+
+    public JsonStreamReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    public void beginObject() throws IOException {
+        expect('{');
+    }
+
+    public void endObject() throws IOException {
+        expect('}');
+    }
+
+    public void beginArray() throws IOException {
+        expect('[');
+    }
+
+    public void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * @return whether there is another value in the current array or object
+     */
+    public boolean hasNext() throws IOException {
+        int c = peekToken();
+        return c != ']' && c != '}' && c != -1;
+    }
+
+    public boolean isNextNull() throws IOException {
+        return peekToken() == 'n';
+    }
+
+    public String nextName() throws IOException {
+        expect('"');
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * @return the string, or null for a json null
+     */
+    public String nextString() throws IOException {
+        int c = peekToken();
+        if (c == '"') {
+            read();
+            return readString();
+        }
+        String literal = readLiteral();
+        if (literal.equals("null")) {
+            return null;
+        }
+        return literal;
+    }
+
+    public long nextLong() throws IOException {
+        int c = peekToken();
+        String literal;
+        if (c == '"') {
+            read();
+            literal = readString();
+        } else {
+            literal = readLiteral();
+        }
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            throw new JSONException("not a number: " + literal);
+        }
+    }
+
+    public int nextInt() throws IOException {
+        return (int) nextLong();
+    }
+
+    /**
+     * Skips the next value, with all it contains if it is an array or object.
+     */
+    public void skipValue() throws IOException {
+        int c = peekToken();
+        if (c == '"') {
+            read();
+            readString();
+        } else if (c == '[' || c == '{') {
+            int depth = 0;
+            do {
+                c = read();
+                if (c == '"') {
+                    readString();
+                } else if (c == '[' || c == '{') {
+                    depth++;
+                } else if (c == ']' || c == '}') {
+                    depth--;
+                } else if (c == -1) {
+                    throw new JSONException("unterminated value");
+                }
+            } while (depth > 0);
+        } else {
+            readLiteral();
+        }
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peekToken();
+        if (c != expected) {
+            throw new JSONException("expected " + expected + " but was " + (c == -1 ? "end" :
+                    String.valueOf((char) c)));
+        }
+        read();
+    }
+
+    // the next char that is not white space or a comma, without reading it
+    private int peekToken() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != ',') {
+                pushedBack = c;
+                return c;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != NONE) {
+            int c = pushedBack;
+            pushedBack = NONE;
+            return c;
+        }
+        return reader.read();
+    }
+
+    // the rest of a string after its opening quote
+    private String readString() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return builder.toString();
+            } else if (c == -1) {
+                throw new JSONException("unterminated string");
+            } else if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0;
+                             i < hex.length;
+                             i++) {
+                            hex[i] = (char) read();
+                        }
+                        try {
+                            builder.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw new JSONException("bad escape \\u" + new String(hex));
+                        }
+                        break;
+                    case -1:
+                        throw new JSONException("unterminated string");
+                    default:
+                        // \" \\ and \/
+                        builder.append((char) c);
+                }
+            } else {
+                builder.append((char) c);
+            }
+        }
+    }
+
+    // a number, true, false or null
+    private String readLiteral() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int c = read();
+            if (c == -1 || c == ',' || c == ']' || c == '}' || c == ':' || c == ' ' || c ==
+                    '\t' || c == '\n' || c == '\r') {
+                pushedBack = c;
+                break;
+            }
+            builder.append((char) c);
+        }
+        if (builder.length() == 0) {
+            throw new JSONException("expected a value");
+        }
+        return builder.toString();
+    }
+}
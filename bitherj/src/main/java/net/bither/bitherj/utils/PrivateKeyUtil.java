@@ -31,6 +31,7 @@ import net.bither.bitherj.crypto.KeyCrypterException;
 import net.bither.bitherj.crypto.KeyCrypterScrypt;
 import net.bither.bitherj.crypto.PasswordSeed;
 import net.bither.bitherj.crypto.SecureCharSequence;
+import net.bither.bitherj.crypto.SigningSession;
 import net.bither.bitherj.crypto.bip38.Bip38;
 import net.bither.bitherj.exception.AddressFormatException;
 import net.bither.bitherj.qrcode.QRCodeUtil;
@@ -65,8 +66,20 @@ public class PrivateKeyUtil {
     }
 
     public static ECKey getECKeyFromSingleString(String str, CharSequence password) {
+        SigningSession session = new SigningSession(password);
         try {
-            DecryptedECKey decryptedECKey = decryptionECKey(str, password, false);
+            return getECKeyFromSingleString(str, session);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Decrypts with the aes key of the session, so keys sharing a salt only run scrypt once.
+     */
+    public static ECKey getECKeyFromSingleString(String str, SigningSession session) {
+        try {
+            DecryptedECKey decryptedECKey = decryptionECKey(str, session, false);
             if (decryptedECKey != null && decryptedECKey.ecKey != null) {
                 return decryptedECKey.ecKey;
             } else {
@@ -80,6 +93,15 @@ public class PrivateKeyUtil {
 
 
     private static DecryptedECKey decryptionECKey(String str, CharSequence password, boolean needPrivteKeyText) throws Exception {
+        SigningSession session = new SigningSession(password);
+        try {
+            return decryptionECKey(str, session, needPrivteKeyText);
+        } finally {
+            session.close();
+        }
+    }
+
+    private static DecryptedECKey decryptionECKey(String str, SigningSession session, boolean needPrivteKeyText) throws Exception {
         String[] strs = QRCodeUtil.splitOfPasswordSeed(str);
         if (strs.length != 3) {
             log.error("decryption: PrivateKeyFromString format error");
@@ -98,7 +120,7 @@ public class PrivateKeyUtil {
         KeyCrypterScrypt crypter = new KeyCrypterScrypt(salt);
         EncryptedPrivateKey epk = new EncryptedPrivateKey(Utils.hexStringToByteArray
                 (strs[1]), Utils.hexStringToByteArray(strs[0]));
-        byte[] decrypted = crypter.decrypt(epk, crypter.deriveKey(password));
+        byte[] decrypted = crypter.decrypt(epk, session.deriveKey(crypter));
         
         ECKey ecKey = null;
         SecureCharSequence privateKeyText = null;
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.utils;
+
+import net.bither.bitherj.AbstractApp;
+import net.bither.bitherj.api.BlockChainMytransactionsApi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the raw txs of an address history from blockchain.info, which only gives them one by
+ * one. The txs of a page are fetched {@link #FETCH_THREAD_COUNT} at a time, a tx another
+ * address is already fetching is waited for instead of fetched again, and fetched txs are kept
+ * on disk by hash so a later sync reads them from there. The disk cache keeps the
+ * {@link #MAX_CACHED_TXS} txs used last.
+ */
+class RawTxFetcher {
+    private static final Logger log = LoggerFactory.getLogger(RawTxFetcher.class);
+    private static final int FETCH_THREAD_COUNT = 4;
+    private static final String TX_CACHE = "txcache";
+    private static final int MAX_CACHED_TXS = 10000;
+    // the cache dir is listed to trim it once per this many writes
+    private static final int TRIM_CACHE_INTERVAL = 500;
+    private static final int TX_HASH_LENGTH = 64;
+
+    // its own threads, the callers may be the address fetch threads of TransactionsUtil
+    private static final ExecutorService executor = Threading.newDaemonThreadPool
+            (FETCH_THREAD_COUNT, "RawTxFetcher");
+
+    private static RawTxFetcher instance;
+
+    private final RawTxApi api;
+    // null for the private dir of the app
+    private final File cacheDir;
+    private final int maxCachedTxs;
+    private final int trimCacheInterval;
+    // fetches in flight by tx index
+    private final ConcurrentHashMap<Integer, Future<byte[]>> fetches = new
+            ConcurrentHashMap<Integer, Future<byte[]>>();
+    private final AtomicInteger cacheWrites = new AtomicInteger();
+
+    static synchronized RawTxFetcher getInstance() {
+        if (instance == null) {
+            instance = new RawTxFetcher(new WebRawTxApi(), null, MAX_CACHED_TXS,
+                    TRIM_CACHE_INTERVAL);
+        }
+        return instance;
+    }
+
+    RawTxFetcher(RawTxApi api, File cacheDir, int maxCachedTxs, int trimCacheInterval) {
+        this.api = api;
+        this.cacheDir = cacheDir;
+        this.maxCachedTxs = maxCachedTxs;
+        this.trimCacheInterval = trimCacheInterval;
+    }
+
+    /**
+     * @param txHashes the hex hashes of the txs as blockchain.info shows them, a tx without a
+     *                 valid hash is fetched without the disk cache
+     * @return the raw txs in the order of the tx indexes
+     */
+    List<byte[]> fetch(List<Integer> txIndexes, List<String> txHashes) throws Exception {
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(txIndexes.size());
+        for (int i = 0;
+             i < txIndexes.size();
+             i++) {
+            futures.add(submit(txIndexes.get(i), txHashes.get(i)));
+        }
+        List<byte[]> txs = new ArrayList<byte[]>(txIndexes.size());
+        try {
+            for (Future<byte[]> future : futures) {
+                try {
+                    txs.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            // done ones are on disk now, a later fetch of them reads them from there
+            for (int i = 0;
+                 i < futures.size();
+                 i++) {
+                fetches.remove(txIndexes.get(i), futures.get(i));
+            }
+        }
+        return txs;
+    }
+
+    private Future<byte[]> submit(final int txIndex, final String txHash) {
+        Future<byte[]> future = fetches.get(txIndex);
+        if (future != null) {
+            return future;
+        }
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                byte[] tx = readCache(txHash);
+                if (tx != null) {
+                    return tx;
+                }
+                tx = api.getRawTx(txIndex);
+                writeCache(txHash, tx);
+                return tx;
+            }
+        });
+        future = fetches.putIfAbsent(txIndex, task);
+        if (future == null) {
+            // only the caller whose task went in runs it, the others wait for that one
+            future = task;
+            executor.execute(task);
+        }
+        return future;
+    }
+
+    private File getCacheDir() {
+        if (cacheDir != null) {
+            return cacheDir;
+        }
+        return AbstractApp.bitherjSetting.getPrivateDir(TX_CACHE);
+    }
+
+    // the hash comes from the api response, anything but hex would name a file outside the cache
+    static boolean isTxHash(String txHash) {
+        if (txHash == null || txHash.length() != TX_HASH_LENGTH) {
+            return false;
+        }
+        for (int i = 0;
+             i < txHash.length();
+             i++) {
+            if (Character.digit(txHash.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File getCacheFile(String txHash) {
+        if (!isTxHash(txHash)) {
+            return null;
+        }
+        File dir = getCacheDir();
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, txHash.toLowerCase());
+    }
+
+    private byte[] readCache(String txHash) {
+        File file = getCacheFile(txHash);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            byte[] tx = Hex.decode(Utils.readFile(file));
+            if (txHash.equalsIgnoreCase(Utils.hashToString(Utils.doubleDigest(tx)))) {
+                // the trim keeps the txs used last
+                file.setLastModified(System.currentTimeMillis());
+                return tx;
+            }
+        } catch (Exception e) {
+            log.warn("bad cached tx " + txHash, e);
+        }
+        removeCacheFile(file);
+        return null;
+    }
+
+    private void writeCache(String txHash, byte[] tx) {
+        File file = getCacheFile(txHash);
+        if (file == null || !txHash.equalsIgnoreCase(Utils.hashToString(Utils.doubleDigest(tx)))) {
+            return;
+        }
+        try {
+            // written aside and renamed, so a fetch that dies half way leaves no partial tx
+            File tmp = new File(file.getPath() + ".tmp");
+            Utils.writeFile(new String(Hex.encode(tx)), tmp);
+            if (!tmp.renameTo(file)) {
+                removeCacheFile(tmp);
+            }
+        } catch (Exception e) {
+            log.warn("can not cache tx " + txHash, e);
+        }
+        if ((cacheWrites.incrementAndGet() - 1) % trimCacheInterval == 0) {
+            trimCache(file.getParentFile());
+        }
+    }
+
+    // never removes a file outside the cache dir
+    private void removeCacheFile(File file) {
+        File dir = getCacheDir();
+        try {
+            if (dir != null && dir.getCanonicalFile().equals(file.getCanonicalFile()
+                    .getParentFile())) {
+                Utils.removeFile(file);
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("can not resolve " + file, e);
+        }
+        log.warn("not removing {} outside the tx cache", file);
+    }
+
+    // removes the txs used longest ago beyond maxCachedTxs
+    private synchronized void trimCache(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= maxCachedTxs) {
+            return;
+        }
+        // read once, a file read meanwhile must not change the order while sorting
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0;
+             i < files.length;
+             i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long lhsModified = modified[lhs];
+                long rhsModified = modified[rhs];
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        int removeCount = files.length - maxCachedTxs;
+        for (int i = 0;
+             i < removeCount;
+             i++) {
+            removeCacheFile(files[order[i]]);
+        }
+        log.info("removed {} cached txs", removeCount);
+    }
+
+    /**
+     * The api call for one raw tx, runs on the fetch threads.
+     */
+    interface RawTxApi {
+        byte[] getRawTx(int txIndex) throws Exception;
+    }
+
+    private static class WebRawTxApi implements RawTxApi {
+        @Override
+        public byte[] getRawTx(int txIndex) throws Exception {
+            BlockChainMytransactionsApi api = new BlockChainMytransactionsApi(txIndex);
+            api.handleHttpGet();
+            return Hex.decode(api.getResult());
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
@@ -185,6 +186,31 @@ public class Threading {
     //
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * A thread factory for daemon threads named after the pool and numbered, which won't keep the JVM alive waiting
+     * for more work.
+     */
+    public static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName(name + " " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * A fixed pool of daemon threads, see {@link #daemonThreadFactory(String)}.
+     */
+    public static ExecutorService newDaemonThreadPool(int threadCount, String name) {
+        return Executors.newFixedThreadPool(threadCount, daemonThreadFactory(name));
+    }
+
     /**
      * A caching thread pool that creates daemon threads, which won't keep the JVM alive waiting for more work.
      */
@@ -26,55 +26,57 @@ import net.bither.bitherj.exception.ScriptException;
 import net.bither.bitherj.qrcode.QRCodeUtil;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spongycastle.util.encoders.Hex;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 public class TransactionsUtil {
 
     private static final Logger log = LoggerFactory.getLogger(TransactionsUtil.class);
-    private static final String TX = "tx";
-    private static final String BLOCK_COUNT = "block_count";
-    private static final String TX_CNT = "tx_cnt";
     // TODO: blockChain.info
     private static final String BLOCK_CHAIN_HEIGHT = "height";
     private static final String BLOCK_CHAIN_TX = "n_tx";
     private static final String BLOCK_CHAIN_TXS = "txs";
     private static final String BLOCK_CHAIN_BLOCK_HEIGHT = "block_height";
     private static final String BLOCK_CHAIN_TX_INDEX = "tx_index";
+    private static final String BLOCK_CHAIN_HASH = "hash";
     private static final String BLOCK_CHAIN_CNT = "n_tx";
 
 
     private static List<UnSignTransaction> unsignTxs = new ArrayList<UnSignTransaction>();
 
+    // addresses of an hd account fetched at once, which also bounds the open connections
+    private static final int FETCH_THREAD_COUNT = 4;
+    private static final int SAVE_BATCH_TX_COUNT = 200;
+    // an address fetch that fails is tried this many more times before the sync fails
+    private static final int FETCH_RETRY_COUNT = 2;
+    private static final long FETCH_RETRY_DELAY = 1000;
+
+    private static final ExecutorService fetchExecutor = Threading.newDaemonThreadPool
+            (FETCH_THREAD_COUNT, "TransactionsUtil fetch");
+
     /**
      *  TODO: get data from blockChain.info
      */
     private  static List<Tx> getTransactionsFromBlockChain(
             JSONObject jsonObject, int storeBlockHeight) throws Exception {
         List<Tx> transactions = new ArrayList<Tx>();
-        List<Block> blocks = AbstractDb.blockProvider.getAllBlocks();
-        Map<Integer, Integer> blockMapList = new HashMap<Integer, Integer>();
-        int minBlockNo = blocks.get(blocks.size() - 1).getBlockNo();
-        for (Block block : blocks) {
-            blockMapList.put(block.getBlockNo(), block.getBlockTime());
-            if (minBlockNo > block.getBlockNo()) {
-                minBlockNo = block.getBlockNo();
-            }
-        }
-
         if (!jsonObject.isNull(BLOCK_CHAIN_TX)) {
             JSONArray txsArray = jsonObject.getJSONArray(BLOCK_CHAIN_TXS);
+            List<Integer> heights = new ArrayList<Integer>();
+            List<Integer> txIndexes = new ArrayList<Integer>();
+            List<String> txHashes = new ArrayList<String>();
             for (int i = 0; i < txsArray.length(); i++) {
                 JSONObject txJSON = txsArray.getJSONObject(i);
                 if (!txJSON.has(BLOCK_CHAIN_BLOCK_HEIGHT)) {
@@ -84,81 +86,71 @@ public class TransactionsUtil {
                 if (height > storeBlockHeight && storeBlockHeight > 0) {
                     continue;
                 }
-                Integer timeKey = height;
-                if (height <= minBlockNo) {
-                    timeKey = minBlockNo;
-                }
-                // TODO: get single tx hex format data
-                int txIndex = txJSON.getInt(BLOCK_CHAIN_TX_INDEX);
-
-                String txHex = getTxHexByIndex(txIndex);
-
-                byte[] decodeTxHex = Hex.decode(txHex);
-                // byte[] txBytes = Base64.encode(decodeTxHex, Base64.DEFAULT);
-
-                Tx tx = new Tx(decodeTxHex);
-                tx.setBlockNo(height);
-
-                if (blockMapList.containsKey(timeKey)) {
-                    tx.setTxTime(blockMapList.get(timeKey));
-                }
+                heights.add(height);
+                txIndexes.add(txJSON.getInt(BLOCK_CHAIN_TX_INDEX));
+                txHashes.add(txJSON.optString(BLOCK_CHAIN_HASH, null));
+            }
+            // blockchain.info gives the raw txs one by one, so they are fetched concurrently
+            List<byte[]> rawTxs = RawTxFetcher.getInstance().fetch(txIndexes, txHashes);
+            for (int i = 0; i < rawTxs.size(); i++) {
+                Tx tx = new Tx(rawTxs.get(i));
+                tx.setBlockNo(heights.get(i));
+                setBlockTime(tx);
                 transactions.add(tx);
             }
         }
         return transactions;
 
     }
-
-    private static String getTxHexByIndex(int txIndex) throws Exception {
-        BlockChainMytransactionsApi blockChainMytransactionsApi = new BlockChainMytransactionsApi(txIndex);
-        blockChainMytransactionsApi.handleHttpGet();
-        String rel = blockChainMytransactionsApi.getResult();
-        return rel;
-    }
     /**
      *  end
      */
 
 
+    /**
+     * Fetches a page of txs of the address from bither.net. The txs are decoded while the
+     * response downloads, so only the txs and not the whole response are held in memory.
+     *
+     * @return the txs of the page at or below storeBlockHeight, with the time of their block
+     */
     private static List<Tx> getTransactionsFromBither(
-            JSONObject jsonObject, int storeBlockHeight) throws JSONException {
-        List<Tx> transactions = new ArrayList<Tx>();
-        List<Block> blocks = AbstractDb.blockProvider.getAllBlocks();
-        Map<Integer, Integer> blockMapList = new HashMap<Integer, Integer>();
-        int minBlockNo = blocks.get(blocks.size() - 1).getBlockNo();
-        for (Block block : blocks) {
-            blockMapList.put(block.getBlockNo(), block.getBlockTime());
-            if (minBlockNo > block.getBlockNo()) {
-                minBlockNo = block.getBlockNo();
-            }
+            String address, int page, int storeBlockHeight, int[] apiBlockCount) throws
+            Exception {
+        BitherTxCollector collector = new BitherTxCollector(storeBlockHeight);
+        BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(address,
+                page, collector);
+        bitherMytransactionsApi.handleHttpGet();
+        if (bitherMytransactionsApi.getBlockCount() > 0) {
+            apiBlockCount[0] = bitherMytransactionsApi.getBlockCount();
         }
-        if (!jsonObject.isNull(TX)) {
-            JSONArray txsArray = jsonObject.getJSONArray(TX);
-            for (int i = 0; i < txsArray.length(); i++) {
-                JSONArray txArray = txsArray.getJSONArray(i);
-                if (txArray.length() < 2) {
-                    continue;
-                }
-                int height = txArray.getInt(0);
-                if (height > storeBlockHeight && storeBlockHeight > 0) {
-                    continue;
-                }
-                String txString = txArray.getString(1);
-                byte[] txBytes = Base64.decode(txString, Base64.DEFAULT);
-                Tx tx = new Tx(txBytes);
-                tx.setBlockNo(height);
-                Integer timeKey = height;
-                if (height <= minBlockNo) {
-                    timeKey = minBlockNo;
-                }
-                if (blockMapList.containsKey(timeKey)) {
-                    tx.setTxTime(blockMapList.get(timeKey));
-                }
-                transactions.add(tx);
+        return collector.transactions;
+    }
+
+    private static class BitherTxCollector implements BitherMytransactionsApi.TxConsumer {
+        final List<Tx> transactions = new ArrayList<Tx>();
+        private final int storeBlockHeight;
+
+        BitherTxCollector(int storeBlockHeight) {
+            this.storeBlockHeight = storeBlockHeight;
+        }
+
+        @Override
+        public void onTx(Tx tx) {
+            int height = tx.getBlockNo();
+            if (height > storeBlockHeight && storeBlockHeight > 0) {
+                return;
             }
+            setBlockTime(tx);
+            transactions.add(tx);
         }
-        return transactions;
+    }
 
+    // the block times come from the main chain index of the block chain, not the blocks table
+    private static void setBlockTime(Tx tx) {
+        int blockTime = BlockChain.getInstance().getBlockTime(tx.getBlockNo());
+        if (blockTime >= 0) {
+            tx.setTxTime(blockTime);
+        }
     }
 
     public static List<In> getInSignatureFromBither(String str) {
@@ -264,379 +256,384 @@ public class TransactionsUtil {
         }
 
     }
-    private static void getTxForHDAccountMoitored(int hdSeedId, final int webType) throws Exception {
+    private static void getTxForHDAccountMoitored(final int hdSeedId, final int webType) throws Exception {
+        final HDAccount account = AddressManager.getInstance().getHDAccountMonitored();
         for (AbstractHD.PathType pathType : AbstractHD.PathType.values()) {
-            HDAccount.HDAccountAddress hdAccountAddress;
-//            boolean hasTx = true;
-            int unusedAddressCnt = 0; //HDAccount.MaxUnusedNewAddressCount
-            int maxUnusedAddressCount = HDAccount.MaxUnusedNewAddressCount;
-            int addressIndex = 0;
-            while (unusedAddressCnt <= maxUnusedAddressCount) {
-                Block storedBlock = BlockChain.getInstance().getLastBlock();
-                int storeBlockHeight = storedBlock.getBlockNo();
-                hdAccountAddress = AbstractDb.hdAccountAddressProvider.addressForPath(hdSeedId,
-                        pathType, addressIndex);
-                if (hdAccountAddress == null) {
-//                    hasTx = false;
-                    unusedAddressCnt += 1;
-                    log.warn("hd monitor address is null path {} ,index {}", pathType, addressIndex);
-                    continue;
-                }
-                if (hdAccountAddress.isSyncedComplete()) {
-                    log.info("hd monitor address is synced path {} ,index {}, {}", pathType,
-                            addressIndex, hdAccountAddress.getAddress());
-                    addressIndex++;
-                    continue;
-                }
-
-                int apiBlockCount = 0;
-                int txSum = 0;
-                boolean needGetTxs = true;
-                int page = 1;
-
-                List<Tx> transactions;
-
-                log.info("hd monitor address will sync path {} ,index {}, {}", pathType, addressIndex, hdAccountAddress.getAddress());
-                while (needGetTxs) {
-                    // TODO: get data from bither.net else from blockchain.info
-                    if (webType == 0) {
-                        BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(
-                                hdAccountAddress.getAddress(), page);
-                        bitherMytransactionsApi.handleHttpGet();
-                        String txResult = bitherMytransactionsApi.getResult();
-                        JSONObject jsonObject = new JSONObject(txResult);
-
-                        if (!jsonObject.isNull(BLOCK_COUNT)) {
-                            apiBlockCount = jsonObject.getInt(BLOCK_COUNT);
-                        }
-                        int txCnt = jsonObject.getInt(TX_CNT);
-                        // TODO: HDAccount
-                        transactions = TransactionsUtil.getTransactionsFromBither(jsonObject, storeBlockHeight);
-                        transactions = AddressManager.getInstance().compressTxsForHDAccount(transactions);
-
-                        Collections.sort(transactions, new ComparatorTx());
-                        // address.initTxs(transactions);
-                        AddressManager.getInstance().getHDAccountMonitored().initTxs(transactions);
+            syncHDAddresses(new HDAccountSyncTarget(hdSeedId, account, "hd monitor"), pathType,
+                    new WebAddressTxsApi(webType), FETCH_RETRY_DELAY);
+        }
+    }
 
-                        txSum = txSum + transactions.size();
-                        needGetTxs = transactions.size() > 0;
-                        page++;
+    private static void getTxForHDAccount(final int hdSeedId, final int webType) throws Exception {
+        final HDAccount account = AddressManager.getInstance().getHDAccountHot();
+        for (AbstractHD.PathType pathType : AbstractHD.PathType.values()) {
+            syncHDAddresses(new HDAccountSyncTarget(hdSeedId, account, "hd"), pathType, new
+                    WebAddressTxsApi(webType), FETCH_RETRY_DELAY);
+        }
+    }
 
-                    }else {
-                        BlockChainMytransactionsApi blockChainMytransactionsApi = new BlockChainMytransactionsApi(hdAccountAddress.getAddress());
-                        blockChainMytransactionsApi.handleHttpGet();
-                        String txResult = blockChainMytransactionsApi.getResult();
-                        JSONObject jsonObject = new JSONObject(txResult);
-                        // TODO: get the latest block number from blockChain.info
-                        JSONObject jsonObjectBlockChain = getLatestBlockNumberFromBlockchain();
-                        if (!jsonObjectBlockChain.isNull(BLOCK_CHAIN_HEIGHT)) {
-                            apiBlockCount = jsonObjectBlockChain.getInt(BLOCK_CHAIN_HEIGHT);
-                        }
-                        int txCnt = jsonObject.getInt(BLOCK_CHAIN_CNT);
-                        // TODO: get transactions from blockChain.info
-                        transactions = TransactionsUtil.getTransactionsFromBlockChain(jsonObject, storeBlockHeight);
-                        transactions = AddressManager.getInstance().compressTxsForHDAccount(transactions);
+    private static void getTxForDesktopHDM(final DesktopHDMKeychain desktopHDMKeychain, final int webType) throws Exception {
+        for (AbstractHD.PathType pathType : AbstractHD.PathType.values()) {
+            syncHDAddresses(new HDSyncTarget<DesktopHDMAddress>("desktop hdm", 0) {
+                @Override
+                DesktopHDMAddress addressForPath(AbstractHD.PathType pathType, int index) {
+                    return AbstractDb.desktopTxProvider.addressForPath(desktopHDMKeychain,
+                            pathType, index);
+                }
 
-                        Collections.sort(transactions, new ComparatorTx());
-                        // address.initTxs(transactions);
-                        AddressManager.getInstance().getHDAccountMonitored().initTxs(transactions);
-                        txSum = txSum + transactions.size();
-                        needGetTxs = false;
+                @Override
+                String getAddress(DesktopHDMAddress address) {
+                    return address.getAddress();
+                }
 
-                    }
+                @Override
+                boolean isSyncComplete(DesktopHDMAddress address) {
+                    return address.isSyncComplete();
                 }
-                /*
-                while (needGetTxs) {
-                    BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(
-                            hdAccountAddress.getAddress(), page, flag);
-                    bitherMytransactionsApi.handleHttpGet();
-                    String txResult = bitherMytransactionsApi.getResult();
-                    JSONObject jsonObject = new JSONObject(txResult);
-                    if (!jsonObject.isNull(BLOCK_COUNT)) {
-                        apiBlockCount = jsonObject.getInt(BLOCK_COUNT);
-                    }
-                    int txCnt = jsonObject.getInt(TX_CNT);
-                    List<Tx> transactions = TransactionsUtil.getTransactionsFromBither(
-                            jsonObject, storeBlockHeight);
-                    transactions = AddressManager.getInstance().compressTxsForHDAccount(transactions);
-                    Collections.sort(transactions, new ComparatorTx());
-                    AddressManager.getInstance().getHDAccountMonitored().initTxs(transactions);
-                    txSum = txSum + transactions.size();
-                    needGetTxs = transactions.size() > 0;
-                    page++;
+
+                @Override
+                List<Tx> compressTxs(List<Tx> txs) {
+                    return AddressManager.getInstance().compressTxsForDesktopHDM(txs);
                 }
-                */
-                if (apiBlockCount < storeBlockHeight && storeBlockHeight - apiBlockCount < 100) {
-                    BlockChain.getInstance().rollbackBlock(apiBlockCount);
+
+                @Override
+                void initTxs(List<Tx> txs) {
+                    desktopHDMKeychain.initTxs(txs);
                 }
 
-                log.info("hd monitor address did sync {} tx, path {} ,index {}, {}", txSum, pathType, addressIndex, hdAccountAddress.getAddress());
-                hdAccountAddress.setSyncedComplete(true);
-                AddressManager.getInstance().getHDAccountMonitored().updateSyncComplete(hdAccountAddress);
+                @Override
+                void updateSyncComplete(DesktopHDMAddress address) {
+                    address.setSyncComplete(true);
+                    desktopHDMKeychain.updateSyncComplete(address);
+                }
 
-                if (txSum > 0) {
+                @Override
+                void addressUsed(AbstractHD.PathType pathType, int index) {
                     if (pathType == AbstractHD.PathType.EXTERNAL_ROOT_PATH) {
-                        AddressManager.getInstance().getHDAccountMonitored().updateIssuedExternalIndex(addressIndex);
+                        desktopHDMKeychain.updateIssuedExternalIndex(index);
                     } else {
-                        AddressManager.getInstance().getHDAccountMonitored().updateIssuedInternalIndex(addressIndex);
+                        desktopHDMKeychain.updateIssuedInternalIndex(index);
                     }
-                    AddressManager.getInstance().getHDAccountMonitored().supplyEnoughKeys(false);
-//                    hasTx = true;
-                    unusedAddressCnt = 0;
-                } else {
-//                    hasTx = false;
-                    unusedAddressCnt += 1;
+                    desktopHDMKeychain.supplyEnoughKeys(false);
                 }
-                addressIndex++;
-            }
-            AbstractDb.hdAccountAddressProvider.updateSyncedForIndex(hdSeedId, pathType, addressIndex - 1);
+
+                @Override
+                void pathSynced(AbstractHD.PathType pathType, int lastIndex) {
+                    AbstractDb.desktopTxProvider.updateSyncdForIndex(pathType, lastIndex);
+                }
+            }, pathType, new WebAddressTxsApi(webType), FETCH_RETRY_DELAY);
         }
     }
 
-    private static void getTxForHDAccount(int hdSeedId, final int webType) throws Exception {
-        for (AbstractHD.PathType pathType : AbstractHD.PathType.values()) {
-            HDAccount.HDAccountAddress hdAccountAddress;
-//            boolean hasTx = true;
-            int unusedAddressCnt = 0; //HDAccount.MaxUnusedNewAddressCount
-            int maxUnusedAddressCount = HDAccount.MaxUnusedNewAddressCount;
-            int addressIndex = 0;
-            while (unusedAddressCnt <= maxUnusedAddressCount) {
-                Block storedBlock = BlockChain.getInstance().getLastBlock();
-                int storeBlockHeight = storedBlock.getBlockNo();
-                hdAccountAddress = AbstractDb.hdAccountAddressProvider.addressForPath(hdSeedId,
-                        pathType, addressIndex);
-                if (hdAccountAddress == null) {
-//                    hasTx = false;
-                    unusedAddressCnt += 1;
-                    log.warn("hd address is null path {} ,index {}", pathType, addressIndex);
-                    continue;
-                }
-                if (hdAccountAddress.isSyncedComplete()) {
-                    log.info("hd address is synced path {} ,index {}, {}", pathType,
-                            addressIndex, hdAccountAddress.getAddress());
-                    addressIndex++;
-                    continue;
-                }
-                int apiBlockCount = 0;
-                int txSum = 0;
-                boolean needGetTxs = true;
-                int page = 1;
-                // TODO
-                List<Tx> transactions;
+    /**
+     * The api call of the concurrent hd address sync.
+     */
+    interface AddressTxsApi {
+        /**
+         * Fetches all the txs of the address, runs on the fetch threads so it must not touch the
+         * wallet.
+         */
+        AddressTxs getTxs(String address, int storeBlockHeight) throws Exception;
+    }
 
+    private static class WebAddressTxsApi implements AddressTxsApi {
+        private final int webType;
 
-                log.info("hd address will sync path {} ,index {}, {}", pathType, addressIndex, hdAccountAddress.getAddress());
-                while (needGetTxs) {
-                    // TODO: get data from bither.net else from blockchain.info
-                    if (webType == 0) {
-                        BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(
-                                hdAccountAddress.getAddress(), page);
-                        bitherMytransactionsApi.handleHttpGet();
-                        String txResult = bitherMytransactionsApi.getResult();
-                        JSONObject jsonObject = new JSONObject(txResult);
+        WebAddressTxsApi(int webType) {
+            this.webType = webType;
+        }
 
-                        if (!jsonObject.isNull(BLOCK_COUNT)) {
-                            apiBlockCount = jsonObject.getInt(BLOCK_COUNT);
-                        }
-                        int txCnt = jsonObject.getInt(TX_CNT);
-                        transactions = TransactionsUtil.getTransactionsFromBither(jsonObject, storeBlockHeight);
-                        transactions = AddressManager.getInstance().compressTxsForHDAccount(transactions);
+        @Override
+        public AddressTxs getTxs(String address, int storeBlockHeight) throws Exception {
+            return fetchTxs(address, webType, storeBlockHeight);
+        }
+    }
 
-                        Collections.sort(transactions, new ComparatorTx());
-                        // address.initTxs(transactions);
-                        AddressManager.getInstance().getHDAccountHot().initTxs(transactions);
-                        txSum = txSum + transactions.size();
-                        needGetTxs = transactions.size() > 0;
-                        page++;
+    /**
+     * What the concurrent hd address sync needs from an hd account or keychain.
+     */
+    static abstract class HDSyncTarget<T> {
+        final String name;
+        final int maxUnusedAddressCount;
 
-                    }else {
-                        BlockChainMytransactionsApi blockChainMytransactionsApi = new BlockChainMytransactionsApi(hdAccountAddress.getAddress());
-                        blockChainMytransactionsApi.handleHttpGet();
-                        String txResult = blockChainMytransactionsApi.getResult();
-                        JSONObject jsonObject = new JSONObject(txResult);
-                        // TODO: get the latest block number from blockChain.info
-                        JSONObject jsonObjectBlockChain = getLatestBlockNumberFromBlockchain();
-                        if (!jsonObjectBlockChain.isNull(BLOCK_CHAIN_HEIGHT)) {
-                            apiBlockCount = jsonObjectBlockChain.getInt(BLOCK_CHAIN_HEIGHT);
-                        }
-                        int txCnt = jsonObject.getInt(BLOCK_CHAIN_CNT);
-                        // TODO: get transactions from blockChain.info
-                        transactions = TransactionsUtil.getTransactionsFromBlockChain(jsonObject, storeBlockHeight);
-                        transactions = AddressManager.getInstance().compressTxsForHDAccount(transactions);
+        HDSyncTarget(String name, int maxUnusedAddressCount) {
+            this.name = name;
+            this.maxUnusedAddressCount = maxUnusedAddressCount;
+        }
 
-                        Collections.sort(transactions, new ComparatorTx());
-                        // address.initTxs(transactions);
-                        AddressManager.getInstance().getHDAccountHot().initTxs(transactions);
-                        txSum = txSum + transactions.size();
-                        needGetTxs = false;
+        abstract T addressForPath(AbstractHD.PathType pathType, int index);
 
-                    }
-                }
-                /*
-                while (needGetTxs) {
-                    BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(
-                            hdAccountAddress.getAddress(), page, flag);
-                    bitherMytransactionsApi.handleHttpGet();
-                    String txResult = bitherMytransactionsApi.getResult();
-                    JSONObject jsonObject = new JSONObject(txResult);
-                    if (!jsonObject.isNull(BLOCK_COUNT)) {
-                        apiBlockCount = jsonObject.getInt(BLOCK_COUNT);
-                    }
-                    int txCnt = jsonObject.getInt(TX_CNT);
-                    List<Tx> transactions = TransactionsUtil.getTransactionsFromBither(
-                            jsonObject, storeBlockHeight);
-                    transactions = AddressManager.getInstance().compressTxsForHDAccount(transactions);
-                    Collections.sort(transactions, new ComparatorTx());
-                    AddressManager.getInstance().getHDAccountHot().initTxs(transactions);
-                    txSum = txSum + transactions.size();
-                    needGetTxs = transactions.size() > 0;
-                    page++;
-                }
-                */
-                if (apiBlockCount < storeBlockHeight && storeBlockHeight - apiBlockCount < 100) {
-                    BlockChain.getInstance().rollbackBlock(apiBlockCount);
-                }
+        abstract String getAddress(T address);
 
-                log.info("hd address did sync {} tx, path {} ,index {}, {}", txSum, pathType, addressIndex, hdAccountAddress.getAddress());
-                hdAccountAddress.setSyncedComplete(true);
-                AddressManager.getInstance().getHDAccountHot().updateSyncComplete(hdAccountAddress);
+        abstract boolean isSyncComplete(T address);
 
-                if (txSum > 0) {
-                    if (pathType == AbstractHD.PathType.EXTERNAL_ROOT_PATH) {
-                        AddressManager.getInstance().getHDAccountHot().updateIssuedExternalIndex(addressIndex);
-                    } else {
-                        AddressManager.getInstance().getHDAccountHot().updateIssuedInternalIndex(addressIndex);
-                    }
-                    AddressManager.getInstance().getHDAccountHot().supplyEnoughKeys(false);
-//                    hasTx = true;
-                    unusedAddressCnt = 0;
-                } else {
-//                    hasTx = false;
-                    unusedAddressCnt += 1;
-                }
-                addressIndex++;
-            }
-            AbstractDb.hdAccountAddressProvider.updateSyncedForIndex(hdSeedId, pathType, addressIndex - 1);
+        abstract List<Tx> compressTxs(List<Tx> txs);
+
+        abstract void initTxs(List<Tx> txs);
+
+        abstract void updateSyncComplete(T address);
+
+        abstract void addressUsed(AbstractHD.PathType pathType, int index);
+
+        abstract void pathSynced(AbstractHD.PathType pathType, int lastIndex);
+
+        int getStoreBlockHeight() {
+            return BlockChain.getInstance().getLastBlock().getBlockNo();
+        }
+
+        // the api is behind the stored blocks
+        void rollbackBlock(int apiBlockCount) {
+            BlockChain.getInstance().rollbackBlock(apiBlockCount);
         }
     }
 
-    private static void getTxForDesktopHDM(DesktopHDMKeychain desktopHDMKeychain, final int webType) throws Exception {
-        for (AbstractHD.PathType pathType : AbstractHD.PathType.values()) {
-            DesktopHDMAddress desktopHDMAddress;
-            boolean hasTx = true;
-            int addressIndex = 0;
-            while (hasTx) {
-                Block storedBlock = BlockChain.getInstance().getLastBlock();
-                int storeBlockHeight = storedBlock.getBlockNo();
-                desktopHDMAddress = AbstractDb.desktopTxProvider.addressForPath(desktopHDMKeychain,
-                        pathType, addressIndex);
-                if (desktopHDMAddress == null) {
-                    hasTx = false;
-                    log.warn("AccountAddress", "address is null path {} ,index {}", pathType, addressIndex);
-                    continue;
-                }
-                if (desktopHDMAddress.isSyncComplete()) {
-                    addressIndex++;
-                    continue;
-                }
-                int apiBlockCount = 0;
-                int txSum = 0;
-                boolean needGetTxs = true;
-                int page = 1;
-                // TODO
-                List<Tx> transactions;
+    private static class HDAccountSyncTarget extends HDSyncTarget<HDAccount.HDAccountAddress> {
+        private final int hdSeedId;
+        private final HDAccount account;
 
-                while (needGetTxs) {
-                    // TODO: get data from bither.net else from blockchain.info
-                    if (webType == 0) {
-                        BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(
-                                desktopHDMAddress.getAddress(), page);
-                        bitherMytransactionsApi.handleHttpGet();
-                        String txResult = bitherMytransactionsApi.getResult();
-                        JSONObject jsonObject = new JSONObject(txResult);
+        HDAccountSyncTarget(int hdSeedId, HDAccount account, String name) {
+            super(name, HDAccount.MaxUnusedNewAddressCount);
+            this.hdSeedId = hdSeedId;
+            this.account = account;
+        }
 
-                        if (!jsonObject.isNull(BLOCK_COUNT)) {
-                            apiBlockCount = jsonObject.getInt(BLOCK_COUNT);
-                        }
-                        int txCnt = jsonObject.getInt(TX_CNT);
-                        transactions = TransactionsUtil.getTransactionsFromBither(jsonObject, storeBlockHeight);
-                        transactions = AddressManager.getInstance().compressTxsForDesktopHDM(transactions);
+        @Override
+        HDAccount.HDAccountAddress addressForPath(AbstractHD.PathType pathType, int index) {
+            return AbstractDb.hdAccountAddressProvider.addressForPath(hdSeedId, pathType, index);
+        }
 
-                        Collections.sort(transactions, new ComparatorTx());
-                        // address.initTxs(transactions);
-                        desktopHDMKeychain.initTxs(transactions);
-                        txSum = txSum + transactions.size();
-                        needGetTxs = transactions.size() > 0;
-                        page++;
+        @Override
+        String getAddress(HDAccount.HDAccountAddress address) {
+            return address.getAddress();
+        }
 
-                    }else {
-                        BlockChainMytransactionsApi blockChainMytransactionsApi = new BlockChainMytransactionsApi(desktopHDMAddress.getAddress());
-                        blockChainMytransactionsApi.handleHttpGet();
-                        String txResult = blockChainMytransactionsApi.getResult();
-                        JSONObject jsonObject = new JSONObject(txResult);
-                        // TODO: get the latest block number from blockChain.info
-                        JSONObject jsonObjectBlockChain = getLatestBlockNumberFromBlockchain();
-                        if (!jsonObjectBlockChain.isNull(BLOCK_CHAIN_HEIGHT)) {
-                            apiBlockCount = jsonObjectBlockChain.getInt(BLOCK_CHAIN_HEIGHT);
-                        }
-                        int txCnt = jsonObject.getInt(BLOCK_CHAIN_CNT);
-                        // TODO: get transactions from blockChain.info
-                        transactions = TransactionsUtil.getTransactionsFromBlockChain(jsonObject, storeBlockHeight);
-                        transactions = AddressManager.getInstance().compressTxsForDesktopHDM(transactions);
+        @Override
+        boolean isSyncComplete(HDAccount.HDAccountAddress address) {
+            return address.isSyncedComplete();
+        }
 
-                        Collections.sort(transactions, new ComparatorTx());
-                        // address.initTxs(transactions);
-                        desktopHDMKeychain.initTxs(transactions);
-                        txSum = txSum + transactions.size();
-                        needGetTxs = false;
+        @Override
+        List<Tx> compressTxs(List<Tx> txs) {
+            return AddressManager.getInstance().compressTxsForHDAccount(txs);
+        }
 
+        @Override
+        void initTxs(List<Tx> txs) {
+            account.initTxs(txs);
+        }
+
+        @Override
+        void updateSyncComplete(HDAccount.HDAccountAddress address) {
+            address.setSyncedComplete(true);
+            account.updateSyncComplete(address);
+        }
+
+        @Override
+        void addressUsed(AbstractHD.PathType pathType, int index) {
+            if (pathType == AbstractHD.PathType.EXTERNAL_ROOT_PATH) {
+                account.updateIssuedExternalIndex(index);
+            } else {
+                account.updateIssuedInternalIndex(index);
+            }
+            account.supplyEnoughKeys(false);
+        }
+
+        @Override
+        void pathSynced(AbstractHD.PathType pathType, int lastIndex) {
+            AbstractDb.hdAccountAddressProvider.updateSyncedForIndex(hdSeedId, pathType, lastIndex);
+        }
+    }
+
+    static class AddressTxs {
+        final List<Tx> txs = new ArrayList<Tx>();
+        int storeBlockHeight;
+        int apiBlockCount;
+    }
+
+    private static class PendingAddress<T> {
+        final int index;
+        final T address;
+        // null for an address that is already synced
+        final Future<AddressTxs> future;
+        AddressTxs result;
+
+        PendingAddress(int index, T address, Future<AddressTxs> future) {
+            this.index = index;
+            this.address = address;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Syncs the addresses of one path with up to {@link #FETCH_THREAD_COUNT} of them fetched at
+     * once. Results are handled in index order the same way as fetching them one by one: a used
+     * address issues its index and supplies new keys, and the sync stops after more than
+     * maxUnusedAddressCount unused addresses in a row. Only addresses that can still be needed
+     * within that gap are fetched ahead. Txs are saved in batches, and an address is only
+     * marked synced after its txs are saved. A failed fetch is tried again
+     * {@link #FETCH_RETRY_COUNT} times, after that the sync throws what the fetch threw.
+     */
+    static <T> void syncHDAddresses(HDSyncTarget<T> target, AbstractHD.PathType pathType,
+                                    AddressTxsApi api, long retryDelay) throws Exception {
+        LinkedList<PendingAddress<T>> pendingAddresses = new LinkedList<PendingAddress<T>>();
+        List<PendingAddress<T>> unsavedAddresses = new ArrayList<PendingAddress<T>>();
+        int fetchingCount = 0;
+        int nextIndex = 0;
+        int lastIndex = -1;
+        int unusedAddressCnt = 0;
+        try {
+            while (true) {
+                while (fetchingCount < FETCH_THREAD_COUNT && unusedAddressCnt + fetchingCount <=
+                        target.maxUnusedAddressCount) {
+                    T address = target.addressForPath(pathType, nextIndex);
+                    if (address == null) {
+                        break;
                     }
-                }
-                /*
-                while (needGetTxs) {
-                    BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(
-                            desktopHDMAddress.getAddress(), page, flag);
-                    bitherMytransactionsApi.handleHttpGet();
-                    String txResult = bitherMytransactionsApi.getResult();
-                    JSONObject jsonObject = new JSONObject(txResult);
-                    if (!jsonObject.isNull(BLOCK_COUNT)) {
-                        apiBlockCount = jsonObject.getInt(BLOCK_COUNT);
+                    Future<AddressTxs> future = null;
+                    if (!target.isSyncComplete(address)) {
+                        log.info("{} address will sync path {} ,index {}, {}", target.name,
+                                pathType, nextIndex, target.getAddress(address));
+                        future = submitFetchTxs(api, target.getAddress(address), target
+                                .getStoreBlockHeight(), retryDelay);
+                        fetchingCount++;
                     }
-                    int txCnt = jsonObject.getInt(TX_CNT);
-                    List<Tx> transactions = TransactionsUtil.getTransactionsFromBither(
-                            jsonObject, storeBlockHeight);
-                    transactions = AddressManager.getInstance().compressTxsForDesktopHDM(transactions);
-                    Collections.sort(transactions, new ComparatorTx());
-                    desktopHDMKeychain.initTxs(transactions);
-                    txSum = txSum + transactions.size();
-                    needGetTxs = transactions.size() > 0;
-                    page++;
+                    pendingAddresses.add(new PendingAddress<T>(nextIndex, address, future));
+                    nextIndex++;
+                }
+                if (pendingAddresses.isEmpty() || unusedAddressCnt > target.maxUnusedAddressCount) {
+                    break;
+                }
+                PendingAddress<T> pending = pendingAddresses.removeFirst();
+                lastIndex = pending.index;
+                if (pending.future == null) {
+                    continue;
+                }
+                fetchingCount--;
+                pending.result = getFetchResult(pending.future);
+                unsavedAddresses.add(pending);
+                int txCount = pending.result.txs.size();
+                log.info("{} address did sync {} tx, path {} ,index {}, {}", target.name,
+                        txCount, pathType, pending.index, target.getAddress(pending.address));
+                if (txCount > 0) {
+                    target.addressUsed(pathType, pending.index);
+                    unusedAddressCnt = 0;
+                } else {
+                    unusedAddressCnt += 1;
                 }
-                */
-                if (apiBlockCount < storeBlockHeight && storeBlockHeight - apiBlockCount < 100) {
-                    BlockChain.getInstance().rollbackBlock(apiBlockCount);
+                if (countTxs(unsavedAddresses) >= SAVE_BATCH_TX_COUNT) {
+                    saveFetchedTxs(target, unsavedAddresses);
                 }
+            }
+        } finally {
+            for (PendingAddress<T> pending : pendingAddresses) {
+                if (pending.future != null) {
+                    pending.future.cancel(true);
+                }
+            }
+        }
+        saveFetchedTxs(target, unsavedAddresses);
+        target.pathSynced(pathType, lastIndex);
+    }
 
-                desktopHDMAddress.setSyncComplete(true);
-                desktopHDMKeychain.updateSyncComplete(desktopHDMAddress);
+    private static <T> void saveFetchedTxs(HDSyncTarget<T> target, List<PendingAddress<T>>
+            unsavedAddresses) {
+        if (unsavedAddresses.isEmpty()) {
+            return;
+        }
+        List<Tx> transactions = new ArrayList<Tx>();
+        for (PendingAddress<T> pending : unsavedAddresses) {
+            transactions.addAll(pending.result.txs);
+        }
+        transactions = target.compressTxs(transactions);
+        Collections.sort(transactions, new ComparatorTx());
+        target.initTxs(transactions);
+        for (PendingAddress<T> pending : unsavedAddresses) {
+            int storeBlockHeight = pending.result.storeBlockHeight;
+            int apiBlockCount = pending.result.apiBlockCount;
+            if (apiBlockCount < storeBlockHeight && storeBlockHeight - apiBlockCount < 100) {
+                target.rollbackBlock(apiBlockCount);
+            }
+            target.updateSyncComplete(pending.address);
+        }
+        unsavedAddresses.clear();
+    }
 
-                if (txSum > 0) {
-                    if (pathType == AbstractHD.PathType.EXTERNAL_ROOT_PATH) {
-                        desktopHDMKeychain.updateIssuedExternalIndex(addressIndex);
-                    } else {
-                        desktopHDMKeychain.updateIssuedInternalIndex(addressIndex);
+    private static <T> int countTxs(List<PendingAddress<T>> addresses) {
+        int count = 0;
+        for (PendingAddress<T> pending : addresses) {
+            count += pending.result.txs.size();
+        }
+        return count;
+    }
+
+    private static Future<AddressTxs> submitFetchTxs(final AddressTxsApi api, final String
+            address, final int storeBlockHeight, final long retryDelay) {
+        return fetchExecutor.submit(new Callable<AddressTxs>() {
+            @Override
+            public AddressTxs call() throws Exception {
+                int retry = 0;
+                while (true) {
+                    try {
+                        return api.getTxs(address, storeBlockHeight);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        if (retry >= FETCH_RETRY_COUNT) {
+                            throw e;
+                        }
+                        retry++;
+                        log.warn("fetch txs of " + address + " failed, retry " + retry, e);
+                        Thread.sleep(retryDelay * retry);
                     }
-                    desktopHDMKeychain.supplyEnoughKeys(false);
-                    hasTx = true;
-                } else {
-                    hasTx = false;
-                    AbstractDb.desktopTxProvider.updateSyncdForIndex(pathType, addressIndex);
                 }
             }
-            addressIndex++;
-        }
+        });
+    }
 
+    private static AddressTxs getFetchResult(Future<AddressTxs> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
 
+    /**
+     * Fetches all pages of the txs of the address, runs on the fetch threads so it must not touch
+     * the wallet.
+     */
+    private static AddressTxs fetchTxs(String address, int webType, int storeBlockHeight) throws
+            Exception {
+        AddressTxs result = new AddressTxs();
+        result.storeBlockHeight = storeBlockHeight;
+        if (webType == 0) {
+            boolean needGetTxs = true;
+            int page = 1;
+            int[] apiBlockCount = new int[1];
+            while (needGetTxs) {
+                List<Tx> transactions = TransactionsUtil.getTransactionsFromBither(address,
+                        page, storeBlockHeight, apiBlockCount);
+                result.apiBlockCount = apiBlockCount[0];
+                result.txs.addAll(transactions);
+                needGetTxs = transactions.size() > 0;
+                page++;
+            }
+        } else {
+            BlockChainMytransactionsApi blockChainMytransactionsApi = new BlockChainMytransactionsApi(address);
+            blockChainMytransactionsApi.handleHttpGet();
+            String txResult = blockChainMytransactionsApi.getResult();
+            JSONObject jsonObject = new JSONObject(txResult);
+            JSONObject jsonObjectBlockChain = getLatestBlockNumberFromBlockchain();
+            if (!jsonObjectBlockChain.isNull(BLOCK_CHAIN_HEIGHT)) {
+                result.apiBlockCount = jsonObjectBlockChain.getInt(BLOCK_CHAIN_HEIGHT);
+            }
+            result.txs.addAll(TransactionsUtil.getTransactionsFromBlockChain(jsonObject,
+                    storeBlockHeight));
+        }
+        return result;
     }
 
     private static void getTxForAddress(final int webType) throws Exception {
@@ -644,7 +641,7 @@ public class TransactionsUtil {
             Block storedBlock = BlockChain.getInstance().getLastBlock();
             int storeBlockHeight = storedBlock.getBlockNo();
             if (!address.isSyncComplete()) {
-                int apiBlockCount = 0;
+                int[] apiBlockCount = new int[1];
                 int txSum = 0;
                 boolean needGetTxs = true;
                 int page = 1;
@@ -655,17 +652,8 @@ public class TransactionsUtil {
 
                     // TODO: get data from bither.net else from blockchain.info
                     if (webType == 0) {
-                        BitherMytransactionsApi bitherMytransactionsApi = new BitherMytransactionsApi(
-                                address.getAddress(), page);
-                        bitherMytransactionsApi.handleHttpGet();
-                        String txResult = bitherMytransactionsApi.getResult();
-                        JSONObject jsonObject = new JSONObject(txResult);
-
-                        if (!jsonObject.isNull(BLOCK_COUNT)) {
-                            apiBlockCount = jsonObject.getInt(BLOCK_COUNT);
-                        }
-                        int txCnt = jsonObject.getInt(TX_CNT);
-                        transactions = TransactionsUtil.getTransactionsFromBither(jsonObject, storeBlockHeight);
+                        transactions = TransactionsUtil.getTransactionsFromBither(address
+                                .getAddress(), page, storeBlockHeight, apiBlockCount);
                         transactions = AddressManager.getInstance().compressTxsForApi(transactions, address);
 
                         Collections.sort(transactions, new ComparatorTx());
@@ -682,7 +670,7 @@ public class TransactionsUtil {
                         // TODO: get the latest block number from blockChain.info
                         JSONObject jsonObjectBlockChain = getLatestBlockNumberFromBlockchain();
                         if (!jsonObjectBlockChain.isNull(BLOCK_CHAIN_HEIGHT)) {
-                            apiBlockCount = jsonObjectBlockChain.getInt(BLOCK_CHAIN_HEIGHT);
+                            apiBlockCount[0] = jsonObjectBlockChain.getInt(BLOCK_CHAIN_HEIGHT);
                         }
                         int txCnt = jsonObject.getInt(BLOCK_CHAIN_CNT);
                         // TODO: get transactions from blockChain.info
@@ -704,8 +692,9 @@ public class TransactionsUtil {
                     */
                 }
 
-                if (apiBlockCount < storeBlockHeight && storeBlockHeight - apiBlockCount < 100) {
-                    BlockChain.getInstance().rollbackBlock(apiBlockCount);
+                if (apiBlockCount[0] < storeBlockHeight && storeBlockHeight - apiBlockCount[0] <
+                        100) {
+                    BlockChain.getInstance().rollbackBlock(apiBlockCount[0]);
                 }
                 address.setSyncComplete(true);
                 if (address instanceof HDMAddress) {
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.utils;
+
+import com.google.common.base.Function;
+
+import net.bither.bitherj.db.AbstractDb;
+import net.bither.bitherj.db.imp.base.BlobParams;
+import net.bither.bitherj.db.imp.base.ICursor;
+import net.bither.bitherj.db.imp.base.IDb;
+import net.bither.bitherj.exception.AddressFormatException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Converts the base58 text hash columns of txs, ins, outs, addresses_txs and blocks to the
+ * 32 byte blob columns of {@link AbstractDb#HASH_BLOB_SCHEMA_VERSION}.
+ */
+public class UpgradeHashColumnUtil {
+    private static final Logger log = LoggerFactory.getLogger(UpgradeHashColumnUtil.class);
+
+    public static final int HASH_TEXT_SCHEMA_VERSION = 1;
+
+    private static final String OLD_TABLE_SUFFIX = "_text";
+
+    public static int getHashSchemaVersion(IDb db) {
+        return isTextHashTable(db, AbstractDb.Tables.TXS, AbstractDb.TxsColumns.TX_HASH) ?
+                HASH_TEXT_SCHEMA_VERSION : AbstractDb.HASH_BLOB_SCHEMA_VERSION;
+    }
+
+    /**
+     * Converts the tables of the db that still have text hash columns, called every time the db
+     * is opened. Tables the db does not have are left alone, so it can be called for the db of
+     * the txs and for the db of the blocks if they are not the same.
+     */
+    public static void upgrade(IDb db) {
+        upgradeTable(db, AbstractDb.Tables.TXS, AbstractDb.CREATE_TXS_SQL
+                , Arrays.asList(AbstractDb.TxsColumns.TX_HASH, AbstractDb.TxsColumns.TX_VER
+                        , AbstractDb.TxsColumns.TX_LOCKTIME, AbstractDb.TxsColumns.TX_TIME
+                        , AbstractDb.TxsColumns.BLOCK_NO, AbstractDb.TxsColumns.SOURCE)
+                , new String[]{AbstractDb.TxsColumns.TX_HASH}
+                , new String[]{AbstractDb.CREATE_TX_BLOCK_NO_INDEX});
+        upgradeTable(db, AbstractDb.Tables.INS, AbstractDb.CREATE_INS_SQL
+                , Arrays.asList(AbstractDb.InsColumns.TX_HASH, AbstractDb.InsColumns.IN_SN
+                        , AbstractDb.InsColumns.PREV_TX_HASH, AbstractDb.InsColumns.PREV_OUT_SN
+                        , AbstractDb.InsColumns.IN_SIGNATURE, AbstractDb.InsColumns.IN_SEQUENCE)
+                , new String[]{AbstractDb.InsColumns.TX_HASH, AbstractDb.InsColumns.PREV_TX_HASH}
+                , new String[]{AbstractDb.CREATE_IN_PREV_TX_HASH_INDEX});
+        upgradeTable(db, AbstractDb.Tables.OUTS, AbstractDb.CREATE_OUTS_SQL
+                , Arrays.asList(AbstractDb.OutsColumns.TX_HASH, AbstractDb.OutsColumns.OUT_SN
+                        , AbstractDb.OutsColumns.OUT_SCRIPT, AbstractDb.OutsColumns.OUT_VALUE
+                        , AbstractDb.OutsColumns.OUT_STATUS, AbstractDb.OutsColumns.OUT_ADDRESS
+                        , AbstractDb.OutsColumns.HD_ACCOUNT_ID)
+                , new String[]{AbstractDb.OutsColumns.TX_HASH}
+                , new String[]{AbstractDb.CREATE_OUT_OUT_ADDRESS_INDEX
+                        , AbstractDb.CREATE_OUT_HD_ACCOUNT_ID_INDEX});
+        upgradeTable(db, AbstractDb.Tables.ADDRESSES_TXS, AbstractDb.CREATE_ADDRESSTXS_SQL
+                , Arrays.asList(AbstractDb.AddressesTxsColumns.ADDRESS
+                        , AbstractDb.AddressesTxsColumns.TX_HASH)
+                , new String[]{AbstractDb.AddressesTxsColumns.TX_HASH}
+                , new String[0]);
+        upgradeTable(db, AbstractDb.Tables.BLOCKS, AbstractDb.CREATE_BLOCKS_SQL
+                , Arrays.asList(AbstractDb.BlocksColumns.BLOCK_NO, AbstractDb.BlocksColumns.BLOCK_HASH
+                        , AbstractDb.BlocksColumns.BLOCK_ROOT, AbstractDb.BlocksColumns.BLOCK_VER
+                        , AbstractDb.BlocksColumns.BLOCK_BITS, AbstractDb.BlocksColumns.BLOCK_NONCE
+                        , AbstractDb.BlocksColumns.BLOCK_TIME, AbstractDb.BlocksColumns.BLOCK_PREV
+                        , AbstractDb.BlocksColumns.IS_MAIN)
+                , new String[]{AbstractDb.BlocksColumns.BLOCK_HASH, AbstractDb.BlocksColumns.BLOCK_ROOT
+                        , AbstractDb.BlocksColumns.BLOCK_PREV}
+                , new String[]{AbstractDb.CREATE_BLOCK_NO_INDEX, AbstractDb.CREATE_BLOCK_PREV_INDEX});
+    }
+
+    // null if the db has no such table
+    private static String getCreateSql(IDb db, String table) {
+        final String[] createSql = {null};
+        db.execQueryOneRecord(AbstractDb.QUERY_TABLE_SQL, new String[]{table}
+                , new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                createSql[0] = c.getString(0);
+                return null;
+            }
+        });
+        return createSql[0];
+    }
+
+    private static boolean isTextHashTable(IDb db, String table, String hashColumn) {
+        String createSql = getCreateSql(db, table);
+        return createSql != null && !createSql.contains(hashColumn + " blob");
+    }
+
+    private static void upgradeTable(final IDb db, String table, String createSql
+            , final List<String> columns, String[] hashColumns, String[] createIndexSqls) {
+        String oldTable = table + OLD_TABLE_SUFFIX;
+        boolean interrupted = getCreateSql(db, oldTable) != null;
+        if (!interrupted && !isTextHashTable(db, table, hashColumns[0])) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            if (interrupted) {
+                // a copy that did not finish last time, start it over from the old table
+                log.warn("upgrade {} was interrupted, copying again", table);
+                db.execUpdate("drop table if exists " + table, null);
+            } else {
+                db.execUpdate("alter table " + table + " rename to " + oldTable, null);
+            }
+            db.execUpdate(createSql, null);
+            copyRows(db, table, oldTable, columns, hashColumns);
+            // indexes of the old table go away with it, recreate them on the new one
+            db.execUpdate("drop table " + oldTable, null);
+            for (String createIndexSql : createIndexSqls) {
+                db.execUpdate(createIndexSql, null);
+            }
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void copyRows(final IDb db, String table, String oldTable
+            , final List<String> columns, String[] hashColumns) {
+        final Set<String> hashColumnSet = new HashSet<String>(Arrays.asList(hashColumns));
+
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            params.append(i == 0 ? "?" : ",?");
+        }
+        final String insertSql = "insert or ignore into " + table + "(" + Utils.joinString(columns, ",")
+                + ") values(" + params.toString() + ")";
+        final int[] skipped = {0};
+        db.execQueryLoop("select * from " + oldTable, null, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                Object[] values = new Object[columns.size()];
+                try {
+                    for (int i = 0; i < columns.size(); i++) {
+                        String column = columns.get(i);
+                        int idColumn = c.getColumnIndex(column);
+                        if (idColumn == -1 || c.isNull(idColumn)) {
+                            values[i] = null;
+                        } else if (hashColumnSet.contains(column)) {
+                            values[i] = Base58.decode(c.getString(idColumn));
+                        } else {
+                            values[i] = c.getString(idColumn);
+                        }
+                    }
+                } catch (AddressFormatException e) {
+                    skipped[0]++;
+                    return null;
+                }
+                BlobParams.execUpdate(db, insertSql, values);
+                return null;
+            }
+        });
+        if (skipped[0] > 0) {
+            log.warn("upgrade {} skipped {} rows with bad hash", table, skipped[0]);
+        }
+    }
+}
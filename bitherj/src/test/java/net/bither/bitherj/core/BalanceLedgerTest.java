@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.db.AbstractDb;
+import net.bither.bitherj.db.ITxProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class BalanceLedgerTest {
+    private static final String Owned = "1BitherOwned";
+    private static final String Other = "1BitherOther";
+
+    // the txs in the db
+    private final List<Tx> txs = new ArrayList<Tx>();
+    // the full calculation from the db, as the ledger does when it is rebuilt
+    private final BalanceLedger.Source source = new BalanceLedger.Source() {
+        @Override
+        public long getConfirmedBalance() {
+            HashSet<OutPoint> spent = new HashSet<OutPoint>();
+            for (Tx tx : txs) {
+                for (In in : tx.getIns()) {
+                    spent.add(new OutPoint(in.getPrevTxHash(), in.getPrevOutSn()));
+                }
+            }
+            long balance = 0;
+            for (Tx tx : txs) {
+                if (tx.getBlockNo() == Tx.TX_UNCONFIRMED) {
+                    continue;
+                }
+                for (Out out : tx.getOuts()) {
+                    if (Owned.equals(out.getOutAddress()) && !spent.contains(new OutPoint(tx
+                            .getTxHash(), out.getOutSn()))) {
+                        balance += out.getOutValue();
+                    }
+                }
+            }
+            return balance;
+        }
+
+        @Override
+        public List<Tx> getUnconfirmedTxs() {
+            List<Tx> result = new ArrayList<Tx>();
+            for (Tx tx : txs) {
+                if (tx.getBlockNo() == Tx.TX_UNCONFIRMED) {
+                    result.add(tx);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Set<String> getOwnedAddresses(List<String> addresses) {
+            Set<String> result = new HashSet<String>(addresses);
+            result.retainAll(Arrays.asList(Owned));
+            return result;
+        }
+    };
+
+    private ITxProvider txProvider;
+
+    @Before
+    public void setUp() {
+        txProvider = AbstractDb.txProvider;
+        // the ledger looks up the confirmed outs a new tx spends
+        AbstractDb.txProvider = (ITxProvider) Proxy.newProxyInstance(ITxProvider.class
+                .getClassLoader(), new Class[]{ITxProvider.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("getTxDetailByTxHash")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                for (Tx tx : txs) {
+                    if (Arrays.equals(tx.getTxHash(), (byte[]) args[0])) {
+                        return tx;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        AbstractDb.txProvider = txProvider;
+    }
+
+    @Test
+    public void testIncrementalBalanceMatchesFullCalculation() {
+        Tx tx1 = tx(1, 1, new OutPoint[0], new String[]{Owned}, new long[]{100});
+        tx1.setBlockNo(1);
+        txs.add(tx1);
+        BalanceLedger ledger = new BalanceLedger(source);
+        assertBalance(100, ledger);
+
+        // add: spends the confirmed out, with change
+        Tx tx2 = add(ledger, tx(2, 2, outPoints(tx1, 0), new String[]{Other, Owned}, new
+                long[]{30, 60}));
+        assertBalance(60, ledger);
+        add(ledger, tx(3, 3, outPoints(tx2, 1), new String[]{Owned}, new long[]{50}));
+        assertBalance(50, ledger);
+        // a double spend of tx2 does not count while unconfirmed
+        Tx tx4 = add(ledger, tx(4, 4, outPoints(tx1, 0), new String[]{Owned}, new long[]{90}));
+        assertBalance(50, ledger);
+
+        // confirm: the double spend wins, the db drops tx2 and tx3 spending it
+        confirm(ledger, 2, tx4);
+        assertBalance(90, ledger);
+        Tx tx5 = add(ledger, tx(5, 5, outPoints(tx4, 0), new String[]{Owned, Other}, new
+                long[]{20, 70}));
+        assertBalance(20, ledger);
+
+        // remove
+        txs.remove(tx5);
+        ledger.invalidate();
+        assertBalance(90, ledger);
+
+        // roll back: tx4 is unconfirmed again
+        tx4.setBlockNo(Tx.TX_UNCONFIRMED);
+        ledger.invalidate();
+        assertBalance(90, ledger);
+        add(ledger, tx(6, 6, outPoints(tx4, 0), new String[]{Owned, Other}, new long[]{10, 80}));
+        assertBalance(10, ledger);
+    }
+
+    private void assertBalance(long expected, BalanceLedger ledger) {
+        assertEquals(expected, new BalanceLedger(source).getBalance());
+        assertEquals(expected, ledger.getBalance());
+    }
+
+    private Tx add(BalanceLedger ledger, Tx tx) {
+        txs.add(tx);
+        ledger.addTx(tx);
+        return tx;
+    }
+
+    // like the db, the unconfirmed txs spending the same outs as tx and their children go
+    private void confirm(BalanceLedger ledger, int blockNo, Tx tx) {
+        tx.setBlockNo(blockNo);
+        HashSet<OutPoint> spent = new HashSet<OutPoint>();
+        for (In in : tx.getIns()) {
+            spent.add(new OutPoint(in.getPrevTxHash(), in.getPrevOutSn()));
+        }
+        HashSet<OutPoint> removedOuts = new HashSet<OutPoint>();
+        for (Tx each : new ArrayList<Tx>(txs)) {
+            if (each == tx || each.getBlockNo() != Tx.TX_UNCONFIRMED) {
+                continue;
+            }
+            for (In in : each.getIns()) {
+                OutPoint outPoint = new OutPoint(in.getPrevTxHash(), in.getPrevOutSn());
+                if (spent.contains(outPoint) || removedOuts.contains(outPoint)) {
+                    txs.remove(each);
+                    for (Out out : each.getOuts()) {
+                        removedOuts.add(new OutPoint(each.getTxHash(), out.getOutSn()));
+                    }
+                    break;
+                }
+            }
+        }
+        ledger.confirmTxs(Arrays.asList(tx.getTxHash()));
+    }
+
+    private static Tx tx(int id, int time, OutPoint[] spends, String[] addresses, long[] values) {
+        Tx tx = new Tx();
+        byte[] txHash = new byte[32];
+        txHash[0] = (byte) id;
+        tx.setTxHash(txHash);
+        tx.setTxTime(time);
+        tx.setBlockNo(Tx.TX_UNCONFIRMED);
+        List<In> ins = new ArrayList<In>();
+        for (OutPoint outPoint : spends) {
+            In in = new In();
+            in.setTxHash(txHash);
+            in.setPrevTxHash(outPoint.getTxHash());
+            in.setPrevOutSn(outPoint.getOutSn());
+            ins.add(in);
+        }
+        tx.setIns(ins);
+        List<Out> outs = new ArrayList<Out>();
+        for (int i = 0;
+             i < addresses.length;
+             i++) {
+            Out out = new Out();
+            out.setTxHash(txHash);
+            out.setOutSn(i);
+            out.setOutAddress(addresses[i]);
+            out.setOutValue(values[i]);
+            outs.add(out);
+        }
+        tx.setOuts(outs);
+        return tx;
+    }
+
+    private static OutPoint[] outPoints(Tx tx, int outSn) {
+        return new OutPoint[]{new OutPoint(tx.getTxHash(), outSn)};
+    }
+}
@@ -53,4 +53,17 @@ public class BlockTest {
         Block block1 = new Block(block.bitcoinSerialize());
         assertTrue(Arrays.equals(block1.getBlockHash(), expectBlockHash));
     }
+
+    @Test
+    public void testBlockFromOffset() {
+        Block block = new Block(1, "0000000000000000000000000000000000000000000000000000000000000000"
+                , "4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b", 1231006505
+                , 486604799, 2083236893, 0);
+        byte[] header = block.bitcoinSerialize();
+        byte[] bytes = new byte[header.length + 10];
+        Arrays.fill(bytes, (byte) 1);
+        System.arraycopy(header, 0, bytes, 5, header.length);
+        Block block1 = new Block(bytes, 5, header.length);
+        assertTrue(Arrays.equals(block.getBlockHash(), block1.getBlockHash()));
+    }
 }
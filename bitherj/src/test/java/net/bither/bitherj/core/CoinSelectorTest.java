@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoinSelectorTest {
+    private static UnspentOutputs outputs(long... values) {
+        UnspentOutputs outputs = new UnspentOutputs("1BitherTest");
+        for (int i = 0; i < values.length; i++) {
+            byte[] txHash = new byte[32];
+            txHash[0] = (byte) i;
+            outputs.add(txHash, 0, values[i], 1, new byte[0]);
+        }
+        return outputs;
+    }
+
+    private static long sum(UnspentOutputs outputs, int[] selected) {
+        long sum = 0;
+        for (int index : selected) {
+            sum += outputs.getValue(index);
+        }
+        return sum;
+    }
+
+    @Test
+    public void testExactMatch() {
+        UnspentOutputs outputs = outputs(5, 7, 11, 13, 100);
+        int[] selected = new CoinSelector(outputs, 10).select(31, 0);
+        assertEquals(31, sum(outputs, selected));
+        assertEquals(3, selected.length);
+    }
+
+    @Test
+    public void testNoMatchSpendsInPriorityOrder() {
+        UnspentOutputs outputs = outputs(5, 7, 11, 13, 100);
+        int[] selected = new CoinSelector(outputs, 10).select(4, 0);
+        assertEquals(1, selected.length);
+        assertEquals(4, selected[0]);
+    }
+
+    @Test
+    public void testNotEnough() {
+        UnspentOutputs outputs = outputs(5, 7, 11, 13, 100);
+        int[] selected = new CoinSelector(outputs, 10).select(1000, 0);
+        assertEquals(136, sum(outputs, selected));
+    }
+}
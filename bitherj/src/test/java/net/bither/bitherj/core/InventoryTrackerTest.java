@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.utils.Sha256Hash;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InventoryTrackerTest {
+    @Test
+    public void testEvictsOldest() {
+        InventoryTracker tracker = new InventoryTracker(3);
+        assertTrue(tracker.add(hash(1)));
+        assertTrue(tracker.add(hash(2)));
+        assertFalse(tracker.add(hash(1)));
+        assertTrue(tracker.add(hash(3)));
+        assertTrue(tracker.add(hash(4)));
+        assertFalse(tracker.contains(hash(1)));
+        assertTrue(tracker.contains(hash(2)));
+        assertEquals(3, tracker.size());
+
+        // a removed hash added again is not evicted with its old ring position
+        tracker.remove(hash(2));
+        assertTrue(tracker.add(hash(2)));
+        assertTrue(tracker.add(hash(5)));
+        assertTrue(tracker.contains(hash(2)));
+        assertFalse(tracker.contains(hash(3)));
+        assertEquals(3, tracker.size());
+
+        tracker.clear();
+        assertEquals(0, tracker.size());
+        assertFalse(tracker.contains(hash(2)));
+    }
+
+    @Test
+    public void testSameAsSet() {
+        int capacity = 1000;
+        InventoryTracker tracker = new InventoryTracker(capacity);
+        // values in the ring oldest first, with the ring entry each value in the set was added by
+        LinkedList<int[]> ring = new LinkedList<int[]>();
+        HashMap<Integer, int[]> model = new HashMap<Integer, int[]>();
+        Random random = new Random(7);
+        for (int i = 0;
+             i < 100000;
+             i++) {
+            int value = random.nextInt(3000);
+            if (random.nextInt(4) == 0) {
+                tracker.remove(hash(value));
+                model.remove(value);
+            } else {
+                boolean added = !model.containsKey(value);
+                assertEquals(added, tracker.add(hash(value)));
+                if (added) {
+                    if (ring.size() == capacity) {
+                        int[] oldest = ring.removeFirst();
+                        // a removed value added again has a newer entry
+                        if (model.get(oldest[0]) == oldest) {
+                            model.remove(oldest[0]);
+                        }
+                    }
+                    int[] entry = new int[]{value};
+                    ring.addLast(entry);
+                    model.put(value, entry);
+                }
+            }
+            assertEquals(model.size(), tracker.size());
+        }
+        for (int value = 0;
+             value < 3000;
+             value++) {
+            assertEquals(model.containsKey(value), tracker.contains(hash(value)));
+        }
+    }
+
+    private static Sha256Hash hash(int value) {
+        byte[] bytes = new byte[32];
+        // collide in the low bits of the table
+        bytes[31] = (byte) (value & 0x7);
+        bytes[30] = (byte) (value >> 3);
+        bytes[29] = (byte) (value >> 11);
+        return new Sha256Hash(bytes);
+    }
+}
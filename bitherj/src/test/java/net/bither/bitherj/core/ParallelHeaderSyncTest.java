@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelHeaderSyncTest {
+    private static final int RangeLength = 5;
+    private static final int RangeCount = 3;
+
+    @Test
+    public void testRangesRelayedInOrder() throws Exception {
+        List<Block> chain = chain(0, RangeLength * RangeCount, (byte) 0);
+        ParallelHeaderSync sync = createSync(chain);
+        Peer peer1 = peer(1);
+        Peer peer2 = peer(2);
+        Peer peer3 = peer(3);
+
+        ParallelHeaderSync.Range range1 = sync.assign(peer1);
+        ParallelHeaderSync.Range range2 = sync.assign(peer2);
+        assertSame(range1, sync.getRange(peer1));
+        assertArrayEquals(chain.get(0).getBlockHash(), range1.getLastHash());
+        assertArrayEquals(chain.get(RangeLength).getBlockHash(), range1.getEndHash());
+        assertArrayEquals(chain.get(RangeLength).getBlockHash(), range2.getLastHash());
+        assertFalse(sync.isDownloading(peer3));
+
+        // the second range completes first, it waits for the first one
+        assertTrue(sync.received(peer2, chain.subList(RangeLength + 1, 2 * RangeLength + 1)));
+        assertFalse(sync.isDownloading(peer2));
+        assertEquals(0, sync.takeRelayable().size());
+
+        // the first range arrives in two pieces
+        assertTrue(sync.received(peer1, chain.subList(1, 3)));
+        assertArrayEquals(chain.get(2).getBlockHash(), range1.getLastHash());
+        assertEquals(0, sync.takeRelayable().size());
+        assertTrue(sync.received(peer1, chain.subList(3, RangeLength + 1)));
+
+        List<ParallelHeaderSync.Range> relayable = sync.takeRelayable();
+        assertEquals(Arrays.asList(range1, range2), relayable);
+        assertEquals(chain.subList(1, RangeLength + 1), range1.getHeaders());
+        assertEquals(chain.subList(RangeLength + 1, 2 * RangeLength + 1), range2.getHeaders());
+        assertEquals(0, sync.takeRelayable().size());
+        assertFalse(sync.isFinished());
+
+        ParallelHeaderSync.Range range3 = sync.assign(peer3);
+        assertNull(sync.assign(peer1));
+        // headers past the checkpoint in the same message are left out
+        assertTrue(sync.received(peer3, chain.subList(2 * RangeLength + 1, chain.size())));
+        assertEquals(Arrays.asList(range3), sync.takeRelayable());
+        assertTrue(sync.isFinished());
+        assertArrayEquals(chain.get(chain.size() - 1).getBlockHash(), sync
+                .getLastCheckpointHash());
+    }
+
+    @Test
+    public void testHeadersNotInTheRange() throws Exception {
+        List<Block> chain = chain(0, RangeLength * RangeCount, (byte) 0);
+        ParallelHeaderSync sync = createSync(chain);
+        Peer peer = peer(1);
+        sync.assign(peer);
+        // not following the last header of the range
+        assertFalse(sync.received(peer, chain.subList(2, 4)));
+
+        sync = createSync(chain);
+        sync.assign(peer);
+        sync.assign(peer(2));
+        ParallelHeaderSync.Range range3 = sync.assign(peer(3));
+        // a fork that never reaches the checkpoint
+        List<Block> fork = chain(2 * RangeLength, RangeLength + 1, (byte) 1);
+        fork.set(0, chain.get(2 * RangeLength));
+        fork.get(1).setBlockPrev(chain.get(2 * RangeLength).getBlockHash());
+        assertFalse(sync.received(range3.getPeer(), fork.subList(1, fork.size())));
+        assertFalse(sync.isFinished());
+    }
+
+    @Test
+    public void testUnknownPeerIgnored() throws Exception {
+        List<Block> chain = chain(0, RangeLength * RangeCount, (byte) 0);
+        ParallelHeaderSync sync = createSync(chain);
+        assertTrue(sync.received(peer(1), chain.subList(2, 4)));
+        assertEquals(0, sync.takeRelayable().size());
+    }
+
+    // the ranges of the chain end at every RangeLength blocks
+    private static ParallelHeaderSync createSync(List<Block> chain) {
+        List<Block> checkpoints = new ArrayList<Block>();
+        for (int i = 1;
+             i <= RangeCount;
+             i++) {
+            checkpoints.add(chain.get(i * RangeLength));
+        }
+        return new ParallelHeaderSync(chain.get(0), checkpoints);
+    }
+
+    // count + 1 linked headers from the height, fork tells chains apart
+    private static List<Block> chain(int fromHeight, int count, byte fork) {
+        List<Block> chain = new ArrayList<Block>();
+        byte[] prev = new byte[32];
+        for (int height = fromHeight;
+             height <= fromHeight + count;
+             height++) {
+            byte[] hash = new byte[32];
+            hash[0] = (byte) height;
+            hash[1] = (byte) (height >> 8);
+            hash[2] = fork;
+            chain.add(new Block(hash, 1, prev, new byte[32], height, 0, 0, height, true));
+            prev = hash;
+        }
+        return chain;
+    }
+
+    private static Peer peer(int n) throws Exception {
+        return new Peer(InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) n}));
+    }
+}
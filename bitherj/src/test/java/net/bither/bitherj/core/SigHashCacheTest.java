@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.core;
+
+import net.bither.bitherj.utils.Utils;
+import net.bither.bitherj.utils.VarInt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SigHashCacheTest {
+    // p2pkh with an OP_CODESEPARATOR after OP_DUP, which is not hashed
+    private static final byte[] ConnectedScript = Utils.hexStringToByteArray
+            ("76ab a914 79a7bf0bba8359561d4dab457042d7b632d5e641 88ac".replace(" ", ""));
+    private static final byte[] HashedScript = Utils.hexStringToByteArray
+            ("76a91479a7bf0bba8359561d4dab457042d7b632d5e64188ac");
+
+    @Test
+    public void testAllSigHashTypes() throws Exception {
+        Tx tx = createTx();
+        SigHashCache cache = new SigHashCache(tx);
+        // 0 and the other undefined types are hashed like SIGHASH_ALL
+        for (int sigHashType = 0;
+             sigHashType < 256;
+             sigHashType++) {
+            for (int i = 0;
+                 i < tx.getIns().size();
+                 i++) {
+                String expected = Utils.bytesToHexString(referenceHash(tx, i, HashedScript,
+                        sigHashType));
+                String message = "input " + i + " type " + sigHashType;
+                assertEquals(message, expected, Utils.bytesToHexString(cache.hashForSignature(i,
+                        ConnectedScript, (byte) sigHashType)));
+                assertEquals(message, expected, Utils.bytesToHexString(tx.hashForSignature(i,
+                        ConnectedScript, (byte) sigHashType)));
+            }
+        }
+    }
+
+    @Test
+    public void testSingleWithoutMatchingOut() {
+        Tx tx = createTx();
+        SigHashCache cache = new SigHashCache(tx);
+        // 3 ins and 2 outs, the third in signs "1"
+        byte[] hash = cache.hashForSignature(2, ConnectedScript, (byte) 3);
+        assertEquals("0100000000000000000000000000000000000000000000000000000000000000", Utils
+                .bytesToHexString(hash));
+        hash[0] = 2;
+        assertEquals("0100000000000000000000000000000000000000000000000000000000000000", Utils
+                .bytesToHexString(cache.hashForSignature(2, ConnectedScript, (byte) 0x83)));
+    }
+
+    @Test
+    public void testHashesForSignature() throws Exception {
+        Tx tx = createTx();
+        SigHashCache cache = new SigHashCache(tx);
+        List<byte[]> scripts = new ArrayList<byte[]>();
+        for (int i = 0;
+             i < tx.getIns().size();
+             i++) {
+            scripts.add(ConnectedScript);
+        }
+        List<byte[]> hashes = cache.hashesForSignature(scripts);
+        assertEquals(tx.getIns().size(), hashes.size());
+        for (int i = 0;
+             i < hashes.size();
+             i++) {
+            assertEquals(Utils.bytesToHexString(referenceHash(tx, i, HashedScript, 1)), Utils
+                    .bytesToHexString(hashes.get(i)));
+        }
+    }
+
+    @Test
+    public void testInputIndexOutOfRange() {
+        SigHashCache cache = new SigHashCache(createTx());
+        for (int inputIndex : new int[]{-1, 3}) {
+            for (int sigHashType : new int[]{1, 2, 3, 0x81}) {
+                try {
+                    cache.hashForSignature(inputIndex, ConnectedScript, (byte) sigHashType);
+                    fail("input " + inputIndex + " type " + sigHashType);
+                } catch (IndexOutOfBoundsException e) {
+                    assertTrue(e.getMessage().length() > 0);
+                }
+            }
+        }
+    }
+
+    // 3 ins and 2 outs
+    private static Tx createTx() {
+        Tx tx = new Tx(Utils.hexStringToByteArray
+                ("0100000001bdc0141fe3e5c2223a6d26a95acbf791042d93f9d9b8b38f133bf7adb5c1e293010000006a47304402202214770c0f5a9261190337273219a108132a4bc987c745db8dd6daded34b0dcb0220573de1d973166024b8342d6b6fef2a864a06cceee6aee13a910e5d8df465ed2a01210382b259804ad8d88b96a23222e24dd5a130d39588e78960c9e9b48a5b49943649ffffffff02a0860100000000001976a91479a7bf0bba8359561d4dab457042d7b632d5e64188ac605b0300000000001976a914b036c529faeca8040232cc4bd5918e709e90c4ff88ac00000000"));
+        for (int i = 1;
+             i < 3;
+             i++) {
+            In in = new In();
+            byte[] prevTxHash = new byte[32];
+            prevTxHash[0] = (byte) i;
+            in.setPrevTxHash(prevTxHash);
+            in.setPrevOutSn(i);
+            in.setInSignature(new byte[]{(byte) i});
+            in.setInSequence(0xfffffffeL - i);
+            tx.addInput(in);
+        }
+        tx.setTxLockTime(300000);
+        return tx;
+    }
+
+    /**
+     * The legacy signature hash as the reference client serializes it.
+     */
+    private static byte[] referenceHash(Tx tx, int inputIndex, byte[] script, int sigHashType)
+            throws IOException {
+        boolean none = (sigHashType & 0x1f) == 2;
+        boolean single = (sigHashType & 0x1f) == 3;
+        boolean anyoneCanPay = (sigHashType & 0x80) != 0;
+        if (single && inputIndex >= tx.getOuts().size()) {
+            // the reference client signs "1" when there is no matching out
+            byte[] one = new byte[32];
+            one[0] = 1;
+            return one;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(tx.getTxVer(), bos);
+        bos.write(new VarInt(anyoneCanPay ? 1 : tx.getIns().size()).encode());
+        for (int i = 0;
+             i < tx.getIns().size();
+             i++) {
+            if (anyoneCanPay && i != inputIndex) {
+                continue;
+            }
+            In in = tx.getIns().get(i);
+            bos.write(in.getPrevTxHash());
+            Utils.uint32ToByteStreamLE(in.getPrevOutSn(), bos);
+            byte[] inScript = i == inputIndex ? script : new byte[0];
+            bos.write(new VarInt(inScript.length).encode());
+            bos.write(inScript);
+            Utils.uint32ToByteStreamLE((none || single) && i != inputIndex ? 0 : in
+                    .getInSequence(), bos);
+        }
+        int outCount = none ? 0 : (single ? inputIndex + 1 : tx.getOuts().size());
+        bos.write(new VarInt(outCount).encode());
+        for (int i = 0;
+             i < outCount;
+             i++) {
+            Out out = tx.getOuts().get(i);
+            if (single && i < inputIndex) {
+                Utils.int64ToByteStreamLE(-1, bos);
+                bos.write(0);
+            } else {
+                Utils.int64ToByteStreamLE(out.getOutValue(), bos);
+                bos.write(new VarInt(out.getOutScript().length).encode());
+                bos.write(out.getOutScript());
+            }
+        }
+        Utils.uint32ToByteStreamLE(tx.getTxLockTime(), bos);
+        Utils.uint32ToByteStreamLE(sigHashType, bos);
+        return Utils.doubleDigest(bos.toByteArray());
+    }
+}
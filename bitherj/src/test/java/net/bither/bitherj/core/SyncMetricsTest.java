@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncMetricsTest {
+    private static final long Pause = 50;
+
+    @Test
+    public void testPhaseMillis() throws Exception {
+        SyncMetrics metrics = new SyncMetrics();
+        assertEquals(SyncMetrics.Phase.Idle, metrics.getPhase());
+
+        metrics.enter(SyncMetrics.Phase.Headers);
+        Thread.sleep(Pause);
+        // entering the same phase again does not restart it
+        metrics.enter(SyncMetrics.Phase.Headers);
+        assertTrue(metrics.getCurrentPhaseMillis() >= Pause);
+
+        metrics.enter(SyncMetrics.Phase.FilteredBlocks);
+        assertEquals(SyncMetrics.Phase.FilteredBlocks, metrics.getPhase());
+        long headersMillis = metrics.getPhaseMillis(SyncMetrics.Phase.Headers);
+        assertTrue(headersMillis >= Pause);
+        Thread.sleep(Pause);
+        // a finished phase does not grow, the current one does
+        assertEquals(headersMillis, metrics.getPhaseMillis(SyncMetrics.Phase.Headers));
+        assertTrue(metrics.getPhaseMillis(SyncMetrics.Phase.FilteredBlocks) >= Pause);
+
+        // time in a phase entered again adds up
+        metrics.enter(SyncMetrics.Phase.Headers);
+        Thread.sleep(Pause);
+        assertTrue(metrics.getPhaseMillis(SyncMetrics.Phase.Headers) >= headersMillis + Pause);
+        assertEquals(0, metrics.getPhaseMillis(SyncMetrics.Phase.Mempool));
+    }
+
+    @Test
+    public void testRatesOfTheCurrentPhase() throws Exception {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.enter(SyncMetrics.Phase.FilteredBlocks);
+        metrics.blocksRelayed(100);
+        metrics.blocksRelayed(100);
+        metrics.txsRelayed(30);
+        metrics.bytesReceived(4000);
+        Thread.sleep(Pause);
+
+        long millis = metrics.getCurrentPhaseMillis();
+        // the rates only go down as time passes
+        assertTrue(metrics.getBlocksPerSecond() <= 200 * 1000.0 / millis);
+        assertTrue(metrics.getBlocksPerSecond() > 0);
+        assertTrue(metrics.getTxsPerSecond() <= 30 * 1000.0 / millis);
+        assertTrue(metrics.getBytesPerSecond() <= 4000 * 1000.0 / millis);
+        assertEquals(0, metrics.getHeadersPerSecond(), 0);
+
+        // the counts start over with the next phase
+        metrics.enter(SyncMetrics.Phase.Mempool);
+        assertEquals(0, metrics.getBlocksPerSecond(), 0);
+        assertEquals(0, metrics.getTxsPerSecond(), 0);
+        assertEquals(0, metrics.getBytesPerSecond(), 0);
+        metrics.headersRelayed(10);
+        assertTrue(metrics.getHeadersPerSecond() > 0);
+    }
+}
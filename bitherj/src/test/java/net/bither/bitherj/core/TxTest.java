@@ -72,4 +72,16 @@ public class TxTest {
         }
         assertTrue(Arrays.equals(exceptTxHash, txHash));
     }
+
+    @Test
+    public void testTxFromOffset() {
+        byte[] raw = Utils.hexStringToByteArray("0100000001bdc0141fe3e5c2223a6d26a95acbf791042d93f9d9b8b38f133bf7adb5c1e293010000006a47304402202214770c0f5a9261190337273219a108132a4bc987c745db8dd6daded34b0dcb0220573de1d973166024b8342d6b6fef2a864a06cceee6aee13a910e5d8df465ed2a01210382b259804ad8d88b96a23222e24dd5a130d39588e78960c9e9b48a5b49943649ffffffff02a0860100000000001976a91479a7bf0bba8359561d4dab457042d7b632d5e64188ac605b0300000000001976a914b036c529faeca8040232cc4bd5918e709e90c4ff88ac00000000");
+        byte[] bytes = new byte[raw.length + 10];
+        Arrays.fill(bytes, (byte) 1);
+        System.arraycopy(raw, 0, bytes, 5, raw.length);
+        Tx tx = new Tx(bytes, 5, raw.length);
+        assertTrue(Arrays.equals(Utils.doubleDigest(raw), tx.getTxHash()));
+        assertEquals(2, tx.getOuts().size());
+        assertTrue(Arrays.equals(raw, tx.bitcoinSerialize()));
+    }
 }
@@ -5,6 +5,7 @@ import net.bither.bitherj.utils.Utils;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -168,6 +169,46 @@ public class HDDerivationTest {
 
     }
 
+    @Test
+    public void testDerivePubKeys() {
+        String[] addresses = {
+                "1NQpH6Nf8QtR2HphLRcvuVqfhXBXsiWn8r",
+                "16qTdEma9YHFPCZ8sB51nNrbfVg8Nkzy6P",
+                "1JbFSv4FnJ6ykAmAAMSsfb17xPDRxa3mcd",
+                "1LUMqSxParVVQd6JJUFz4hkyw2RRg5kd9p",
+                "1ABrPtQMVG2HXeTFdBxFMnFZGXDfBxX6W",
+                "1BAe3RWgFyYSYinqMgcYeSn6KhMQiVcq5J",
+                "1G4oGpkb8CSaieD42RWDAvdQXSvTyGb3FA",
+                "1NfeW33XrsfpbT9kX8bC7drvM15LEowY1f",
+                "1NYGvtvJhfz3rYmgvZfnseage7HVniLRwK",
+                "14cC65dm9D13VezMRramp1EjT5Y8DCjj5R",
+                "1DsTjmQobAy5fDbpwmdX32U7vLRJpBevXx",
+                "135CAdKgYEH4sL2VHjDZc833L29WeyUgmk",
+                "1DbvjkgJkcJF9km7ki1uvGPRu7ETCqBnad",
+                "1Jk3CjrCatH65zcP2ni8UW2GS2UWZZ46kG",
+                "181bA8aBHBZ7NhvPCqAYCrgC5K8BwJ3XpS",
+                "1JhwVsrRsJadq7i3bAdYpQS1bjNb7GRmQW",
+                "1F7B49jJJ7X6mX6XCtaydNq6LMzTmtuE72",
+                "13G7g5H6T9zMbuTqutkRem9oAcPRRGkiQo",
+                "19sPx9DVWzNjzMzPiAKfYZDHjwF5XKH7WU",
+                "1M7kvm32Ph3jWzqn3pQZ9bVJdQHjcV3tJA",
+        };
+        DeterministicKey external = HDKeyDerivation.createMasterPubKeyFromExtendedBytes(Utils
+                .hexStringToByteArray("02eb41548e5e08da531ff2e6feffeb59055231920d3a87cc49e2dffd095644d9296b3e950f9630d5cd6f671ec5e1e45486df9b1688b75650e97596a1ec181de8a8"));
+
+        List<byte[]> pubs = HDKeyDerivation.derivePubKeys(external, 0, addresses.length);
+        assertEquals(addresses.length, pubs.size());
+        for (int i = 0; i < addresses.length; i++) {
+            assertEquals(addresses[i], Utils.toAddress(Utils.sha256hash160(pubs.get(i))));
+        }
+
+        pubs = HDKeyDerivation.derivePubKeys(external, 3, 5);
+        assertEquals(5, pubs.size());
+        for (int i = 0; i < pubs.size(); i++) {
+            assertArrayEquals(external.deriveSoftened(3 + i).getPubKey(), pubs.get(i));
+        }
+    }
+
     private static final class DerPubCase {
         String extendedHex;
         String[] addresses;
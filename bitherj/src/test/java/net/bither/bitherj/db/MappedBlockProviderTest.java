@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.db;
+
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.db.imp.MappedBlockProvider;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedBlockProviderTest {
+    private static final byte[] ROOT = new byte[32];
+
+    private static Block block(int blockNo, byte[] prev) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) blockNo;
+        hash[1] = (byte) (blockNo >> 8);
+        hash[31] = 1;
+        return new Block(hash, 2, prev, ROOT, 1231006505 + blockNo, 486604799, blockNo,
+                blockNo, true);
+    }
+
+    @Test
+    public void testForkAndTornRecord() throws Exception {
+        File file = File.createTempFile("blocks", ".dat");
+        file.delete();
+        MappedBlockProvider provider = new MappedBlockProvider(file);
+        List<Block> blocks = new ArrayList<Block>();
+        byte[] prev = new byte[32];
+        for (int i = 1;
+             i <= 100;
+             i++) {
+            Block block = block(i, prev);
+            blocks.add(block);
+            prev = block.getBlockHash();
+        }
+        provider.addBlocks(blocks);
+        assertEquals(100, provider.getBlockCount());
+        assertEquals(100, provider.getLastBlock().getBlockNo());
+        assertEquals(50, provider.getMainChainBlock(50).getBlockNo());
+
+        provider.updateBlock(prev, false);
+        assertEquals(99, provider.getLastBlock().getBlockNo());
+        assertEquals(100, provider.getLastOrphanBlock().getBlockNo());
+        assertNull(provider.getMainChainBlock(prev));
+        provider.close();
+
+        // a crash tore the 60th record, it is cut off with the ones after it
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(59 * 128 + 10);
+        randomAccessFile.write(0xFF);
+        randomAccessFile.close();
+        provider = new MappedBlockProvider(file);
+        assertEquals(59, provider.getBlockCount());
+        assertEquals(59, provider.getLastBlock().getBlockNo());
+        assertTrue(Arrays.equals(blocks.get(58).getBlockHash(), provider.getLastBlock()
+                .getBlockHash()));
+        provider.close();
+        file.delete();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File file = File.createTempFile("blocks", ".dat");
+        file.delete();
+        MappedBlockProvider provider = new MappedBlockProvider(file);
+        List<Block> blocks = new ArrayList<Block>();
+        byte[] prev = new byte[32];
+        for (int i = 1;
+             i <= 6000;
+             i++) {
+            Block block = block(i, prev);
+            blocks.add(block);
+            prev = block.getBlockHash();
+        }
+        provider.addBlocks(blocks);
+        provider.removeBlock(blocks.get(5999).getBlockHash());
+        assertEquals(5999, provider.getLastBlock().getBlockNo());
+
+        // keeps the blocks after the difficulty interval before the last one
+        provider.cleanOldBlock();
+        assertEquals(5999 - 2015, provider.getBlockCount());
+        assertNull(provider.getBlock(blocks.get(2014).getBlockHash()));
+        assertEquals(2016, provider.getMainChainBlock(2016).getBlockNo());
+        assertEquals(5999, provider.getLastBlock().getBlockNo());
+        assertTrue(file.exists());
+        assertTrue(!new File(file.getPath() + ".compacting").exists());
+        provider.close();
+
+        provider = new MappedBlockProvider(file);
+        assertEquals(5999 - 2015, provider.getBlockCount());
+        assertEquals(5999, provider.getLastBlock().getBlockNo());
+        provider.close();
+
+        // a crash while the compacted records were copied over the file is finished on open
+        File compacting = new File(file.getPath() + ".compacting");
+        byte[] records = new byte[(5999 - 2015) * 128];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.readFully(records);
+        randomAccessFile.seek(0);
+        randomAccessFile.write(new byte[128 * 10]);
+        randomAccessFile.close();
+        randomAccessFile = new RandomAccessFile(compacting, "rw");
+        randomAccessFile.write(records);
+        randomAccessFile.close();
+        provider = new MappedBlockProvider(file);
+        assertEquals(5999 - 2015, provider.getBlockCount());
+        assertEquals(5999, provider.getLastBlock().getBlockNo());
+        assertTrue(!compacting.exists());
+        provider.close();
+        file.delete();
+    }
+}
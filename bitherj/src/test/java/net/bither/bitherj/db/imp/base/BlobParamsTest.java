@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.db.imp.base;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlobParamsTest {
+    @Test
+    public void testBlobsInlined() {
+        List<String> textParams = new ArrayList<String>();
+        String sql = BlobParams.inlineBlobs("select * from outs where tx_hash=? and out_sn=? and" +
+                " out_address=? and out_status=?", new Object[]{new byte[]{0x0a, (byte) 0xff},
+                2, null, "0"}, textParams);
+        assertEquals("select * from outs where tx_hash=x'0AFF' and out_sn=? and out_address=? and" +
+                " out_status=?", sql);
+        assertEquals(Arrays.asList("2", null, "0"), textParams);
+    }
+
+    @Test
+    public void testQuotedPlaceholdersKept() {
+        List<String> textParams = new ArrayList<String>();
+        String sql = BlobParams.inlineBlobs("select '?' from txs where tx_hash=?", new
+                Object[]{new byte[]{1}}, textParams);
+        assertEquals("select '?' from txs where tx_hash=x'01'", sql);
+        assertEquals(0, textParams.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParamCountChecked() {
+        BlobParams.inlineBlobs("select * from txs where tx_hash=?", new Object[]{new byte[]{1},
+                "1"}, new ArrayList<String>());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bither.bitherj.message;
+
+import net.bither.bitherj.core.Block;
+import net.bither.bitherj.exception.ProtocolException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HeadersMessageTest {
+    // more than a header of other bytes around the message, like in a shared read buffer
+    private static final int Padding = 100;
+
+    @Test
+    public void testParsedFromOffset() throws Exception {
+        Block genesis = genesis();
+        Block next = next(genesis);
+        byte[] payload = new HeadersMessage(genesis, next).bitcoinSerialize();
+        HeadersMessage message = new HeadersMessage(pad(payload), Padding, payload.length);
+
+        List<Block> headers = message.getBlockHeaders();
+        assertEquals(2, headers.size());
+        assertArrayEquals(genesis.getBlockHash(), headers.get(0).getBlockHash());
+        assertArrayEquals(next.getBlockHash(), headers.get(1).getBlockHash());
+        assertArrayEquals(genesis.getBlockHash(), headers.get(1).getBlockPrev());
+        assertEquals(payload.length, message.getMessageSize());
+    }
+
+    @Test
+    public void testHeadersPastThePayloadRejected() throws Exception {
+        Block genesis = genesis();
+        byte[] payload = new HeadersMessage(genesis, next(genesis)).bitcoinSerialize();
+        try {
+            // the second header is only in the bytes after the payload
+            new HeadersMessage(pad(payload), Padding, payload.length - 81);
+            fail();
+        } catch (ProtocolException e) {
+        }
+
+        payload[0] = 3;
+        try {
+            new HeadersMessage(pad(payload), Padding, payload.length);
+            fail();
+        } catch (ProtocolException e) {
+        }
+    }
+
+    private static Block genesis() {
+        return new Block(1, "0000000000000000000000000000000000000000000000000000000000000000"
+                , "4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b", 1231006505
+                , 486604799, 2083236893, 0);
+    }
+
+    private static Block next(Block prev) {
+        return new Block(1, prev.getHashAsString()
+                , "0e3e2357e806b6cdb1f70b54c3a3a17b6714ee1f0e68bebb44a74b1efd512098", 1231469665
+                , 486604799, 2573394689L, 1);
+    }
+
+    // header bytes that end with a null byte, so only the bounds tell them apart
+    static byte[] pad(byte[] payload) {
+        byte[] header = genesis().bitcoinSerialize();
+        byte[] result = new byte[Padding + payload.length + Padding];
+        for (int i = 0;
+             i < result.length;
+             i++) {
+            result[i] = i % 81 < header.length ? header[i % 81] : 0;
+        }
+        System.arraycopy(payload, 0, result, Padding, payload.length);
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.utils;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonStreamReaderTest {
+    @Test
+    public void testTxsResponse() throws Exception {
+        JsonStreamReader reader = new JsonStreamReader(new StringReader("{\"skip\":{\"a\":[1," +
+                "\"]\"]}, \"block_count\" : 123 ,\"tx\":[[10,\"AQ\\/I=\"],[11]],\"n\":null}"));
+        reader.beginObject();
+        assertEquals("skip", reader.nextName());
+        reader.skipValue();
+        assertEquals("block_count", reader.nextName());
+        assertEquals(123, reader.nextInt());
+        assertEquals("tx", reader.nextName());
+        reader.beginArray();
+        reader.beginArray();
+        assertEquals(10, reader.nextInt());
+        assertEquals("AQ/I=", reader.nextString());
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        reader.beginArray();
+        assertEquals(11, reader.nextInt());
+        reader.endArray();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertEquals("n", reader.nextName());
+        assertTrue(reader.isNextNull());
+        assertNull(reader.nextString());
+        assertFalse(reader.hasNext());
+        reader.endObject();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RawTxFetcherTest {
+    private File root;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("rawtxfetcher", "");
+        root.delete();
+        cacheDir = new File(root, "txcache");
+        assertTrue(cacheDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void testTxFetchedOnceForConcurrentCallers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch thirdStarted = new CountDownLatch(1);
+        final TestApi api = new TestApi() {
+            @Override
+            byte[] getRawTx(int txIndex, int call) throws Exception {
+                if (txIndex == 3) {
+                    thirdStarted.countDown();
+                }
+                assertTrue(release.await(10, TimeUnit.SECONDS));
+                return rawTx(txIndex);
+            }
+        };
+        final RawTxFetcher fetcher = new RawTxFetcher(api, cacheDir, 100, 100);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<byte[]>> first = callers.submit(new Callable<List<byte[]>>() {
+                @Override
+                public List<byte[]> call() throws Exception {
+                    return fetcher.fetch(Arrays.asList(1, 2), Arrays.asList(hash(1), hash(2)));
+                }
+            });
+            // the first caller is fetching 2 once the api gets it
+            while (api.callCount(2) == 0) {
+                Thread.sleep(5);
+            }
+            Future<List<byte[]>> second = callers.submit(new Callable<List<byte[]>>() {
+                @Override
+                public List<byte[]> call() throws Exception {
+                    return fetcher.fetch(Arrays.asList(2, 3), Arrays.asList(hash(2), hash(3)));
+                }
+            });
+            // 3 is submitted after 2, so the second caller waits for the fetch of 2 by now
+            assertTrue(thirdStarted.await(10, TimeUnit.SECONDS));
+            release.countDown();
+
+            List<byte[]> firstTxs = first.get(10, TimeUnit.SECONDS);
+            List<byte[]> secondTxs = second.get(10, TimeUnit.SECONDS);
+            assertArrayEquals(rawTx(1), firstTxs.get(0));
+            assertArrayEquals(rawTx(2), firstTxs.get(1));
+            assertArrayEquals(rawTx(2), secondTxs.get(0));
+            assertArrayEquals(rawTx(3), secondTxs.get(1));
+        } finally {
+            callers.shutdownNow();
+        }
+        for (int txIndex = 1;
+             txIndex <= 3;
+             txIndex++) {
+            assertEquals(1, api.callCount(txIndex));
+        }
+    }
+
+    @Test
+    public void testCachedTxIsVerified() throws Exception {
+        TestApi api = new TestApi() {
+            @Override
+            byte[] getRawTx(int txIndex, int call) {
+                return rawTx(txIndex);
+            }
+        };
+        RawTxFetcher fetcher = new RawTxFetcher(api, cacheDir, 100, 100);
+        fetcher.fetch(Arrays.asList(1), Arrays.asList(hash(1)));
+        assertTrue(new File(cacheDir, hash(1)).exists());
+
+        // a later fetch reads it from the disk
+        fetcher.fetch(Arrays.asList(1), Arrays.asList(hash(1).toUpperCase()));
+        assertEquals(1, api.callCount(1));
+
+        // a changed file is not used and fetched again
+        Utils.writeFile(Utils.bytesToHexString(rawTx(2)), new File(cacheDir, hash(1)));
+        assertArrayEquals(rawTx(1), fetcher.fetch(Arrays.asList(1), Arrays.asList(hash(1)))
+                .get(0));
+        assertEquals(2, api.callCount(1));
+        assertArrayEquals(rawTx(1), Utils.hexStringToByteArray(Utils.readFile(new File
+                (cacheDir, hash(1)))));
+    }
+
+    @Test
+    public void testOnlyHexHashesAreCached() throws Exception {
+        File victim = new File(root, "victim");
+        Utils.writeFile("keep", victim);
+        TestApi api = new TestApi() {
+            @Override
+            byte[] getRawTx(int txIndex, int call) {
+                return rawTx(txIndex);
+            }
+        };
+        RawTxFetcher fetcher = new RawTxFetcher(api, cacheDir, 100, 100);
+        String[] badHashes = new String[]{"../victim", null, "", hash(1).substring(1) + "g",
+                hash(1) + "0"};
+        for (String badHash : badHashes) {
+            assertFalse(RawTxFetcher.isTxHash(badHash));
+            assertArrayEquals(rawTx(1), fetcher.fetch(Arrays.asList(1), Arrays.asList
+                    (badHash)).get(0));
+        }
+        assertEquals(badHashes.length, api.callCount(1));
+        assertTrue(victim.exists());
+        assertEquals("keep", Utils.readFile(victim));
+        assertEquals(0, cacheDir.list().length);
+    }
+
+    @Test
+    public void testTrimKeepsTheTxsUsedLast() throws Exception {
+        TestApi api = new TestApi() {
+            @Override
+            byte[] getRawTx(int txIndex, int call) {
+                return rawTx(txIndex);
+            }
+        };
+        RawTxFetcher fetcher = new RawTxFetcher(api, cacheDir, 3, 1);
+        long now = System.currentTimeMillis();
+        for (int txIndex = 1;
+             txIndex <= 3;
+             txIndex++) {
+            fetcher.fetch(Arrays.asList(txIndex), Arrays.asList(hash(txIndex)));
+            // 1 is the oldest
+            new File(cacheDir, hash(txIndex)).setLastModified(now - (10 - txIndex) * 60000);
+        }
+        // reading 1 makes 2 the oldest
+        fetcher.fetch(Arrays.asList(1), Arrays.asList(hash(1)));
+        assertEquals(1, api.callCount(1));
+
+        fetcher.fetch(Arrays.asList(4), Arrays.asList(hash(4)));
+        assertEquals(3, cacheDir.list().length);
+        assertFalse(new File(cacheDir, hash(2)).exists());
+        for (int txIndex : new int[]{1, 3, 4}) {
+            assertTrue(new File(cacheDir, hash(txIndex)).exists());
+        }
+    }
+
+    private static byte[] rawTx(int txIndex) {
+        return new byte[]{1, 0, 0, 0, (byte) txIndex};
+    }
+
+    // lower case like blockchain.info shows them
+    private static String hash(int txIndex) {
+        return Utils.hashToString(Utils.doubleDigest(rawTx(txIndex))).toLowerCase(Locale.US);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    private static abstract class TestApi implements RawTxFetcher.RawTxApi {
+        private final ConcurrentHashMap<Integer, AtomicInteger> calls = new
+                ConcurrentHashMap<Integer, AtomicInteger>();
+
+        @Override
+        public byte[] getRawTx(int txIndex) throws Exception {
+            calls.putIfAbsent(txIndex, new AtomicInteger());
+            return getRawTx(txIndex, calls.get(txIndex).incrementAndGet());
+        }
+
+        int callCount(int txIndex) {
+            AtomicInteger count = calls.get(txIndex);
+            return count == null ? 0 : count.get();
+        }
+
+        abstract byte[] getRawTx(int txIndex, int call) throws Exception;
+    }
+}
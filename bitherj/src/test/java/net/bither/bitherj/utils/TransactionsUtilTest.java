@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 http://Bither.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.bither.bitherj.utils;
+
+import net.bither.bitherj.core.AbstractHD;
+import net.bither.bitherj.core.Tx;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TransactionsUtilTest {
+    private static final int AddressCount = 20;
+
+    @Test
+    public void testResultsHandledInIndexOrder() throws Exception {
+        TestTarget target = new TestTarget(3);
+        final Set<Integer> usedIndexes = new HashSet<Integer>(Arrays.asList(0, 2, 5));
+        TestApi api = new TestApi() {
+            @Override
+            TransactionsUtil.AddressTxs getTxs(int index) throws Exception {
+                // later addresses come back first
+                Thread.sleep((AddressCount - index) * 5);
+                return txs(usedIndexes.contains(index) ? 2 : 0);
+            }
+        };
+        TransactionsUtil.syncHDAddresses(target, AbstractHD.PathType.EXTERNAL_ROOT_PATH, api, 0);
+
+        assertEquals(Arrays.asList(0, 2, 5), target.usedIndexes);
+        // the sync stops after more than 3 unused addresses in a row
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), target.syncedIndexes);
+        assertEquals(9, target.lastSyncedIndex);
+        // nothing past the gap was fetched
+        assertEquals(new TreeSet<Integer>(target.syncedIndexes), new TreeSet<Integer>(api
+                .calls.keySet()));
+        assertEquals(6, target.savedTxCount);
+    }
+
+    @Test
+    public void testFailedFetchIsRetried() throws Exception {
+        TestTarget target = new TestTarget(1);
+        TestApi api = new TestApi() {
+            @Override
+            TransactionsUtil.AddressTxs getTxs(int index) throws Exception {
+                if (index == 1 && calls.get(index).get() <= 2) {
+                    throw new IOException("timeout");
+                }
+                return txs(index == 0 ? 1 : 0);
+            }
+        };
+        TransactionsUtil.syncHDAddresses(target, AbstractHD.PathType.INTERNAL_ROOT_PATH, api, 1);
+
+        assertEquals(3, api.calls.get(1).get());
+        assertEquals(Arrays.asList(0, 1, 2), target.syncedIndexes);
+        assertEquals(2, target.lastSyncedIndex);
+    }
+
+    @Test
+    public void testFailureStopsTheSync() throws Exception {
+        TestTarget target = new TestTarget(3);
+        final IOException failure = new IOException("api down");
+        TestApi api = new TestApi() {
+            @Override
+            TransactionsUtil.AddressTxs getTxs(int index) throws Exception {
+                if (index == 2) {
+                    throw failure;
+                }
+                return txs(1);
+            }
+        };
+        try {
+            TransactionsUtil.syncHDAddresses(target, AbstractHD.PathType.EXTERNAL_ROOT_PATH,
+                    api, 1);
+            fail("the failed fetch should stop the sync");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(3, api.calls.get(2).get());
+        // fetched addresses are not marked synced without their txs saved
+        assertEquals(Collections.emptyList(), target.syncedIndexes);
+        assertEquals(-2, target.lastSyncedIndex);
+        assertFalse(target.usedIndexes.contains(2));
+    }
+
+    private static TransactionsUtil.AddressTxs txs(int count) {
+        TransactionsUtil.AddressTxs result = new TransactionsUtil.AddressTxs();
+        for (int i = 0;
+             i < count;
+             i++) {
+            result.txs.add(new Tx());
+        }
+        return result;
+    }
+
+    private static abstract class TestApi implements TransactionsUtil.AddressTxsApi {
+        final ConcurrentHashMap<Integer, AtomicInteger> calls = new ConcurrentHashMap<Integer,
+                AtomicInteger>();
+
+        @Override
+        public TransactionsUtil.AddressTxs getTxs(String address, int storeBlockHeight) throws
+                Exception {
+            int index = Integer.parseInt(address);
+            calls.putIfAbsent(index, new AtomicInteger());
+            calls.get(index).incrementAndGet();
+            return getTxs(index);
+        }
+
+        abstract TransactionsUtil.AddressTxs getTxs(int index) throws Exception;
+    }
+
+    private static class TestTarget extends TransactionsUtil.HDSyncTarget<Integer> {
+        final List<Integer> usedIndexes = new ArrayList<Integer>();
+        final List<Integer> syncedIndexes = new ArrayList<Integer>();
+        int lastSyncedIndex = -2;
+        int savedTxCount;
+
+        TestTarget(int maxUnusedAddressCount) {
+            super("test", maxUnusedAddressCount);
+        }
+
+        @Override
+        Integer addressForPath(AbstractHD.PathType pathType, int index) {
+            return index < AddressCount ? index : null;
+        }
+
+        @Override
+        String getAddress(Integer address) {
+            return address.toString();
+        }
+
+        @Override
+        boolean isSyncComplete(Integer address) {
+            return false;
+        }
+
+        @Override
+        List<Tx> compressTxs(List<Tx> txs) {
+            return txs;
+        }
+
+        @Override
+        void initTxs(List<Tx> txs) {
+            savedTxCount += txs.size();
+        }
+
+        @Override
+        void updateSyncComplete(Integer address) {
+            syncedIndexes.add(address);
+        }
+
+        @Override
+        void addressUsed(AbstractHD.PathType pathType, int index) {
+            usedIndexes.add(index);
+        }
+
+        @Override
+        void pathSynced(AbstractHD.PathType pathType, int lastIndex) {
+            lastSyncedIndex = lastIndex;
+        }
+
+        @Override
+        int getStoreBlockHeight() {
+            return 0;
+        }
+
+        @Override
+        void rollbackBlock(int apiBlockCount) {
+        }
+    }
+}